@@ -0,0 +1,49 @@
+package session;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of encoding credentials and building the authentication headers from
+ * them
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CredentialBenchmark {
+
+	private final Credential credential = new Credential("username", "password");
+
+	@Benchmark
+	public Credential encode() {
+		return new Credential("username", "password");
+	}
+
+	@Benchmark
+	public JSONObject basicCredentialsJSON() {
+		return this.credential.getBasicCredentialsJSON();
+	}
+
+	@Benchmark
+	public RequestHeaders basicCredentialsHeaders() {
+		return this.credential.getBasicCredentialsHeaders();
+	}
+
+	@Benchmark
+	public JSONObject cookieCredentialsJSON() {
+		return this.credential.getCookieCredentialsJSON();
+	}
+}
@@ -0,0 +1,145 @@
+package session;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import core.StreamBuffer;
+import session.transport.Transport;
+import session.transport.URLConnectionTransport;
+
+/**
+ * Cost of each in-memory stage of a request, without any network: applying the
+ * authentication headers, serializing the request body, reading the response
+ * and decoding it as JSON
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestPipelineBenchmark {
+
+	/**
+	 * Number of fields in the request and response payloads
+	 */
+	@Param({ "10", "1000" })
+	public Integer fields;
+
+	private final PrintStream console = System.out;
+	private URL url;
+	private final Transport transport = new URLConnectionTransport();
+	private RequestHeaders requestHeaders;
+	private JSONObject requestData;
+	private byte[] objectResponse;
+	private byte[] arrayResponse;
+	private SessionConnection objectConnection;
+	private SessionConnection arrayConnection;
+
+	@Setup
+	public void setup() throws MalformedURLException {
+		// Console logging is discarded so the console doesn't dominate the results
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int value) {
+			}
+		}));
+
+		this.url = new URL("https://localhost/object");
+		this.requestHeaders = new Credential("username", "password").getBasicCredentialsHeaders().with("Cookie",
+				"JSESSIONID=0123456789ABCDEF0123456789ABCDEF");
+
+		this.requestData = new JSONObject();
+		StringBuilder object = new StringBuilder("{");
+		StringBuilder array = new StringBuilder("[");
+		for (int field = 0; field < this.fields; field++) {
+			this.requestData.put("field" + field, "value" + field);
+			object.append((field > 0) ? "," : "").append("\"field").append(field).append("\":\"value")
+					.append(field).append('"');
+			array.append((field > 0) ? "," : "").append("{\"id\":").append(field).append('}');
+		}
+		this.objectResponse = object.append('}').toString().getBytes(StandardCharsets.UTF_8);
+		this.arrayResponse = array.append(']').toString().getBytes(StandardCharsets.UTF_8);
+		this.objectConnection = new SessionConnection(200, "OK", this.objectResponse, Collections.emptyMap());
+		this.arrayConnection = new SessionConnection(200, "OK", this.arrayResponse, Collections.emptyMap());
+	}
+
+	@TearDown
+	public void tearDown() {
+		System.setOut(this.console);
+	}
+
+	@Benchmark
+	public Transport.Exchange applyHeaders() throws IOException {
+		// Opening a URLConnection doesn't connect until it's used
+		return this.transport.open(this.url, "GET", this.requestHeaders, null, null);
+	}
+
+	@Benchmark
+	public Long serializeBody() throws IOException {
+		RequestBody body = RequestBody.json(this.requestData);
+		CountingOutputStream output = new CountingOutputStream();
+		body.writeTo(output);
+		return output.count;
+	}
+
+	@Benchmark
+	public byte[] readResponse() throws IOException {
+		try (BufferPool.Output output = BufferPool.getDefault().newOutput()) {
+			output.readFrom(new ByteArrayInputStream(this.objectResponse));
+			return output.toByteArray();
+		}
+	}
+
+	@Benchmark
+	public String readResponseString() throws IOException {
+		return StreamBuffer.read(new ByteArrayInputStream(this.objectResponse));
+	}
+
+	@Benchmark
+	public JSONObject decodeJSONObject() {
+		return this.objectConnection.getJSONObjectResponse();
+	}
+
+	@Benchmark
+	public JSONArray decodeJSONArray() {
+		return this.arrayConnection.getJSONArrayResponse();
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+
+		private Long count = 0L;
+
+		@Override
+		public void write(int value) {
+			this.count++;
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) {
+			this.count += length;
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package session;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import test.LocalHTTPSServer;
+
+/**
+ * Full request path through an authenticated Session against the in-process
+ * HTTPS server, over keep-alive connections
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionBenchmark {
+
+	/**
+	 * Number of fields, or elements, in the response payload
+	 */
+	@Param({ "10", "1000" })
+	public Integer size;
+
+	private final PrintStream console = System.out;
+	private LocalHTTPSServer server;
+	private Session session;
+	private URL objectURL;
+	private URL arrayURL;
+	private URL echoURL;
+	private JSONObject requestData;
+
+	@Setup
+	public void setup() throws IOException {
+		// Console logging is discarded so the console doesn't dominate the results
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int value) {
+			}
+		}));
+
+		this.server = new LocalHTTPSServer();
+		this.objectURL = this.server.getURL("/object?fields=" + this.size);
+		this.arrayURL = this.server.getURL("/array?elements=" + this.size);
+		this.echoURL = this.server.getURL("/echo");
+
+		BasicAuthenticationProtocol protocol = Session.BasicAuthenticationProtocol(this.server.getURL("/"));
+		protocol.useKeystore(this.server.getKeystore());
+		protocol.setAuthenticationCache(new JSONObject().put("Authorization",
+				new Credential("username", "password").getBasicCredentialsJSON().getString("Authorization")));
+		this.session = new Session();
+		this.session.authorize(protocol);
+
+		this.requestData = new JSONObject();
+		for (int field = 0; field < this.size; field++) {
+			this.requestData.put("field" + field, "value" + field);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.server.close();
+		System.setOut(this.console);
+	}
+
+	@Benchmark
+	public JSONObject getJSONObject() {
+		return this.session.GET(this.objectURL).toGetJSONObjectResponse();
+	}
+
+	@Benchmark
+	public JSONArray getJSONArray() {
+		return this.session.GET(this.arrayURL).toGetJSONArrayResponse();
+	}
+
+	@Benchmark
+	public JSONObject postJSONObject() {
+		return this.session.POST(this.echoURL).with(this.requestData).toGetJSONObjectResponse();
+	}
+}
@@ -13,8 +13,11 @@ import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManagerFactory;
 import javax.swing.UIManager;
@@ -41,6 +44,10 @@ public class Keystore {
 	private char[] keystorePassword = "password".toCharArray();
 	private KeyStore systemKeystore;
 	private Boolean initialized = false;
+	private Map<String, SSLContext> sslContexts = new ConcurrentHashMap<String, SSLContext>();
+	private Map<String, SSLSocketFactory> sslSocketFactories = new ConcurrentHashMap<String, SSLSocketFactory>();
+	private Integer sessionCacheSize = null;
+	private Integer sessionTimeout = null;
 	
 	/**
 	 * Creates a keystore at the default path
@@ -177,12 +184,23 @@ public class Keystore {
 	}
 	
 	/**
-	 * Retrieves and initializes the SSLContext
+	 * Retrieves the SSLContext for the protocol, initializing it only the first
+	 * time so that every connection shares its TLS session cache
 	 * 
 	 * @param protocol Desired protocol to be used
 	 * @return SSLContext with the desired protocol
 	 */
 	private SSLContext getSSLContext(String protocol){
+		return this.sslContexts.computeIfAbsent(protocol, this::createSSLContext);
+	}
+	
+	/**
+	 * Creates and initializes a new SSLContext
+	 * 
+	 * @param protocol Desired protocol to be used
+	 * @return SSLContext with the desired protocol
+	 */
+	private SSLContext createSSLContext(String protocol){
 		SSLContext context = null;
 		try {
 			context = SSLContext.getInstance(protocol);
@@ -201,15 +219,64 @@ public class Keystore {
 			System.err.println("The SSLContext could not be initialized.");
 			e.printStackTrace();
 		}
+		this.configureSessionContext(context.getClientSessionContext());
 		return context;
 	}
 	
 	/**
-	 * Retrieves and initializes the SSLContext
+	 * Applies the TLS session cache tuning to a client session context
+	 * 
+	 * @param sessionContext
+	 */
+	private void configureSessionContext(SSLSessionContext sessionContext){
+		if(sessionContext == null){
+			return;
+		}
+		if(this.sessionCacheSize != null){
+			sessionContext.setSessionCacheSize(this.sessionCacheSize);
+		}
+		if(this.sessionTimeout != null){
+			sessionContext.setSessionTimeout(this.sessionTimeout);
+		}
+	}
+	
+	/**
+	 * Sets the number of TLS sessions cached for resumption, 0 for no limit
+	 * 
+	 * @param sessionCacheSize
+	 */
+	public void setSessionCacheSize(Integer sessionCacheSize){
+		this.sessionCacheSize = sessionCacheSize;
+		this.sslContexts.values().forEach(context -> this.configureSessionContext(context.getClientSessionContext()));
+	}
+	
+	/**
+	 * Sets how long, in seconds, a cached TLS session may be resumed, 0 for no
+	 * limit
+	 * 
+	 * @param sessionTimeout
+	 */
+	public void setSessionTimeout(Integer sessionTimeout){
+		this.sessionTimeout = sessionTimeout;
+		this.sslContexts.values().forEach(context -> this.configureSessionContext(context.getClientSessionContext()));
+	}
+	
+	/**
+	 * Discards the cached SSLContexts so they're rebuilt with the current
+	 * certificates on next use
+	 */
+	private void invalidateSSLContexts(){
+		this.sslSocketFactories.clear();
+		this.sslContexts.clear();
+	}
+	
+	/**
+	 * Retrieves and initializes the SSLContext. The same instance is returned
+	 * until the certificates change.
 	 * 
 	 * @return SSLContext with the 'SSL' protocol
 	 */
-	private SSLContext getSSLContext(){
+	public SSLContext getSSLContext(){
 		return this.getSSLContext("SSL");
 	}
 	
@@ -223,13 +290,15 @@ public class Keystore {
 	}
 	
 	/**
-	 * Retrieves the SSL Socket Factory from the initialized SSL Context
+	 * Retrieves the SSL Socket Factory from the initialized SSL Context. The
+	 * same instance is returned until the certificates change, since the JDK
+	 * only reuses keep-alive sockets created by the same factory.
 	 * 
 	 * @param protocol Desired protocol to be used
 	 * @return SSLSocketFactory with the desired protocol
 	 */
 	private SSLSocketFactory getSSLSocketFactory(String protocol){
-		return this.getSSLContext(protocol).getSocketFactory();
+		return this.sslSocketFactories.computeIfAbsent(protocol, key -> this.getSSLContext(key).getSocketFactory());
 	}
 	
 	/**
@@ -254,7 +323,14 @@ public class Keystore {
 		
 		try {
 			try {
-				this.systemKeystore.load(this.getKeystoreInputStream(), this.keystorePassword);
+				// An empty file can't be parsed by every keystore type (PKCS12 is the
+				// default from Java 9), so it's treated the same as a blank keystore
+				if (this.keystore.length() == 0) {
+					throw new EOFException("The keystore file is empty.");
+				}
+				try (FileInputStream input = this.getKeystoreInputStream()) {
+					this.systemKeystore.load(input, this.keystorePassword);
+				}
 				System.out.println("Existing keystore was loaded.");
 				System.out.println("Keystore has been successfully initialized.");
 				this.initialized = true;
@@ -308,6 +384,7 @@ public class Keystore {
 			Integer initial = this.systemKeystore.size();
 			this.systemKeystore.setCertificateEntry(host, Keystore.extractX509FromFile(certificate));
 			this.saveKeystore();
+			this.invalidateSSLContexts();
 			Integer result = this.systemKeystore.size();
 			System.out.println(host + " was successfully added to the keystore from " + initial + " to " + result + " certificates.");
 		} catch (KeyStoreException e) {
@@ -2,51 +2,93 @@ package session;
 
 import java.io.IOException;
 import java.net.URL;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import keystore.Keystore;
 import session.exception.NotAuthorized401Exception;
 
+/**
+ * Authenticates a Session. The credential, authentication headers and keystore
+ * are held in an immutable AuthenticationState, replaced as a whole whenever
+ * they change, so requests on any thread read them without locking. Logins are
+ * serialized by the protocol itself.
+ */
 public abstract class AuthenticationProtocol {
 
-	protected Keystore keystore = null;
-	private Boolean authenticated = false;
-	protected Credential credential = null;
-	protected JSONObject authenticationCache = new JSONObject();
-	protected URL authenticationLocale = null;
+	private static final Logger LOGGER = LoggerFactory.getLogger(AuthenticationProtocol.class);
+
+	private final AtomicReference<AuthenticationState> state = new AtomicReference<AuthenticationState>(
+			AuthenticationState.ANONYMOUS);
+	protected volatile URL authenticationLocale = null;
 	protected SessionConnection authorizationConnection = null;
 	
 	public AuthenticationProtocol(URL authenticationLocale) {
 		this.authenticationLocale = authenticationLocale;
 	}
 	
+	/**
+	 * @return Current snapshot of the credential, headers and keystore
+	 */
+	protected AuthenticationState getState() {
+		return this.state.get();
+	}
+	
 	protected Boolean isAuthenticated() {
-		return this.authenticated;
+		return this.state.get().isAuthenticated();
 	}
 
-	protected void deAuthenticate() {
-		this.authenticated = false;
-		this.credential = null;
-		this.authenticationCache = new JSONObject();
+	protected synchronized void deAuthenticate() {
+		this.state.set(AuthenticationState.ANONYMOUS);
 		this.authenticationLocale = null;
-		this.useKeystore(false);
 		this.authorizationConnection = null;
 		System.out.println("Credential and authentication cache have been cleared.");
 	}
 	
 	protected Keystore getKeystore() {
-		return this.keystore;
+		return this.state.get().getKeystore();
+	}
+	
+	protected Credential getCredential() {
+		return this.state.get().getCredential();
 	}
 	
+	/**
+	 * @return Copy of the headers sent with every request
+	 */
 	protected JSONObject getAuthenticationCache() {
-		return this.authenticationCache;
+		return this.state.get().getHeaders().toJSONObject();
+	}
+	
+	/**
+	 * Replaces the headers sent with every request, without logging in
+	 * 
+	 * @param authenticationCache
+	 */
+	protected void setAuthenticationCache(JSONObject authenticationCache) {
+		RequestHeaders headers = RequestHeaders.of(authenticationCache);
+		this.state.updateAndGet(state -> state.withHeaders(headers));
+	}
+	
+	/**
+	 * Publishes the headers returned by a successful login
+	 * 
+	 * @param headers
+	 *            Headers to send with every request
+	 */
+	protected void setAuthenticated(RequestHeaders headers) {
+		this.state.updateAndGet(state -> state.authenticated(headers));
 	}
 
 	protected Boolean connectionAuthorized(URL authorizationLocale, JSONObject authorizationRequestBody,
-			JSONObject authorizationRequestHeaders) {
+			RequestHeaders authorizationRequestHeaders) {
 		try {
-			this.authorizationConnection = new SessionConnection(authorizationLocale, authorizationRequestBody, authorizationRequestHeaders);
+			this.authorizationConnection = new SessionConnection(authorizationLocale,
+					RequestBody.json(authorizationRequestBody), authorizationRequestHeaders,
+					SessionConnection.REQUEST_METHOD.GET, this.getKeystore(), (Session) null, false);
 			switch (this.authorizationConnection.getServerResponseCode()) {
 			case 200:
 				return true;
@@ -64,13 +106,59 @@ public abstract class AuthenticationProtocol {
 		}
 	}
 	
+	/**
+	 * Uses the provided keystore, rather than the default keystore, to trust
+	 * the server's certificates
+	 * 
+	 * @param keystore
+	 */
+	public void useKeystore(Keystore keystore) {
+		this.state.updateAndGet(state -> state.withKeystore(keystore));
+	}
+	
 	public void useKeystore(Boolean useKeystore) {
-		if (useKeystore) {
-			this.keystore = Keystore.DEFAULT_KEYSTORE;
-		} else {
-			this.keystore = null;
-		}
+		this.useKeystore(useKeystore ? Keystore.DEFAULT_KEYSTORE : (Keystore) null);
 	}
 	
-	abstract void authorize(String username, String password, Boolean useKeystore);
+	/**
+	 * Authenticates against the authorization locale
+	 * 
+	 * @param username
+	 * @param password
+	 * @param useKeystore
+	 *            Trust the server through the default keystore, unless a
+	 *            keystore has already been provided
+	 */
+	public synchronized void authorize(String username, String password, Boolean useKeystore) {
+		Credential credential = new Credential(username, password);
+		this.state.updateAndGet(state -> {
+			AuthenticationState updated = state.withCredential(credential);
+			return (useKeystore && state.getKeystore() == null) ? updated.withKeystore(Keystore.DEFAULT_KEYSTORE)
+					: updated;
+		});
+		this.authenticate();
+	}
+
+	/**
+	 * Authenticates again with the stored credential, for example once a
+	 * session cookie has expired
+	 * 
+	 * @return Whether authentication succeeded
+	 */
+	protected synchronized Boolean reauthorize() {
+		if (this.getCredential() == null || this.authenticationLocale == null) {
+			return false;
+		}
+		LOGGER.debug("Re-authenticating with the stored credential.");
+		return this.authenticate();
+	}
+
+	/**
+	 * Sends the stored credential to the authorization locale and, if it's
+	 * accepted, publishes the resulting headers through setAuthenticated.
+	 * Only called while holding the protocol's lock.
+	 * 
+	 * @return Whether authentication succeeded
+	 */
+	protected abstract Boolean authenticate();
 }
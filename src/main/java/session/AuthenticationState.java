@@ -0,0 +1,65 @@
+package session;
+
+import keystore.Keystore;
+
+/**
+ * Immutable snapshot of an AuthenticationProtocol: the credential, the headers
+ * sent with every request and the keystore they're sent through. Every change
+ * produces a new snapshot, so a request reads a consistent set of credentials
+ * without locking while the protocol re-authenticates.
+ */
+final class AuthenticationState {
+
+	protected static final AuthenticationState ANONYMOUS = new AuthenticationState(false, null, RequestHeaders.EMPTY,
+			null);
+
+	private final Boolean authenticated;
+	private final Credential credential;
+	private final RequestHeaders headers;
+	private final Keystore keystore;
+
+	private AuthenticationState(Boolean authenticated, Credential credential, RequestHeaders headers,
+			Keystore keystore) {
+		this.authenticated = authenticated;
+		this.credential = credential;
+		this.headers = (headers != null) ? headers : RequestHeaders.EMPTY;
+		this.keystore = keystore;
+	}
+
+	protected Boolean isAuthenticated() {
+		return this.authenticated;
+	}
+
+	protected Credential getCredential() {
+		return this.credential;
+	}
+
+	protected RequestHeaders getHeaders() {
+		return this.headers;
+	}
+
+	protected Keystore getKeystore() {
+		return this.keystore;
+	}
+
+	protected AuthenticationState withCredential(Credential credential) {
+		return new AuthenticationState(this.authenticated, credential, this.headers, this.keystore);
+	}
+
+	protected AuthenticationState withKeystore(Keystore keystore) {
+		return new AuthenticationState(this.authenticated, this.credential, this.headers, keystore);
+	}
+
+	protected AuthenticationState withHeaders(RequestHeaders headers) {
+		return new AuthenticationState(this.authenticated, this.credential, headers, this.keystore);
+	}
+
+	/**
+	 * @param headers
+	 *            Headers returned by a successful login
+	 * @return Authenticated snapshot sending the headers
+	 */
+	protected AuthenticationState authenticated(RequestHeaders headers) {
+		return new AuthenticationState(true, this.credential, headers, this.keystore);
+	}
+}
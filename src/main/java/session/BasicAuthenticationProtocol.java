@@ -15,16 +15,15 @@ public class BasicAuthenticationProtocol extends AuthenticationProtocol {
 		super(authorizationLocale);
 	}
 
-	public void authorize(String username, String password, Boolean useKeystore) {
-		this.credential = new Credential(username, password);
-		if (this.connectionAuthorized(authenticationLocale, (JSONObject) null,
-				this.credential.getBasicCredentialsJSON())) {
-			this.authenticationCache.put("Authorization",
-					this.credential.getBasicCredentialsJSON().get("Authorization"));
+	protected Boolean authenticate() {
+		RequestHeaders credentials = this.getCredential().getBasicCredentialsHeaders();
+		if (this.connectionAuthorized(authenticationLocale, (JSONObject) null, credentials)) {
+			this.setAuthenticated(credentials);
 			System.out.println("Basic authentication protocol successfully authenticated.");
-			this.useKeystore(useKeystore);
+			return true;
 		} else {
 			System.out.println("Basic authentication protocol could not be authenticated.");
+			return false;
 		}
 	}
-}
\ No newline at end of file
+}
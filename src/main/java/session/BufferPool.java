@@ -0,0 +1,380 @@
+package session;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+
+/**
+ * Size-classed pool of heap arrays and direct buffers, used by the read and
+ * write paths of connections instead of allocating scratch buffers per
+ * request. Buffers come in powers of two from MIN_BUFFER_SIZE to
+ * MAX_BUFFER_SIZE; larger requests are allocated without pooling. Buffers of a
+ * fixed size which would waste much of a class, such as an SSLEngine's, can
+ * be acquired at their exact size instead, with a free list of their own.
+ * Each kind keeps at most its configured number of bytes for reuse, anything
+ * released beyond that is left to the garbage collector. All operations are
+ * lock-free.
+ */
+public class BufferPool {
+
+	public static final Integer MIN_BUFFER_SIZE = 4 * 1024;
+	public static final Integer MAX_BUFFER_SIZE = 1024 * 1024;
+	public static final Long DEFAULT_MAX_POOLED_HEAP_BYTES = 16L * 1024 * 1024;
+	public static final Long DEFAULT_MAX_POOLED_DIRECT_BYTES = 64L * 1024 * 1024;
+
+	private static final BufferPool DEFAULT = new BufferPool(DEFAULT_MAX_POOLED_HEAP_BYTES,
+			DEFAULT_MAX_POOLED_DIRECT_BYTES);
+
+	/**
+	 * Point-in-time counters for the pool
+	 */
+	public static class Statistics {
+
+		private final Long hits;
+		private final Long misses;
+		private final Long pooledHeapBytes;
+		private final Long pooledDirectBytes;
+
+		private Statistics(Long hits, Long misses, Long pooledHeapBytes, Long pooledDirectBytes) {
+			this.hits = hits;
+			this.misses = misses;
+			this.pooledHeapBytes = pooledHeapBytes;
+			this.pooledDirectBytes = pooledDirectBytes;
+		}
+
+		/**
+		 * @return Acquisitions served by a pooled buffer
+		 */
+		public Long getHits() {
+			return this.hits;
+		}
+
+		/**
+		 * @return Acquisitions which had to allocate a buffer
+		 */
+		public Long getMisses() {
+			return this.misses;
+		}
+
+		/**
+		 * @return Fraction of acquisitions served by a pooled buffer, 0 if there
+		 *         were none
+		 */
+		public Double getHitRate() {
+			long total = this.hits + this.misses;
+			return (total > 0) ? (double) this.hits / total : 0.0;
+		}
+
+		/**
+		 * @return Bytes held by heap arrays waiting to be reused
+		 */
+		public Long getPooledHeapBytes() {
+			return this.pooledHeapBytes;
+		}
+
+		/**
+		 * @return Bytes held by direct buffers waiting to be reused
+		 */
+		public Long getPooledDirectBytes() {
+			return this.pooledDirectBytes;
+		}
+
+		@Override
+		public String toString() {
+			return "hits=" + this.hits + ", misses=" + this.misses + ", hitRate="
+					+ String.format("%.3f", this.getHitRate()) + ", pooledHeapBytes=" + this.pooledHeapBytes
+					+ ", pooledDirectBytes=" + this.pooledDirectBytes;
+		}
+	}
+
+	/**
+	 * Buffers of one kind, heap or direct, sorted into their size classes
+	 */
+	private class Buffers<T> {
+
+		private final List<Queue<T>> sizeClasses = new ArrayList<Queue<T>>();
+		private final Map<Integer, Queue<T>> exactSizes = new ConcurrentHashMap<Integer, Queue<T>>();
+		private final AtomicLong pooledBytes = new AtomicLong();
+		private final Long maxPooledBytes;
+		private final IntFunction<T> allocator;
+
+		private Buffers(Long maxPooledBytes, IntFunction<T> allocator) {
+			this.maxPooledBytes = maxPooledBytes;
+			this.allocator = allocator;
+			for (int size = MIN_BUFFER_SIZE; size <= MAX_BUFFER_SIZE; size <<= 1) {
+				this.sizeClasses.add(new ConcurrentLinkedQueue<T>());
+			}
+		}
+
+		private T acquire(Integer minimumSize) {
+			Integer sizeClass = BufferPool.getSizeClass(minimumSize);
+			if (sizeClass < 0) {
+				misses.increment();
+				return this.allocator.apply(minimumSize);
+			}
+			T buffer = this.sizeClasses.get(sizeClass).poll();
+			if (buffer == null) {
+				misses.increment();
+				return this.allocator.apply(MIN_BUFFER_SIZE << sizeClass);
+			}
+			hits.increment();
+			this.pooledBytes.addAndGet(-(MIN_BUFFER_SIZE << sizeClass));
+			return buffer;
+		}
+
+		private T acquireExact(Integer size) {
+			T buffer = this.exactSizes.computeIfAbsent(size, key -> new ConcurrentLinkedQueue<T>()).poll();
+			if (buffer == null) {
+				misses.increment();
+				return this.allocator.apply(size);
+			}
+			hits.increment();
+			this.pooledBytes.addAndGet(-size);
+			return buffer;
+		}
+
+		private void release(T buffer, Integer capacity) {
+			// Only buffers of a class size, or of a size acquired exactly, can
+			// have come from the pool
+			Integer sizeClass = BufferPool.getSizeClass(capacity);
+			Queue<T> buffers = (sizeClass >= 0 && (MIN_BUFFER_SIZE << sizeClass) == capacity)
+					? this.sizeClasses.get(sizeClass)
+					: this.exactSizes.get(capacity);
+			if (buffers == null) {
+				return;
+			}
+			if (this.pooledBytes.addAndGet(capacity) > this.maxPooledBytes) {
+				this.pooledBytes.addAndGet(-capacity);
+				return;
+			}
+			buffers.offer(buffer);
+		}
+	}
+
+	/**
+	 * Output stream collecting bytes in pooled arrays, which are handed back
+	 * once it's closed. Growing it never copies what's already been written.
+	 * Streams wrapping it close it along with themselves, so its bytes must be
+	 * copied out before they are closed.
+	 */
+	public final class Output extends OutputStream {
+
+		private final List<byte[]> chunks = new ArrayList<byte[]>();
+		private byte[] current = null;
+		private int position = 0;
+		private int size = 0;
+
+		private Output() {
+		}
+
+		/**
+		 * @return Array with free space, the next one twice as large as the last
+		 *         up to 64KB
+		 */
+		private byte[] current() {
+			if (this.current == null || this.position == this.current.length) {
+				Integer next = (this.current == null) ? MIN_BUFFER_SIZE : Math.min(this.current.length * 2, 64 * 1024);
+				this.current = acquireArray(next);
+				this.chunks.add(this.current);
+				this.position = 0;
+			}
+			return this.current;
+		}
+
+		@Override
+		public void write(int value) {
+			this.current()[this.position++] = (byte) value;
+			this.size++;
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) {
+			while (length > 0) {
+				byte[] current = this.current();
+				int count = Math.min(length, current.length - this.position);
+				System.arraycopy(buffer, offset, current, this.position, count);
+				this.position += count;
+				this.size += count;
+				offset += count;
+				length -= count;
+			}
+		}
+
+		/**
+		 * Reads the stream to the end straight into the pooled arrays
+		 *
+		 * @param input
+		 * @return Number of bytes read
+		 * @throws IOException
+		 */
+		public Long readFrom(InputStream input) throws IOException {
+			long total = 0;
+			while (true) {
+				byte[] current = this.current();
+				int read = input.read(current, this.position, current.length - this.position);
+				if (read == -1) {
+					return total;
+				}
+				this.position += read;
+				this.size += read;
+				total += read;
+			}
+		}
+
+		public Integer size() {
+			return this.size;
+		}
+
+		/**
+		 * @return Copy of the bytes written, sized exactly
+		 */
+		public byte[] toByteArray() {
+			byte[] bytes = new byte[this.size];
+			int offset = 0;
+			for (byte[] chunk : this.chunks) {
+				int count = Math.min(chunk.length, this.size - offset);
+				System.arraycopy(chunk, 0, bytes, offset, count);
+				offset += count;
+			}
+			return bytes;
+		}
+
+		/**
+		 * Returns the arrays to the pool, the stream mustn't be used afterwards.
+		 * Closing it again has no effect.
+		 */
+		@Override
+		public void close() {
+			for (byte[] chunk : this.chunks) {
+				releaseArray(chunk);
+			}
+			this.chunks.clear();
+			this.current = null;
+		}
+	}
+
+	/**
+	 * @return Pool shared by Sessions and transports which aren't given their
+	 *         own
+	 */
+	public static BufferPool getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * @param size
+	 * @return Index of the smallest size class holding the size, or -1 if it's
+	 *         larger than MAX_BUFFER_SIZE
+	 */
+	private static Integer getSizeClass(Integer size) {
+		if (size > MAX_BUFFER_SIZE) {
+			return -1;
+		}
+		int sizeClass = 0;
+		while ((MIN_BUFFER_SIZE << sizeClass) < size) {
+			sizeClass++;
+		}
+		return sizeClass;
+	}
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final Buffers<byte[]> heap;
+	private final Buffers<ByteBuffer> direct;
+
+	public BufferPool() {
+		this(DEFAULT_MAX_POOLED_HEAP_BYTES, DEFAULT_MAX_POOLED_DIRECT_BYTES);
+	}
+
+	/**
+	 * @param maxPooledHeapBytes
+	 *            Bytes of heap arrays kept for reuse
+	 * @param maxPooledDirectBytes
+	 *            Bytes of direct buffers kept for reuse
+	 */
+	public BufferPool(Long maxPooledHeapBytes, Long maxPooledDirectBytes) {
+		this.heap = new Buffers<byte[]>(maxPooledHeapBytes, byte[]::new);
+		this.direct = new Buffers<ByteBuffer>(maxPooledDirectBytes, ByteBuffer::allocateDirect);
+	}
+
+	/**
+	 * @param minimumSize
+	 * @return Array of at least the size, its contents are undefined
+	 */
+	public byte[] acquireArray(Integer minimumSize) {
+		return this.heap.acquire(minimumSize);
+	}
+
+	/**
+	 * Returns an array to the pool, it mustn't be used afterwards
+	 *
+	 * @param array
+	 *            Array, ignored if null or not of a pooled size
+	 */
+	public void releaseArray(byte[] array) {
+		if (array != null) {
+			this.heap.release(array, array.length);
+		}
+	}
+
+	/**
+	 * @param minimumSize
+	 * @return Cleared direct buffer with at least the capacity
+	 */
+	public ByteBuffer acquireDirect(Integer minimumSize) {
+		ByteBuffer buffer = this.direct.acquire(minimumSize);
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * @param size
+	 * @return Cleared direct buffer of exactly the capacity, pooled apart from
+	 *         the size classes
+	 */
+	public ByteBuffer acquireExactDirect(Integer size) {
+		ByteBuffer buffer = this.direct.acquireExact(size);
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Returns a direct buffer to the pool, it mustn't be used afterwards
+	 *
+	 * @param buffer
+	 *            Buffer, ignored if null, not direct or not of a pooled size
+	 */
+	public void releaseDirect(ByteBuffer buffer) {
+		if (buffer != null && buffer.isDirect()) {
+			this.direct.release(buffer, buffer.capacity());
+		}
+	}
+
+	/**
+	 * @return Output stream backed by pooled arrays, to be closed once its
+	 *         bytes have been copied out
+	 */
+	public Output newOutput() {
+		return new Output();
+	}
+
+	public Statistics getStatistics() {
+		return new Statistics(this.hits.sum(), this.misses.sum(), this.heap.pooledBytes.get(),
+				this.direct.pooledBytes.get());
+	}
+
+	@Override
+	public String toString() {
+		return this.getStatistics().toString();
+	}
+}
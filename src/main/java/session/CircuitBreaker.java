@@ -0,0 +1,267 @@
+package session;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import session.exception.CircuitOpenException;
+
+/**
+ * Per-host circuit breaker. Each host's most recent calls are kept in a
+ * rolling window; once enough calls have been made and the share of failures,
+ * or of calls slower than the slow-call threshold, reaches its limit, the
+ * circuit opens and calls to the host fail straight away with a
+ * CircuitOpenException. After the open duration a few trial calls are let
+ * through (half-open): if they all succeed the circuit closes, otherwise it
+ * opens again.
+ *
+ * Connection failures and 5xx responses count as failures; other responses,
+ * including 4xx, count as successes since they show the host is healthy.
+ * Window settings apply to hosts first called after they're changed.
+ */
+public class CircuitBreaker {
+
+	public static final Double DEFAULT_FAILURE_RATE_THRESHOLD = 50.0;
+	public static final Double DEFAULT_SLOW_CALL_RATE_THRESHOLD = 100.0;
+	public static final Long DEFAULT_SLOW_CALL_MILLIS = 10000L;
+	public static final Integer DEFAULT_WINDOW_SIZE = 20;
+	public static final Integer DEFAULT_MINIMUM_CALLS = 10;
+	public static final Long DEFAULT_OPEN_MILLIS = 30000L;
+	public static final Integer DEFAULT_HALF_OPEN_CALLS = 3;
+
+	public static enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	/**
+	 * Rolling window and state of a single host
+	 */
+	private class Circuit {
+
+		private final boolean[] failures;
+		private final boolean[] slowCalls;
+		private final Integer minimumCalls;
+		private int next = 0;
+		private int calls = 0;
+		private int failureCount = 0;
+		private int slowCallCount = 0;
+		private State state = State.CLOSED;
+		private long openedAt = 0L;
+		private int trials = 0;
+		private int trialSuccesses = 0;
+
+		private Circuit(Integer windowSize, Integer minimumCalls) {
+			this.failures = new boolean[windowSize];
+			this.slowCalls = new boolean[windowSize];
+			this.minimumCalls = Math.min(minimumCalls, windowSize);
+		}
+
+		/**
+		 * @return -1 if a call may be made now, in which case it's counted,
+		 *         otherwise the milliseconds until one may be made
+		 */
+		private synchronized Long acquire() {
+			if (this.state == State.OPEN) {
+				Long remaining = this.openedAt + CircuitBreaker.this.openMillis - System.currentTimeMillis();
+				if (remaining > 0) {
+					return remaining;
+				}
+				this.state = State.HALF_OPEN;
+				this.trials = 0;
+				this.trialSuccesses = 0;
+			}
+			if (this.state == State.HALF_OPEN) {
+				if (this.trials >= CircuitBreaker.this.halfOpenCalls) {
+					return 0L;
+				}
+				this.trials++;
+			}
+			return -1L;
+		}
+
+		private synchronized void record(Boolean failed, Boolean slow) {
+			if (this.state == State.HALF_OPEN) {
+				if (failed || slow) {
+					this.open();
+				} else if (++this.trialSuccesses >= CircuitBreaker.this.halfOpenCalls) {
+					this.close();
+				}
+				return;
+			} else if (this.state == State.OPEN) {
+				// Calls which started before the circuit opened
+				return;
+			}
+
+			if (this.calls == this.failures.length) {
+				this.failureCount -= this.failures[this.next] ? 1 : 0;
+				this.slowCallCount -= this.slowCalls[this.next] ? 1 : 0;
+			} else {
+				this.calls++;
+			}
+			this.failures[this.next] = failed;
+			this.slowCalls[this.next] = slow;
+			this.failureCount += failed ? 1 : 0;
+			this.slowCallCount += slow ? 1 : 0;
+			this.next = (this.next + 1) % this.failures.length;
+
+			if (this.calls >= this.minimumCalls
+					&& (this.failureCount * 100.0 / this.calls >= CircuitBreaker.this.failureRateThreshold
+							|| this.slowCallCount * 100.0 / this.calls >= CircuitBreaker.this.slowCallRateThreshold)) {
+				this.open();
+			}
+		}
+
+		private void open() {
+			this.state = State.OPEN;
+			this.openedAt = System.currentTimeMillis();
+			CircuitBreaker.this.opened.incrementAndGet();
+		}
+
+		private void close() {
+			this.state = State.CLOSED;
+			this.next = 0;
+			this.calls = 0;
+			this.failureCount = 0;
+			this.slowCallCount = 0;
+		}
+
+		private synchronized State getState() {
+			return this.state;
+		}
+	}
+
+	private final Map<String, Circuit> circuits = new ConcurrentHashMap<String, Circuit>();
+	private volatile Double failureRateThreshold = DEFAULT_FAILURE_RATE_THRESHOLD;
+	private volatile Double slowCallRateThreshold = DEFAULT_SLOW_CALL_RATE_THRESHOLD;
+	private volatile Long slowCallMillis = DEFAULT_SLOW_CALL_MILLIS;
+	private volatile Integer windowSize = DEFAULT_WINDOW_SIZE;
+	private volatile Integer minimumCalls = DEFAULT_MINIMUM_CALLS;
+	private volatile Long openMillis = DEFAULT_OPEN_MILLIS;
+	private volatile Integer halfOpenCalls = DEFAULT_HALF_OPEN_CALLS;
+	private final AtomicLong opened = new AtomicLong();
+
+	/**
+	 * @param failureRateThreshold
+	 *            Percentage of failed calls in the window which opens the
+	 *            circuit
+	 */
+	public void setFailureRateThreshold(Double failureRateThreshold) {
+		if (failureRateThreshold <= 0 || failureRateThreshold > 100) {
+			throw new IllegalArgumentException("The failure rate threshold must be above 0 and at most 100.");
+		}
+		this.failureRateThreshold = failureRateThreshold;
+	}
+
+	/**
+	 * @param slowCallRateThreshold
+	 *            Percentage of slow calls in the window which opens the circuit
+	 * @param slowCallMillis
+	 *            Duration above which a call is slow
+	 */
+	public void setSlowCallThreshold(Double slowCallRateThreshold, Long slowCallMillis) {
+		if (slowCallRateThreshold <= 0 || slowCallRateThreshold > 100) {
+			throw new IllegalArgumentException("The slow call rate threshold must be above 0 and at most 100.");
+		}
+		this.slowCallRateThreshold = slowCallRateThreshold;
+		this.slowCallMillis = slowCallMillis;
+	}
+
+	/**
+	 * @param windowSize
+	 *            Number of most recent calls the rates are computed over
+	 * @param minimumCalls
+	 *            Calls needed before the rates are considered
+	 */
+	public void setWindow(Integer windowSize, Integer minimumCalls) {
+		if (windowSize == null || windowSize < 1 || minimumCalls == null || minimumCalls < 1) {
+			throw new IllegalArgumentException("The window size and minimum calls must be at least 1.");
+		}
+		this.windowSize = windowSize;
+		this.minimumCalls = minimumCalls;
+	}
+
+	/**
+	 * @param openMillis
+	 *            How long an open circuit fails calls before letting trial calls
+	 *            through
+	 */
+	public void setOpenDuration(Long openMillis) {
+		this.openMillis = openMillis;
+	}
+
+	/**
+	 * @param halfOpenCalls
+	 *            Trial calls which must succeed to close the circuit again
+	 */
+	public void setHalfOpenCalls(Integer halfOpenCalls) {
+		if (halfOpenCalls == null || halfOpenCalls < 1) {
+			throw new IllegalArgumentException("The number of half-open calls must be at least 1.");
+		}
+		this.halfOpenCalls = halfOpenCalls;
+	}
+
+	private Circuit getCircuit(String host) {
+		return this.circuits.computeIfAbsent(host.toLowerCase(),
+				key -> new Circuit(this.windowSize, this.minimumCalls));
+	}
+
+	/**
+	 * Checks that a call to the host may be made
+	 *
+	 * @param host
+	 * @throws CircuitOpenException
+	 *             Thrown if the host's circuit is open
+	 */
+	protected void acquire(String host) throws CircuitOpenException {
+		Long wait = this.getCircuit(host).acquire();
+		if (wait >= 0) {
+			throw new CircuitOpenException(host, wait);
+		}
+	}
+
+	/**
+	 * Records the outcome of a call allowed through acquire
+	 *
+	 * @param host
+	 * @param nanoseconds
+	 *            Duration of the call
+	 * @param failed
+	 */
+	protected void record(String host, Long nanoseconds, Boolean failed) {
+		this.getCircuit(host).record(failed, nanoseconds > this.slowCallMillis * 1000000L);
+	}
+
+	/**
+	 * @param host
+	 * @return State of the host's circuit, closed if it hasn't been called
+	 */
+	public State getState(String host) {
+		Circuit circuit = this.circuits.get(host.toLowerCase());
+		return (circuit != null) ? circuit.getState() : State.CLOSED;
+	}
+
+	/**
+	 * @return State of every host's circuit
+	 */
+	public Map<String, State> getStates() {
+		Map<String, State> states = new TreeMap<String, State>();
+		this.circuits.forEach((host, circuit) -> states.put(host, circuit.getState()));
+		return Collections.unmodifiableMap(states);
+	}
+
+	/**
+	 * @return Number of times any circuit has opened
+	 */
+	public Long getOpenedCount() {
+		return this.opened.get();
+	}
+
+	/**
+	 * Closes every circuit and forgets the calls recorded so far
+	 */
+	public void reset() {
+		this.circuits.clear();
+	}
+}
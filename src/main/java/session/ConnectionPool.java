@@ -0,0 +1,250 @@
+package session;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-route (scheme, host and port) limit on the connections a Session has in
+ * use at once. The sockets themselves are kept by the JDK's keep-alive cache
+ * behind HttpURLConnection, which only hands a socket back for reuse once its
+ * response body has been fully drained and closed, so this pool hands out
+ * permits rather than connections and can't tell whether a request reused a
+ * socket. It counts the leases it grants, how many had to wait for a permit
+ * and how many were released with their response drained.
+ *
+ * The JDK keeps at most http.maxConnections idle sockets per destination, 5 by
+ * default, closing the rest once they're released. It's read once, when the
+ * keep-alive cache is first used, so it has to be set at JVM startup, for
+ * example with -Dhttp.maxConnections=8, to keep a connection for each permit.
+ */
+public class ConnectionPool {
+
+	public static final Integer DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 8;
+	public static final Long DEFAULT_LEASE_TIMEOUT_MILLIS = 30000L;
+
+	/**
+	 * Point-in-time counters for the pool or a single route
+	 */
+	public static class Statistics {
+
+		private final Integer leased;
+		private final Long leases;
+		private final Long waited;
+		private final Long timedOut;
+		private final Long drained;
+
+		private Statistics(Integer leased, Long leases, Long waited, Long timedOut, Long drained) {
+			this.leased = leased;
+			this.leases = leases;
+			this.waited = waited;
+			this.timedOut = timedOut;
+			this.drained = drained;
+		}
+
+		/**
+		 * @return Permits currently leased
+		 */
+		public Integer getLeased() {
+			return this.leased;
+		}
+
+		/**
+		 * @return Leases granted
+		 */
+		public Long getLeases() {
+			return this.leases;
+		}
+
+		/**
+		 * @return Leases which waited for a permit because the route was at
+		 *         its maximum
+		 */
+		public Long getWaited() {
+			return this.waited;
+		}
+
+		/**
+		 * @return Requests which gave up waiting for a permit
+		 */
+		public Long getTimedOut() {
+			return this.timedOut;
+		}
+
+		/**
+		 * @return Leases released with their response read to the end, whose
+		 *         socket HttpURLConnection could keep alive
+		 */
+		public Long getDrained() {
+			return this.drained;
+		}
+
+		@Override
+		public String toString() {
+			return "leased=" + this.leased + ", leases=" + this.leases + ", waited=" + this.waited + ", timedOut="
+					+ this.timedOut + ", drained=" + this.drained;
+		}
+	}
+
+	/**
+	 * A permit checked out of a route, must be released exactly once
+	 */
+	public class Lease {
+
+		private final Route route;
+		private Boolean reusable = false;
+		private Boolean released = false;
+
+		private Lease(Route route) {
+			this.route = route;
+		}
+
+		/**
+		 * Marks the response as fully drained, so its socket can be kept alive
+		 */
+		protected void setReusable(Boolean reusable) {
+			this.reusable = reusable;
+		}
+
+		protected synchronized void release() {
+			if (this.released) {
+				return;
+			}
+			this.released = true;
+			this.route.release(this.reusable);
+		}
+	}
+
+	/**
+	 * State kept for each scheme, host and port combination
+	 */
+	private class Route {
+
+		private final Semaphore permits = new Semaphore(maxConnectionsPerRoute, true);
+		private final AtomicLong leases = new AtomicLong();
+		private final AtomicLong waited = new AtomicLong();
+		private final AtomicLong timedOut = new AtomicLong();
+		private final AtomicLong drained = new AtomicLong();
+
+		private Lease lease(String route) throws IOException {
+			if (!this.permits.tryAcquire()) {
+				this.waited.incrementAndGet();
+				try {
+					if (!this.permits.tryAcquire(leaseTimeoutMillis, TimeUnit.MILLISECONDS)) {
+						this.timedOut.incrementAndGet();
+						throw new IOException("Timed out waiting for a connection to " + route + ".");
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for a connection to " + route + ".", e);
+				}
+			}
+			this.leases.incrementAndGet();
+			return new Lease(this);
+		}
+
+		private void release(Boolean reusable) {
+			if (reusable) {
+				this.drained.incrementAndGet();
+			}
+			this.permits.release();
+		}
+
+		private Statistics getStatistics() {
+			return new Statistics(maxConnectionsPerRoute - this.permits.availablePermits(), this.leases.get(),
+					this.waited.get(), this.timedOut.get(), this.drained.get());
+		}
+	}
+
+	/**
+	 * Identifies the route of a URL by its scheme, host and port
+	 *
+	 * @param url
+	 * @return Route key such as "https://host:443"
+	 */
+	private static String getRoute(URL url) {
+		Integer port = (url.getPort() != -1) ? url.getPort() : url.getDefaultPort();
+		return url.getProtocol().toLowerCase() + "://" + url.getHost().toLowerCase() + ":" + port;
+	}
+
+	private final Map<String, Route> routes = new ConcurrentHashMap<String, Route>();
+	private final Integer maxConnectionsPerRoute;
+	private final Long leaseTimeoutMillis;
+
+	public ConnectionPool() {
+		this(DEFAULT_MAX_CONNECTIONS_PER_ROUTE, DEFAULT_LEASE_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * Creates a connection pool
+	 *
+	 * @param maxConnectionsPerRoute
+	 *            Maximum connections leased to a single route at once
+	 * @param leaseTimeoutMillis
+	 *            How long to wait for a connection before failing
+	 */
+	public ConnectionPool(Integer maxConnectionsPerRoute, Long leaseTimeoutMillis) {
+		if (maxConnectionsPerRoute == null || maxConnectionsPerRoute < 1) {
+			throw new IllegalArgumentException("The maximum connections per route must be at least 1.");
+		}
+		this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+		this.leaseTimeoutMillis = leaseTimeoutMillis;
+	}
+
+	/**
+	 * Checks out a permit for the URL's route, waiting if the route is already
+	 * at its maximum
+	 *
+	 * @param url
+	 * @return Lease to be released once the response has been drained
+	 * @throws IOException
+	 *             Thrown if no permit became available in time
+	 */
+	protected Lease lease(URL url) throws IOException {
+		String route = ConnectionPool.getRoute(url);
+		return this.routes.computeIfAbsent(route, key -> new Route()).lease(route);
+	}
+
+	public Integer getMaxConnectionsPerRoute() {
+		return this.maxConnectionsPerRoute;
+	}
+
+	public Long getLeaseTimeoutMillis() {
+		return this.leaseTimeoutMillis;
+	}
+
+	/**
+	 * Retrieves the statistics for a single route
+	 *
+	 * @param url
+	 *            Any URL on the route
+	 * @return Statistics, all zero if the route hasn't been used
+	 */
+	public Statistics getStatistics(URL url) {
+		Route route = this.routes.get(ConnectionPool.getRoute(url));
+		return (route != null) ? route.getStatistics() : new Statistics(0, 0L, 0L, 0L, 0L);
+	}
+
+	/**
+	 * Retrieves the statistics summed across every route
+	 *
+	 * @return Statistics
+	 */
+	public Statistics getStatistics() {
+		Integer leased = 0;
+		Long leases = 0L, waited = 0L, timedOut = 0L, drained = 0L;
+		for (Route route : this.routes.values()) {
+			Statistics statistics = route.getStatistics();
+			leased += statistics.getLeased();
+			leases += statistics.getLeases();
+			waited += statistics.getWaited();
+			timedOut += statistics.getTimedOut();
+			drained += statistics.getDrained();
+		}
+		return new Statistics(leased, leases, waited, timedOut, drained);
+	}
+}
@@ -3,8 +3,6 @@ package session;
 import java.net.MalformedURLException;
 import java.net.URL;
 
-import org.json.JSONObject;
-
 public class CookieAuthenticationProtocol extends AuthenticationProtocol {
 
 	public CookieAuthenticationProtocol(String authorizationLocale) throws MalformedURLException {
@@ -15,15 +13,18 @@ public class CookieAuthenticationProtocol extends AuthenticationProtocol {
 		super(authorizationLocale);
 	}
 
-	void authorize(String username, String password, Boolean useKeystore) {
-		this.credential = new Credential(username, password);
-		if (this.connectionAuthorized(authenticationLocale, this.credential.getCookieCredentialsJSON(),
-				(JSONObject) null) != null) {
-			this.authenticationCache.put("Cookie", this.authorizationConnection.getCookie());
+	protected Boolean authenticate() {
+		if (this.connectionAuthorized(authenticationLocale, this.getCredential().getCookieCredentialsJSON(),
+				RequestHeaders.EMPTY)) {
+			// Only the name=value pair is sent back, not the cookie's attributes
+			String cookie = this.authorizationConnection.getCookie();
+			this.setAuthenticated(
+					RequestHeaders.of("Cookie", (cookie != null) ? cookie.split(";", 2)[0].trim() : null));
 			System.out.println("Cookie authentication protocol successfully authenticated.");
-			this.useKeystore(useKeystore);
+			return true;
 		} else {
 			System.out.println("Cookie authentication protocol could not be authenticated.");
+			return false;
 		}
 	}
 
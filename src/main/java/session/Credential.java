@@ -12,9 +12,11 @@ import core.StreamBuffer;
 public class Credential {
 
 	private String encodedCredentials = "";
+	private RequestHeaders basicCredentialsHeaders = RequestHeaders.EMPTY;
 
 	protected Credential(String username, String password) {
 		this.encode(username, password);
+		this.basicCredentialsHeaders = RequestHeaders.of("Authorization", "Basic " + this.encodedCredentials);
 	}
 
 	private void encode(String username, String password) {
@@ -31,6 +33,13 @@ public class Credential {
 		return json;
 	}
 	
+	/**
+	 * @return Basic Authorization header, encoded once per credential
+	 */
+	protected RequestHeaders getBasicCredentialsHeaders() {
+		return this.basicCredentialsHeaders;
+	}
+	
 	protected JSONObject getCookieCredentialsJSON(){
 		String[] user = this.decode();
 		JSONObject json = new JSONObject();
@@ -0,0 +1,310 @@
+package session;
+
+import java.io.IOException;
+import java.net.URL;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory cache of GET responses following HTTP caching semantics. Fresh
+ * responses, per Cache-Control max-age or Expires, are served without a
+ * request; stale ones are revalidated with If-None-Match/If-Modified-Since and
+ * a 304 is served from the cache. Entries are keyed by the authentication
+ * headers as well as the URL so responses never leak across credentials, and
+ * the least recently used entries are evicted once the cache is full.
+ */
+public class HTTPResponseCache {
+
+	public static final Integer DEFAULT_MAX_ENTRIES = 1000;
+	public static final Long DEFAULT_MAX_SIZE = 16L * 1024 * 1024;
+
+	private static final String ANONYMOUS_IDENTITY = "anonymous";
+
+	/**
+	 * Sends the request for the cache
+	 */
+	@FunctionalInterface
+	protected static interface Loader {
+
+		/**
+		 * @param requestHeaders
+		 *            Request headers, including any conditional headers
+		 * @return Completed connection
+		 * @throws IOException
+		 */
+		public SessionConnection load(RequestHeaders requestHeaders) throws IOException;
+	}
+
+	/**
+	 * Stored response and the information needed to revalidate it
+	 */
+	private static class Entry {
+
+		private final Integer serverResponseCode;
+		private final String serverResponseMessage;
+		private final byte[] responseBody;
+		private final Map<String, List<String>> responseHeaders;
+		private final String entityTag;
+		private final String lastModified;
+		private volatile Long freshUntil;
+
+		private Entry(SessionConnection connection, Long freshUntil) {
+			this.serverResponseCode = connection.getServerResponseCode();
+			this.serverResponseMessage = connection.getServerResponseMessage();
+			this.responseBody = connection.getResponseBytes();
+			this.responseHeaders = connection.getHeaderFields();
+			this.entityTag = connection.getHeaderField("ETag");
+			this.lastModified = connection.getHeaderField("Last-Modified");
+			this.freshUntil = freshUntil;
+		}
+
+		private Boolean isFresh() {
+			return System.currentTimeMillis() < this.freshUntil;
+		}
+
+		private Boolean canRevalidate() {
+			return this.entityTag != null || this.lastModified != null;
+		}
+
+		/**
+		 * @return Approximate heap used by the entry, in bytes
+		 */
+		private Long getSize() {
+			return (long) (this.responseBody != null ? this.responseBody.length : 0);
+		}
+
+		private SessionConnection toConnection() {
+			return new SessionConnection(this.serverResponseCode, this.serverResponseMessage, this.responseBody,
+					this.responseHeaders);
+		}
+	}
+
+	/**
+	 * Identifies the credentials used for a request without keeping them
+	 *
+	 * @param requestHeaders
+	 * @return Digest of the authentication headers
+	 */
+	private static String getIdentity(RequestHeaders requestHeaders) {
+		if (requestHeaders == null || requestHeaders.isEmpty()) {
+			return ANONYMOUS_IDENTITY;
+		}
+		return requestHeaders.getIdentity();
+	}
+
+	/**
+	 * Determines whether a response may be stored at all
+	 *
+	 * @param connection
+	 * @return Boolean
+	 */
+	private static Boolean isStorable(SessionConnection connection) {
+		return connection.getServerResponseCode() != null && connection.getServerResponseCode() == 200
+				&& !"*".equals(connection.getHeaderField("Vary"));
+	}
+
+	/**
+	 * Determines until when a response may be served without revalidation,
+	 * from its caching headers
+	 *
+	 * @param connection
+	 * @return Expiry time in milliseconds, or null if the response mustn't be
+	 *         stored
+	 */
+	private static Long getFreshUntil(SessionConnection connection) {
+		Long now = System.currentTimeMillis();
+		Long maxAge = null;
+		String cacheControl = connection.getHeaderField("Cache-Control");
+		if (cacheControl != null) {
+			for (String directive : cacheControl.toLowerCase().split(",")) {
+				directive = directive.trim();
+				if (directive.equals("no-store")) {
+					return null;
+				} else if (directive.equals("no-cache")) {
+					maxAge = 0L;
+				} else if (directive.startsWith("max-age=") && maxAge == null) {
+					try {
+						maxAge = Long.parseLong(directive.substring("max-age=".length()).replace("\"", ""));
+					} catch (NumberFormatException e) {
+						maxAge = 0L;
+					}
+				}
+			}
+		}
+
+		if (maxAge != null) {
+			Long age = 0L;
+			try {
+				String ageHeader = connection.getHeaderField("Age");
+				age = (ageHeader != null) ? Long.parseLong(ageHeader.trim()) : 0L;
+			} catch (NumberFormatException e) {
+				age = 0L;
+			}
+			return now + Math.max(0L, maxAge - age) * 1000L;
+		}
+
+		String expires = connection.getHeaderField("Expires");
+		if (expires != null) {
+			try {
+				return ZonedDateTime.parse(expires, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+			} catch (DateTimeParseException e) {
+				// Invalid dates, such as "0", mean already expired
+				return now;
+			}
+		}
+
+		// Without freshness information the response is only worth keeping if it
+		// can be revalidated
+		if (connection.getHeaderField("ETag") != null || connection.getHeaderField("Last-Modified") != null) {
+			return now;
+		}
+		return null;
+	}
+
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private final Integer maxEntries;
+	private final Long maxSize;
+	private Long size = 0L;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong revalidations = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public HTTPResponseCache() {
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * Creates a response cache
+	 *
+	 * @param maxEntries
+	 *            Maximum number of responses stored
+	 * @param maxSize
+	 *            Maximum approximate heap used by the stored responses, in bytes
+	 */
+	public HTTPResponseCache(Integer maxEntries, Long maxSize) {
+		this.maxEntries = maxEntries;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Serves the request from the cache when possible, otherwise loads it,
+	 * revalidating a stale entry, and stores the response if it's cacheable
+	 *
+	 * @param url
+	 * @param requestHeaders
+	 *            Authentication headers for the request
+	 * @param loader
+	 *            Sends the request when it can't be served from the cache
+	 * @return Connection, either completed from the cache or loaded
+	 * @throws IOException
+	 */
+	protected SessionConnection getConnection(URL url, RequestHeaders requestHeaders, Loader loader)
+			throws IOException {
+		String key = HTTPResponseCache.getIdentity(requestHeaders) + " " + url.toString();
+		Entry entry = this.get(key);
+
+		if (entry != null && entry.isFresh()) {
+			this.hits.incrementAndGet();
+			return entry.toConnection();
+		}
+
+		RequestHeaders headers = (requestHeaders != null) ? requestHeaders : RequestHeaders.EMPTY;
+		if (entry != null && entry.canRevalidate()) {
+			headers = headers.with("If-None-Match", entry.entityTag).with("If-Modified-Since", entry.lastModified);
+		}
+
+		SessionConnection connection = loader.load(headers);
+		if (entry != null && entry.canRevalidate() && connection.getServerResponseCode() != null
+				&& connection.getServerResponseCode() == 304) {
+			this.revalidations.incrementAndGet();
+			Long freshUntil = HTTPResponseCache.getFreshUntil(connection);
+			entry.freshUntil = (freshUntil != null) ? freshUntil : System.currentTimeMillis();
+			return entry.toConnection();
+		}
+
+		this.misses.incrementAndGet();
+		Long freshUntil = HTTPResponseCache.isStorable(connection) ? HTTPResponseCache.getFreshUntil(connection) : null;
+		if (freshUntil != null) {
+			this.put(key, new Entry(connection, freshUntil));
+		} else if (entry != null) {
+			this.remove(key);
+		}
+		return connection;
+	}
+
+	private synchronized Entry get(String key) {
+		return this.entries.get(key);
+	}
+
+	private synchronized void put(String key, Entry entry) {
+		if (entry.getSize() > this.maxSize) {
+			this.remove(key);
+			return;
+		}
+		Entry previous = this.entries.put(key, entry);
+		if (previous != null) {
+			this.size -= previous.getSize();
+		}
+		this.size += entry.getSize();
+
+		// Iteration runs from least to most recently used
+		Iterator<Entry> eldest = this.entries.values().iterator();
+		while ((this.entries.size() > this.maxEntries || this.size > this.maxSize) && eldest.hasNext()) {
+			this.size -= eldest.next().getSize();
+			eldest.remove();
+		}
+	}
+
+	private synchronized void remove(String key) {
+		Entry removed = this.entries.remove(key);
+		if (removed != null) {
+			this.size -= removed.getSize();
+		}
+	}
+
+	/**
+	 * Removes every stored response
+	 */
+	public synchronized void clear() {
+		this.entries.clear();
+		this.size = 0L;
+	}
+
+	public synchronized Integer getEntryCount() {
+		return this.entries.size();
+	}
+
+	/**
+	 * @return Approximate heap used by the stored responses, in bytes
+	 */
+	public synchronized Long getSize() {
+		return this.size;
+	}
+
+	/**
+	 * @return Requests served from the cache without contacting the server
+	 */
+	public Long getHitCount() {
+		return this.hits.get();
+	}
+
+	/**
+	 * @return Requests served from the cache after a 304 revalidation
+	 */
+	public Long getRevalidationCount() {
+		return this.revalidations.get();
+	}
+
+	/**
+	 * @return Requests which needed a full response from the server
+	 */
+	public Long getMissCount() {
+		return this.misses.get();
+	}
+}
@@ -0,0 +1,163 @@
+package session;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free log-linear histogram of latencies in nanoseconds. Each power of two
+ * is split into 32 linear sub-buckets, so any recorded value is reported within
+ * about 3% across the full range from nanoseconds to hours, using a fixed
+ * 15 KiB of counters. Recording is a handful of atomic increments, cheap
+ * enough to leave on for every request.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+	/**
+	 * Point-in-time copy of a histogram
+	 */
+	public static class Snapshot {
+
+		private final long[] counts;
+		private final Long count;
+		private final Long sum;
+		private final Long min;
+		private final Long max;
+
+		private Snapshot(long[] counts, Long sum, Long min, Long max) {
+			this.counts = counts;
+			Long count = 0L;
+			for (long bucket : counts) {
+				count += bucket;
+			}
+			this.count = count;
+			this.sum = sum;
+			this.min = (count > 0) ? min : 0L;
+			this.max = (count > 0) ? max : 0L;
+		}
+
+		public Long getCount() {
+			return this.count;
+		}
+
+		public Long getMin() {
+			return this.min;
+		}
+
+		public Long getMax() {
+			return this.max;
+		}
+
+		public Double getMean() {
+			return (this.count > 0) ? (double) this.sum / this.count : 0.0;
+		}
+
+		/**
+		 * Retrieves the value below which the given percentage of recorded
+		 * values fall
+		 *
+		 * @param percentile
+		 *            Between 0 and 100, for example 99.9
+		 * @return Latency in nanoseconds, 0 if nothing was recorded
+		 */
+		public Long getPercentile(Double percentile) {
+			if (this.count == 0) {
+				return 0L;
+			}
+			Long rank = Math.max(1L, (long) Math.ceil(percentile / 100.0 * this.count));
+			Long seen = 0L;
+			for (int index = 0; index < this.counts.length; index++) {
+				seen += this.counts[index];
+				if (seen >= rank) {
+					return Math.max(this.min, Math.min(this.max, LatencyHistogram.getValue(index)));
+				}
+			}
+			return this.max;
+		}
+
+		@Override
+		public String toString() {
+			return "count=" + this.count + ", mean=" + String.format("%.0f", this.getMean()) + "ns, p50="
+					+ this.getPercentile(50.0) + "ns, p99=" + this.getPercentile(99.0) + "ns, p999="
+					+ this.getPercentile(99.9) + "ns, max=" + this.max + "ns";
+		}
+	}
+
+	/**
+	 * @param value
+	 * @return Index of the bucket holding the value
+	 */
+	private static int getIndex(long value) {
+		if (value < SUB_BUCKET_COUNT) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+		return SUB_BUCKET_COUNT + shift * SUB_BUCKET_COUNT + subBucket;
+	}
+
+	/**
+	 * @param index
+	 * @return Midpoint of the values held by the bucket
+	 */
+	private static long getValue(int index) {
+		if (index < SUB_BUCKET_COUNT) {
+			return index;
+		}
+		int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+		long lowest = (long) (SUB_BUCKET_COUNT + (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT) << shift;
+		return lowest + ((1L << shift) >>> 1);
+	}
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a latency
+	 *
+	 * @param nanoseconds
+	 */
+	public void record(long nanoseconds) {
+		long value = Math.max(0L, nanoseconds);
+		this.counts.incrementAndGet(LatencyHistogram.getIndex(value));
+		this.sum.addAndGet(value);
+		long current;
+		while (value < (current = this.min.get()) && !this.min.compareAndSet(current, value)) {
+			continue;
+		}
+		while (value > (current = this.max.get()) && !this.max.compareAndSet(current, value)) {
+			continue;
+		}
+	}
+
+	/**
+	 * @return Copy of the recorded values
+	 */
+	public Snapshot getSnapshot() {
+		long[] counts = new long[BUCKET_COUNT];
+		for (int index = 0; index < BUCKET_COUNT; index++) {
+			counts[index] = this.counts.get(index);
+		}
+		return new Snapshot(counts, this.sum.get(), this.min.get(), this.max.get());
+	}
+
+	/**
+	 * Copies the recorded values and starts over. Values recorded concurrently
+	 * end up in either this snapshot or the next, never both.
+	 *
+	 * @return Copy of the recorded values
+	 */
+	public Snapshot getSnapshotAndReset() {
+		long[] counts = new long[BUCKET_COUNT];
+		for (int index = 0; index < BUCKET_COUNT; index++) {
+			counts[index] = this.counts.getAndSet(index, 0L);
+		}
+		return new Snapshot(counts, this.sum.getAndSet(0L), this.min.getAndSet(Long.MAX_VALUE),
+				this.max.getAndSet(0L));
+	}
+}
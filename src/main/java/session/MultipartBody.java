@@ -0,0 +1,214 @@
+package session;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * multipart/form-data body built up from fields and files. The parts are
+ * streamed one after the other while the body is sent, files straight from
+ * disk, so uploads take the same memory whatever their size. The body is sent
+ * with a fixed length unless a part's length isn't known.
+ */
+public class MultipartBody extends RequestBody {
+
+	public static final String MULTIPART_CONTENT_TYPE = "multipart/form-data";
+	private static final byte[] CRLF = { '\r', '\n' };
+
+	private final String boundary;
+	private final List<RequestBody> segments = new ArrayList<RequestBody>();
+
+	/**
+	 * Reads the segments of the body one after the other, opening each once
+	 * it's reached
+	 */
+	private static class SegmentChannel implements ReadableByteChannel {
+
+		private final Iterator<RequestBody> segments;
+		private ReadableByteChannel current = null;
+		private boolean open = true;
+
+		private SegmentChannel(Iterator<RequestBody> segments) {
+			this.segments = segments;
+		}
+
+		@Override
+		public int read(ByteBuffer target) throws IOException {
+			while (true) {
+				if (this.current == null) {
+					if (!this.segments.hasNext()) {
+						return -1;
+					}
+					this.current = MultipartBody.open(this.segments.next());
+				}
+				int read = this.current.read(target);
+				if (read != -1) {
+					return read;
+				}
+				this.current.close();
+				this.current = null;
+			}
+		}
+
+		@Override
+		public boolean isOpen() {
+			return this.open;
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.open = false;
+			if (this.current != null) {
+				this.current.close();
+			}
+		}
+	}
+
+	public MultipartBody() {
+		this("SessionBoundary" + UUID.randomUUID().toString().replace("-", ""));
+	}
+
+	private MultipartBody(String boundary) {
+		super(MULTIPART_CONTENT_TYPE + "; boundary=" + boundary, -1L);
+		this.boundary = boundary;
+	}
+
+	/**
+	 * Opens a segment for reading, parts which can only be written are
+	 * buffered
+	 */
+	private static ReadableByteChannel open(RequestBody segment) throws IOException {
+		ReadableByteChannel channel = segment.openChannel();
+		if (channel != null) {
+			return channel;
+		}
+		try (BufferPool.Output output = BufferPool.getDefault().newOutput()) {
+			segment.writeTo(output);
+			return Channels.newChannel(new ByteArrayInputStream(output.toByteArray()));
+		}
+	}
+
+	/**
+	 * Quotes a name for the Content-Disposition header the way browsers do
+	 */
+	private static String quote(String name) {
+		return "\"" + name.replace("\"", "%22").replace("\r", "%0D").replace("\n", "%0A") + "\"";
+	}
+
+	/**
+	 * Adds a text field
+	 *
+	 * @param name
+	 * @param value
+	 *            Field's value, an empty field is sent as ""
+	 * @return
+	 */
+	public MultipartBody with(String name, String value) {
+		if (value == null) {
+			throw new IllegalArgumentException("The value of field " + name + " can't be null.");
+		}
+		return this.with(name, null, RequestBody.of(value.getBytes(StandardCharsets.UTF_8), null));
+	}
+
+	/**
+	 * Adds a file, streamed from disk when the body is sent, with its content
+	 * type guessed from its name
+	 *
+	 * @param name
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 *             Thrown if the file's size can't be read
+	 */
+	public MultipartBody with(String name, Path file) throws IOException {
+		return this.with(name, file.getFileName().toString(), RequestBody.of(file));
+	}
+
+	/**
+	 * Adds a part, for example a stream created with RequestBody.of
+	 *
+	 * @param name
+	 * @param filename
+	 *            Name of the uploaded file, or null for a field
+	 * @param content
+	 *            Part's body, sent with its content type if it has one
+	 * @return
+	 */
+	public MultipartBody with(String name, String filename, RequestBody content) {
+		StringBuilder head = new StringBuilder(128);
+		head.append("--").append(this.boundary).append("\r\n");
+		head.append("Content-Disposition: form-data; name=").append(MultipartBody.quote(name));
+		if (filename != null) {
+			head.append("; filename=").append(MultipartBody.quote(filename));
+		}
+		head.append("\r\n");
+		if (content.getContentType() != null) {
+			head.append("Content-Type: ").append(content.getContentType()).append("\r\n");
+		}
+		head.append("\r\n");
+		this.segments.add(RequestBody.of(head.toString().getBytes(StandardCharsets.UTF_8), null));
+		this.segments.add(content);
+		this.segments.add(RequestBody.of(CRLF, null));
+		return this;
+	}
+
+	/**
+	 * @return Segments of the body, closed by the final delimiter
+	 */
+	private List<RequestBody> getSegments() {
+		List<RequestBody> segments = new ArrayList<RequestBody>(this.segments);
+		segments.add(RequestBody.of(("--" + this.boundary + "--\r\n").getBytes(StandardCharsets.UTF_8), null));
+		return segments;
+	}
+
+	public String getBoundary() {
+		return this.boundary;
+	}
+
+	/**
+	 * @return Length of the body, or -1 if a part's length isn't known
+	 */
+	@Override
+	public Long getContentLength() {
+		long contentLength = 0;
+		for (RequestBody segment : this.getSegments()) {
+			if (segment.getContentLength() < 0) {
+				return -1L;
+			}
+			contentLength += segment.getContentLength();
+		}
+		return contentLength;
+	}
+
+	@Override
+	public void writeTo(OutputStream output) throws IOException {
+		for (RequestBody segment : this.getSegments()) {
+			segment.writeTo(output);
+		}
+	}
+
+	@Override
+	public ReadableByteChannel openChannel() {
+		return new SegmentChannel(this.getSegments().iterator());
+	}
+
+	@Override
+	public Boolean isRepeatable() {
+		for (RequestBody segment : this.segments) {
+			if (!segment.isRepeatable()) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
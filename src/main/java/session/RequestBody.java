@@ -0,0 +1,637 @@
+package session;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONObject;
+
+/**
+ * Payload written to a connection's output stream. Bodies with a known length
+ * are sent in fixed-length streaming mode, all others with chunked transfer
+ * encoding, so neither is buffered a second time by the connection.
+ * 
+ * Bodies backed by files, streams or channels can also be read through
+ * openChannel, which lets transports that pull the body, rather than have it
+ * written to them, send it in constant memory.
+ */
+public abstract class RequestBody {
+
+	public static final String JSON_CONTENT_TYPE = "application/json";
+	public static final String OCTET_STREAM_CONTENT_TYPE = "application/octet-stream";
+	public static final Integer CHUNK_SIZE = 8192;
+	/**
+	 * Bodies of known length up to this size are compressed up front, larger
+	 * ones while they're sent
+	 */
+	public static final Long MAX_BUFFERED_COMPRESSION_BYTES = 1024L * 1024;
+	private static final Integer TRANSFER_SIZE = 64 * 1024;
+
+	/**
+	 * Writes a request body incrementally
+	 */
+	@FunctionalInterface
+	public static interface Producer {
+
+		/**
+		 * Writes the body, the writer is flushed and closed afterwards
+		 *
+		 * @param writer
+		 *            UTF-8 writer to the connection
+		 * @throws IOException
+		 */
+		public void produce(Writer writer) throws IOException;
+	}
+
+	/**
+	 * Body channel which can also move its bytes straight into another
+	 * channel, for example from a file into a socket with
+	 * FileChannel.transferTo, without copying them through the JVM
+	 */
+	public static interface TransferableChannel extends ReadableByteChannel {
+
+		/**
+		 * Moves up to the number of bytes into the target, a non-blocking
+		 * target may take fewer
+		 *
+		 * @param count
+		 * @param target
+		 * @return Number of bytes moved, or -1 at the end of the body
+		 * @throws IOException
+		 */
+		public Long transferTo(Long count, WritableByteChannel target) throws IOException;
+	}
+
+	/**
+	 * Channel ending after a number of bytes, if given one
+	 */
+	private static class BoundedChannel implements ReadableByteChannel {
+
+		protected final ReadableByteChannel channel;
+		protected long remaining;
+
+		/**
+		 * @param channel
+		 * @param length
+		 *            Bytes to read, or -1 to read to the end of the channel
+		 */
+		private BoundedChannel(ReadableByteChannel channel, Long length) {
+			this.channel = channel;
+			this.remaining = length;
+		}
+
+		@Override
+		public int read(ByteBuffer target) throws IOException {
+			if (this.remaining == 0) {
+				return -1;
+			}
+			int limit = target.limit();
+			if (this.remaining > 0 && target.remaining() > this.remaining) {
+				target.limit(target.position() + (int) this.remaining);
+			}
+			try {
+				int read = this.channel.read(target);
+				if (read > 0 && this.remaining > 0) {
+					this.remaining -= read;
+				}
+				return read;
+			} finally {
+				target.limit(limit);
+			}
+		}
+
+		@Override
+		public boolean isOpen() {
+			return this.channel.isOpen();
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.channel.close();
+		}
+	}
+
+	/**
+	 * Region of a file from its current position
+	 */
+	private static class FileRegion extends BoundedChannel implements TransferableChannel {
+
+		private final FileChannel file;
+
+		private FileRegion(FileChannel file, Long length) {
+			super(file, length);
+			this.file = file;
+		}
+
+		@Override
+		public Long transferTo(Long count, WritableByteChannel target) throws IOException {
+			if (this.remaining == 0) {
+				return -1L;
+			}
+			long position = this.file.position();
+			long transferred = this.file.transferTo(position,
+					(this.remaining > 0) ? Math.min(count, this.remaining) : count, target);
+			if (transferred == 0 && position >= this.file.size()) {
+				// The file has ended, whether or not the region has
+				return -1L;
+			}
+			this.file.position(position + transferred);
+			if (this.remaining > 0) {
+				this.remaining -= transferred;
+			}
+			return transferred;
+		}
+	}
+
+	/**
+	 * Channel counting the bytes read through it
+	 */
+	private static class CountingChannel implements ReadableByteChannel {
+
+		protected final ReadableByteChannel channel;
+		protected final LongConsumer counter;
+
+		private CountingChannel(ReadableByteChannel channel, LongConsumer counter) {
+			this.channel = channel;
+			this.counter = counter;
+		}
+
+		@Override
+		public int read(ByteBuffer target) throws IOException {
+			int read = this.channel.read(target);
+			if (read > 0) {
+				this.counter.accept(read);
+			}
+			return read;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return this.channel.isOpen();
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.channel.close();
+		}
+	}
+
+	/**
+	 * Channel counting the bytes read or transferred through it
+	 */
+	private static class CountingTransferableChannel extends CountingChannel implements TransferableChannel {
+
+		private CountingTransferableChannel(TransferableChannel channel, LongConsumer counter) {
+			super(channel, counter);
+		}
+
+		@Override
+		public Long transferTo(Long count, WritableByteChannel target) throws IOException {
+			Long transferred = ((TransferableChannel) this.channel).transferTo(count, target);
+			if (transferred > 0) {
+				this.counter.accept(transferred);
+			}
+			return transferred;
+		}
+	}
+
+	/**
+	 * Channel compressing another with gzip as it's read, in the format
+	 * GZIPOutputStream writes
+	 */
+	private static class GzipChannel implements ReadableByteChannel {
+
+		private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+		private final ReadableByteChannel channel;
+		private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		private final CRC32 crc = new CRC32();
+		private final byte[] input = BufferPool.getDefault().acquireArray(CHUNK_SIZE);
+		private final ByteBuffer output = ByteBuffer.wrap(BufferPool.getDefault().acquireArray(CHUNK_SIZE));
+		private boolean trailed = false;
+		private boolean open = true;
+
+		private GzipChannel(ReadableByteChannel channel) {
+			this.channel = channel;
+			this.output.put(HEADER).flip();
+		}
+
+		@Override
+		public int read(ByteBuffer target) throws IOException {
+			while (!this.output.hasRemaining()) {
+				if (this.trailed) {
+					return -1;
+				}
+				this.output.clear();
+				if (this.deflater.finished()) {
+					this.output.order(ByteOrder.LITTLE_ENDIAN);
+					this.output.putInt((int) this.crc.getValue()).putInt((int) this.deflater.getBytesRead());
+					this.trailed = true;
+				} else {
+					if (this.deflater.needsInput() && !this.deflater.finished()) {
+						int read = this.channel.read(ByteBuffer.wrap(this.input));
+						if (read < 0) {
+							this.deflater.finish();
+						} else if (read == 0) {
+							this.output.flip();
+							return 0;
+						} else {
+							this.crc.update(this.input, 0, read);
+							this.deflater.setInput(this.input, 0, read);
+						}
+					}
+					this.output.position(this.deflater.deflate(this.output.array()));
+				}
+				this.output.flip();
+			}
+			int length = Math.min(this.output.remaining(), target.remaining());
+			ByteBuffer slice = this.output.duplicate();
+			slice.limit(slice.position() + length);
+			target.put(slice);
+			this.output.position(this.output.position() + length);
+			return length;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return this.open;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!this.open) {
+				return;
+			}
+			this.open = false;
+			this.deflater.end();
+			BufferPool.getDefault().releaseArray(this.input);
+			BufferPool.getDefault().releaseArray(this.output.array());
+			this.channel.close();
+		}
+	}
+
+	/**
+	 * Creates a body from bytes which are already in memory
+	 *
+	 * @param bytes
+	 * @param contentType
+	 * @return RequestBody
+	 */
+	public static RequestBody of(byte[] bytes, String contentType) {
+		return new RequestBody(contentType, (long) bytes.length) {
+			@Override
+			public void writeTo(OutputStream output) throws IOException {
+				output.write(bytes);
+			}
+
+			@Override
+			public ReadableByteChannel openChannel() {
+				return Channels.newChannel(new ByteArrayInputStream(bytes));
+			}
+		};
+	}
+
+	/**
+	 * Creates a body streamed from a file, with its content type guessed from
+	 * its name
+	 *
+	 * @param file
+	 * @return RequestBody
+	 * @throws IOException
+	 *             Thrown if the file's size can't be read
+	 */
+	public static RequestBody of(Path file) throws IOException {
+		String contentType = Files.probeContentType(file);
+		return RequestBody.of(file, (contentType != null) ? contentType : OCTET_STREAM_CONTENT_TYPE);
+	}
+
+	/**
+	 * Creates a body streamed from a file. The file is opened each time the
+	 * body is sent, so the request can be retried, and is sent with the length
+	 * it has now.
+	 *
+	 * @param file
+	 * @param contentType
+	 * @return RequestBody
+	 * @throws IOException
+	 *             Thrown if the file's size can't be read
+	 */
+	public static RequestBody of(Path file, String contentType) throws IOException {
+		Long length = Files.size(file);
+		return new RequestBody(contentType, length) {
+			@Override
+			public void writeTo(OutputStream output) throws IOException {
+				try (ReadableByteChannel channel = this.openChannel()) {
+					RequestBody.copy(channel, output, length);
+				}
+			}
+
+			@Override
+			public ReadableByteChannel openChannel() throws IOException {
+				return new FileRegion(FileChannel.open(file, StandardOpenOption.READ), length);
+			}
+		};
+	}
+
+	/**
+	 * Creates a body streamed from an InputStream, which is closed once it
+	 * has been sent. It can only be sent once, so the request isn't retried.
+	 *
+	 * @param input
+	 * @param contentType
+	 * @param contentLength
+	 *            Bytes to send, or -1 to send the stream to its end with chunked
+	 *            transfer encoding
+	 * @return RequestBody
+	 */
+	public static RequestBody of(InputStream input, String contentType, Long contentLength) {
+		return RequestBody.of(Channels.newChannel(input), contentType, contentLength);
+	}
+
+	/**
+	 * Creates a body streamed from a channel, which is closed once it has been
+	 * sent. A FileChannel is sent from its current position. It can only be
+	 * sent once, so the request isn't retried.
+	 *
+	 * @param channel
+	 * @param contentType
+	 * @param contentLength
+	 *            Bytes to send, or -1 to send the channel to its end with
+	 *            chunked transfer encoding
+	 * @return RequestBody
+	 */
+	public static RequestBody of(ReadableByteChannel channel, String contentType, Long contentLength) {
+		return new RequestBody(contentType, contentLength) {
+			@Override
+			public void writeTo(OutputStream output) throws IOException {
+				try (ReadableByteChannel body = this.openChannel()) {
+					RequestBody.copy(body, output, contentLength);
+				}
+			}
+
+			@Override
+			public ReadableByteChannel openChannel() {
+				return (channel instanceof FileChannel) ? new FileRegion((FileChannel) channel, contentLength)
+						: new BoundedChannel(channel, contentLength);
+			}
+
+			@Override
+			public Boolean isRepeatable() {
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Copies a channel to a stream through a pooled array
+	 *
+	 * @param channel
+	 * @param output
+	 * @param length
+	 *            Bytes expected, or -1 to copy to the end of the channel
+	 * @throws IOException
+	 */
+	static void copy(ReadableByteChannel channel, OutputStream output, Long length) throws IOException {
+		byte[] array = BufferPool.getDefault().acquireArray(TRANSFER_SIZE);
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(array);
+			long copied = 0;
+			int read;
+			while ((read = channel.read(buffer)) != -1) {
+				output.write(array, 0, read);
+				copied += read;
+				buffer.clear();
+			}
+			if (length >= 0 && copied < length) {
+				throw new EOFException("The request body ended " + (length - copied) + " bytes early.");
+			}
+		} finally {
+			BufferPool.getDefault().releaseArray(array);
+		}
+	}
+
+	/**
+	 * Wraps a body so the bytes read from it, however it's sent, are counted
+	 *
+	 * @param requestBody
+	 * @param counter
+	 *            Receives the number of bytes each time some are sent
+	 * @return RequestBody
+	 */
+	static RequestBody counted(RequestBody requestBody, LongConsumer counter) {
+		return new RequestBody(requestBody.getContentType(), requestBody.getContentLength()) {
+			@Override
+			public void writeTo(OutputStream output) throws IOException {
+				requestBody.writeTo(new FilterOutputStream(output) {
+					@Override
+					public void write(int value) throws IOException {
+						this.out.write(value);
+						counter.accept(1);
+					}
+
+					@Override
+					public void write(byte[] buffer, int offset, int length) throws IOException {
+						this.out.write(buffer, offset, length);
+						counter.accept(length);
+					}
+				});
+			}
+
+			@Override
+			public ReadableByteChannel openChannel() throws IOException {
+				ReadableByteChannel channel = requestBody.openChannel();
+				if (channel == null) {
+					return null;
+				}
+				return (channel instanceof TransferableChannel)
+						? new CountingTransferableChannel((TransferableChannel) channel, counter)
+						: new CountingChannel(channel, counter);
+			}
+
+			@Override
+			public Boolean isRepeatable() {
+				return requestBody.isRepeatable();
+			}
+		};
+	}
+
+	/**
+	 * Creates a JSON body from a JSONObject. The object is encoded straight to
+	 * UTF-8 bytes in pooled buffers, without an intermediate String, and copied
+	 * out once so its length can be sent up front.
+	 *
+	 * Writing the object to the connection as it's encoded would save that
+	 * copy, but the body would then be sent chunked: servers which require a
+	 * Content-Length would refuse it, small bodies would take the transports'
+	 * streaming paths and gzip couldn't compress it up front. The copy costs
+	 * a fraction of the encoding, bodies too large to hold twice should be
+	 * written with json(Producer) instead.
+	 *
+	 * @param requestData
+	 * @return RequestBody, or null if there's no request data
+	 */
+	public static RequestBody json(JSONObject requestData) {
+		if (requestData == null) {
+			return null;
+		}
+
+		byte[] bytes;
+		try (BufferPool.Output encoded = BufferPool.getDefault().newOutput();
+				Writer writer = new OutputStreamWriter(encoded, StandardCharsets.UTF_8)) {
+			requestData.write(writer);
+			writer.flush();
+			bytes = encoded.toByteArray();
+		} catch (IOException e) {
+			// Writing to memory can't fail
+			throw new IllegalStateException(e);
+		}
+		return RequestBody.of(bytes, JSON_CONTENT_TYPE);
+	}
+
+	/**
+	 * Creates a JSON body which is produced while it's being sent, for example
+	 * through an org.json.JSONWriter, and sent with chunked transfer encoding
+	 *
+	 * @param producer
+	 * @return RequestBody
+	 */
+	public static RequestBody json(Producer producer) {
+		return new RequestBody(JSON_CONTENT_TYPE, -1L) {
+			@Override
+			public void writeTo(OutputStream output) throws IOException {
+				Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), CHUNK_SIZE);
+				producer.produce(writer);
+				writer.flush();
+			}
+		};
+	}
+
+	/**
+	 * Compresses a body with gzip. A body of known length up to
+	 * MAX_BUFFERED_COMPRESSION_BYTES is compressed up front so the compressed
+	 * length can be sent, others are compressed while they're written, or read
+	 * if they can be, and sent chunked. The Content-Encoding header is left to
+	 * the caller.
+	 *
+	 * @param requestBody
+	 * @return RequestBody, or null if there's no request body
+	 * @throws IOException
+	 *             Thrown if the body couldn't be written
+	 */
+	public static RequestBody gzip(RequestBody requestBody) throws IOException {
+		if (requestBody == null) {
+			return null;
+		}
+
+		if (requestBody.getContentLength() < 0 || requestBody.getContentLength() > MAX_BUFFERED_COMPRESSION_BYTES) {
+			return new RequestBody(requestBody.getContentType(), -1L) {
+				@Override
+				public void writeTo(OutputStream output) throws IOException {
+					// Closing finishes the stream and frees the deflater, the
+					// connection itself is closed by the transport
+					try (GZIPOutputStream gzip = new GZIPOutputStream(new FilterOutputStream(output) {
+						@Override
+						public void write(byte[] buffer, int offset, int length) throws IOException {
+							this.out.write(buffer, offset, length);
+						}
+
+						@Override
+						public void close() throws IOException {
+							this.flush();
+						}
+					}, CHUNK_SIZE)) {
+						requestBody.writeTo(gzip);
+					}
+				}
+
+				@Override
+				public ReadableByteChannel openChannel() throws IOException {
+					ReadableByteChannel channel = requestBody.openChannel();
+					return (channel != null) ? new GzipChannel(channel) : null;
+				}
+
+				@Override
+				public Boolean isRepeatable() {
+					return requestBody.isRepeatable();
+				}
+			};
+		}
+
+		byte[] bytes;
+		try (BufferPool.Output compressed = BufferPool.getDefault().newOutput();
+				GZIPOutputStream gzip = new GZIPOutputStream(compressed, CHUNK_SIZE)) {
+			requestBody.writeTo(gzip);
+			gzip.finish();
+			bytes = compressed.toByteArray();
+		}
+		return RequestBody.of(bytes, requestBody.getContentType());
+	}
+
+	private final String contentType;
+	private final Long contentLength;
+
+	protected RequestBody(String contentType, Long contentLength) {
+		this.contentType = contentType;
+		this.contentLength = contentLength;
+	}
+
+	public String getContentType() {
+		return this.contentType;
+	}
+
+	/**
+	 * @return Length of the body in bytes, or -1 if it isn't known in advance
+	 */
+	public Long getContentLength() {
+		return this.contentLength;
+	}
+
+	/**
+	 * Writes the body to the connection
+	 *
+	 * @param output
+	 * @throws IOException
+	 */
+	public abstract void writeTo(OutputStream output) throws IOException;
+
+	/**
+	 * Opens the body for reading, for transports which pull the body rather
+	 * than have it written to them. The caller closes the channel.
+	 *
+	 * @return Channel, which may be a TransferableChannel, or null if the body
+	 *         can only be written
+	 * @throws IOException
+	 */
+	public ReadableByteChannel openChannel() throws IOException {
+		return null;
+	}
+
+	/**
+	 * Whether the body can be sent more than once, for retries and redirects
+	 *
+	 * @return true unless the body is read from a stream
+	 */
+	public Boolean isRepeatable() {
+		return true;
+	}
+}
@@ -0,0 +1,186 @@
+package session;
+
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.json.JSONObject;
+
+/**
+ * Immutable set of request headers, with every value already encoded as the
+ * String sent on the wire. Header sets are built once, when a Session is
+ * authorized or a request is configured, and applied to each connection by
+ * walking two arrays. JSONObject is accepted only as a convenience for
+ * building them.
+ */
+public final class RequestHeaders {
+
+	public static final RequestHeaders EMPTY = new RequestHeaders(new String[0], new String[0]);
+
+	private final String[] names;
+	private final String[] values;
+	private volatile String identity = null;
+
+	private RequestHeaders(String[] names, String[] values) {
+		this.names = names;
+		this.values = values;
+	}
+
+	/**
+	 * Creates a header set with a single header
+	 *
+	 * @param name
+	 * @param value
+	 * @return RequestHeaders
+	 */
+	public static RequestHeaders of(String name, String value) {
+		return EMPTY.with(name, value);
+	}
+
+	/**
+	 * Creates a header set from a JSONObject of header names and values
+	 *
+	 * @param headers
+	 * @return RequestHeaders, empty if headers is null
+	 */
+	public static RequestHeaders of(JSONObject headers) {
+		if (headers == null || headers.length() == 0) {
+			return EMPTY;
+		}
+		String[] names = new String[headers.length()];
+		String[] values = new String[names.length];
+		int index = 0;
+		for (String name : headers.keySet()) {
+			names[index] = name;
+			values[index] = headers.getString(name);
+			index++;
+		}
+		return new RequestHeaders(names, values);
+	}
+
+	/**
+	 * @param name
+	 * @return Index of the header, ignoring case, or -1
+	 */
+	private int indexOf(String name) {
+		for (int index = 0; index < this.names.length; index++) {
+			if (this.names[index].equalsIgnoreCase(name)) {
+				return index;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Creates a copy with the header added, or replaced if it's already set
+	 *
+	 * @param name
+	 * @param value
+	 *            Value, or null to remove the header
+	 * @return RequestHeaders
+	 */
+	public RequestHeaders with(String name, String value) {
+		int index = this.indexOf(name);
+		if (value == null) {
+			if (index < 0) {
+				return this;
+			}
+			String[] names = new String[this.names.length - 1];
+			String[] values = new String[names.length];
+			System.arraycopy(this.names, 0, names, 0, index);
+			System.arraycopy(this.values, 0, values, 0, index);
+			System.arraycopy(this.names, index + 1, names, index, names.length - index);
+			System.arraycopy(this.values, index + 1, values, index, values.length - index);
+			return new RequestHeaders(names, values);
+		}
+		if (index >= 0) {
+			String[] values = this.values.clone();
+			values[index] = value;
+			return new RequestHeaders(this.names, values);
+		}
+		String[] names = Arrays.copyOf(this.names, this.names.length + 1);
+		String[] values = Arrays.copyOf(this.values, this.values.length + 1);
+		names[this.names.length] = name;
+		values[this.values.length] = value;
+		return new RequestHeaders(names, values);
+	}
+
+	/**
+	 * Creates a copy with the other headers added, replacing any already set
+	 *
+	 * @param headers
+	 * @return RequestHeaders
+	 */
+	public RequestHeaders with(RequestHeaders headers) {
+		if (headers == null || headers.isEmpty()) {
+			return this;
+		}
+		if (this.isEmpty()) {
+			return headers;
+		}
+		RequestHeaders merged = this;
+		for (int index = 0; index < headers.names.length; index++) {
+			merged = merged.with(headers.names[index], headers.values[index]);
+		}
+		return merged;
+	}
+
+	/**
+	 * @param name
+	 * @return Value of the header, ignoring case, or null if it isn't set
+	 */
+	public String get(String name) {
+		int index = this.indexOf(name);
+		return (index >= 0) ? this.values[index] : null;
+	}
+
+	public Integer size() {
+		return this.names.length;
+	}
+
+	public Boolean isEmpty() {
+		return this.names.length == 0;
+	}
+
+	public void forEach(BiConsumer<String, String> action) {
+		for (int index = 0; index < this.names.length; index++) {
+			action.accept(this.names[index], this.values[index]);
+		}
+	}
+
+	/**
+	 * Identifies the headers, for example the credentials they carry, without
+	 * keeping their values. Computed once per header set.
+	 *
+	 * @return SHA-256 digest of the headers
+	 */
+	protected String getIdentity() {
+		String identity = this.identity;
+		if (identity == null) {
+			StringBuilder builder = new StringBuilder();
+			for (int index = 0; index < this.names.length; index++) {
+				builder.append(this.names[index].toLowerCase()).append(':').append(this.values[index]).append('\n');
+			}
+			identity = DigestUtils.sha256Hex(builder.toString());
+			this.identity = identity;
+		}
+		return identity;
+	}
+
+	/**
+	 * @return Copy of the headers as a JSONObject
+	 */
+	public JSONObject toJSONObject() {
+		JSONObject headers = new JSONObject();
+		this.forEach(headers::put);
+		return headers;
+	}
+
+	/**
+	 * @return Header names only, values may hold credentials
+	 */
+	@Override
+	public String toString() {
+		return Arrays.toString(this.names);
+	}
+}
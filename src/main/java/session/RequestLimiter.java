@@ -0,0 +1,295 @@
+package session;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import session.exception.RequestLimitException;
+
+/**
+ * Per-host limit on how hard a Session calls a host. Each host gets a token
+ * bucket, which caps the rate requests are started at while allowing short
+ * bursts, and an adaptive concurrency limit, which caps how many requests may
+ * be in flight at once.
+ *
+ * The concurrency limit follows the host's round trip time (additive increase,
+ * multiplicative decrease): the average of the last few round trips is
+ * compared with the average over a longer period. While the recent average is
+ * within the latency tolerance of the longer one the limit grows by about one
+ * per limit's worth of requests; once it's higher, or requests time out, fail
+ * or are answered 429 or 503, the host is queueing work and the limit is cut
+ * by the backoff ratio, at most once per round trip.
+ *
+ * Requests over either limit wait in a per-host queue. A request which finds
+ * the queue full, or waits in it for longer than the queue timeout, fails
+ * with a RequestLimitException without contacting the host. Streaming
+ * requests hold their place until the response headers have been read.
+ *
+ * Requests beyond the ConnectionPool's per-route maximum wait for a
+ * connection before being sent, so the concurrency limit only adapts below
+ * that maximum.
+ */
+public class RequestLimiter {
+
+	public static final Integer DEFAULT_INITIAL_LIMIT = 8;
+	public static final Integer DEFAULT_MIN_LIMIT = 1;
+	public static final Integer DEFAULT_MAX_LIMIT = 200;
+	public static final Double DEFAULT_LATENCY_TOLERANCE = 2.0;
+	public static final Double DEFAULT_BACKOFF_RATIO = 0.9;
+	public static final Integer DEFAULT_QUEUE_DEPTH = 1000;
+	public static final Long DEFAULT_QUEUE_TIMEOUT_MILLIS = 30000L;
+
+	/**
+	 * Weight of each round trip in the recent and longer term averages, about
+	 * the last 10 and 100 round trips
+	 */
+	private static final Double RECENT_WEIGHT = 0.1;
+	private static final Double LONG_TERM_WEIGHT = 0.01;
+
+	/**
+	 * Token bucket, concurrency limit and queue of a single host
+	 */
+	private class Limit {
+
+		private final String host;
+		private double limit;
+		private int inFlight = 0;
+		private int queued = 0;
+		private double tokens;
+		private long refilledAt = System.nanoTime();
+		private double recentRoundTrip = 0.0;
+		private double longTermRoundTrip = 0.0;
+		private long decreasedAt = 0L;
+
+		private Limit(String host) {
+			this.host = host;
+			this.limit = RequestLimiter.this.initialLimit;
+			this.tokens = RequestLimiter.this.burst;
+		}
+
+		/**
+		 * Waits for both a token and a place within the concurrency limit
+		 */
+		private synchronized void acquire() throws InterruptedException {
+			if (this.tryAcquire() == 0L) {
+				return;
+			}
+			if (this.queued >= RequestLimiter.this.queueDepth) {
+				RequestLimiter.this.rejected.incrementAndGet();
+				throw new RequestLimitException(this.host, "the queue is full");
+			}
+
+			Long timeout = RequestLimiter.this.queueTimeoutMillis;
+			Long deadline = System.nanoTime() + timeout * 1000000L;
+			this.queued++;
+			try {
+				Long wait;
+				while ((wait = this.tryAcquire()) != 0L) {
+					Long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						RequestLimiter.this.rejected.incrementAndGet();
+						throw new RequestLimitException(this.host, "timed out after " + timeout + "ms in the queue");
+					}
+					// Wait for a release, or for the next token
+					Long nanoseconds = (wait > 0) ? Math.min(wait, remaining) : remaining;
+					this.wait(Math.max(1L, nanoseconds / 1000000L));
+				}
+			} finally {
+				this.queued--;
+			}
+		}
+
+		/**
+		 * @return 0 if the request may start now, in which case it's counted,
+		 *         otherwise the nanoseconds until the next token or -1 to wait
+		 *         for a request to complete
+		 */
+		private Long tryAcquire() {
+			if (this.inFlight >= (int) this.limit) {
+				return -1L;
+			}
+			Double rate = RequestLimiter.this.rate;
+			if (rate != null) {
+				long now = System.nanoTime();
+				this.tokens = Math.min(RequestLimiter.this.burst, this.tokens + (now - this.refilledAt) * rate / 1e9);
+				this.refilledAt = now;
+				if (this.tokens < 1.0) {
+					return Math.max(1L, (long) ((1.0 - this.tokens) * 1e9 / rate));
+				}
+				this.tokens--;
+			}
+			this.inFlight++;
+			return 0L;
+		}
+
+		private synchronized void release(Long nanoseconds, Boolean overloaded) {
+			Boolean saturated = this.inFlight >= this.limit / 2;
+			this.inFlight--;
+			if (nanoseconds != null) {
+				if (this.longTermRoundTrip == 0.0) {
+					this.recentRoundTrip = nanoseconds;
+					this.longTermRoundTrip = nanoseconds;
+				}
+				this.recentRoundTrip += (nanoseconds - this.recentRoundTrip) * RECENT_WEIGHT;
+				this.longTermRoundTrip += (nanoseconds - this.longTermRoundTrip) * LONG_TERM_WEIGHT;
+
+				long now = System.nanoTime();
+				if (overloaded || this.recentRoundTrip > this.longTermRoundTrip * RequestLimiter.this.latencyTolerance) {
+					// Requests sent before the last decrease still report the
+					// congestion which caused it
+					if (now - this.decreasedAt > nanoseconds) {
+						this.limit = Math.max(RequestLimiter.this.minLimit,
+								this.limit * RequestLimiter.this.backoffRatio);
+						this.decreasedAt = now;
+					}
+				} else if (saturated) {
+					// Only grow while the limit is what's holding requests back
+					this.limit = Math.min(RequestLimiter.this.maxLimit, this.limit + 1.0 / this.limit);
+				}
+			}
+			this.notifyAll();
+		}
+
+		private synchronized Integer getLimit() {
+			return (int) this.limit;
+		}
+	}
+
+	private final Map<String, Limit> limits = new ConcurrentHashMap<String, Limit>();
+	private volatile Double rate = null;
+	private volatile Double burst = 1.0;
+	private volatile Integer initialLimit = DEFAULT_INITIAL_LIMIT;
+	private volatile Integer minLimit = DEFAULT_MIN_LIMIT;
+	private volatile Integer maxLimit = DEFAULT_MAX_LIMIT;
+	private volatile Double latencyTolerance = DEFAULT_LATENCY_TOLERANCE;
+	private volatile Double backoffRatio = DEFAULT_BACKOFF_RATIO;
+	private volatile Integer queueDepth = DEFAULT_QUEUE_DEPTH;
+	private volatile Long queueTimeoutMillis = DEFAULT_QUEUE_TIMEOUT_MILLIS;
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * Limits the rate requests to each host are started at. By default the
+	 * rate isn't limited.
+	 *
+	 * @param requestsPerSecond
+	 *            Sustained rate, or null for no limit
+	 * @param burst
+	 *            Requests which may be started at once after an idle period
+	 */
+	public void setRateLimit(Double requestsPerSecond, Integer burst) {
+		if (requestsPerSecond != null && (requestsPerSecond <= 0 || burst == null || burst < 1)) {
+			throw new IllegalArgumentException("The rate must be above 0 and the burst at least 1.");
+		}
+		this.rate = requestsPerSecond;
+		this.burst = (burst != null) ? burst.doubleValue() : 1.0;
+	}
+
+	/**
+	 * Sets the bounds of the adaptive concurrency limit. Equal bounds give a
+	 * fixed limit.
+	 *
+	 * @param initialLimit
+	 *            Limit for hosts first called after it's set
+	 * @param minLimit
+	 * @param maxLimit
+	 */
+	public void setConcurrencyLimit(Integer initialLimit, Integer minLimit, Integer maxLimit) {
+		if (minLimit == null || minLimit < 1 || maxLimit == null || maxLimit < minLimit || initialLimit == null
+				|| initialLimit < minLimit || initialLimit > maxLimit) {
+			throw new IllegalArgumentException("The limits must be at least 1 and the initial limit within them.");
+		}
+		this.initialLimit = initialLimit;
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+	}
+
+	/**
+	 * @param latencyTolerance
+	 *            Multiple of the longer term average round trip above which
+	 *            the recent average shows the host is overloaded
+	 * @param backoffRatio
+	 *            Factor the limit is multiplied by when it is
+	 */
+	public void setAdaptation(Double latencyTolerance, Double backoffRatio) {
+		if (latencyTolerance <= 1 || backoffRatio <= 0 || backoffRatio >= 1) {
+			throw new IllegalArgumentException(
+					"The latency tolerance must be above 1 and the backoff ratio between 0 and 1.");
+		}
+		this.latencyTolerance = latencyTolerance;
+		this.backoffRatio = backoffRatio;
+	}
+
+	/**
+	 * @param queueDepth
+	 *            Requests per host which may wait to start, 0 to reject
+	 *            requests over the limits straight away
+	 * @param queueTimeoutMillis
+	 *            How long a request may wait
+	 */
+	public void setQueue(Integer queueDepth, Long queueTimeoutMillis) {
+		if (queueDepth == null || queueDepth < 0 || queueTimeoutMillis == null || queueTimeoutMillis < 0) {
+			throw new IllegalArgumentException("The queue depth and timeout can't be negative.");
+		}
+		this.queueDepth = queueDepth;
+		this.queueTimeoutMillis = queueTimeoutMillis;
+	}
+
+	private Limit getLimit(String host) {
+		return this.limits.computeIfAbsent(host.toLowerCase(), key -> new Limit(host));
+	}
+
+	/**
+	 * Waits until a request to the host may be started. Each successful call
+	 * must be followed by a call to release.
+	 *
+	 * @param host
+	 * @throws RequestLimitException
+	 *             Thrown if the queue is full or the request timed out in it
+	 * @throws InterruptedException
+	 */
+	protected void acquire(String host) throws RequestLimitException, InterruptedException {
+		this.getLimit(host).acquire();
+	}
+
+	/**
+	 * Records the completion of a request started through acquire
+	 *
+	 * @param host
+	 * @param nanoseconds
+	 *            Round trip time, or null if the request wasn't sent
+	 * @param overloaded
+	 *            Whether the host failed or rejected the request in a way
+	 *            which shows it's overloaded
+	 */
+	protected void release(String host, Long nanoseconds, Boolean overloaded) {
+		this.getLimit(host).release(nanoseconds, overloaded);
+	}
+
+	/**
+	 * @param host
+	 * @return Current concurrency limit of the host, the initial limit if it
+	 *         hasn't been called
+	 */
+	public Integer getConcurrencyLimit(String host) {
+		Limit limit = this.limits.get(host.toLowerCase());
+		return (limit != null) ? limit.getLimit() : this.initialLimit;
+	}
+
+	/**
+	 * @return Current concurrency limit of every host
+	 */
+	public Map<String, Integer> getConcurrencyLimits() {
+		Map<String, Integer> concurrencyLimits = new TreeMap<String, Integer>();
+		this.limits.forEach((host, limit) -> concurrencyLimits.put(host, limit.getLimit()));
+		return Collections.unmodifiableMap(concurrencyLimits);
+	}
+
+	/**
+	 * @return Number of requests rejected since the limiter was created
+	 */
+	public Long getRejectedCount() {
+		return this.rejected.get();
+	}
+}
@@ -0,0 +1,426 @@
+package session;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLHandshakeException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import session.exception.HTTPErrorResponseException;
+
+/**
+ * Retries failed requests with exponential backoff and full jitter, and
+ * optionally hedges slow GET requests with a second attempt. Only idempotent
+ * request methods are retried, and only after connection failures or
+ * transient error statuses. Retries and hedges are drawn from a budget which
+ * grows with the number of requests, so a struggling server sees at most a
+ * small fraction of extra load rather than every request multiplied by the
+ * maximum number of attempts.
+ *
+ * A policy is shared by every request it's set on, along with its budget.
+ * Request bodies are written again for each attempt, so a
+ * RequestBody.Producer must be able to run more than once.
+ */
+public class RetryPolicy {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(RetryPolicy.class);
+
+	public static final Integer DEFAULT_MAX_ATTEMPTS = 3;
+	public static final Long DEFAULT_INITIAL_BACKOFF_MILLIS = 100L;
+	public static final Long DEFAULT_MAX_BACKOFF_MILLIS = 5000L;
+	public static final Double DEFAULT_BUDGET_RATIO = 0.2;
+	public static final Integer DEFAULT_BUDGET_MIN_RETRIES = 10;
+
+	private static final Long TOKEN = 1000L;
+
+	/**
+	 * Single attempt at a request
+	 */
+	@FunctionalInterface
+	public static interface Attempt {
+
+		public SessionConnection connect() throws IOException;
+	}
+
+	private Integer maxAttempts = DEFAULT_MAX_ATTEMPTS;
+	private Long initialBackoffMillis = DEFAULT_INITIAL_BACKOFF_MILLIS;
+	private Long maxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+	private Set<SessionConnection.REQUEST_METHOD> retryableMethods = EnumSet.of(SessionConnection.REQUEST_METHOD.GET,
+			SessionConnection.REQUEST_METHOD.HEAD, SessionConnection.REQUEST_METHOD.OPTIONS,
+			SessionConnection.REQUEST_METHOD.PUT, SessionConnection.REQUEST_METHOD.DELETE,
+			SessionConnection.REQUEST_METHOD.TRACE);
+	private Set<Integer> retryableResponseCodes = new HashSet<Integer>(Arrays.asList(408, 429, 502, 503, 504));
+	private Long hedgeDelayMillis = null;
+
+	// Budget in thousandths of a retry: each request deposits the ratio, each
+	// retry or hedge withdraws a whole token
+	private Long budgetRatio = (long) (DEFAULT_BUDGET_RATIO * TOKEN);
+	private Long budgetMax = DEFAULT_BUDGET_MIN_RETRIES * TOKEN;
+	private final AtomicLong budget = new AtomicLong(DEFAULT_BUDGET_MIN_RETRIES * TOKEN);
+
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong hedges = new AtomicLong();
+	private final AtomicLong hedgeWins = new AtomicLong();
+	private final AtomicLong budgetExhausted = new AtomicLong();
+
+	/**
+	 * Sets the maximum number of attempts per request, including the first
+	 *
+	 * @param maxAttempts
+	 */
+	public void setMaxAttempts(Integer maxAttempts) {
+		if (maxAttempts == null || maxAttempts < 1) {
+			throw new IllegalArgumentException("The maximum number of attempts must be at least 1.");
+		}
+		this.maxAttempts = maxAttempts;
+	}
+
+	public Integer getMaxAttempts() {
+		return this.maxAttempts;
+	}
+
+	/**
+	 * Sets the backoff between attempts. The n-th retry waits a random time
+	 * between 0 and min(max, initial * 2^(n-1)), or at least as long as a 429
+	 * or 503 response's Retry-After header asks. Such a response isn't retried
+	 * if it asks for longer than the maximum backoff.
+	 *
+	 * @param initialBackoffMillis
+	 * @param maxBackoffMillis
+	 */
+	public void setBackoff(Long initialBackoffMillis, Long maxBackoffMillis) {
+		if (initialBackoffMillis < 0 || maxBackoffMillis < initialBackoffMillis) {
+			throw new IllegalArgumentException("The backoff must satisfy 0 <= initial <= max.");
+		}
+		this.initialBackoffMillis = initialBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+	}
+
+	/**
+	 * Sets the request methods which may be retried, by default the idempotent
+	 * methods GET, HEAD, OPTIONS, PUT, DELETE and TRACE
+	 *
+	 * @param methods
+	 */
+	public void setRetryableMethods(SessionConnection.REQUEST_METHOD... methods) {
+		Set<SessionConnection.REQUEST_METHOD> retryableMethods = EnumSet
+				.noneOf(SessionConnection.REQUEST_METHOD.class);
+		retryableMethods.addAll(Arrays.asList(methods));
+		this.retryableMethods = retryableMethods;
+	}
+
+	/**
+	 * Sets the error statuses which are retried, by default 408, 429, 502, 503
+	 * and 504
+	 *
+	 * @param responseCodes
+	 */
+	public void setRetryableResponseCodes(Integer... responseCodes) {
+		this.retryableResponseCodes = new HashSet<Integer>(Arrays.asList(responseCodes));
+	}
+
+	/**
+	 * Sets the retry budget
+	 *
+	 * @param ratio
+	 *            Retries and hedges earned per request, for example 0.2 allows
+	 *            one retry for every five requests
+	 * @param minRetries
+	 *            Retries available regardless of the request rate, which is
+	 *            also the most the budget can save up
+	 */
+	public void setRetryBudget(Double ratio, Integer minRetries) {
+		if (ratio < 0 || minRetries < 0) {
+			throw new IllegalArgumentException("The retry budget can't be negative.");
+		}
+		this.budgetRatio = (long) (ratio * TOKEN);
+		this.budgetMax = minRetries * TOKEN;
+		this.budget.set(this.budgetMax);
+	}
+
+	/**
+	 * Enables hedging: if a GET hasn't completed after the delay, a second
+	 * attempt is sent and whichever completes first is used. Both attempts
+	 * hold a connection from the Session's pool until they complete, so the
+	 * pool needs room for the extra connections or hedges will queue behind
+	 * the requests they're meant to overtake.
+	 *
+	 * @param hedgeDelayMillis
+	 *            Delay, for example the p95 latency, or null to disable
+	 *            hedging
+	 */
+	public void setHedgeDelay(Long hedgeDelayMillis) {
+		this.hedgeDelayMillis = hedgeDelayMillis;
+	}
+
+	public Long getHedgeDelay() {
+		return this.hedgeDelayMillis;
+	}
+
+	/**
+	 * @return Attempts made after a failed attempt
+	 */
+	public Long getRetryCount() {
+		return this.retries.get();
+	}
+
+	/**
+	 * @return Hedged attempts sent
+	 */
+	public Long getHedgeCount() {
+		return this.hedges.get();
+	}
+
+	/**
+	 * @return Hedged attempts which completed before the original
+	 */
+	public Long getHedgeWinCount() {
+		return this.hedgeWins.get();
+	}
+
+	/**
+	 * @return Retries or hedges skipped because the budget was spent
+	 */
+	public Long getBudgetExhaustedCount() {
+		return this.budgetExhausted.get();
+	}
+
+	/**
+	 * Determines whether a failed attempt may be retried
+	 *
+	 * @param requestMethod
+	 * @param failure
+	 * @return Boolean
+	 */
+	protected Boolean isRetryable(SessionConnection.REQUEST_METHOD requestMethod, IOException failure) {
+		if (!this.retryableMethods.contains(requestMethod)) {
+			return false;
+		}
+		if (failure instanceof HTTPErrorResponseException) {
+			return this.retryableResponseCodes.contains(((HTTPErrorResponseException) failure).getResponseCode());
+		}
+		// Configuration errors won't be fixed by trying again
+		return !(failure instanceof SSLHandshakeException || failure instanceof MalformedURLException);
+	}
+
+	/**
+	 * Reads the pause a 429 or 503 response asked for in its Retry-After
+	 * header, as seconds or an HTTP date
+	 *
+	 * @param failure
+	 * @return Pause in milliseconds, or null if the failure didn't ask for one
+	 */
+	protected Long getRetryAfter(IOException failure) {
+		if (!(failure instanceof HTTPErrorResponseException)) {
+			return null;
+		}
+		HTTPErrorResponseException error = (HTTPErrorResponseException) failure;
+		String retryAfter = error.getRetryAfter();
+		if (retryAfter == null || (error.getResponseCode() != 429 && error.getResponseCode() != 503)) {
+			return null;
+		}
+		try {
+			return Math.max(0L, Long.parseLong(retryAfter.trim()) * 1000L);
+		} catch (NumberFormatException e) {
+			try {
+				return Math.max(0L, ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME)
+						.toInstant().toEpochMilli() - System.currentTimeMillis());
+			} catch (DateTimeParseException invalid) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * @param retry
+	 *            Number of the retry, from 1
+	 * @return Backoff in milliseconds, with full jitter
+	 */
+	protected Long getBackoff(Integer retry) {
+		Long ceiling = this.initialBackoffMillis << Math.min(retry - 1, 30);
+		ceiling = (ceiling < 0 || ceiling > this.maxBackoffMillis) ? this.maxBackoffMillis : ceiling;
+		return (ceiling > 0) ? ThreadLocalRandom.current().nextLong(ceiling + 1) : 0L;
+	}
+
+	private void deposit() {
+		this.budget.updateAndGet(balance -> Math.min(this.budgetMax, balance + this.budgetRatio));
+	}
+
+	private Boolean withdraw() {
+		while (true) {
+			long balance = this.budget.get();
+			if (balance < TOKEN) {
+				this.budgetExhausted.incrementAndGet();
+				return false;
+			}
+			if (this.budget.compareAndSet(balance, balance - TOKEN)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Runs the request, retrying and hedging according to the policy
+	 *
+	 * @param requestMethod
+	 * @param attempt
+	 *            Sends the request once
+	 * @param executor
+	 *            Executor to run hedged attempts on
+	 * @return Connection from the first successful attempt
+	 * @throws IOException
+	 *             The last failure, once no more attempts are allowed
+	 */
+	public SessionConnection execute(SessionConnection.REQUEST_METHOD requestMethod, Attempt attempt,
+			Executor executor) throws IOException {
+		this.deposit();
+		Boolean hedged = this.hedgeDelayMillis != null && requestMethod == SessionConnection.REQUEST_METHOD.GET;
+		for (int attemptNumber = 1;; attemptNumber++) {
+			try {
+				return hedged ? this.hedge(attempt, executor) : attempt.connect();
+			} catch (IOException e) {
+				// A server asking for a longer pause than the policy allows isn't
+				// retried, rather than holding the request for that long
+				Long retryAfter = this.getRetryAfter(e);
+				if (attemptNumber >= this.maxAttempts || !this.isRetryable(requestMethod, e)
+						|| (retryAfter != null && retryAfter > this.maxBackoffMillis) || !this.withdraw()) {
+					throw e;
+				}
+				Long backoff = (retryAfter != null) ? Math.max(retryAfter, this.getBackoff(attemptNumber))
+						: this.getBackoff(attemptNumber);
+				LOGGER.debug("Request failed ({}), retrying in {}ms.", e.getMessage(), backoff);
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException interrupted) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+				this.retries.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Sends the request and, if it's still outstanding after the hedge delay,
+	 * a second copy of it. The first to succeed is used and the other closed
+	 * once it completes.
+	 */
+	private SessionConnection hedge(Attempt attempt, Executor executor) throws IOException {
+		AtomicBoolean started = new AtomicBoolean();
+		CompletableFuture<SessionConnection> primary = RetryPolicy.supply(attempt, started, executor);
+		SessionConnection primaryConnection = RetryPolicy.await(primary, this.hedgeDelayMillis);
+		if (primaryConnection != null) {
+			return primaryConnection;
+		} else if (started.compareAndSet(false, true)) {
+			// The executor hasn't got to the request, so there's nothing to hedge
+			// and waiting on it could wait on this thread
+			return attempt.connect();
+		} else if (!this.withdraw()) {
+			return RetryPolicy.await(primary, null);
+		}
+
+		this.hedges.incrementAndGet();
+		CompletableFuture<SessionConnection> secondary = RetryPolicy.supply(attempt, new AtomicBoolean(), executor);
+		CompletableFuture<SessionConnection> first = new CompletableFuture<SessionConnection>();
+		AtomicBoolean won = new AtomicBoolean();
+		AtomicInteger failures = new AtomicInteger();
+		primary.whenComplete((connection, failure) -> RetryPolicy.race(first, connection, failure, won, failures,
+				null));
+		secondary.whenComplete((connection, failure) -> RetryPolicy.race(first, connection, failure, won, failures,
+				this.hedgeWins));
+		return RetryPolicy.await(first, null);
+	}
+
+	/**
+	 * Completes the race with the first successful attempt, or with the
+	 * failure once both have failed
+	 *
+	 * @param wins
+	 *            Counted before the race completes if the attempt wins it, so
+	 *            the count is up to date once the request returns
+	 */
+	private static void race(CompletableFuture<SessionConnection> first, SessionConnection connection,
+			Throwable failure, AtomicBoolean won, AtomicInteger failures, AtomicLong wins) {
+		if (failure == null) {
+			if (!won.compareAndSet(false, true)) {
+				connection.close();
+				return;
+			}
+			if (wins != null) {
+				wins.incrementAndGet();
+			}
+			first.complete(connection);
+		} else if (failures.incrementAndGet() == 2) {
+			first.completeExceptionally(failure);
+		}
+	}
+
+	/**
+	 * Runs the attempt on the executor unless it was started elsewhere first,
+	 * in which case the future is left to complete with null
+	 */
+	private static CompletableFuture<SessionConnection> supply(Attempt attempt, AtomicBoolean started,
+			Executor executor) {
+		return CompletableFuture.supplyAsync(() -> {
+			if (!started.compareAndSet(false, true)) {
+				return null;
+			}
+			try {
+				return attempt.connect();
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		}, executor);
+	}
+
+	/**
+	 * Waits for an attempt, unwrapping its failure
+	 *
+	 * @param timeoutMillis
+	 *            Maximum wait, or null to wait until it completes
+	 * @return Connection, or null if the attempt didn't complete in time
+	 */
+	private static SessionConnection await(CompletableFuture<SessionConnection> future, Long timeoutMillis)
+			throws IOException {
+		try {
+			return (timeoutMillis != null) ? future.get(timeoutMillis, TimeUnit.MILLISECONDS) : future.get();
+		} catch (TimeoutException e) {
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			future.thenAccept(SessionConnection::close);
+			throw new IOException("Interrupted while waiting for the request.", e);
+		} catch (ExecutionException e) {
+			Throwable cause = (e.getCause() instanceof CompletionException && e.getCause().getCause() != null)
+					? e.getCause().getCause()
+					: e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+}
@@ -2,24 +2,42 @@ package session;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.HttpsURLConnection;
 
 import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import core.StreamBuffer;
 import keystore.Keystore;
 import session.exception.*;
+import session.request.BatchExecution;
 import session.request.ConnectionRequest;
 import session.request.HTTPConnectionRequest;
+import session.transport.Transport;
 
 public final class Session implements HTTPConnectionRequest {
 
+	private static final Logger LOGGER = LoggerFactory.getLogger(Session.class);
+
+	public static final Long DEFAULT_REAUTHENTICATION_COOLDOWN_MILLIS = 30000L;
+
 	/**
 	 * Provides access to create BasicAuthenticationProtocol object from Session
 	 * directly
@@ -76,10 +94,63 @@ public final class Session implements HTTPConnectionRequest {
 		return new CookieAuthenticationProtocol(authorizationLocale);
 	}
 
-	private AuthenticationProtocol authenticationProtocol = null;
+	/**
+	 * Most threads the shared request executor runs at once, further requests
+	 * queue until one is free
+	 */
+	public static final Integer MAX_REQUEST_THREADS = 64;
+
+	/**
+	 * Shared executor for asynchronous requests when the caller doesn't provide
+	 * one. Threads are daemons so that pending requests don't keep the JVM
+	 * alive, and are let go once idle.
+	 */
+	private static final ThreadPoolExecutor DEFAULT_REQUEST_EXECUTOR = Session.newRequestExecutor();
+
+	private static final class RequestThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "session-request-" + this.count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+	private static ThreadPoolExecutor newRequestExecutor() {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_REQUEST_THREADS, MAX_REQUEST_THREADS, 30L,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new RequestThreadFactory());
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	private volatile AuthenticationProtocol authenticationProtocol = null;
+	private Executor requestExecutor = DEFAULT_REQUEST_EXECUTOR;
+	private Integer maxInFlightRequests = 64;
+	private ConnectionPool connectionPool = new ConnectionPool();
+	private HTTPResponseCache responseCache = null;
+	private SessionEventListener eventListener = null;
+	private final SessionMetrics metrics = new SessionMetrics();
+	private RetryPolicy retryPolicy = null;
+	private CircuitBreaker circuitBreaker = null;
+	private RequestLimiter requestLimiter = null;
+	private Transport transport = SessionConnection.DEFAULT_TRANSPORT;
+	private Boolean responseCompression = true;
+	private Long requestCompressionThreshold = null;
+	private BufferPool bufferPool = BufferPool.getDefault();
+	private Integer downloadRanges = 1;
+	private Boolean automaticReauthentication = true;
+	private Long reauthenticationCooldownMillis = DEFAULT_REAUTHENTICATION_COOLDOWN_MILLIS;
+	private final Object reauthenticationLock = new Object();
+	private CompletableFuture<Boolean> reauthentication = null;
+	private AuthenticationState reauthenticationState = null;
+	private long reauthenticatedAt = 0;
 
 	public Boolean isAuthenticated() {
-		return (this.authenticationProtocol != null && this.authenticationProtocol.isAuthenticated());
+		AuthenticationProtocol protocol = this.authenticationProtocol;
+		return (protocol != null && protocol.isAuthenticated());
 	}
 
 	public void deAuthenticate() {
@@ -91,20 +162,258 @@ public final class Session implements HTTPConnectionRequest {
 		return this.isAuthenticated();
 	}
 
-	private JSONObject getRequestHeaders() {
-		if (this.authenticationProtocol != null) {
-			return this.authenticationProtocol.getAuthenticationCache();
-		} else {
-			return null;
+	/**
+	 * Sets the retry policy used by requests made through this Session's
+	 * ConnectionRequests, unless a request sets its own
+	 * 
+	 * @param retryPolicy
+	 *            RetryPolicy, or null to never retry
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	public RetryPolicy getRetryPolicy() {
+		return this.retryPolicy;
+	}
+
+	/**
+	 * Sets the circuit breaker which fails requests to unhealthy hosts
+	 * straight away. Its state is included in the Session's metrics.
+	 * 
+	 * @param circuitBreaker
+	 *            CircuitBreaker, or null to always contact the host
+	 */
+	public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+		this.circuitBreaker = circuitBreaker;
+		this.metrics.setCircuitBreaker(circuitBreaker);
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return this.circuitBreaker;
+	}
+
+	/**
+	 * Sets the request limiter which caps the rate and concurrency of requests
+	 * to each host, queueing or rejecting requests over them
+	 * 
+	 * @param requestLimiter
+	 *            RequestLimiter, or null to send every request straight away
+	 */
+	public void setRequestLimiter(RequestLimiter requestLimiter) {
+		this.requestLimiter = requestLimiter;
+	}
+
+	public RequestLimiter getRequestLimiter() {
+		return this.requestLimiter;
+	}
+
+	/**
+	 * Sets the transport requests are sent over. HttpsURLConnection is used by
+	 * default; Transport.httpClient() multiplexes requests over HTTP/2 on Java
+	 * 11 and later.
+	 * 
+	 * @param transport
+	 *            Transport, or null for the default
+	 */
+	public void setTransport(Transport transport) {
+		this.transport = (transport != null) ? transport : SessionConnection.DEFAULT_TRANSPORT;
+	}
+
+	public Transport getTransport() {
+		return this.transport;
+	}
+
+	/**
+	 * Sets whether responses may be compressed. When enabled, the default,
+	 * requests advertise gzip and deflate and compressed responses are decoded
+	 * as they're read. Requests which set their own Accept-Encoding header
+	 * receive the response body as sent.
+	 * 
+	 * @param responseCompression
+	 */
+	public void setResponseCompression(Boolean responseCompression) {
+		this.responseCompression = responseCompression;
+	}
+
+	public Boolean getResponseCompression() {
+		return this.responseCompression;
+	}
+
+	/**
+	 * Sets the request body size from which bodies are sent gzip compressed.
+	 * Bodies of unknown length are always compressed once a threshold is set.
+	 * Only suitable for hosts which accept compressed request bodies.
+	 * 
+	 * @param requestCompressionThreshold
+	 *            Size in bytes, or null to never compress request bodies
+	 */
+	public void setRequestCompressionThreshold(Long requestCompressionThreshold) {
+		this.requestCompressionThreshold = requestCompressionThreshold;
+	}
+
+	public Long getRequestCompressionThreshold() {
+		return this.requestCompressionThreshold;
+	}
+
+	/**
+	 * Sets the pool response bodies are read through, shared with every other
+	 * Session by default
+	 * 
+	 * @param bufferPool
+	 *            BufferPool, or null for the default
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = (bufferPool != null) ? bufferPool : BufferPool.getDefault();
+	}
+
+	public BufferPool getBufferPool() {
+		return this.bufferPool;
+	}
+
+	/**
+	 * Sets how many ranges a download to a file is split into, each fetched
+	 * over its own connection at the same time. Servers which don't support
+	 * ranges are downloaded over a single connection. More ranges than the
+	 * connection pool allows per host wait for each other.
+	 * 
+	 * @param downloadRanges
+	 *            Number of ranges, 1 by default
+	 */
+	public void setDownloadRanges(Integer downloadRanges) {
+		if (downloadRanges == null || downloadRanges < 1) {
+			throw new IllegalArgumentException("At least one download range is needed.");
 		}
+		this.downloadRanges = downloadRanges;
+	}
+
+	public Integer getDownloadRanges() {
+		return this.downloadRanges;
+	}
+
+	/**
+	 * Sets whether a request rejected with 401 re-authenticates with the stored
+	 * credential and is retried once, enabled by default
+	 * 
+	 * @param automaticReauthentication
+	 */
+	public void setAutomaticReauthentication(Boolean automaticReauthentication) {
+		this.automaticReauthentication = automaticReauthentication;
+	}
+
+	public Boolean getAutomaticReauthentication() {
+		return this.automaticReauthentication;
+	}
+
+	/**
+	 * Sets how long a failed re-authentication is remembered. Requests
+	 * rejected with 401 meanwhile fail straight away instead of logging in
+	 * again, unless the credentials have changed since.
+	 * 
+	 * @param reauthenticationCooldownMillis
+	 */
+	public void setReauthenticationCooldown(Long reauthenticationCooldownMillis) {
+		this.reauthenticationCooldownMillis = reauthenticationCooldownMillis;
+	}
+
+	public Long getReauthenticationCooldown() {
+		return this.reauthenticationCooldownMillis;
+	}
+
+	/**
+	 * Sets the executor used to run asynchronous requests for this Session
+	 * 
+	 * @param executor
+	 *            Executor, or null to restore the shared default
+	 */
+	public void setRequestExecutor(Executor executor) {
+		this.requestExecutor = (executor != null) ? executor : DEFAULT_REQUEST_EXECUTOR;
+	}
+
+	/**
+	 * Retrieves the executor used to run asynchronous requests for this Session
+	 * 
+	 * @return Executor
+	 */
+	public Executor getRequestExecutor() {
+		return this.requestExecutor;
 	}
 
-	private Keystore getRequestKeystore() {
-		if (this.authenticationProtocol != null) {
-			return this.authenticationProtocol.getKeystore();
-		} else {
-			return null;
+	/**
+	 * Sets the maximum number of requests a batch may run at the same time
+	 * 
+	 * @param maxInFlightRequests
+	 */
+	public void setMaxInFlightRequests(Integer maxInFlightRequests) {
+		if (maxInFlightRequests == null || maxInFlightRequests < 1) {
+			throw new IllegalArgumentException("The maximum in-flight request limit must be at least 1.");
 		}
+		this.maxInFlightRequests = maxInFlightRequests;
+	}
+
+	public Integer getMaxInFlightRequests() {
+		return this.maxInFlightRequests;
+	}
+
+	/**
+	 * Replaces the pool which limits this Session's connections per route
+	 * 
+	 * @param connectionPool
+	 *            ConnectionPool, or null to connect without a per-route limit
+	 */
+	public void setConnectionPool(ConnectionPool connectionPool) {
+		this.connectionPool = connectionPool;
+	}
+
+	public ConnectionPool getConnectionPool() {
+		return this.connectionPool;
+	}
+
+	/**
+	 * Retrieves the connection pool's lease statistics summed across every host
+	 * 
+	 * @return Statistics, or null if the Session has no connection pool
+	 */
+	public ConnectionPool.Statistics getConnectionPoolStatistics() {
+		return (this.connectionPool != null) ? this.connectionPool.getStatistics() : null;
+	}
+
+	/**
+	 * Sets the cache used for GET requests made through this Session
+	 * 
+	 * @param responseCache
+	 *            HTTPResponseCache, or null to disable caching
+	 */
+	public void setResponseCache(HTTPResponseCache responseCache) {
+		this.responseCache = responseCache;
+	}
+
+	public HTTPResponseCache getResponseCache() {
+		return this.responseCache;
+	}
+
+	/**
+	 * Sets the listener notified as each request moves between phases
+	 * 
+	 * @param eventListener
+	 *            SessionEventListener, or null to stop listening
+	 */
+	public void setEventListener(SessionEventListener eventListener) {
+		this.eventListener = eventListener;
+	}
+
+	public SessionEventListener getEventListener() {
+		return this.eventListener;
+	}
+
+	/**
+	 * Retrieves the latency histograms and counters recorded for the requests
+	 * made through this Session
+	 * 
+	 * @return SessionMetrics
+	 */
+	public SessionMetrics getMetrics() {
+		return this.metrics;
 	}
 	
 	/**
@@ -119,6 +428,29 @@ public final class Session implements HTTPConnectionRequest {
 		return new ConnectionRequest(this, method, url);
 	}
 
+	/**
+	 * Executes every request concurrently against this Session, limited to the
+	 * Session's maximum in-flight requests.
+	 * 
+	 * @param requests
+	 * @return Results of the requests, in the order they complete
+	 */
+	public BatchExecution executeAll(Collection<ConnectionRequest> requests) {
+		return this.executeAll(requests, this.maxInFlightRequests);
+	}
+
+	/**
+	 * Executes every request concurrently against this Session.
+	 * 
+	 * @param requests
+	 * @param maxInFlightRequests
+	 *            Maximum number of requests running at the same time
+	 * @return Results of the requests, in the order they complete
+	 */
+	public BatchExecution executeAll(Collection<ConnectionRequest> requests, Integer maxInFlightRequests) {
+		return new BatchExecution(requests, maxInFlightRequests);
+	}
+
 	// Add exceptions to throw if the connection needs authentication parameter
 	// or an SSL certificate
 	/**
@@ -144,7 +476,374 @@ public final class Session implements HTTPConnectionRequest {
 	 */
 	public SessionConnection getConnection(URL url, JSONObject requestData,
 			SessionConnection.REQUEST_METHOD requestMethod) throws IOException {
-		return new SessionConnection(url, requestData, this.getRequestHeaders(), requestMethod,
-				this.getRequestKeystore());
+		return this.getConnection(url, RequestBody.json(requestData), requestMethod);
+	}
+
+	/**
+	 * Provides a connection to the desired resource.
+	 * 
+	 * @param url
+	 * @param requestBody
+	 * @param requestMethod
+	 * @return
+	 * @throws IOException
+	 */
+	public SessionConnection getConnection(URL url, RequestBody requestBody,
+			SessionConnection.REQUEST_METHOD requestMethod) throws IOException {
+		return this.getConnection(url, requestBody, requestMethod, RequestHeaders.EMPTY, false);
+	}
+
+	/**
+	 * Provides a connection to the desired resource.
+	 * 
+	 * @param url
+	 * @param requestBody
+	 * @param requestMethod
+	 * @param requestHeaders
+	 *            Headers sent in addition to the authentication headers,
+	 *            replacing any of the same name
+	 * @return
+	 * @throws IOException
+	 */
+	public SessionConnection getConnection(URL url, RequestBody requestBody,
+			SessionConnection.REQUEST_METHOD requestMethod, RequestHeaders requestHeaders) throws IOException {
+		return this.getConnection(url, requestBody, requestMethod, requestHeaders, false);
+	}
+
+	/**
+	 * Provides a connection to the desired resource without reading the
+	 * response body, which is instead consumed from
+	 * SessionConnection.getResponseStream(). The connection must be closed once
+	 * done with.
+	 * 
+	 * @param url
+	 * @param requestBody
+	 * @param requestMethod
+	 * @return
+	 * @throws IOException
+	 */
+	public SessionConnection getStreamingConnection(URL url, RequestBody requestBody,
+			SessionConnection.REQUEST_METHOD requestMethod) throws IOException {
+		return this.getConnection(url, requestBody, requestMethod, RequestHeaders.EMPTY, true);
+	}
+
+	/**
+	 * Provides a connection to the desired resource without reading the
+	 * response body. The connection must be closed once done with.
+	 * 
+	 * @param url
+	 * @param requestBody
+	 * @param requestMethod
+	 * @param requestHeaders
+	 *            Headers sent in addition to the authentication headers,
+	 *            replacing any of the same name
+	 * @return
+	 * @throws IOException
+	 */
+	public SessionConnection getStreamingConnection(URL url, RequestBody requestBody,
+			SessionConnection.REQUEST_METHOD requestMethod, RequestHeaders requestHeaders) throws IOException {
+		return this.getConnection(url, requestBody, requestMethod, requestHeaders, true);
+	}
+
+	/**
+	 * Connects with the current authentication headers. If the server responds
+	 * with 401, the Session re-authenticates and the request is retried once,
+	 * unless its body can't be sent again.
+	 */
+	private SessionConnection getConnection(URL url, RequestBody requestBody,
+			SessionConnection.REQUEST_METHOD requestMethod, RequestHeaders requestHeaders, Boolean streaming)
+			throws IOException {
+		// The headers and keystore are read as one snapshot, consistent even
+		// while the protocol re-authenticates
+		AuthenticationProtocol protocol = this.authenticationProtocol;
+		AuthenticationState state = (protocol != null) ? protocol.getState() : AuthenticationState.ANONYMOUS;
+		try {
+			return this.connect(url, requestBody, state, requestMethod, requestHeaders, streaming);
+		} catch (NotAuthorized401Exception e) {
+			// A body read from a stream has already been used up
+			if (!this.automaticReauthentication || protocol == null
+					|| (requestBody != null && !requestBody.isRepeatable()) || !this.reauthenticate(protocol, state)) {
+				throw e;
+			}
+			return this.connect(url, requestBody, protocol.getState(), requestMethod, requestHeaders, streaming);
+		}
+	}
+
+	private SessionConnection connect(URL url, RequestBody requestBody, AuthenticationState state,
+			SessionConnection.REQUEST_METHOD requestMethod, RequestHeaders requestHeaders, Boolean streaming)
+			throws IOException {
+		RequestHeaders headers = state.getHeaders().with(requestHeaders);
+		if (streaming || this.responseCache == null || requestBody != null
+				|| requestMethod != SessionConnection.REQUEST_METHOD.GET) {
+			return this.open(url, requestBody, headers, requestMethod, state.getKeystore(), streaming);
+		}
+		return this.responseCache.getConnection(url, headers,
+				cacheHeaders -> this.open(url, requestBody, cacheHeaders, requestMethod, state.getKeystore(), false));
+	}
+
+	/**
+	 * Sends the request to the server once the host's request limiter allows
+	 * it, failing fast instead while the host's circuit is open
+	 */
+	private SessionConnection open(URL url, RequestBody requestBody, RequestHeaders requestHeaders,
+			SessionConnection.REQUEST_METHOD requestMethod, Keystore keystore, Boolean streaming) throws IOException {
+		RequestLimiter requestLimiter = this.requestLimiter;
+		CircuitBreaker circuitBreaker = this.circuitBreaker;
+		if (requestLimiter == null && circuitBreaker == null) {
+			return new SessionConnection(url, requestBody, requestHeaders, requestMethod, keystore, this, streaming);
+		}
+
+		String host = url.getHost();
+		if (requestLimiter != null) {
+			try {
+				requestLimiter.acquire(host);
+			} catch (RequestLimitException e) {
+				this.metrics.requestRejected();
+				throw e;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for the request limiter");
+			}
+		}
+		Long start = null;
+		Throwable failure = null;
+		try {
+			if (circuitBreaker != null) {
+				try {
+					circuitBreaker.acquire(host);
+				} catch (CircuitOpenException e) {
+					this.metrics.requestRejected();
+					throw e;
+				}
+			}
+			start = System.nanoTime();
+			return new SessionConnection(url, requestBody, requestHeaders, requestMethod, keystore, this, streaming);
+		} catch (Throwable e) {
+			failure = e;
+			throw e;
+		} finally {
+			this.record(host, requestLimiter, circuitBreaker, start, failure);
+		}
+	}
+
+	/**
+	 * Sends the request through the transport without blocking, failing fast
+	 * while the host's circuit is open. Only used without a request limiter,
+	 * which may have to wait.
+	 */
+	private CompletableFuture<SessionConnection> openAsync(URL url, RequestBody requestBody,
+			AuthenticationState state, SessionConnection.REQUEST_METHOD requestMethod,
+			RequestHeaders requestHeaders) {
+		RequestHeaders headers = state.getHeaders().with(requestHeaders);
+		CircuitBreaker circuitBreaker = this.circuitBreaker;
+		if (circuitBreaker == null) {
+			return SessionConnection.openAsync(url, requestBody, headers, requestMethod, state.getKeystore(), this);
+		}
+
+		String host = url.getHost();
+		try {
+			circuitBreaker.acquire(host);
+		} catch (CircuitOpenException e) {
+			this.metrics.requestRejected();
+			CompletableFuture<SessionConnection> rejected = new CompletableFuture<SessionConnection>();
+			rejected.completeExceptionally(e);
+			return rejected;
+		}
+		Long start = System.nanoTime();
+		return SessionConnection.openAsync(url, requestBody, headers, requestMethod, state.getKeystore(), this)
+				.whenComplete((connection, failure) -> this.record(host, null, circuitBreaker, start,
+						(failure instanceof CompletionException) ? failure.getCause() : failure));
+	}
+
+	/**
+	 * Records the outcome of a request with the host's circuit breaker and
+	 * request limiter
+	 * 
+	 * @param start
+	 *            System.nanoTime() when the request was sent, or null if it
+	 *            wasn't
+	 * @param failure
+	 *            Cause of the failure, or null if the request succeeded
+	 */
+	private void record(String host, RequestLimiter requestLimiter, CircuitBreaker circuitBreaker, Long start,
+			Throwable failure) {
+		Boolean failed = failure != null;
+		Boolean overloaded = failure != null;
+		if (failure instanceof HTTPErrorResponseException) {
+			// Client errors show the host is answering normally
+			Integer responseCode = ((HTTPErrorResponseException) failure).getResponseCode();
+			failed = responseCode >= 500;
+			overloaded = responseCode == 429 || responseCode == 503;
+		} else if (failure instanceof HTTPStatusCodeException) {
+			failed = false;
+			overloaded = false;
+		}
+		Long nanoseconds = (start != null) ? System.nanoTime() - start : null;
+		if (circuitBreaker != null && start != null) {
+			circuitBreaker.record(host, nanoseconds, failed);
+		}
+		if (requestLimiter != null) {
+			requestLimiter.release(host, nanoseconds, overloaded);
+		}
+	}
+
+	/**
+	 * Re-authenticates after a 401. Only one re-authentication runs at a time;
+	 * callers which receive a 401 meanwhile wait for it rather than logging in
+	 * again themselves, and callers whose request used headers which have
+	 * since been refreshed retry straight away. A failed re-authentication is
+	 * remembered for the stale state until the cooldown expires, so later
+	 * callers fail without logging in again.
+	 * 
+	 * @param protocol
+	 * @param staleState
+	 *            Authentication state the rejected request was sent with
+	 * @return Whether the request should be retried
+	 */
+	private Boolean reauthenticate(AuthenticationProtocol protocol, AuthenticationState staleState) {
+		CompletableFuture<Boolean> reauthentication;
+		Boolean leader = false;
+		synchronized (this.reauthenticationLock) {
+			if (protocol.getState() != staleState) {
+				return true;
+			}
+			if (this.reauthentication == null || this.reauthenticationState != staleState
+					|| (this.reauthentication.isDone() && System.nanoTime()
+							- this.reauthenticatedAt > this.reauthenticationCooldownMillis * 1000000L)) {
+				this.reauthentication = new CompletableFuture<Boolean>();
+				this.reauthenticationState = staleState;
+				leader = true;
+			}
+			reauthentication = this.reauthentication;
+		}
+		if (!leader) {
+			return reauthentication.join();
+		}
+
+		Boolean reauthenticated = false;
+		try {
+			reauthenticated = protocol.reauthorize();
+		} catch (RuntimeException e) {
+			LOGGER.warn("Re-authentication failed: {}", e.getMessage());
+		} finally {
+			synchronized (this.reauthenticationLock) {
+				this.reauthenticatedAt = System.nanoTime();
+			}
+			reauthentication.complete(reauthenticated);
+		}
+		return reauthenticated;
+	}
+
+	/**
+	 * Provides a connection to the desired resource without blocking the caller.
+	 * The connection is established on the Session's request executor.
+	 * 
+	 * @param url
+	 * @param requestData
+	 * @param requestMethod
+	 * @return Future completed with the connection, or exceptionally with the
+	 *         IOException raised while connecting
+	 */
+	public CompletableFuture<SessionConnection> getConnectionAsync(URL url, JSONObject requestData,
+			SessionConnection.REQUEST_METHOD requestMethod) {
+		return this.getConnectionAsync(url, requestData, requestMethod, this.requestExecutor);
+	}
+
+	/**
+	 * Provides a connection to the desired resource without blocking the caller.
+	 * 
+	 * @param url
+	 * @param requestData
+	 * @param requestMethod
+	 * @param executor
+	 *            Executor to establish the connection on
+	 * @return Future completed with the connection, or exceptionally with the
+	 *         IOException raised while connecting
+	 */
+	public CompletableFuture<SessionConnection> getConnectionAsync(URL url, JSONObject requestData,
+			SessionConnection.REQUEST_METHOD requestMethod, Executor executor) {
+		return this.getConnectionAsync(url, RequestBody.json(requestData), requestMethod, executor);
+	}
+
+	/**
+	 * Provides a connection to the desired resource without blocking the caller.
+	 * 
+	 * @param url
+	 * @param requestBody
+	 * @param requestMethod
+	 * @param executor
+	 *            Executor to establish the connection on
+	 * @return Future completed with the connection, or exceptionally with the
+	 *         IOException raised while connecting
+	 */
+	public CompletableFuture<SessionConnection> getConnectionAsync(URL url, RequestBody requestBody,
+			SessionConnection.REQUEST_METHOD requestMethod, Executor executor) {
+		return this.getConnectionAsync(url, requestBody, requestMethod, RequestHeaders.EMPTY, executor);
+	}
+
+	/**
+	 * Provides a connection to the desired resource without blocking the caller.
+	 * Through a transport which supports it, such as NioTransport, the request
+	 * completes on the transport's thread without any thread waiting on it,
+	 * unless the Session has a request limiter or caches the response.
+	 * 
+	 * @param url
+	 * @param requestBody
+	 * @param requestMethod
+	 * @param requestHeaders
+	 *            Headers sent in addition to the authentication headers
+	 * @param executor
+	 *            Executor to establish the connection on if the transport can
+	 *            only block. Re-authentication runs on the Session's request
+	 *            executor, since the caller's executor may have been shut down
+	 *            by the time the response arrives.
+	 * @return Future completed with the connection, or exceptionally with the
+	 *         IOException raised while connecting
+	 */
+	public CompletableFuture<SessionConnection> getConnectionAsync(URL url, RequestBody requestBody,
+			SessionConnection.REQUEST_METHOD requestMethod, RequestHeaders requestHeaders, Executor executor) {
+		// Waiting on the request limiter takes a thread, and so does a cacheable
+		// request, since the cache loads misses and revalidations through the
+		// blocking path
+		Transport transport = this.transport;
+		if (!transport.supportsAsync() || this.requestLimiter != null || (this.responseCache != null
+				&& requestBody == null && requestMethod == SessionConnection.REQUEST_METHOD.GET)) {
+			return CompletableFuture.supplyAsync(() -> {
+				try {
+					return this.getConnection(url, requestBody, requestMethod, requestHeaders);
+				} catch (IOException e) {
+					throw new CompletionException(e);
+				}
+			}, executor);
+		}
+
+		AuthenticationProtocol protocol = this.authenticationProtocol;
+		AuthenticationState state = (protocol != null) ? protocol.getState() : AuthenticationState.ANONYMOUS;
+		return this.openAsync(url, requestBody, state, requestMethod, requestHeaders)
+				.handle((connection, failure) -> {
+					Throwable cause = (failure instanceof CompletionException) ? failure.getCause() : failure;
+					// A body read from a stream has already been used up
+					if (!(cause instanceof NotAuthorized401Exception) || !this.automaticReauthentication
+							|| protocol == null || (requestBody != null && !requestBody.isRepeatable())) {
+						CompletableFuture<SessionConnection> completed = new CompletableFuture<SessionConnection>();
+						if (cause != null) {
+							completed.completeExceptionally(cause);
+						} else {
+							completed.complete(connection);
+						}
+						return completed;
+					}
+					// Logging in again blocks, but only once the credentials have expired
+					return CompletableFuture.supplyAsync(() -> this.reauthenticate(protocol, state), this.requestExecutor)
+							.thenCompose(reauthenticated -> {
+								if (reauthenticated) {
+									return this.openAsync(url, requestBody, protocol.getState(), requestMethod,
+											requestHeaders);
+								}
+								CompletableFuture<SessionConnection> rejected = new CompletableFuture<SessionConnection>();
+								rejected.completeExceptionally(cause);
+								return rejected;
+							});
+				}).thenCompose(connection -> connection);
 	}
 }
@@ -1,27 +1,59 @@
 package session;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.PushbackInputStream;
+import java.net.InetAddress;
 import java.net.MalformedURLException;
-import java.net.ProtocolException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
-
-import javax.net.ssl.HttpsURLConnection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import core.StreamBuffer;
 import keystore.Keystore;
+import session.exception.HTTPErrorResponseException;
 import session.exception.NotAuthorized401Exception;
+import session.transport.Transport;
+import session.transport.URLConnectionTransport;
+
+public class SessionConnection implements Closeable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(SessionConnection.class);
+
+	/**
+	 * Transport used for connections made without a Session
+	 */
+	protected static final Transport DEFAULT_TRANSPORT = new URLConnectionTransport();
 
-public class SessionConnection {
+	/**
+	 * Content codings advertised when the Session accepts compressed responses
+	 */
+	protected static final String ACCEPTED_ENCODINGS = "gzip, deflate";
 
 	/**
 	 * Supported request methods types GET is the default assumed when ambiguous
@@ -65,13 +97,48 @@ public class SessionConnection {
 
 	private Credential credential;
 	private Keystore keystore;
-	private HttpsURLConnection connection = null;
+	private Transport.Exchange exchange = null;
+	private ConnectionPool.Lease lease = null;
+	private URL url;
+	private REQUEST_METHOD requestMethod;
+	private SessionEventListener eventListener = null;
+	private SessionMetrics metrics = null;
+	private Long requestId;
+	private Long startTime;
+	private long bytesOut = 0;
+	private long bytesIn = 0;
+	private long uncompressedBytesOut = 0;
+	private long uncompressedBytesIn = 0;
+	private Boolean responseCompression = false;
+	private Boolean decodeResponse = false;
+	private Long requestCompressionThreshold = null;
+	private BufferPool bufferPool = BufferPool.getDefault();
+	private Boolean finished = false;
+	private ResponseInputStream responseStream = null;
+	private byte[] responseBody;
 	private String responseContent;
 	private String responseError;
 	private Integer serverResponseCode;
 	private String serverResponseMessage;
+	private Map<String, List<String>> responseHeaders = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
 	private String cookie;
 
+	/**
+	 * Recreates a completed connection from a previously stored response
+	 * 
+	 * @param serverResponseCode
+	 * @param serverResponseMessage
+	 * @param responseBody
+	 * @param responseHeaders
+	 */
+	protected SessionConnection(Integer serverResponseCode, String serverResponseMessage, byte[] responseBody,
+			Map<String, List<String>> responseHeaders) {
+		this.serverResponseCode = serverResponseCode;
+		this.serverResponseMessage = serverResponseMessage;
+		this.responseBody = responseBody;
+		this.responseHeaders.putAll(responseHeaders);
+	}
+
 	protected SessionConnection(URL url, JSONObject requestBody, JSONObject requestHeaders) throws IOException {
 		this(url, requestBody, requestHeaders, REQUEST_METHOD.GET, (Keystore) null);
 	}
@@ -88,140 +155,609 @@ public class SessionConnection {
 
 	protected SessionConnection(URL url, JSONObject requestData, JSONObject requestHeaders,
 			REQUEST_METHOD requestMethod, Keystore keystore) throws IOException {
-		System.out.println("\n");
-		
-		this.connection = (HttpsURLConnection) url.openConnection();
-		System.out.println("Established connection with: " + url.toString());
-		this.connection.setInstanceFollowRedirects(true);
-		System.out.println("Setting up automatic redirects.");
-		this.setRequestProperty(requestHeaders);
-		
-		if(requestData == null){
-			this.setRequestMethod(requestMethod);
-		} else {
-			this.setRequestBody(requestData);
+		this(url, RequestBody.json(requestData), RequestHeaders.of(requestHeaders), requestMethod, keystore,
+				(Session) null, false);
+	}
+
+	/**
+	 * Starts recording the request
+	 * 
+	 * @param session
+	 *            Session providing the event listener and settings, or null
+	 */
+	private SessionConnection(URL url, REQUEST_METHOD requestMethod, Session session) {
+		this.url = url;
+		this.requestMethod = requestMethod;
+		this.startTime = System.nanoTime();
+		if (session != null) {
+			this.eventListener = session.getEventListener();
+			this.metrics = session.getMetrics();
+			this.responseCompression = session.getResponseCompression();
+			this.requestCompressionThreshold = session.getRequestCompressionThreshold();
+			this.bufferPool = session.getBufferPool();
 		}
-		
-		System.out.println("Request was successfully prepared.");
-		this.responseContent = StreamBuffer.read(this.connection.getInputStream());
-		System.out.println("Successfully connected to resource...");
-		System.out.println("Retrieved request response.");
+		if (this.metrics != null) {
+			this.metrics.requestStarted();
+		}
+		if (this.eventListener != null) {
+			this.requestId = SessionEvent.nextRequestId();
+			this.eventListener.requestStart(this.newEvent());
+		}
+	}
+
+	/**
+	 * Creates the connection and sends the request
+	 * 
+	 * @param requestBody
+	 *            Body to be written to the connection, or null for none
+	 * @param requestHeaders
+	 *            Headers to be sent, or null for none
+	 * @param session
+	 *            Session providing the connection pool and event listener, or
+	 *            null for none
+	 * @param streaming
+	 *            If true the response body is left unread for the caller to
+	 *            consume through getResponseStream(), the connection must then be
+	 *            closed once done
+	 * @throws IOException
+	 */
+	protected SessionConnection(URL url, RequestBody requestBody, RequestHeaders requestHeaders,
+			REQUEST_METHOD requestMethod, Keystore keystore, Session session, Boolean streaming)
+			throws IOException {
+		this(url, requestMethod, session);
+		Transport transport = (session != null) ? session.getTransport() : DEFAULT_TRANSPORT;
+		try {
+			if (session != null && session.getConnectionPool() != null && transport.usesConnectionPool()) {
+				this.lease = session.getConnectionPool().lease(url);
+			}
+			this.resolve(url);
+			this.open(transport, url, requestBody, requestHeaders, requestMethod, keystore);
+			this.exchange.connect();
+			this.exchange.send();
+			this.receive(streaming);
+		} catch (IOException | RuntimeException e) {
+			this.failed(e);
+			throw e;
+		}
+		this.received(streaming);
+	}
+
+	/**
+	 * Sends the request through a transport which supports it without
+	 * blocking. The response is read in full before the future completes,
+	 * on the transport's thread.
+	 * 
+	 * @param requestBody
+	 *            Body to be written to the connection, or null for none
+	 * @param requestHeaders
+	 *            Headers to be sent, or null for none
+	 * @param session
+	 *            Session providing the transport, event listener and settings
+	 * @return Future completed with the connection, or exceptionally as the
+	 *         blocking constructor would have thrown
+	 */
+	protected static CompletableFuture<SessionConnection> openAsync(URL url, RequestBody requestBody,
+			RequestHeaders requestHeaders, REQUEST_METHOD requestMethod, Keystore keystore, Session session) {
+		SessionConnection connection = new SessionConnection(url, requestMethod, session);
+		CompletableFuture<SessionConnection> opened = new CompletableFuture<SessionConnection>();
+		Transport transport = session.getTransport();
 		try {
-			this.responseError = StreamBuffer.read(this.connection.getErrorStream());
-			System.out.println("Retrieved request error.");
-		} catch (NullPointerException e) {
-			System.out.println("The request did not provide an error stream to read.");
-		}
-		this.serverResponseCode = this.connection.getResponseCode();
-		System.out.println("Retrieved server response code: " + this.serverResponseCode);
-		this.serverResponseMessage = this.connection.getResponseMessage();
-		System.out.println("Retrieved server response message: " + this.serverResponseMessage);
+			if (session.getConnectionPool() != null && transport.usesConnectionPool()) {
+				connection.lease = session.getConnectionPool().lease(url);
+			}
+			connection.open(transport, url, requestBody, requestHeaders, requestMethod, keystore);
+			connection.exchange.sendAsync()
+					.whenComplete((exchange, failure) -> connection.completeAsync(opened, failure));
+		} catch (IOException | RuntimeException e) {
+			connection.completeAsync(opened, e);
+		}
+		return opened;
+	}
+
+	/**
+	 * Reads the response of an asynchronous request once it has arrived
+	 * 
+	 * @param failure
+	 *            Cause of the failure, or null if the response arrived
+	 */
+	private void completeAsync(CompletableFuture<SessionConnection> opened, Throwable failure) {
+		if (failure == null) {
+			try {
+				this.receive(false);
+			} catch (IOException | RuntimeException e) {
+				failure = e;
+			}
+		} else if (failure instanceof CompletionException && failure.getCause() != null) {
+			failure = failure.getCause();
+		}
+		try {
+			if (failure != null) {
+				this.failed(failure);
+				opened.completeExceptionally(failure);
+			} else {
+				this.received(false);
+				opened.complete(this);
+			}
+		} catch (NotAuthorized401Exception e) {
+			opened.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * Cleans up after the request failed
+	 * 
+	 * @throws NotAuthorized401Exception
+	 *             Thrown if the server answered 401
+	 */
+	private void failed(Throwable failure) {
+		if (this.exchange != null && !(failure instanceof HTTPErrorResponseException)) {
+			this.exchange.close();
+		}
+		this.releaseLease();
+		this.finish(failure);
+		if (this.serverResponseCode != null && this.serverResponseCode == 401) {
+			throw new NotAuthorized401Exception("Credentials were invalid.");
+		}
+	}
+
+	/**
+	 * Handles the response status once the response has been received
+	 * 
+	 * @throws NotAuthorized401Exception
+	 *             Thrown if the server answered 401
+	 */
+	private void received(Boolean streaming) {
+		if (!streaming) {
+			this.releaseLease();
+		}
+		
 		switch(this.serverResponseCode) {
 		case 200:
-			this.cookie = this.connection.getHeaderField("Set-Cookie");
-			System.out.println("Retrieved request cookie.");
+		case 206:
+			this.cookie = this.getHeaderField("Set-Cookie");
 			break;
 		case 401:
+			this.close();
 			throw new NotAuthorized401Exception("Credentials were invalid.");
 		default:
-			System.err.println("Couldn't retrieve remote resource, received error code "
-					+ this.getServerResponseVerboseMessage() + ".");
+			LOGGER.debug("Couldn't retrieve remote resource, received error code {}.",
+					this.getServerResponseVerboseMessage());
 			break;
 		}
-		
 	}
 
 	/**
-	 * Sets the request's keystore resource for authentication
+	 * Records the end of the request, once the response has been read or the
+	 * request has failed. Only the first call has any effect.
 	 * 
-	 * @param keystore
-	 *            Keystore
+	 * @param failure
+	 *            Cause of the failure, or null if the request completed
 	 */
-	private void setKeystore(Keystore keystore) {
-		if (keystore == null) {
-			System.out.println("Set keystore resources to null.");
+	private void finish(Throwable failure) {
+		if (this.finished) {
 			return;
-		} else {
-			System.out.println("Using provided keystore resources.");
-			this.connection.setSSLSocketFactory(keystore.getSSLSocketFactory());
+		}
+		this.finished = true;
+		if (this.metrics != null) {
+			// A response with an error status still counts towards its status class
+			if (this.serverResponseCode != null) {
+				this.metrics.requestCompleted(this.url.getHost(), this.requestMethod, this.serverResponseCode,
+						System.nanoTime() - this.startTime, this.bytesOut, this.bytesIn, this.uncompressedBytesOut,
+						this.uncompressedBytesIn);
+			} else {
+				this.metrics.requestFailed(this.bytesOut, this.bytesIn, this.uncompressedBytesOut,
+						this.uncompressedBytesIn);
+			}
+		}
+		if (this.eventListener != null) {
+			if (failure != null) {
+				this.eventListener.requestFailed(this.newEvent(), failure);
+			} else {
+				this.eventListener.responseBodyEnd(this.newEvent());
+			}
 		}
 	}
 
 	/**
-	 * Sets the request's data payload
+	 * Creates an event for the current phase of the request
 	 * 
-	 * @param requestData
-	 *            JSONObject
-	 * @throws IOException
-	 *             Thrown if the connection cannot be established
+	 * @return SessionEvent
 	 */
-	private void setRequestBody(JSONObject requestData) throws IOException {
-		if (requestData == null) {
-			System.out.println("No request data provided.");
-			return;
+	private SessionEvent newEvent() {
+		return this.newEvent(System.nanoTime());
+	}
+
+	/**
+	 * Creates an event for a phase which ended earlier
+	 * 
+	 * @param timestamp
+	 *            System.nanoTime() when the phase ended
+	 * @return SessionEvent
+	 */
+	private SessionEvent newEvent(Long timestamp) {
+		return new SessionEvent(this.requestId, this.url, this.requestMethod, this.startTime, timestamp);
+	}
+
+	/**
+	 * Resolves the host ahead of the connection when there's a listener, which
+	 * primes the JDK's address cache so the lookup can be timed separately
+	 */
+	private void resolve(URL url) throws IOException {
+		if (this.eventListener != null) {
+			this.eventListener.dnsStart(this.newEvent());
+			InetAddress.getAllByName(url.getHost());
+			this.eventListener.dnsEnd(this.newEvent());
 		}
+	}
 
-		this.setRequestProperty("Content-Type", "application/json");
-		this.setRequestProperty("Accept", "application/json");
-		this.connection.setDoOutput(true);
-		StreamBuffer.write(this.connection.getOutputStream(), requestData.toString());
-		System.out.println("Request body data added.");
+	/**
+	 * Prepares the exchange, without sending anything
+	 */
+	private void open(Transport transport, URL url, RequestBody requestBody, RequestHeaders requestHeaders,
+			REQUEST_METHOD requestMethod, Keystore keystore) throws IOException {
+		this.keystore = keystore;
+		requestHeaders = (requestHeaders != null) ? requestHeaders : RequestHeaders.EMPTY;
+		// Only responses to the codings advertised here are decoded, a caller
+		// which sets its own Accept-Encoding gets the body as the server sent it
+		this.decodeResponse = this.responseCompression && requestHeaders.get("Accept-Encoding") == null;
+		if (this.decodeResponse) {
+			requestHeaders = requestHeaders.with("Accept-Encoding", ACCEPTED_ENCODINGS);
+		}
+		if (requestBody != null) {
+			requestHeaders = requestHeaders.with("Content-Type", requestBody.getContentType()).with("Accept",
+					"application/json");
+			requestBody = this.countUncompressedBytesOut(requestBody);
+			if (this.isCompressible(requestBody, requestHeaders)) {
+				requestBody = RequestBody.gzip(requestBody);
+				requestHeaders = requestHeaders.with("Content-Encoding", "gzip");
+			}
+		}
+		this.exchange = transport.open(url, SessionConnection.getRequestMethod(requestMethod), requestHeaders,
+				this.countBytesOut(requestBody), keystore);
+		
+		if (this.eventListener != null) {
+			this.eventListener.connectStart(this.newEvent());
+		}
 	}
 
 	/**
-	 * Sets the request's properties from a JSON
+	 * Waits for the response and reads it in full, unless streaming
 	 * 
-	 * @param requestHeaders
-	 *            JSONObject
+	 * @throws IOException
+	 *             Thrown if the connection cannot be established, or as an
+	 *             HTTPErrorResponseException if the server answered 4xx or 5xx
 	 */
-	private void setRequestProperty(JSONObject requestHeaders) {
-		if (requestHeaders == null) {
-			return;
+	private void receive(Boolean streaming) throws IOException {
+		this.serverResponseCode = this.exchange.getResponseCode();
+		if (this.eventListener != null) {
+			// Transports which connect while sending only know when each phase
+			// ended once the response has started, so the phases are reported
+			// then, with the times the transport recorded
+			Long secureConnectedTime = this.exchange.getSecureConnectedTime();
+			if (secureConnectedTime != null) {
+				this.eventListener.secureConnectEnd(this.newEvent(secureConnectedTime));
+			}
+			Long connectedTime = this.exchange.getConnectedTime();
+			if (connectedTime != null) {
+				this.eventListener.connectionAcquired(this.newEvent(connectedTime));
+			}
+			Long requestSentTime = this.exchange.getRequestSentTime();
+			if (requestSentTime != null) {
+				this.eventListener.requestSent(this.newEvent(requestSentTime));
+			}
+			this.eventListener.responseHeadersReceived(this.newEvent());
+		}
+		this.serverResponseMessage = this.exchange.getResponseMessage();
+		LOGGER.debug("Received {} {} from {}", this.serverResponseCode, this.serverResponseMessage, this.url);
+		this.responseHeaders.putAll(this.exchange.getHeaderFields());
+		
+		InputStream body = this.exchange.getResponseBody();
+		if (this.serverResponseCode >= 400) {
+			// Drain the error body so the socket can still go back to the pool
+			this.readErrorStream(body, this.decodeResponse);
+			throw new HTTPErrorResponseException(this.serverResponseCode, this.serverResponseMessage,
+					this.getHeaderField("Retry-After"), null);
 		}
+		InputStream wire = new CountingInputStream((body != null) ? body : new ByteArrayInputStream(new byte[0]));
+		ResponseInputStream responseStream = new ResponseInputStream(wire,
+				this.decodeResponse ? this.decode(wire) : wire);
+		if (streaming) {
+			this.responseStream = responseStream;
+		} else {
+			try {
+				this.responseBody = this.readBody(responseStream);
+				this.markReusable();
+			} finally {
+				responseStream.close();
+			}
+		}
+	}
 
-		Iterator<String> keys = requestHeaders.keys();
-		while (keys.hasNext()) {
-			String key = keys.next();
-			this.setRequestProperty(key, requestHeaders.getString(key));
+	/**
+	 * Reads and closes the body of an error response, if it has one
+	 */
+	private void readErrorStream(InputStream body, Boolean decodeResponse) {
+		if (body == null) {
+			return;
+		}
+		InputStream wire = new CountingInputStream(body);
+		try {
+			try (InputStream errorStream = new UncompressedInputStream(decodeResponse ? this.decode(wire) : wire)) {
+				this.responseError = new String(this.readBody(errorStream), StandardCharsets.UTF_8);
+				this.drain(wire);
+			}
+			this.markReusable();
+		} catch (IOException e) {
+			LOGGER.warn("The request error stream could not be read.", e);
 		}
 	}
 
 	/**
-	 * Sets each individual request property
+	 * Wraps a compressed response body in a decoder according to its
+	 * Content-Encoding, so it's decompressed as it's read
 	 * 
-	 * @param property
-	 *            Request property
-	 * @param value
-	 *            Request property value
+	 * @param wire
+	 *            Response body as received
+	 * @return InputStream, the body itself if it isn't compressed
+	 * @throws IOException
 	 */
-	private void setRequestProperty(String property, String value) {
-		this.connection.setRequestProperty(property, value);
-		System.out.println("Set request property: " + property);
+	private InputStream decode(InputStream wire) throws IOException {
+		String encoding = this.getHeaderField("Content-Encoding");
+		if (encoding == null) {
+			return wire;
+		}
+		encoding = encoding.trim().toLowerCase();
+		if (!encoding.equals("gzip") && !encoding.equals("x-gzip") && !encoding.equals("deflate")) {
+			return wire;
+		}
+
+		// Some servers label empty bodies, for example of a 204, as compressed
+		PushbackInputStream peek = new PushbackInputStream(wire, 2);
+		int first = peek.read();
+		if (first == -1) {
+			return peek;
+		}
+		int second = peek.read();
+		if (second != -1) {
+			peek.unread(second);
+		}
+		peek.unread(first);
+		// The headers describe the body as sent, not as the caller reads it
+		this.responseHeaders.remove("Content-Encoding");
+		this.responseHeaders.remove("Content-Length");
+		if (encoding.equals("deflate")) {
+			// Deflate should be zlib wrapped, but some servers send it raw
+			Boolean zlib = (first & 0x0F) == 8 && second != -1 && ((first << 8) | second) % 31 == 0;
+			Inflater inflater = new Inflater(!zlib);
+			return new InflaterInputStream(peek, inflater, RequestBody.CHUNK_SIZE) {
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						// Inflaters passed in aren't ended by the stream
+						inflater.end();
+					}
+				}
+			};
+		}
+		return new GZIPInputStream(peek, RequestBody.CHUNK_SIZE);
 	}
 
 	/**
-	 * Sets the request method type to be used
+	 * Reads the rest of the response body as received, which a decoder may
+	 * leave behind after the end of the compressed data
+	 */
+	private void drain(InputStream wire) throws IOException {
+		byte[] buffer = this.bufferPool.acquireArray(BufferPool.MIN_BUFFER_SIZE);
+		try {
+			while (wire.read(buffer, 0, buffer.length) != -1) {
+			}
+		} finally {
+			this.bufferPool.releaseArray(buffer);
+		}
+	}
+
+	/**
+	 * Reads a response body to the end through pooled buffers, so the only
+	 * allocation is the exactly sized result
 	 * 
-	 * @param requestMethod
-	 *            REQUEST_METHOD
+	 * @param stream
+	 * @return Body bytes
+	 * @throws IOException
+	 */
+	private byte[] readBody(InputStream stream) throws IOException {
+		try (BufferPool.Output output = this.bufferPool.newOutput()) {
+			output.readFrom(stream);
+			return output.toByteArray();
+		}
+	}
+
+	/**
+	 * Response body as received, counted towards the bytes in
 	 */
-	private void setRequestMethod(REQUEST_METHOD requestMethod) {
-		String method = this.getRequestMethod(requestMethod);
+	private class CountingInputStream extends FilterInputStream {
 
-		try {
-			System.out.println("Setting request method to: " + method);
-			this.connection.setRequestMethod(method);
-		} catch (ProtocolException e) {
-			System.err.println("Request method " + method + "failed, falling back to GET");
-			this.setRequestMethod(REQUEST_METHOD.GET);
-			e.printStackTrace();
+		private CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int read = super.read();
+			if (read != -1) {
+				bytesIn++;
+			}
+			return read;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int read = super.read(buffer, offset, length);
+			if (read != -1) {
+				bytesIn += read;
+			}
+			return read;
+		}
+	}
+
+	/**
+	 * Response body after decompression, counted towards the uncompressed
+	 * bytes in
+	 */
+	private class UncompressedInputStream extends FilterInputStream {
+
+		private UncompressedInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int read = super.read();
+			if (read == -1) {
+				this.endOfStream();
+			} else {
+				uncompressedBytesIn++;
+			}
+			return read;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int read = super.read(buffer, offset, length);
+			if (read == -1) {
+				this.endOfStream();
+			} else {
+				uncompressedBytesIn += read;
+			}
+			return read;
+		}
+
+		protected void endOfStream() throws IOException {
+		}
+	}
+
+	/**
+	 * Response body, completes the request and returns the connection to the
+	 * pool once closed
+	 */
+	private class ResponseInputStream extends UncompressedInputStream {
+
+		private final InputStream wire;
+		private Boolean closed = false;
+
+		/**
+		 * @param wire
+		 *            Response body as received
+		 * @param in
+		 *            Response body after decompression, or the same stream
+		 */
+		private ResponseInputStream(InputStream wire, InputStream in) {
+			super(in);
+			this.wire = wire;
+		}
+
+		@Override
+		protected void endOfStream() throws IOException {
+			if (this.wire != this.in) {
+				SessionConnection.this.drain(this.wire);
+			}
+			markReusable();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (this.closed) {
+				return;
+			}
+			this.closed = true;
+			try {
+				super.close();
+			} finally {
+				releaseLease();
+				finish(null);
+			}
+		}
+	}
+
+	/**
+	 * Marks the response as drained so its socket can be kept alive
+	 */
+	private void markReusable() {
+		if (this.lease != null) {
+			this.lease.setReusable(true);
+		}
+	}
+
+	/**
+	 * Returns the connection to the pool, if it was leased from one
+	 */
+	private void releaseLease() {
+		if (this.lease != null) {
+			this.lease.release();
+		}
+	}
+
+	/**
+	 * Whether the request body should be sent gzip compressed, under the
+	 * Session's threshold
+	 */
+	private Boolean isCompressible(RequestBody requestBody, RequestHeaders requestHeaders) {
+		if (this.requestCompressionThreshold == null || requestHeaders.get("Content-Encoding") != null) {
+			return false;
 		}
+		return requestBody.getContentLength() < 0 || requestBody.getContentLength() >= this.requestCompressionThreshold;
+	}
+
+	/**
+	 * Wraps the request body so the bytes the transport sends are counted
+	 * 
+	 * @param requestBody
+	 *            RequestBody, or null for none
+	 * @return RequestBody
+	 */
+	private RequestBody countBytesOut(RequestBody requestBody) {
+		if (requestBody == null) {
+			return null;
+		}
+		return RequestBody.counted(requestBody, count -> this.bytesOut += count);
+	}
+
+	/**
+	 * Wraps the request body so its bytes are counted before any compression
+	 * 
+	 * @param requestBody
+	 * @return RequestBody
+	 */
+	private RequestBody countUncompressedBytesOut(RequestBody requestBody) {
+		return RequestBody.counted(requestBody, count -> this.uncompressedBytesOut += count);
 	}
 
 	protected String getCookie() {
 		return this.cookie;
 	}
 
+	/**
+	 * Retrieves the last value of a response header
+	 * 
+	 * @param field
+	 *            Header name, case-insensitive
+	 * @return Header value, or null if the response didn't include it
+	 */
+	public String getHeaderField(String field) {
+		List<String> values = this.responseHeaders.get(field);
+		return (values != null && !values.isEmpty()) ? values.get(values.size() - 1) : null;
+	}
+
+	/**
+	 * Retrieves every response header
+	 * 
+	 * @return Unmodifiable map of header names, case-insensitive, to values
+	 */
+	public Map<String, List<String>> getHeaderFields() {
+		return Collections.unmodifiableMap(this.responseHeaders);
+	}
+
 	public Integer getServerResponseCode() {
 		return this.serverResponseCode;
 	}
@@ -234,19 +770,100 @@ public class SessionConnection {
 		return this.getServerResponseCode() + " : " + this.getServerResponseMessage();
 	}
 
+	/**
+	 * Retrieves the response body as bytes, reading the rest of the stream
+	 * first if the connection is streaming. The array is shared with the
+	 * connection and mustn't be modified.
+	 * 
+	 * @return Response body, or null if it couldn't be read
+	 */
+	public byte[] getResponseBytes() {
+		if (this.responseBody == null && this.responseStream != null) {
+			try {
+				this.responseBody = this.readBody(this.responseStream);
+			} catch (IOException e) {
+				LOGGER.warn("The response stream could not be read.", e);
+			} finally {
+				this.close();
+			}
+		}
+		return this.responseBody;
+	}
+
+	/**
+	 * Retrieves the response body as a read-only buffer over the bytes, for
+	 * decoding without an intermediate String
+	 * 
+	 * @return ByteBuffer, or null if the body couldn't be read
+	 */
+	public ByteBuffer getResponseBuffer() {
+		byte[] responseBody = this.getResponseBytes();
+		return (responseBody != null) ? ByteBuffer.wrap(responseBody).asReadOnlyBuffer() : null;
+	}
+
+	/**
+	 * Retrieves the response body decoded as UTF-8, reading the rest of the
+	 * stream first if the connection is streaming
+	 * 
+	 * @return Response body
+	 */
 	public String getResponse() {
+		if (this.responseContent == null) {
+			byte[] responseBody = this.getResponseBytes();
+			if (responseBody != null) {
+				this.responseContent = new String(responseBody, StandardCharsets.UTF_8);
+			}
+		}
 		return this.responseContent;
 	}
 
+	/**
+	 * Parses the response straight from its bytes, unless it was already
+	 * decoded to a String
+	 */
+	private JSONTokener getResponseTokener() {
+		byte[] responseBody = (this.responseContent == null) ? this.getResponseBytes() : null;
+		if (responseBody == null) {
+			return new JSONTokener(this.getResponse());
+		}
+		return new JSONTokener(new InputStreamReader(new ByteArrayInputStream(responseBody), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Retrieves the unread response body of a streaming connection, closing it
+	 * releases the connection
+	 * 
+	 * @return InputStream, or null if the response was already buffered
+	 */
+	public InputStream getResponseStream() {
+		return this.responseStream;
+	}
+
+	/**
+	 * Releases a streaming connection, has no effect once the response has been
+	 * read
+	 */
+	@Override
+	public void close() {
+		if (this.responseStream == null) {
+			return;
+		}
+		try {
+			this.responseStream.close();
+		} catch (IOException e) {
+			LOGGER.warn("The response stream could not be closed.", e);
+		}
+	}
+
 	public void printResponse() {
 		System.out.println(this.getResponse());
 	}
 
 	public JSONObject getJSONObjectResponse() throws JSONException {
-		return new JSONObject(this.getResponse());
+		return new JSONObject(this.getResponseTokener());
 	}
 
 	public JSONArray getJSONArrayResponse() throws JSONException {
-		return new JSONArray(this.getResponse());
+		return new JSONArray(this.getResponseTokener());
 	}
 }
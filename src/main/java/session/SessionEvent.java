@@ -0,0 +1,78 @@
+package session;
+
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timestamped point in the life of a single request, passed to a
+ * SessionEventListener
+ */
+public class SessionEvent {
+
+	private static final AtomicLong REQUEST_COUNT = new AtomicLong();
+
+	/**
+	 * @return Identifier shared by every event of a new request
+	 */
+	protected static Long nextRequestId() {
+		return REQUEST_COUNT.incrementAndGet();
+	}
+
+	private final Long requestId;
+	private final URL url;
+	private final SessionConnection.REQUEST_METHOD requestMethod;
+	private final Long startTime;
+	private final Long timestamp;
+
+	protected SessionEvent(Long requestId, URL url, SessionConnection.REQUEST_METHOD requestMethod, Long startTime) {
+		this(requestId, url, requestMethod, startTime, System.nanoTime());
+	}
+
+	/**
+	 * @param timestamp
+	 *            System.nanoTime() when the event occurred
+	 */
+	protected SessionEvent(Long requestId, URL url, SessionConnection.REQUEST_METHOD requestMethod, Long startTime,
+			Long timestamp) {
+		this.requestId = requestId;
+		this.url = url;
+		this.requestMethod = requestMethod;
+		this.startTime = startTime;
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * @return Identifier shared by every event of the same request
+	 */
+	public Long getRequestId() {
+		return this.requestId;
+	}
+
+	public URL getURL() {
+		return this.url;
+	}
+
+	public SessionConnection.REQUEST_METHOD getRequestMethod() {
+		return this.requestMethod;
+	}
+
+	/**
+	 * @return System.nanoTime() when the event occurred
+	 */
+	public Long getTimestamp() {
+		return this.timestamp;
+	}
+
+	/**
+	 * @return Nanoseconds since the request started
+	 */
+	public Long getElapsed() {
+		return this.timestamp - this.startTime;
+	}
+
+	@Override
+	public String toString() {
+		return "#" + this.requestId + " " + this.requestMethod + " " + this.url + " +" + (this.getElapsed() / 1000)
+				+ "us";
+	}
+}
@@ -0,0 +1,73 @@
+package session;
+
+/**
+ * Receives a callback as each request made through a Session moves between
+ * phases. Callbacks run on the requesting thread, so they should return
+ * quickly. Every method does nothing by default.
+ * 
+ * The host is resolved up front so the DNS phase can be reported on its own.
+ * The connect and send phases are timed by the transport and reported, with
+ * the times it recorded, once the response headers have arrived, since
+ * transports such as NioTransport only connect while sending. Phases a
+ * transport can't observe aren't reported: the HttpClient transport reports
+ * none of them, HttpsURLConnection completes the TLS handshake as it connects
+ * so both phases share a time, and a request without a body is only written
+ * once its response is asked for, so its requestSent isn't reported.
+ */
+public interface SessionEventListener {
+
+	/**
+	 * The request has been created, before waiting for a connection
+	 */
+	public default void requestStart(SessionEvent event) {
+	}
+
+	public default void dnsStart(SessionEvent event) {
+	}
+
+	public default void dnsEnd(SessionEvent event) {
+	}
+
+	/**
+	 * A connection slot was obtained and the connection is being opened
+	 */
+	public default void connectStart(SessionEvent event) {
+	}
+
+	/**
+	 * The TLS handshake has completed, for new HTTPS connections only
+	 */
+	public default void secureConnectEnd(SessionEvent event) {
+	}
+
+	/**
+	 * The connection is ready for the request to be sent
+	 */
+	public default void connectionAcquired(SessionEvent event) {
+	}
+
+	/**
+	 * The request headers and body have been written
+	 */
+	public default void requestSent(SessionEvent event) {
+	}
+
+	/**
+	 * The status line and headers of the response have been received
+	 */
+	public default void responseHeadersReceived(SessionEvent event) {
+	}
+
+	/**
+	 * The response body has been read to the end, or the streaming response
+	 * was closed
+	 */
+	public default void responseBodyEnd(SessionEvent event) {
+	}
+
+	/**
+	 * The request failed, no further callbacks follow
+	 */
+	public default void requestFailed(SessionEvent event, Throwable cause) {
+	}
+}
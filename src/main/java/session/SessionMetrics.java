@@ -0,0 +1,302 @@
+package session;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histograms per host and per request method, plus counters for
+ * response status classes, failures, bytes transferred before and after
+ * compression and requests in flight, for every request made through a
+ * Session. All recording is lock-free.
+ */
+public class SessionMetrics {
+
+	/**
+	 * Point-in-time copy of the metrics
+	 */
+	public static class Snapshot {
+
+		private final Map<String, LatencyHistogram.Snapshot> hostLatencies;
+		private final Map<SessionConnection.REQUEST_METHOD, LatencyHistogram.Snapshot> methodLatencies;
+		private final long[] statusClasses;
+		private final Long failures;
+		private final Long bytesIn;
+		private final Long bytesOut;
+		private final Long uncompressedBytesIn;
+		private final Long uncompressedBytesOut;
+		private final Long inFlight;
+		private final Long rejected;
+		private final Map<String, CircuitBreaker.State> circuitStates;
+
+		private Snapshot(Map<String, LatencyHistogram.Snapshot> hostLatencies,
+				Map<SessionConnection.REQUEST_METHOD, LatencyHistogram.Snapshot> methodLatencies,
+				long[] statusClasses, Long failures, Long bytesIn, Long bytesOut, Long uncompressedBytesIn,
+				Long uncompressedBytesOut, Long inFlight, Long rejected, Map<String, CircuitBreaker.State> circuitStates) {
+			this.hostLatencies = Collections.unmodifiableMap(hostLatencies);
+			this.methodLatencies = Collections.unmodifiableMap(methodLatencies);
+			this.statusClasses = statusClasses;
+			this.failures = failures;
+			this.bytesIn = bytesIn;
+			this.bytesOut = bytesOut;
+			this.uncompressedBytesIn = uncompressedBytesIn;
+			this.uncompressedBytesOut = uncompressedBytesOut;
+			this.inFlight = inFlight;
+			this.rejected = rejected;
+			this.circuitStates = circuitStates;
+		}
+
+		/**
+		 * @return Request latencies, from start to the end of the response body,
+		 *         by host
+		 */
+		public Map<String, LatencyHistogram.Snapshot> getHostLatencies() {
+			return this.hostLatencies;
+		}
+
+		/**
+		 * @param host
+		 * @return Request latencies for the host, or null if there were none
+		 */
+		public LatencyHistogram.Snapshot getHostLatency(String host) {
+			return this.hostLatencies.get(host.toLowerCase());
+		}
+
+		public Map<SessionConnection.REQUEST_METHOD, LatencyHistogram.Snapshot> getMethodLatencies() {
+			return this.methodLatencies;
+		}
+
+		/**
+		 * @param statusClass
+		 *            First digit of the status code, 1 to 5
+		 * @return Number of responses in the class, for example 2 for 2xx
+		 */
+		public Long getStatusClassCount(Integer statusClass) {
+			return (statusClass >= 1 && statusClass <= 5) ? this.statusClasses[statusClass] : 0L;
+		}
+
+		/**
+		 * @return Requests which failed without a response
+		 */
+		public Long getFailureCount() {
+			return this.failures;
+		}
+
+		/**
+		 * @return Response body bytes read from the wire, compressed or not
+		 */
+		public Long getBytesIn() {
+			return this.bytesIn;
+		}
+
+		/**
+		 * @return Request body bytes written to the wire, compressed or not
+		 */
+		public Long getBytesOut() {
+			return this.bytesOut;
+		}
+
+		/**
+		 * @return Response body bytes after decompression, the same as the bytes
+		 *         in if no response was compressed
+		 */
+		public Long getUncompressedBytesIn() {
+			return this.uncompressedBytesIn;
+		}
+
+		/**
+		 * @return Request body bytes before compression, the same as the bytes
+		 *         out if no request was compressed
+		 */
+		public Long getUncompressedBytesOut() {
+			return this.uncompressedBytesOut;
+		}
+
+		public Long getInFlight() {
+			return this.inFlight;
+		}
+
+		/**
+		 * @return Requests failed by the circuit breaker or request limiter
+		 *         without contacting the host
+		 */
+		public Long getRejectedCount() {
+			return this.rejected;
+		}
+
+		/**
+		 * @return Circuit breaker state by host, empty if the Session has no
+		 *         circuit breaker
+		 */
+		public Map<String, CircuitBreaker.State> getCircuitStates() {
+			return this.circuitStates;
+		}
+
+		/**
+		 * @param host
+		 * @return State of the host's circuit, closed if there's no circuit
+		 *         breaker or the host hasn't been called
+		 */
+		public CircuitBreaker.State getCircuitState(String host) {
+			CircuitBreaker.State state = this.circuitStates.get(host.toLowerCase());
+			return (state != null) ? state : CircuitBreaker.State.CLOSED;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			builder.append("inFlight=").append(this.inFlight).append(", bytesIn=").append(this.bytesIn)
+					.append(", bytesOut=").append(this.bytesOut).append(", uncompressedBytesIn=")
+					.append(this.uncompressedBytesIn).append(", uncompressedBytesOut=").append(this.uncompressedBytesOut)
+					.append(", failures=").append(this.failures)
+					.append(", rejected=").append(this.rejected);
+			for (int statusClass = 1; statusClass <= 5; statusClass++) {
+				builder.append(", ").append(statusClass).append("xx=").append(this.statusClasses[statusClass]);
+			}
+			this.hostLatencies.forEach((host, latency) -> builder.append("\n").append(host).append(": ").append(latency));
+			this.methodLatencies
+					.forEach((method, latency) -> builder.append("\n").append(method).append(": ").append(latency));
+			this.circuitStates.forEach((host, state) -> builder.append("\n").append(host).append(" circuit: ").append(state));
+			return builder.toString();
+		}
+	}
+
+	private final Map<String, LatencyHistogram> hostLatencies = new ConcurrentHashMap<String, LatencyHistogram>();
+	private final Map<SessionConnection.REQUEST_METHOD, LatencyHistogram> methodLatencies = new EnumMap<SessionConnection.REQUEST_METHOD, LatencyHistogram>(
+			SessionConnection.REQUEST_METHOD.class);
+	private final LongAdder[] statusClasses = new LongAdder[6];
+	private final LongAdder failures = new LongAdder();
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+	private final LongAdder uncompressedBytesIn = new LongAdder();
+	private final LongAdder uncompressedBytesOut = new LongAdder();
+	private final LongAdder inFlight = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private volatile CircuitBreaker circuitBreaker = null;
+
+	public SessionMetrics() {
+		for (SessionConnection.REQUEST_METHOD method : SessionConnection.REQUEST_METHOD.values()) {
+			this.methodLatencies.put(method, new LatencyHistogram());
+		}
+		for (int statusClass = 0; statusClass < this.statusClasses.length; statusClass++) {
+			this.statusClasses[statusClass] = new LongAdder();
+		}
+	}
+
+	protected void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+		this.circuitBreaker = circuitBreaker;
+	}
+
+	/**
+	 * Records a request failed by the circuit breaker or request limiter
+	 */
+	protected void requestRejected() {
+		this.rejected.increment();
+	}
+
+	protected void requestStarted() {
+		this.inFlight.increment();
+	}
+
+	/**
+	 * Records a request which received a response
+	 *
+	 * @param host
+	 * @param method
+	 * @param serverResponseCode
+	 * @param nanoseconds
+	 *            Time from the start of the request to the end of the response
+	 * @param bytesOut
+	 *            Request body bytes written
+	 * @param bytesIn
+	 *            Response body bytes read
+	 * @param uncompressedBytesOut
+	 *            Request body bytes before compression
+	 * @param uncompressedBytesIn
+	 *            Response body bytes after decompression
+	 */
+	protected void requestCompleted(String host, SessionConnection.REQUEST_METHOD method, Integer serverResponseCode,
+			long nanoseconds, long bytesOut, long bytesIn, long uncompressedBytesOut, long uncompressedBytesIn) {
+		this.inFlight.decrement();
+		this.hostLatencies.computeIfAbsent(host.toLowerCase(), key -> new LatencyHistogram()).record(nanoseconds);
+		this.methodLatencies.get(method).record(nanoseconds);
+		Integer statusClass = (serverResponseCode != null) ? serverResponseCode / 100 : 0;
+		this.statusClasses[(statusClass >= 1 && statusClass <= 5) ? statusClass : 0].increment();
+		this.bytesOut.add(bytesOut);
+		this.bytesIn.add(bytesIn);
+		this.uncompressedBytesOut.add(uncompressedBytesOut);
+		this.uncompressedBytesIn.add(uncompressedBytesIn);
+	}
+
+	/**
+	 * Records a request which failed without a response
+	 *
+	 * @param bytesOut
+	 *            Request body bytes written before the failure
+	 * @param bytesIn
+	 *            Response body bytes read before the failure
+	 * @param uncompressedBytesOut
+	 *            Request body bytes before compression
+	 * @param uncompressedBytesIn
+	 *            Response body bytes after decompression
+	 */
+	protected void requestFailed(long bytesOut, long bytesIn, long uncompressedBytesOut, long uncompressedBytesIn) {
+		this.inFlight.decrement();
+		this.failures.increment();
+		this.bytesOut.add(bytesOut);
+		this.bytesIn.add(bytesIn);
+		this.uncompressedBytesOut.add(uncompressedBytesOut);
+		this.uncompressedBytesIn.add(uncompressedBytesIn);
+	}
+
+	/**
+	 * @return Copy of the metrics
+	 */
+	public Snapshot getSnapshot() {
+		return this.getSnapshot(false);
+	}
+
+	/**
+	 * Copies the metrics and starts over, requests in flight are carried over
+	 *
+	 * @return Copy of the metrics
+	 */
+	public Snapshot getSnapshotAndReset() {
+		return this.getSnapshot(true);
+	}
+
+	private Snapshot getSnapshot(Boolean reset) {
+		Map<String, LatencyHistogram.Snapshot> hostLatencies = new TreeMap<String, LatencyHistogram.Snapshot>();
+		this.hostLatencies.forEach((host, histogram) -> hostLatencies.put(host,
+				reset ? histogram.getSnapshotAndReset() : histogram.getSnapshot()));
+		Map<SessionConnection.REQUEST_METHOD, LatencyHistogram.Snapshot> methodLatencies = new EnumMap<SessionConnection.REQUEST_METHOD, LatencyHistogram.Snapshot>(
+				SessionConnection.REQUEST_METHOD.class);
+		this.methodLatencies.forEach((method, histogram) -> methodLatencies.put(method,
+				reset ? histogram.getSnapshotAndReset() : histogram.getSnapshot()));
+		long[] statusClasses = new long[this.statusClasses.length];
+		for (int statusClass = 0; statusClass < statusClasses.length; statusClass++) {
+			statusClasses[statusClass] = reset ? this.statusClasses[statusClass].sumThenReset()
+					: this.statusClasses[statusClass].sum();
+		}
+		CircuitBreaker circuitBreaker = this.circuitBreaker;
+		return new Snapshot(hostLatencies, methodLatencies, statusClasses,
+				reset ? this.failures.sumThenReset() : this.failures.sum(),
+				reset ? this.bytesIn.sumThenReset() : this.bytesIn.sum(),
+				reset ? this.bytesOut.sumThenReset() : this.bytesOut.sum(),
+				reset ? this.uncompressedBytesIn.sumThenReset() : this.uncompressedBytesIn.sum(),
+				reset ? this.uncompressedBytesOut.sumThenReset() : this.uncompressedBytesOut.sum(), this.inFlight.sum(),
+				reset ? this.rejected.sumThenReset() : this.rejected.sum(),
+				(circuitBreaker != null) ? circuitBreaker.getStates()
+						: Collections.<String, CircuitBreaker.State>emptyMap());
+	}
+
+	/**
+	 * Discards everything recorded so far
+	 */
+	public void reset() {
+		this.getSnapshotAndReset();
+	}
+}
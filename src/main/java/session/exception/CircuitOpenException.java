@@ -0,0 +1,35 @@
+package session.exception;
+
+/**
+ * Thrown without contacting the server while a host's circuit breaker is
+ * open, as if the host had answered 503 Service Unavailable
+ */
+public class CircuitOpenException extends HTTPStatusCodeException {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = -2265386473329452702L;
+
+	private final String host;
+	private final Long retryAfterMillis;
+
+	public CircuitOpenException(String host, Long retryAfterMillis) {
+		super(503, "Service Unavailable",
+				"Circuit open for " + host + ", calls are allowed again in " + retryAfterMillis + "ms");
+		this.host = host;
+		this.retryAfterMillis = retryAfterMillis;
+	}
+
+	public String getHost() {
+		return this.host;
+	}
+
+	/**
+	 * @return Time until the circuit lets trial calls through, 0 if it already
+	 *         does but they're all in flight
+	 */
+	public Long getRetryAfterMillis() {
+		return this.retryAfterMillis;
+	}
+}
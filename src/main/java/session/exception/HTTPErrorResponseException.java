@@ -0,0 +1,48 @@
+package session.exception;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the server answers with an error status, 4xx or 5xx, in place of
+ * the IOException raised by the connection, so the status can be inspected
+ */
+public class HTTPErrorResponseException extends IOException {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 3916645710230587153L;
+
+	private final Integer responseCode;
+	private final String retryAfter;
+
+	public HTTPErrorResponseException(Integer responseCode, String responseMessage, Throwable cause) {
+		this(responseCode, responseMessage, null, cause);
+	}
+
+	/**
+	 * @param responseCode
+	 * @param responseMessage
+	 * @param retryAfter
+	 *            Value of the response's Retry-After header, or null
+	 * @param cause
+	 */
+	public HTTPErrorResponseException(Integer responseCode, String responseMessage, String retryAfter,
+			Throwable cause) {
+		super("Error Number " + responseCode + ": " + responseMessage, cause);
+		this.responseCode = responseCode;
+		this.retryAfter = retryAfter;
+	}
+
+	public Integer getResponseCode() {
+		return this.responseCode;
+	}
+
+	/**
+	 * @return Value of the response's Retry-After header, seconds or an HTTP
+	 *         date, or null if it had none
+	 */
+	public String getRetryAfter() {
+		return this.retryAfter;
+	}
+}
@@ -0,0 +1,26 @@
+package session.exception;
+
+/**
+ * Thrown without contacting the server when a request to a host can't be
+ * started because its request limiter's queue is full or the request waited
+ * in the queue for too long, as if the host had answered 429 Too Many
+ * Requests
+ */
+public class RequestLimitException extends HTTPStatusCodeException {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 4179583215367098741L;
+
+	private final String host;
+
+	public RequestLimitException(String host, String message) {
+		super(429, "Too Many Requests", "Request to " + host + " rejected, " + message);
+		this.host = host;
+	}
+
+	public String getHost() {
+		return this.host;
+	}
+}
@@ -0,0 +1,26 @@
+package session.exception;
+
+import java.io.IOException;
+
+/**
+ * Fails an asynchronous request whose response code isn't one of those the
+ * request expects, where the synchronous calls return an empty response
+ */
+public class UnexpectedResponseCodeException extends IOException {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = -2230950826318520496L;
+
+	private final Integer responseCode;
+
+	public UnexpectedResponseCodeException(Integer responseCode) {
+		super("Unexpected response code " + responseCode);
+		this.responseCode = responseCode;
+	}
+
+	public Integer getResponseCode() {
+		return this.responseCode;
+	}
+}
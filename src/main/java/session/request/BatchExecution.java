@@ -0,0 +1,233 @@
+package session.request;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import session.SessionConnection;
+
+/**
+ * Runs a batch of connection requests concurrently and hands back their
+ * results in the order in which they complete. Requests run on a
+ * virtual-thread-per-task executor when the JVM supports it, otherwise on a
+ * bounded pool, and never more than the maximum in-flight limit at once. A
+ * request holds its place from the moment it's started until its future
+ * completes, so the limit also holds for requests which don't take a thread,
+ * such as those sent through NioTransport.
+ */
+public class BatchExecution implements Iterator<BatchExecution.Result> {
+
+	/**
+	 * Outcome of a single request within the batch
+	 */
+	public static class Result {
+
+		private final ConnectionRequest request;
+		private final SessionConnection connection;
+		private final Throwable exception;
+
+		private Result(ConnectionRequest request, SessionConnection connection, Throwable exception) {
+			this.request = request;
+			this.connection = connection;
+			this.exception = (exception instanceof CompletionException && exception.getCause() != null)
+					? exception.getCause()
+					: exception;
+		}
+
+		public ConnectionRequest getRequest() {
+			return this.request;
+		}
+
+		/**
+		 * @return The connection, or null if the request failed or its response
+		 *         code wasn't expected
+		 */
+		public SessionConnection getConnection() {
+			return this.connection;
+		}
+
+		/**
+		 * @return The exception raised by the request, or null if it didn't fail
+		 */
+		public Throwable getException() {
+			return this.exception;
+		}
+
+		public Boolean isSuccessful() {
+			return this.exception == null && this.connection != null;
+		}
+	}
+
+	private static final AtomicInteger BATCH_COUNT = new AtomicInteger();
+
+	/**
+	 * Creates a virtual-thread-per-task executor when running on a JDK that
+	 * provides one, otherwise a fixed pool sized to the in-flight limit
+	 *
+	 * @param maxInFlight
+	 * @return ExecutorService for a single batch
+	 */
+	private static ExecutorService newExecutor(Integer maxInFlight) {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			String prefix = "session-batch-" + BATCH_COUNT.incrementAndGet() + "-";
+			AtomicInteger count = new AtomicInteger();
+			return Executors.newFixedThreadPool(maxInFlight, runnable -> {
+				Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	private final BlockingQueue<Result> completed = new LinkedBlockingQueue<Result>();
+	private final ArrayList<CompletableFuture<SessionConnection>> pending;
+	private final Queue<Runnable> queued = new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicInteger dispatches = new AtomicInteger();
+	private final Semaphore inFlight;
+	private final ExecutorService executor;
+	private Integer remaining;
+
+	/**
+	 * Starts every request in the batch
+	 *
+	 * @param requests
+	 *            Requests to be executed
+	 * @param maxInFlight
+	 *            Maximum number of requests running at the same time
+	 */
+	public BatchExecution(Collection<ConnectionRequest> requests, Integer maxInFlight) {
+		if (maxInFlight == null || maxInFlight < 1) {
+			throw new IllegalArgumentException("The maximum in-flight request limit must be at least 1.");
+		}
+
+		this.remaining = requests.size();
+		this.pending = new ArrayList<CompletableFuture<SessionConnection>>(requests.size());
+		this.executor = BatchExecution.newExecutor(maxInFlight);
+		this.inFlight = new Semaphore(maxInFlight);
+
+		for (ConnectionRequest request : requests) {
+			CompletableFuture<SessionConnection> future = new CompletableFuture<SessionConnection>();
+			future.whenComplete((connection, exception) -> {
+				this.completed.add(new Result(request, connection, exception));
+			});
+			this.pending.add(future);
+			this.queued.add(() -> this.start(request, future));
+		}
+		// Requests may still need the executor until every one has completed
+		CompletableFuture.allOf(this.pending.toArray(new CompletableFuture<?>[0]))
+				.whenComplete((result, exception) -> this.executor.shutdown());
+		this.dispatch();
+	}
+
+	/**
+	 * Starts queued requests while there's room within the in-flight limit.
+	 * Requests which complete straight away call back into it, so only the
+	 * outermost call starts requests, and calls made meanwhile make it check
+	 * the queue again rather than recursing.
+	 */
+	private void dispatch() {
+		if (this.dispatches.getAndIncrement() > 0) {
+			return;
+		}
+		Integer missed = 1;
+		do {
+			while (!this.queued.isEmpty() && this.inFlight.tryAcquire()) {
+				Runnable start = this.queued.poll();
+				if (start != null) {
+					start.run();
+				} else {
+					this.inFlight.release();
+				}
+			}
+			missed = this.dispatches.addAndGet(-missed);
+		} while (missed > 0);
+	}
+
+	/**
+	 * Performs a request holding an in-flight permit, which is returned once
+	 * its future completes
+	 *
+	 * @param request
+	 * @param future
+	 *            Future of the batch the request's result is reported through
+	 */
+	private void start(ConnectionRequest request, CompletableFuture<SessionConnection> future) {
+		if (future.isDone()) {
+			// Cancelled before it was started
+			this.inFlight.release();
+			return;
+		}
+		CompletableFuture<SessionConnection> connection;
+		try {
+			connection = request.toConnectionAsync(this.executor);
+		} catch (RuntimeException e) {
+			connection = new CompletableFuture<SessionConnection>();
+			connection.completeExceptionally(e);
+		}
+		connection.whenComplete((result, exception) -> {
+			this.inFlight.release();
+			if (exception != null) {
+				future.completeExceptionally(exception);
+			} else {
+				future.complete(result);
+			}
+			this.dispatch();
+		});
+	}
+
+	/**
+	 * @return Number of results that haven't been retrieved yet
+	 */
+	public Integer getRemaining() {
+		return this.remaining;
+	}
+
+	/**
+	 * Abandons any requests which haven't completed yet, their results are
+	 * reported with a CancellationException
+	 */
+	public void cancel() {
+		this.pending.forEach(future -> future.cancel(true));
+		this.executor.shutdownNow();
+	}
+
+	@Override
+	public boolean hasNext() {
+		return this.remaining > 0;
+	}
+
+	/**
+	 * Blocks until the next request completes
+	 *
+	 * @return Result of the next request to complete
+	 */
+	@Override
+	public Result next() {
+		if (!this.hasNext()) {
+			throw new NoSuchElementException("All batch results have been retrieved.");
+		}
+		try {
+			Result result = this.completed.take();
+			this.remaining--;
+			return result;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the next batch result.", e);
+		}
+	}
+}
@@ -1,22 +1,51 @@
 package session.request;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import session.RequestBody;
+import session.RequestHeaders;
+import session.RetryPolicy;
 import session.Session;
 import session.SessionConnection;
+import session.exception.UnexpectedResponseCodeException;
 
 public class ConnectionRequest {
 	
+	private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionRequest.class);
+	private static final Integer STREAM_BUFFER_SIZE = 8192;
+	
 	private Session session = null;
 	private JSONObject requestData = null;
+	private RequestBody requestBody = null;
+	private RequestHeaders requestHeaders = RequestHeaders.EMPTY;
+	private RetryPolicy retryPolicy = null;
+	private Integer downloadRanges = null;
+	private Boolean memoryMappedDownload = false;
 	private ArrayList<Integer> successfulResponseCodes = null;
 	private SessionConnection.REQUEST_METHOD requestMethod = null;
 	private URL url = null;
@@ -28,6 +57,7 @@ public class ConnectionRequest {
 	}
 	
 	public ConnectionRequest with(String key, Object value) {
+		this.requestBody = null;
 		if(this.requestData == null) {
 			this.requestData = new JSONObject();
 		}
@@ -36,6 +66,7 @@ public class ConnectionRequest {
 	}
 	
 	public ConnectionRequest with(JSONObject requestData) {
+		this.requestBody = null;
 		if(this.requestData == null) {
 			this.requestData = requestData;
 		} else {
@@ -46,39 +77,255 @@ public class ConnectionRequest {
 		return this;
 	}
 	
+	/**
+	 * Sends the request body as written by the producer while the request is
+	 * sent, instead of building it up front, replacing any request data
+	 * 
+	 * @param producer
+	 *            Writes the JSON body, for example through an org.json.JSONWriter
+	 * @return
+	 */
+	public ConnectionRequest with(RequestBody.Producer producer) {
+		return this.with(RequestBody.json(producer));
+	}
+	
+	/**
+	 * Sends the provided request body, replacing any request data
+	 * 
+	 * @param requestBody
+	 * @return
+	 */
+	public ConnectionRequest with(RequestBody requestBody) {
+		this.requestData = null;
+		this.requestBody = requestBody;
+		return this;
+	}
+	
+	/**
+	 * Uploads the file as the request body, streamed from disk rather than
+	 * read into memory, replacing any request data
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 *             Thrown if the file's size can't be read
+	 */
+	public ConnectionRequest with(Path file) throws IOException {
+		return this.with(RequestBody.of(file));
+	}
+	
+	/**
+	 * Uploads the stream as the request body, replacing any request data. The
+	 * stream is closed once sent, and the request isn't retried.
+	 * 
+	 * @param input
+	 * @param contentType
+	 * @param contentLength
+	 *            Bytes to send, or -1 to send the stream to its end
+	 * @return
+	 */
+	public ConnectionRequest with(InputStream input, String contentType, Long contentLength) {
+		return this.with(RequestBody.of(input, contentType, contentLength));
+	}
+	
+	/**
+	 * Uploads the channel as the request body, replacing any request data. The
+	 * channel is closed once sent, and the request isn't retried.
+	 * 
+	 * @param channel
+	 * @param contentType
+	 * @param contentLength
+	 *            Bytes to send, or -1 to send the channel to its end
+	 * @return
+	 */
+	public ConnectionRequest with(ReadableByteChannel channel, String contentType, Long contentLength) {
+		return this.with(RequestBody.of(channel, contentType, contentLength));
+	}
+	
+	/**
+	 * Sends a header with this request, in addition to the Session's
+	 * authentication headers
+	 * 
+	 * @param name
+	 * @param value
+	 * @return
+	 */
+	public ConnectionRequest withHeader(String name, String value) {
+		this.requestHeaders = this.requestHeaders.with(name, value);
+		return this;
+	}
+	
+	/**
+	 * Sends the headers with this request, in addition to the Session's
+	 * authentication headers
+	 * 
+	 * @param requestHeaders
+	 * @return
+	 */
+	public ConnectionRequest withHeaders(RequestHeaders requestHeaders) {
+		this.requestHeaders = this.requestHeaders.with(requestHeaders);
+		return this;
+	}
+	
+	public ConnectionRequest withHeaders(JSONObject requestHeaders) {
+		return this.withHeaders(RequestHeaders.of(requestHeaders));
+	}
+	
+	/**
+	 * Retrieves the body to be sent, the request data is only encoded at this
+	 * point so later additions are included
+	 * 
+	 * @return RequestBody, or null if there's none
+	 */
+	private RequestBody getRequestBody() {
+		if(this.requestBody != null) {
+			return this.requestBody;
+		} else {
+			return RequestBody.json(this.requestData);
+		}
+	}
+	
+	/**
+	 * Retries this request according to the policy, instead of the Session's
+	 * 
+	 * @param retryPolicy
+	 * @return
+	 */
+	public ConnectionRequest withRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+		return this;
+	}
+	
+	/**
+	 * Downloads with toFile in up to the given number of ranges fetched
+	 * concurrently, instead of the Session's setting
+	 * 
+	 * @param downloadRanges
+	 *            Number of ranges, 1 to stream over a single connection
+	 * @return
+	 */
+	public ConnectionRequest withDownloadRanges(Integer downloadRanges) {
+		this.downloadRanges = downloadRanges;
+		return this;
+	}
+	
+	/**
+	 * Writes the ranges of a parallel download through memory mapped windows
+	 * of the file rather than file channel writes
+	 * 
+	 * @param memoryMappedDownload
+	 * @return
+	 */
+	public ConnectionRequest withMemoryMappedDownload(Boolean memoryMappedDownload) {
+		this.memoryMappedDownload = memoryMappedDownload;
+		return this;
+	}
+	
+	SessionConnection.REQUEST_METHOD getRequestMethod() {
+		return this.requestMethod;
+	}
+	
 	public ConnectionRequest forResponseCodes(Integer...responseCodes) {
 		this.successfulResponseCodes = new ArrayList<Integer>(Arrays.asList(responseCodes));
 		return this;
 	}
 	
 	private SessionConnection getConnection() {
-		SessionConnection connection = null;
 		try {
-			connection = this.session.getConnection(this.url, this.requestData, this.requestMethod);
-			if(this.successfulResponseCodes != null && this.successfulResponseCodes.size() > 0) {
-				if(this.successfulResponseCodes.contains(connection.getServerResponseCode())) {
-					return connection;
-				} else {
-					return null;
-				}
-			} else {
-				return connection;
-			}
+			return this.filterResponseCode(this.connect(false));
+		} catch (IOException e) {
+			LOGGER.warn("Couldn't retrieve request due to an IOException", e);
+			return null;
+		}
+	}
+	
+	private SessionConnection getStreamingConnection() {
+		try {
+			return this.filterResponseCode(this.connect(true));
 		} catch (IOException e) {
-			System.err.println("Couldn't retrieve request due to an IOException");
-			e.printStackTrace();
+			LOGGER.warn("Couldn't retrieve request due to an IOException", e);
 			return null;
 		}
 	}
 	
+	/**
+	 * Sends the request, retrying under the request's or else the Session's
+	 * retry policy
+	 * 
+	 * @param streaming
+	 * @return
+	 * @throws IOException
+	 */
+	private SessionConnection connect(Boolean streaming) throws IOException {
+		return this.connect(streaming, RequestHeaders.EMPTY);
+	}
+	
+	/**
+	 * Sends the request with additional headers, which replace any of the
+	 * request's own headers of the same name
+	 * 
+	 * @param streaming
+	 * @param additionalHeaders
+	 * @return
+	 * @throws IOException
+	 */
+	SessionConnection connect(Boolean streaming, RequestHeaders additionalHeaders) throws IOException {
+		return this.connect(this.requestMethod, this.getRequestBody(), streaming, additionalHeaders);
+	}
+	
+	/**
+	 * Sends a HEAD request for the same resource, with the request's headers
+	 * but without its body
+	 * 
+	 * @param additionalHeaders
+	 * @return
+	 * @throws IOException
+	 */
+	SessionConnection head(RequestHeaders additionalHeaders) throws IOException {
+		return this.connect(SessionConnection.REQUEST_METHOD.HEAD, null, false, additionalHeaders);
+	}
+	
+	private SessionConnection connect(SessionConnection.REQUEST_METHOD requestMethod, RequestBody requestBody,
+			Boolean streaming, RequestHeaders additionalHeaders) throws IOException {
+		RequestHeaders requestHeaders = this.requestHeaders.with(additionalHeaders);
+		RetryPolicy.Attempt attempt = streaming
+				? () -> this.session.getStreamingConnection(this.url, requestBody, requestMethod, requestHeaders)
+				: () -> this.session.getConnection(this.url, requestBody, requestMethod, requestHeaders);
+		RetryPolicy retryPolicy = (this.retryPolicy != null) ? this.retryPolicy : this.session.getRetryPolicy();
+		// A body read from a stream can't be sent a second time
+		if (retryPolicy == null || (requestBody != null && !requestBody.isRepeatable())) {
+			return attempt.connect();
+		}
+		return retryPolicy.execute(requestMethod, attempt, this.session.getRequestExecutor());
+	}
+	
+	/**
+	 * Discards the connection if its response code isn't one of the expected
+	 * response codes
+	 * 
+	 * @param connection
+	 * @return The connection, or null if the response code wasn't expected
+	 */
+	private SessionConnection filterResponseCode(SessionConnection connection) {
+		if(this.successfulResponseCodes != null && this.successfulResponseCodes.size() > 0) {
+			if(this.successfulResponseCodes.contains(connection.getServerResponseCode())) {
+				return connection;
+			} else {
+				connection.close();
+				return null;
+			}
+		} else {
+			return connection;
+		}
+	}
+	
 	public JSONObject toGetJSONObjectResponse() {
 		SessionConnection connection = this.getConnection();
 		if(connection != null) {
 			try {
 				return connection.getJSONObjectResponse();
 			} catch (JSONException e) {
-				System.err.println("There was an issue with the JSON marshalling.");
-				e.printStackTrace();
+				LOGGER.warn("There was an issue with the JSON marshalling.", e);
 				return new JSONObject();
 			}
 		} else {
@@ -92,8 +339,7 @@ public class ConnectionRequest {
 			try {
 				return connection.getJSONArrayResponse();
 			} catch (JSONException e) {
-				System.err.println("There was an issue with the JSON marshalling.");
-				e.printStackTrace();
+				LOGGER.warn("There was an issue with the JSON marshalling.", e);
 				return new JSONArray();
 			}
 		} else {
@@ -101,6 +347,55 @@ public class ConnectionRequest {
 		}
 	}
 	
+	/**
+	 * Performs the request and parses the JSON array response one element at a
+	 * time as it's read from the connection. The iterator must be closed if it
+	 * isn't read to the end.
+	 * 
+	 * @return JSONArrayIterator over the elements, empty if the request failed
+	 */
+	public JSONArrayIterator toJSONObjectIterator() {
+		SessionConnection connection = this.getStreamingConnection();
+		if(connection != null && connection.getResponseStream() != null) {
+			try {
+				return new JSONArrayIterator(connection.getResponseStream());
+			} catch (JSONException e) {
+				LOGGER.warn("There was an issue with the JSON marshalling.", e);
+			}
+		}
+		return new JSONArrayIterator(new ByteArrayInputStream("[]".getBytes()));
+	}
+	
+	/**
+	 * Performs the request and streams the JSON array response one element at a
+	 * time. The stream must be closed if it isn't consumed to the end.
+	 * 
+	 * @return Stream of the elements, empty if the request failed
+	 */
+	public Stream<JSONObject> toJSONObjectStream() {
+		JSONArrayIterator iterator = this.toJSONObjectIterator();
+		return StreamSupport.stream(
+				Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+				.onClose(iterator::close);
+	}
+	
+	/**
+	 * Performs the request and hands each element of the JSON array response to
+	 * the consumer as it's parsed
+	 * 
+	 * @param consumer
+	 * @return Whether the whole array was consumed
+	 */
+	public Boolean forEachJSONObject(Consumer<JSONObject> consumer) {
+		try (JSONArrayIterator iterator = this.toJSONObjectIterator()) {
+			iterator.forEachRemaining(consumer);
+			return true;
+		} catch (JSONException e) {
+			LOGGER.warn("There was an issue with the JSON marshalling.", e);
+			return false;
+		}
+	}
+	
 	public Boolean toGetBooleanResponse() {
 		return this.getConnection() != null;
 	}
@@ -113,4 +408,227 @@ public class ConnectionRequest {
 			return "";
 		}
 	}
+	
+	/**
+	 * Performs the request without buffering the response body. The stream must
+	 * be closed once done with to release the connection.
+	 * 
+	 * @return InputStream over the response body, empty if the request failed
+	 */
+	public InputStream toInputStream() {
+		SessionConnection connection = this.getStreamingConnection();
+		if(connection != null && connection.getResponseStream() != null) {
+			return connection.getResponseStream();
+		} else {
+			return new ByteArrayInputStream(new byte[0]);
+		}
+	}
+	
+	/**
+	 * Performs the request without buffering the response body. The channel
+	 * must be closed once done with to release the connection.
+	 * 
+	 * @return ReadableByteChannel over the response body, empty if the request
+	 *         failed
+	 */
+	public ReadableByteChannel toReadableByteChannel() {
+		return Channels.newChannel(this.toInputStream());
+	}
+	
+	/**
+	 * Performs the request and hands the response body to the consumer one
+	 * chunk at a time, closing the connection afterwards. The same buffer is
+	 * reused for every chunk, so the consumer mustn't hold on to it.
+	 * 
+	 * @param consumer
+	 *            Receives each chunk, positioned for reading
+	 * @return Whether the whole response body was consumed
+	 */
+	public Boolean toByteBuffers(Consumer<ByteBuffer> consumer) {
+		SessionConnection connection = this.getStreamingConnection();
+		if(connection == null || connection.getResponseStream() == null) {
+			return false;
+		}
+		byte[] chunk = this.session.getBufferPool().acquireArray(STREAM_BUFFER_SIZE);
+		try (InputStream stream = connection.getResponseStream()) {
+			ByteBuffer buffer = ByteBuffer.wrap(chunk);
+			int read;
+			while((read = stream.read(chunk)) != -1) {
+				buffer.clear();
+				buffer.limit(read);
+				consumer.accept(buffer);
+			}
+			return true;
+		} catch (IOException e) {
+			LOGGER.warn("Couldn't stream the response due to an IOException", e);
+			return false;
+		} finally {
+			this.session.getBufferPool().releaseArray(chunk);
+		}
+	}
+	
+	/**
+	 * Performs the request and writes the response body straight into the
+	 * file, through a partial file which replaces it once complete. A download
+	 * interrupted here or by an earlier call is resumed with a Range request
+	 * instead of starting over, provided the server sent an ETag or
+	 * Last-Modified header. The expected response codes aren't applied, any
+	 * 2xx response is downloaded.
+	 * 
+	 * A GET is fetched as concurrent ranges if more than one download range is
+	 * set on the request or Session and the server supports ranges, with each
+	 * range written straight into its place in the file.
+	 * 
+	 * @param file
+	 * @return Whether the whole response body was written to the file
+	 */
+	public Boolean toFile(Path file) {
+		try {
+			this.download(file);
+			return true;
+		} catch (IOException e) {
+			LOGGER.warn("Couldn't download the response to {} due to an IOException", file, e);
+			return false;
+		}
+	}
+	
+	private void download(Path file) throws IOException {
+		Integer downloadRanges = (this.downloadRanges != null) ? this.downloadRanges
+				: this.session.getDownloadRanges();
+		new FileDownload(this, file, downloadRanges, this.memoryMappedDownload)
+				.download(this.session.getRequestExecutor());
+	}
+	
+	/**
+	 * Performs the request on the Session's request executor
+	 * 
+	 * @return Future completed with the connection (null if the response code
+	 *         wasn't expected), or exceptionally if the connection failed
+	 */
+	public CompletableFuture<SessionConnection> toConnectionAsync() {
+		return this.toConnectionAsync(this.session.getRequestExecutor());
+	}
+	
+	/**
+	 * Performs the request on the provided executor, or without taking a thread
+	 * at all through a transport which supports it, unless it may be retried
+	 * 
+	 * @param executor
+	 * @return Future completed with the connection (null if the response code
+	 *         wasn't expected), or exceptionally if the connection failed
+	 */
+	public CompletableFuture<SessionConnection> toConnectionAsync(Executor executor) {
+		return this.connectAsync(executor).thenApply(this::filterResponseCode);
+	}
+	
+	private CompletableFuture<SessionConnection> connectAsync(Executor executor) {
+		RequestBody requestBody = this.getRequestBody();
+		RetryPolicy retryPolicy = (this.retryPolicy != null) ? this.retryPolicy : this.session.getRetryPolicy();
+		// Retries wait out their backoff on a thread
+		if (retryPolicy == null || (requestBody != null && !requestBody.isRepeatable())) {
+			return this.session.getConnectionAsync(this.url, requestBody, this.requestMethod, this.requestHeaders,
+					executor);
+		}
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return this.connect(false);
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		}, executor);
+	}
+	
+	/**
+	 * Performs the request like toConnectionAsync and reads the response on the
+	 * executor, so that it isn't parsed on a transport's thread
+	 * 
+	 * @param reader
+	 * @param executor
+	 * @return Future completed with the response, or exceptionally if the
+	 *         connection failed, the response code wasn't expected or the
+	 *         response couldn't be read
+	 */
+	private <T> CompletableFuture<T> toResponseAsync(Function<SessionConnection, T> reader, Executor executor) {
+		return this.connectAsync(executor).thenApplyAsync(connection -> {
+			if (this.filterResponseCode(connection) == null) {
+				throw new CompletionException(new UnexpectedResponseCodeException(connection.getServerResponseCode()));
+			}
+			return reader.apply(connection);
+		}, executor);
+	}
+	
+	public CompletableFuture<JSONObject> toJSONObjectAsync() {
+		return this.toJSONObjectAsync(this.session.getRequestExecutor());
+	}
+	
+	/**
+	 * @param executor
+	 * @return Future completed with the parsed response, or exceptionally if the
+	 *         request failed
+	 */
+	public CompletableFuture<JSONObject> toJSONObjectAsync(Executor executor) {
+		return this.toResponseAsync(SessionConnection::getJSONObjectResponse, executor);
+	}
+	
+	public CompletableFuture<JSONArray> toJSONArrayAsync() {
+		return this.toJSONArrayAsync(this.session.getRequestExecutor());
+	}
+	
+	/**
+	 * @param executor
+	 * @return Future completed with the parsed response, or exceptionally if the request
+	 *         failed
+	 */
+	public CompletableFuture<JSONArray> toJSONArrayAsync(Executor executor) {
+		return this.toResponseAsync(SessionConnection::getJSONArrayResponse, executor);
+	}
+	
+	public CompletableFuture<Boolean> toBooleanAsync() {
+		return this.toBooleanAsync(this.session.getRequestExecutor());
+	}
+	
+	/**
+	 * @param executor
+	 * @return Future completed with whether the response code was expected, or
+	 *         exceptionally if the connection failed
+	 */
+	public CompletableFuture<Boolean> toBooleanAsync(Executor executor) {
+		return this.connectAsync(executor).thenApply(connection -> this.filterResponseCode(connection) != null);
+	}
+	
+	public CompletableFuture<String> toStringAsync() {
+		return this.toStringAsync(this.session.getRequestExecutor());
+	}
+	
+	/**
+	 * @param executor
+	 * @return Future completed with the response, or exceptionally if the request
+	 *         failed
+	 */
+	public CompletableFuture<String> toStringAsync(Executor executor) {
+		return this.toResponseAsync(SessionConnection::getResponse, executor);
+	}
+	
+	public CompletableFuture<Boolean> toFileAsync(Path file) {
+		return this.toFileAsync(file, this.session.getRequestExecutor());
+	}
+	
+	/**
+	 * Downloads the response like toFile on the executor
+	 * 
+	 * @param file
+	 * @param executor
+	 * @return Future completed once the whole response body was written to the
+	 *         file, or exceptionally if the download failed
+	 */
+	public CompletableFuture<Boolean> toFileAsync(Path file, Executor executor) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				this.download(file);
+				return true;
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		}, executor);
+	}
 }
@@ -0,0 +1,539 @@
+package session.request;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import session.RequestHeaders;
+import session.SessionConnection;
+import session.exception.HTTPErrorResponseException;
+
+/**
+ * Downloads a response body into a file without holding it in memory. The
+ * body is written to a ".part" file beside the target, which is renamed over
+ * the target once complete, so the target never holds a partial download.
+ *
+ * A download which is interrupted is resumed from the end of the partial file
+ * with a Range request, guarded by If-Range with the validator, a strong ETag
+ * or else Last-Modified, of the response it started from. The validator is
+ * kept in a ".part.validator" file meanwhile, so a later download of the same
+ * file resumes as well. Responses without a validator start over instead.
+ *
+ * A GET may also be split into ranges fetched concurrently over separate
+ * connections, which is faster than a single connection on high-latency
+ * links. The resource is probed with a HEAD request first; unless the server
+ * accepts byte ranges and reports the length and a validator, the body is
+ * streamed as above. Each range is written at its offset of the
+ * pre-allocated partial file, optionally through memory mapping, and resumed
+ * on its own if its connection fails. A parallel download which fails isn't
+ * resumed by later calls, since its partial file has gaps.
+ */
+class FileDownload {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(FileDownload.class);
+
+	/**
+	 * Times a download, or each range of a parallel one, is resumed after the
+	 * response stream fails
+	 */
+	private static final Integer MAX_RESUMES = 5;
+
+	/**
+	 * Smallest range worth a connection of its own
+	 */
+	private static final Long MIN_RANGE_BYTES = 1024L * 1024;
+
+	/**
+	 * Bytes transferred or mapped at a time, progress is recorded in between
+	 */
+	private static final Long TRANSFER_BYTES = 1024L * 1024;
+	private static final Long MAPPED_WINDOW_BYTES = 64L * 1024 * 1024;
+
+	/**
+	 * Thrown when a range request isn't answered with that range, because the
+	 * server ignores ranges or the resource changed
+	 */
+	private static class RangeNotServedException extends IOException {
+
+		private static final long serialVersionUID = 5264309427104935117L;
+
+		private RangeNotServedException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Part of the resource fetched over one connection
+	 */
+	private static class Range {
+
+		private final long last;
+		private long position;
+
+		private Range(long first, long last) {
+			this.position = first;
+			this.last = last;
+		}
+
+		private long getRemaining() {
+			return this.last - this.position + 1;
+		}
+	}
+
+	private final ConnectionRequest request;
+	private final Path file;
+	private final Path part;
+	private final Path validatorFile;
+	private final Integer ranges;
+	private final Boolean memoryMapped;
+	private volatile Boolean aborted = false;
+
+	/**
+	 * @param request
+	 *            Request retrieving the body
+	 * @param file
+	 *            Target file, replaced once the download is complete
+	 * @param ranges
+	 *            Maximum number of ranges fetched concurrently, 1 to always
+	 *            stream the body over a single connection
+	 * @param memoryMapped
+	 *            Whether ranges are written through memory mapping rather than
+	 *            file channel writes
+	 */
+	FileDownload(ConnectionRequest request, Path file, Integer ranges, Boolean memoryMapped) {
+		this.request = request;
+		this.file = file;
+		this.part = file.resolveSibling(file.getFileName() + ".part");
+		this.validatorFile = file.resolveSibling(file.getFileName() + ".part.validator");
+		this.ranges = (ranges != null && ranges > 1) ? ranges : 1;
+		this.memoryMapped = memoryMapped;
+	}
+
+	/**
+	 * Downloads the body, in parallel ranges if configured and supported
+	 *
+	 * @param executor
+	 *            Runs the ranges other than the first, which is fetched on the
+	 *            calling thread
+	 * @return Length of the file
+	 * @throws IOException
+	 *             Thrown if the download failed more often than it could be
+	 *             resumed, or the server answered with an error status
+	 */
+	Long download(Executor executor) throws IOException {
+		if (this.ranges > 1 && this.request.getRequestMethod() == SessionConnection.REQUEST_METHOD.GET) {
+			Long length = this.downloadRanges(executor);
+			if (length != null) {
+				return length;
+			}
+		}
+		return this.downloadStream();
+	}
+
+	/**
+	 * Downloads the body over a single connection, resuming a previous partial
+	 * download if possible
+	 *
+	 * @return Length of the file
+	 * @throws IOException
+	 */
+	private Long downloadStream() throws IOException {
+		String validator = this.readValidator();
+		Integer resumes = 0;
+		while (true) {
+			long offset = (validator != null && Files.exists(this.part)) ? Files.size(this.part) : 0L;
+			// Ranges of an encoded body don't line up with the bytes written
+			RequestHeaders requestHeaders = RequestHeaders.of("Accept-Encoding", "identity");
+			if (offset > 0) {
+				requestHeaders = requestHeaders.with("Range", "bytes=" + offset + "-").with("If-Range", validator);
+				LOGGER.debug("Resuming the download of {} from byte {}.", this.file, offset);
+			}
+
+			SessionConnection connection;
+			try {
+				connection = this.request.connect(true, requestHeaders);
+			} catch (HTTPErrorResponseException e) {
+				if (e.getResponseCode() == 416 && offset > 0) {
+					LOGGER.debug("The partial download of {} is out of range, starting over.", this.file);
+					validator = null;
+					this.discard();
+					continue;
+				}
+				throw e;
+			}
+
+			try {
+				long start = 0;
+				Long length = FileDownload.getLongHeader(connection, "Content-Length");
+				if (connection.getServerResponseCode() == 206) {
+					long[] range = FileDownload.getContentRange(connection);
+					if (range == null || range[0] != offset) {
+						LOGGER.debug("The server resumed {} from an unexpected range, starting over.", this.file);
+						validator = null;
+						this.discard();
+						continue;
+					}
+					start = range[0];
+					length = range[1] - range[0] + 1;
+				} else {
+					// The server sent the whole body, because it ignores ranges or the
+					// resource changed since the partial download
+					validator = FileDownload.getValidator(connection);
+					this.writeValidator(validator);
+				}
+
+				long end = this.write(connection, start);
+				if (length != null && end < start + length) {
+					throw new EOFException("The download of " + this.file + " ended after " + end + " of "
+							+ (start + length) + " bytes.");
+				}
+				this.complete();
+				LOGGER.debug("Downloaded {} bytes to {}.", end, this.file);
+				return end;
+			} catch (IOException e) {
+				if (validator == null || resumes >= MAX_RESUMES) {
+					throw e;
+				}
+				resumes++;
+				LOGGER.debug("The download of {} was interrupted, resuming: {}", this.file, e.getMessage());
+			} finally {
+				connection.close();
+			}
+		}
+	}
+
+	/**
+	 * Probes the resource and downloads it as concurrent ranges if the server
+	 * supports them
+	 *
+	 * @return Length of the file, or null if the body has to be streamed
+	 *         instead
+	 * @throws IOException
+	 */
+	private Long downloadRanges(Executor executor) throws IOException {
+		SessionConnection probe;
+		try {
+			probe = this.request.head(RequestHeaders.of("Accept-Encoding", "identity"));
+		} catch (HTTPErrorResponseException e) {
+			LOGGER.debug("The HEAD request for {} failed, streaming the download instead.", this.file);
+			return null;
+		}
+		Long length;
+		String validator;
+		String encoding;
+		String acceptRanges;
+		try {
+			length = FileDownload.getLongHeader(probe, "Content-Length");
+			validator = FileDownload.getValidator(probe);
+			encoding = probe.getHeaderField("Content-Encoding");
+			acceptRanges = probe.getHeaderField("Accept-Ranges");
+		} finally {
+			probe.close();
+		}
+		if (!"bytes".equalsIgnoreCase(acceptRanges) || length == null || validator == null
+				|| (encoding != null && !encoding.equalsIgnoreCase("identity"))) {
+			LOGGER.debug("The server doesn't support ranges for {}, streaming the download.", this.file);
+			return null;
+		}
+		long count = Math.min(this.ranges, length / MIN_RANGE_BYTES);
+		if (count < 2) {
+			return null;
+		}
+
+		// A partial file left by a streamed download can't be resumed once the
+		// ranges have been written into it
+		this.discard();
+		List<Range> ranges = new ArrayList<Range>();
+		long rangeBytes = (length + count - 1) / count;
+		for (long first = 0; first < length; first += rangeBytes) {
+			ranges.add(new Range(first, Math.min(length, first + rangeBytes) - 1));
+		}
+		LOGGER.debug("Downloading {} as {} ranges of {} bytes.", this.file, ranges.size(), length);
+
+		try (FileChannel channel = FileChannel.open(this.part, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			// Writing the last byte allocates the file, sparsely where supported
+			channel.write(ByteBuffer.wrap(new byte[1]), length - 1);
+
+			// Each range is fetched by whichever of its task and the caller claims
+			// it first, so the download doesn't wait on a busy executor for the
+			// ranges still queued once the caller's own range is done
+			List<Range> queued = ranges.subList(1, ranges.size());
+			List<AtomicBoolean> claims = new ArrayList<AtomicBoolean>();
+			List<CompletableFuture<Void>> fetches = new ArrayList<CompletableFuture<Void>>();
+			boolean[] claimed = new boolean[queued.size()];
+			Exception failure = null;
+			try {
+				for (Range range : queued) {
+					AtomicBoolean claim = new AtomicBoolean();
+					claims.add(claim);
+					fetches.add(CompletableFuture.runAsync(() -> {
+						if (!claim.compareAndSet(false, true)) {
+							return;
+						}
+						try {
+							this.fetch(channel, range, validator);
+						} catch (IOException e) {
+							throw new CompletionException(e);
+						}
+					}, executor));
+				}
+				this.fetch(channel, ranges.get(0), validator);
+				for (int i = 0; i < queued.size(); i++) {
+					if (claims.get(i).compareAndSet(false, true)) {
+						claimed[i] = true;
+						this.fetch(channel, queued.get(i), validator);
+					}
+				}
+			} catch (IOException | RuntimeException e) {
+				failure = e;
+				this.aborted = true;
+			}
+			// Every fetch has to stop writing before the file is closed, the
+			// ranges which haven't started are claimed so they never do
+			for (int i = 0; i < fetches.size(); i++) {
+				if (claimed[i] || claims.get(i).compareAndSet(false, true)) {
+					continue;
+				}
+				try {
+					fetches.get(i).join();
+				} catch (CompletionException e) {
+					this.aborted = true;
+					Exception cause = (e.getCause() instanceof IOException || e.getCause() instanceof RuntimeException)
+							? (Exception) e.getCause()
+							: new IOException(e.getCause());
+					// A range which wasn't served decides the outcome, the other
+					// ranges may only have failed because they were aborted
+					if (failure == null || cause instanceof RangeNotServedException) {
+						failure = cause;
+					}
+				}
+			}
+			if (failure instanceof IOException) {
+				throw (IOException) failure;
+			} else if (failure != null) {
+				throw (RuntimeException) failure;
+			}
+			channel.force(false);
+		} catch (RangeNotServedException e) {
+			LOGGER.debug("{} Streaming the download of {} instead.", e.getMessage(), this.file);
+			this.aborted = false;
+			this.discard();
+			return null;
+		} catch (IOException | RuntimeException e) {
+			this.discard();
+			throw e;
+		}
+		this.complete();
+		LOGGER.debug("Downloaded {} bytes to {} in {} ranges.", length, this.file, ranges.size());
+		return length;
+	}
+
+	/**
+	 * Fetches a range into its place in the file, resuming from where it got
+	 * to if the connection fails
+	 *
+	 * @throws IOException
+	 */
+	private void fetch(FileChannel channel, Range range, String validator) throws IOException {
+		Integer resumes = 0;
+		while (range.getRemaining() > 0) {
+			if (this.aborted) {
+				throw new IOException("The download of " + this.file + " was aborted.");
+			}
+			SessionConnection connection = this.request.connect(true,
+					RequestHeaders.of("Accept-Encoding", "identity")
+							.with("Range", "bytes=" + range.position + "-" + range.last).with("If-Range", validator));
+			try {
+				long[] served = FileDownload.getContentRange(connection);
+				if (connection.getServerResponseCode() != 206 || served == null || served[0] != range.position
+						|| served[1] != range.last) {
+					throw new RangeNotServedException("The server didn't serve bytes " + range.position + "-"
+							+ range.last + " of " + this.file + ".");
+				}
+				if (connection.getResponseStream() == null) {
+					throw new IOException("The response to " + this.file + " has no body to download.");
+				}
+				try (ReadableByteChannel source = Channels.newChannel(connection.getResponseStream())) {
+					if (this.memoryMapped) {
+						this.map(channel, source, range);
+					} else {
+						this.transfer(channel, source, range);
+					}
+				}
+				if (range.getRemaining() > 0) {
+					throw new EOFException("The range of " + this.file + " ended " + range.getRemaining()
+							+ " bytes early.");
+				}
+			} catch (RangeNotServedException e) {
+				throw e;
+			} catch (IOException e) {
+				if (this.aborted || resumes >= MAX_RESUMES) {
+					throw e;
+				}
+				resumes++;
+				LOGGER.debug("A range of {} was interrupted, resuming: {}", this.file, e.getMessage());
+			} finally {
+				connection.close();
+			}
+		}
+	}
+
+	/**
+	 * Copies the range's body with positional transfers, which don't move the
+	 * channel's shared position
+	 */
+	private void transfer(FileChannel channel, ReadableByteChannel source, Range range) throws IOException {
+		long transferred;
+		while (range.getRemaining() > 0 && !this.aborted && (transferred = channel.transferFrom(source,
+				range.position, Math.min(range.getRemaining(), TRANSFER_BYTES))) > 0) {
+			range.position += transferred;
+		}
+	}
+
+	/**
+	 * Reads the range's body straight into memory mapped windows of the file
+	 */
+	private void map(FileChannel channel, ReadableByteChannel source, Range range) throws IOException {
+		while (range.getRemaining() > 0 && !this.aborted) {
+			MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_WRITE, range.position,
+					Math.min(range.getRemaining(), MAPPED_WINDOW_BYTES));
+			while (window.hasRemaining()) {
+				int read = source.read(window);
+				if (read == -1) {
+					return;
+				}
+				range.position += read;
+			}
+		}
+	}
+
+	/**
+	 * Writes the response body into the partial file from the given position,
+	 * discarding anything after it
+	 *
+	 * @return Length of the partial file afterwards
+	 */
+	private long write(SessionConnection connection, long start) throws IOException {
+		if (connection.getResponseStream() == null) {
+			throw new IOException("The response to " + this.file + " has no body to download.");
+		}
+		try (FileChannel channel = FileChannel.open(this.part, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+				ReadableByteChannel source = Channels.newChannel(connection.getResponseStream())) {
+			channel.truncate(start);
+			long position = start;
+			long transferred;
+			// The file channel copies through its own cached direct buffer, and
+			// returns 0 once the source is exhausted
+			while ((transferred = channel.transferFrom(source, position, Long.MAX_VALUE - position)) > 0) {
+				position += transferred;
+			}
+			channel.force(false);
+			return position;
+		}
+	}
+
+	/**
+	 * Moves the finished download over the target file
+	 */
+	private void complete() throws IOException {
+		try {
+			Files.move(this.part, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(this.part, this.file, StandardCopyOption.REPLACE_EXISTING);
+		}
+		Files.deleteIfExists(this.validatorFile);
+	}
+
+	private void discard() throws IOException {
+		Files.deleteIfExists(this.part);
+		Files.deleteIfExists(this.validatorFile);
+	}
+
+	private String readValidator() throws IOException {
+		if (!Files.exists(this.validatorFile)) {
+			return null;
+		}
+		List<String> lines = Files.readAllLines(this.validatorFile, StandardCharsets.UTF_8);
+		return (!lines.isEmpty() && !lines.get(0).isEmpty()) ? lines.get(0) : null;
+	}
+
+	private void writeValidator(String validator) throws IOException {
+		if (validator == null) {
+			Files.deleteIfExists(this.validatorFile);
+		} else {
+			Files.write(this.validatorFile, validator.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * @return Strong ETag of the response, or else its Last-Modified date, or
+	 *         null if it has neither. Weak ETags can't be used with If-Range.
+	 */
+	static String getValidator(SessionConnection connection) {
+		String entityTag = connection.getHeaderField("ETag");
+		if (entityTag != null && !entityTag.startsWith("W/")) {
+			return entityTag;
+		}
+		return connection.getHeaderField("Last-Modified");
+	}
+
+	/**
+	 * @return Header value as a number, or null if it's missing or invalid
+	 */
+	static Long getLongHeader(SessionConnection connection, String field) {
+		String value = connection.getHeaderField(field);
+		if (value == null) {
+			return null;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Parses a Content-Range header of the form "bytes first-last/length"
+	 *
+	 * @return First and last byte positions, or null if the header is missing
+	 *         or invalid
+	 */
+	static long[] getContentRange(SessionConnection connection) {
+		String contentRange = connection.getHeaderField("Content-Range");
+		if (contentRange == null || !contentRange.trim().startsWith("bytes ")) {
+			return null;
+		}
+		String range = contentRange.trim().substring("bytes ".length());
+		int dash = range.indexOf('-');
+		int slash = range.indexOf('/');
+		if (dash <= 0 || slash <= dash) {
+			return null;
+		}
+		try {
+			return new long[] { Long.parseLong(range.substring(0, dash).trim()),
+					Long.parseLong(range.substring(dash + 1, slash).trim()) };
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+}
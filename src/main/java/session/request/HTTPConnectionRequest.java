@@ -1,6 +1,9 @@
 package session.request;
 
 import java.net.URL;
+import java.util.concurrent.CompletableFuture;
+
+import org.json.JSONObject;
 
 import session.SessionConnection;
 import session.SessionConnection.REQUEST_METHOD;
@@ -44,4 +47,52 @@ public interface HTTPConnectionRequest {
 	public default ConnectionRequest PATCH(URL url) {
 		return this.makeRequest(SessionConnection.REQUEST_METHOD.PATCH, url);
 	}
+	
+	public default CompletableFuture<SessionConnection> GETAsync(URL url) {
+		return this.GET(url).toConnectionAsync();
+	}
+	
+	public default CompletableFuture<SessionConnection> PUTAsync(URL url) {
+		return this.PUT(url).toConnectionAsync();
+	}
+	
+	public default CompletableFuture<SessionConnection> PUTAsync(URL url, JSONObject requestData) {
+		return this.PUT(url).with(requestData).toConnectionAsync();
+	}
+	
+	public default CompletableFuture<SessionConnection> POSTAsync(URL url) {
+		return this.POST(url).toConnectionAsync();
+	}
+	
+	public default CompletableFuture<SessionConnection> POSTAsync(URL url, JSONObject requestData) {
+		return this.POST(url).with(requestData).toConnectionAsync();
+	}
+	
+	public default CompletableFuture<SessionConnection> DELETEAsync(URL url) {
+		return this.DELETE(url).toConnectionAsync();
+	}
+	
+	public default CompletableFuture<SessionConnection> HEADAsync(URL url) {
+		return this.HEAD(url).toConnectionAsync();
+	}
+	
+	public default CompletableFuture<SessionConnection> OPTIONSAsync(URL url) {
+		return this.OPTIONS(url).toConnectionAsync();
+	}
+	
+	public default CompletableFuture<SessionConnection> CONNECTAsync(URL url) {
+		return this.CONNECT(url).toConnectionAsync();
+	}
+	
+	public default CompletableFuture<SessionConnection> TRACEAsync(URL url) {
+		return this.TRACE(url).toConnectionAsync();
+	}
+	
+	public default CompletableFuture<SessionConnection> PATCHAsync(URL url) {
+		return this.PATCH(url).toConnectionAsync();
+	}
+	
+	public default CompletableFuture<SessionConnection> PATCHAsync(URL url, JSONObject requestData) {
+		return this.PATCH(url).with(requestData).toConnectionAsync();
+	}
 }
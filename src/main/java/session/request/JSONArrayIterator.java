@@ -0,0 +1,141 @@
+package session.request;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Parses a JSON array of objects straight off a stream, one element at a time,
+ * so only the current element is ever held in memory. The stream is closed
+ * once the end of the array is reached, or when the iterator is closed early.
+ */
+public class JSONArrayIterator implements Iterator<JSONObject>, Closeable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(JSONArrayIterator.class);
+
+	private final InputStream stream;
+	private final JSONTokener tokener;
+	private JSONObject next = null;
+	private Boolean first = true;
+	private Boolean finished = false;
+
+	/**
+	 * Starts parsing the array
+	 *
+	 * @param stream
+	 *            UTF-8 encoded JSON array
+	 * @throws JSONException
+	 *             Thrown if the stream doesn't begin with a JSON array
+	 */
+	public JSONArrayIterator(InputStream stream) throws JSONException {
+		this.stream = stream;
+		this.tokener = new JSONTokener(new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8)));
+		try {
+			if (this.tokener.nextClean() != '[') {
+				throw this.tokener.syntaxError("A JSONArray text must start with '['");
+			}
+		} catch (JSONException e) {
+			this.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the next element of the array
+	 *
+	 * @return The next element, or null at the end of the array
+	 * @throws JSONException
+	 */
+	private JSONObject advance() throws JSONException {
+		char c = this.tokener.nextClean();
+		if (!this.first) {
+			if (c != ',') {
+				if (c == ']') {
+					return null;
+				}
+				throw this.tokener.syntaxError("Expected a ',' or ']'");
+			}
+			c = this.tokener.nextClean();
+		}
+		this.first = false;
+		if (c == ']') {
+			return null;
+		}
+		this.tokener.back();
+		return new JSONObject(this.tokener);
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (this.next != null) {
+			return true;
+		}
+		if (this.finished) {
+			return false;
+		}
+		try {
+			this.next = this.advance();
+		} catch (JSONException e) {
+			this.close();
+			throw e;
+		}
+		if (this.next == null) {
+			this.drain();
+			this.close();
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public JSONObject next() {
+		if (!this.hasNext()) {
+			throw new NoSuchElementException("The end of the JSON array has been reached.");
+		}
+		JSONObject element = this.next;
+		this.next = null;
+		return element;
+	}
+
+	/**
+	 * Reads any trailing whitespace after the array, so the connection is left
+	 * fully drained
+	 */
+	private void drain() {
+		try {
+			byte[] buffer = new byte[256];
+			while (this.stream.read(buffer) != -1) {
+				continue;
+			}
+		} catch (IOException e) {
+			LOGGER.warn("The JSON array stream could not be drained.", e);
+		}
+	}
+
+	/**
+	 * Stops parsing and releases the underlying stream
+	 */
+	@Override
+	public void close() {
+		if (this.finished) {
+			return;
+		}
+		this.finished = true;
+		try {
+			this.stream.close();
+		} catch (IOException e) {
+			LOGGER.warn("The JSON array stream could not be closed.", e);
+		}
+	}
+}
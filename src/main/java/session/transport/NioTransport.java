@@ -0,0 +1,1938 @@
+package session.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import keystore.Keystore;
+import session.BufferPool;
+import session.RequestBody;
+import session.RequestHeaders;
+
+/**
+ * Non-blocking HTTP/1.1 transport. Every connection is a non-blocking
+ * SocketChannel served by one of a few selector threads (event loops), with
+ * TLS performed by an SSLEngine trusting the Keystore's certificates, so the
+ * number of requests in flight isn't limited by the number of threads.
+ *
+ * Requests can be driven entirely through futures with sendAsync, which
+ * completes once the response headers have arrived; NioExchange.readFully then
+ * completes with the body. Used as a Session's transport, blocking requests
+ * wait on their calling thread for the response headers, while asynchronous
+ * requests complete from the event loops without a thread waiting on them.
+ * Hosts are resolved on a few resolver threads, so that a slow DNS lookup
+ * never holds up an event loop.
+ *
+ * Socket and TLS buffers are direct buffers taken from a BufferPool while a
+ * connection is busy and handed back when it goes idle, so idle keep-alive
+ * connections cost no buffer memory. Response bodies are copied out as they
+ * arrive; reading from a connection pauses while a caller has more than
+ * 256KB of its body unread. Request bodies which can be read are streamed
+ * while they're sent: files on the event loop, through a pooled buffer or,
+ * over plain HTTP, with FileChannel.transferTo straight into the socket, and
+ * streams and other channels, which may block, on a few body reader threads.
+ * Those of unknown length are sent chunked. Bodies which can only be written
+ * are buffered and sent with their length. Redirects
+ * within the same protocol are followed, as HttpURLConnection does.
+ */
+public class NioTransport implements Transport, Closeable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(NioTransport.class);
+
+	public static final Long DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000L;
+	public static final Long DEFAULT_READ_TIMEOUT_MILLIS = 30000L;
+	public static final Long DEFAULT_IDLE_TIMEOUT_MILLIS = 5000L;
+
+	private static final Integer MAX_REDIRECTS = 5;
+	private static final Integer MAX_HEAD_BYTES = 64 * 1024;
+	private static final Integer HIGH_WATER_BYTES = 256 * 1024;
+	private static final Integer LOW_WATER_BYTES = 64 * 1024;
+	private static final Long SWEEP_MILLIS = 250L;
+	private static final Long SELECT_BACKOFF_MILLIS = 10L;
+	private static final Integer MAX_SELECT_FAILURES = 3;
+	private static final Integer MAX_RESOLVER_THREADS = 4;
+	private static final Integer MAX_BODY_READER_THREADS = 16;
+	private static final Integer CHUNK_HEAD_BYTES = 10;
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+	private static final byte[] HEAD_END = { '\r', '\n', '\r', '\n' };
+	private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+	/**
+	 * A request sent through the NioTransport. The blocking Transport.Exchange
+	 * methods wait on the same futures sendAsync exposes.
+	 */
+	public static final class NioExchange implements Transport.Exchange {
+
+		private final NioTransport transport;
+		private final SSLContext sslContext;
+		private final RequestHeaders requestHeaders;
+		private final CompletableFuture<NioExchange> headersReceived = new CompletableFuture<NioExchange>();
+		private final ResponseBody body = new ResponseBody(this);
+		private final AtomicBoolean sent = new AtomicBoolean(false);
+		private URL url;
+		private String requestMethod;
+		private byte[] requestBody;
+		private RequestBody streamedBody;
+		private ReadableByteChannel bodyChannel;
+		private Integer redirects = 0;
+		private Boolean redirecting = false;
+		private Integer responseCode;
+		private String responseMessage;
+		private Map<String, List<String>> headerFields;
+		private volatile Connection connection = null;
+		private volatile Long connectedTime = null;
+		private volatile Long secureConnectedTime = null;
+		private volatile Long requestSentTime = null;
+
+		/**
+		 * @param requestBody
+		 *            Buffered body, or null
+		 * @param streamedBody
+		 *            Body read while it's sent, or null
+		 * @param bodyChannel
+		 *            Channel opened on the streamed body for its first send
+		 */
+		private NioExchange(NioTransport transport, URL url, String requestMethod, RequestHeaders requestHeaders,
+				byte[] requestBody, RequestBody streamedBody, ReadableByteChannel bodyChannel,
+				SSLContext sslContext) {
+			this.transport = transport;
+			this.url = url;
+			this.requestMethod = requestMethod;
+			this.requestHeaders = (requestHeaders != null) ? requestHeaders : RequestHeaders.EMPTY;
+			this.requestBody = requestBody;
+			this.streamedBody = streamedBody;
+			this.bodyChannel = bodyChannel;
+			this.sslContext = sslContext;
+		}
+
+		/**
+		 * @return Future completed once the response headers have arrived
+		 */
+		public CompletableFuture<NioExchange> getResponseHeaders() {
+			return this.headersReceived;
+		}
+
+		/**
+		 * Sends the request and keeps reading until the whole response has
+		 * arrived, so it can then be read without blocking
+		 *
+		 * @return Future completed once the response body has arrived in full
+		 */
+		@Override
+		public CompletableFuture<NioExchange> sendAsync() {
+			CompletableFuture<Void> bodyReceived = this.body.buffer();
+			this.send();
+			return this.headersReceived.thenCompose(exchange -> bodyReceived).thenApply(received -> this);
+		}
+
+		/**
+		 * Collects the response body instead of streaming it
+		 *
+		 * @return Future completed with the body once it has arrived in full
+		 */
+		public CompletableFuture<byte[]> readFully() {
+			return this.body.readFully();
+		}
+
+		public URL getURL() {
+			return this.url;
+		}
+
+		/**
+		 * Connects while the request is sent
+		 */
+		@Override
+		public void connect() {
+		}
+
+		@Override
+		public void send() {
+			if (this.sent.compareAndSet(false, true)) {
+				this.transport.dispatch(this, true);
+			}
+		}
+
+		@Override
+		public Integer getResponseCode() throws IOException {
+			this.await();
+			return this.responseCode;
+		}
+
+		@Override
+		public String getResponseMessage() throws IOException {
+			this.await();
+			return this.responseMessage;
+		}
+
+		@Override
+		public Map<String, List<String>> getHeaderFields() {
+			return this.headerFields;
+		}
+
+		@Override
+		public InputStream getResponseBody() {
+			return this.body;
+		}
+
+		@Override
+		public Long getConnectedTime() {
+			return this.connectedTime;
+		}
+
+		@Override
+		public Long getSecureConnectedTime() {
+			return this.secureConnectedTime;
+		}
+
+		@Override
+		public Long getRequestSentTime() {
+			return this.requestSentTime;
+		}
+
+		@Override
+		public void close() {
+			this.body.close();
+		}
+
+		private void await() throws IOException {
+			try {
+				this.headersReceived.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for the response.");
+			} catch (ExecutionException e) {
+				throw (e.getCause() instanceof IOException) ? (IOException) e.getCause() : new IOException(e.getCause());
+			}
+		}
+
+		/**
+		 * Encodes the request line, headers and body
+		 */
+		private ByteBuffer encode() {
+			StringBuilder head = new StringBuilder(256);
+			String target = this.url.getFile();
+			head.append(this.requestMethod).append(' ').append(target.isEmpty() ? "/" : target).append(" HTTP/1.1\r\n");
+			head.append("Host: ").append(this.url.getHost());
+			if (this.url.getPort() != -1 && this.url.getPort() != this.url.getDefaultPort()) {
+				head.append(':').append(this.url.getPort());
+			}
+			head.append("\r\n");
+			this.requestHeaders.forEach((name, value) -> {
+				// Framing headers are set from the body below
+				if (!name.equalsIgnoreCase("Host") && !name.equalsIgnoreCase("Content-Length")
+						&& !name.equalsIgnoreCase("Transfer-Encoding") && !name.equalsIgnoreCase("Connection")) {
+					head.append(name).append(": ").append(value).append("\r\n");
+				}
+			});
+			if (this.requestHeaders.get("Accept") == null) {
+				head.append("Accept: */*\r\n");
+			}
+			if (this.requestHeaders.get("User-Agent") == null) {
+				head.append("User-Agent: Java/").append(System.getProperty("java.version")).append("\r\n");
+			}
+			if (this.requestBody != null) {
+				head.append("Content-Length: ").append(this.requestBody.length).append("\r\n");
+			} else if (this.streamedBody != null && this.streamedBody.getContentLength() < 0) {
+				head.append("Transfer-Encoding: chunked\r\n");
+			} else if (this.streamedBody != null) {
+				head.append("Content-Length: ").append(this.streamedBody.getContentLength()).append("\r\n");
+			} else if (this.requestMethod.equals("POST") || this.requestMethod.equals("PUT")
+					|| this.requestMethod.equals("PATCH")) {
+				head.append("Content-Length: 0\r\n");
+			}
+			head.append("\r\n");
+
+			byte[] encodedHead = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+			int length = encodedHead.length + ((this.requestBody != null) ? this.requestBody.length : 0);
+			ByteBuffer request = ByteBuffer.allocate(length);
+			request.put(encodedHead);
+			if (this.requestBody != null) {
+				request.put(this.requestBody);
+			}
+			request.flip();
+			return request;
+		}
+
+		/**
+		 * @return Channel to send the streamed body from, never blocking the
+		 *         event loop, or null if it has none
+		 * @throws IOException
+		 *             Thrown if the body was sent before and can't be read again
+		 */
+		private ReadableByteChannel openBody() throws IOException {
+			if (this.streamedBody == null) {
+				return null;
+			}
+			ReadableByteChannel channel = this.bodyChannel;
+			this.bodyChannel = null;
+			if (channel == null) {
+				if (!this.streamedBody.isRepeatable()) {
+					throw new IOException("The request body can't be sent again.");
+				}
+				channel = this.streamedBody.openChannel();
+			}
+			// Only files are read on the event loop, other channels may block
+			return (channel instanceof RequestBody.TransferableChannel) ? channel
+					: this.transport.new BodyPump(channel);
+		}
+
+		/**
+		 * @return Whether the request can be sent again
+		 */
+		private Boolean isResendable() {
+			return this.streamedBody == null || this.bodyChannel != null || this.streamedBody.isRepeatable();
+		}
+
+		/**
+		 * Closes the channel of a streamed body which was never sent
+		 */
+		private void closeBody() {
+			if (this.bodyChannel != null) {
+				try {
+					this.bodyChannel.close();
+				} catch (IOException e) {
+					LOGGER.warn("The request body could not be closed.", e);
+				}
+				this.bodyChannel = null;
+			}
+		}
+
+		/**
+		 * Prepares to follow the response's redirect, if it should be
+		 *
+		 * @return Whether the response is a redirect which will be followed
+		 */
+		private Boolean redirect(Integer responseCode, Map<String, List<String>> headerFields) {
+			List<String> location = headerFields.get("Location");
+			if (location == null || location.isEmpty() || this.redirects >= MAX_REDIRECTS
+					|| (responseCode != 301 && responseCode != 302 && responseCode != 303 && responseCode != 307
+							&& responseCode != 308)) {
+				return false;
+			}
+			URL target;
+			try {
+				target = new URL(this.url, location.get(0));
+			} catch (MalformedURLException e) {
+				return false;
+			}
+			if (!target.getProtocol().equals(this.url.getProtocol())) {
+				return false;
+			}
+			Boolean toGet = responseCode == 303 || ((responseCode == 301 || responseCode == 302)
+					&& !this.requestMethod.equals("GET") && !this.requestMethod.equals("HEAD"));
+			if (!toGet && !this.isResendable()) {
+				return false;
+			}
+			this.url = target;
+			this.redirects++;
+			if (toGet) {
+				this.requestMethod = "GET";
+				this.requestBody = null;
+				this.streamedBody = null;
+			}
+			this.redirecting = true;
+			return true;
+		}
+
+		private void responseHeaders(Integer responseCode, String responseMessage,
+				Map<String, List<String>> headerFields) {
+			this.responseCode = responseCode;
+			this.responseMessage = responseMessage;
+			this.headerFields = headerFields;
+			this.headersReceived.complete(this);
+		}
+
+		private void completed() {
+			if (this.redirecting) {
+				this.redirecting = false;
+				this.transport.dispatch(this, true);
+			} else {
+				this.body.end();
+			}
+		}
+
+		private void failed(Throwable failure) {
+			IOException exception = (failure instanceof IOException) ? (IOException) failure : new IOException(failure);
+			this.closeBody();
+			this.headersReceived.completeExceptionally(exception);
+			this.body.fail(exception);
+		}
+
+		/**
+		 * Resumes reading a paused response
+		 */
+		private void resume() {
+			Connection connection = this.connection;
+			if (connection != null) {
+				connection.loop.execute(() -> connection.resume(this));
+			}
+		}
+
+		/**
+		 * Closes the connection of a response which won't be read to the end
+		 */
+		private void abort() {
+			Connection connection = this.connection;
+			if (connection != null) {
+				connection.loop.execute(() -> connection.abort(this));
+			}
+		}
+	}
+
+	/**
+	 * Response body handed from the event loop to the reading thread
+	 */
+	private static final class ResponseBody extends InputStream {
+
+		private final NioExchange exchange;
+		private final Deque<byte[]> chunks = new ArrayDeque<byte[]>();
+		private byte[] current = null;
+		private int position = 0;
+		private long queued = 0;
+		private boolean paused = false;
+		private boolean ended = false;
+		private boolean closed = false;
+		private IOException failure = null;
+		private CompletableFuture<byte[]> collected = null;
+		private CompletableFuture<Void> received = null;
+
+		private ResponseBody(NioExchange exchange) {
+			this.exchange = exchange;
+		}
+
+		/**
+		 * @return Whether the event loop should stop reading until resumed
+		 */
+		private synchronized Boolean offer(byte[] chunk) {
+			if (this.closed) {
+				return false;
+			}
+			this.chunks.add(chunk);
+			this.queued += chunk.length;
+			this.notifyAll();
+			if (this.collected == null && this.received == null && this.queued > HIGH_WATER_BYTES) {
+				this.paused = true;
+			}
+			return this.paused;
+		}
+
+		private synchronized void end() {
+			this.ended = true;
+			this.notifyAll();
+			if (this.collected != null) {
+				this.collected.complete(this.drain());
+			}
+			if (this.received != null) {
+				this.received.complete(null);
+			}
+		}
+
+		private synchronized void fail(IOException failure) {
+			if (this.ended) {
+				return;
+			}
+			this.failure = failure;
+			this.notifyAll();
+			if (this.collected != null) {
+				this.collected.completeExceptionally(failure);
+			}
+			if (this.received != null) {
+				this.received.completeExceptionally(failure);
+			}
+		}
+
+		/**
+		 * Keeps the whole body instead of pausing until it's read
+		 *
+		 * @return Future completed once the body has arrived in full
+		 */
+		private CompletableFuture<Void> buffer() {
+			Boolean resume;
+			CompletableFuture<Void> received;
+			synchronized (this) {
+				if (this.received == null) {
+					this.received = new CompletableFuture<Void>();
+					if (this.ended) {
+						this.received.complete(null);
+					} else if (this.failure != null) {
+						this.received.completeExceptionally(this.failure);
+					}
+				}
+				received = this.received;
+				resume = this.paused;
+				this.paused = false;
+			}
+			if (resume) {
+				this.exchange.resume();
+			}
+			return received;
+		}
+
+		private CompletableFuture<byte[]> readFully() {
+			Boolean resume;
+			CompletableFuture<byte[]> collected;
+			synchronized (this) {
+				if (this.collected == null) {
+					this.collected = new CompletableFuture<byte[]>();
+					if (this.ended) {
+						this.collected.complete(this.drain());
+					} else if (this.failure != null) {
+						this.collected.completeExceptionally(this.failure);
+					}
+				}
+				collected = this.collected;
+				resume = this.paused;
+				this.paused = false;
+			}
+			if (resume) {
+				this.exchange.resume();
+			}
+			return collected;
+		}
+
+		private byte[] drain() {
+			ByteArrayOutputStream body = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE, this.queued));
+			if (this.current != null) {
+				body.write(this.current, this.position, this.current.length - this.position);
+				this.current = null;
+			}
+			for (byte[] chunk : this.chunks) {
+				body.write(chunk, 0, chunk.length);
+			}
+			this.chunks.clear();
+			this.queued = 0;
+			return body.toByteArray();
+		}
+
+		/**
+		 * Waits for the next chunk
+		 *
+		 * @return Whether there's data to read, false at the end of the body
+		 */
+		private boolean next() throws IOException {
+			while (this.current == null || this.position == this.current.length) {
+				this.current = this.chunks.poll();
+				this.position = 0;
+				if (this.current != null) {
+					this.queued -= this.current.length;
+					if (this.paused && this.queued < LOW_WATER_BYTES) {
+						this.paused = false;
+						this.exchange.resume();
+					}
+				} else if (this.failure != null) {
+					throw new IOException(this.failure.getMessage(), this.failure);
+				} else if (this.ended || this.closed) {
+					return false;
+				} else {
+					try {
+						this.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted waiting for the response body.");
+					}
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public synchronized int read() throws IOException {
+			return this.next() ? this.current[this.position++] & 0xFF : -1;
+		}
+
+		@Override
+		public synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+			if (length == 0) {
+				return 0;
+			}
+			if (!this.next()) {
+				return -1;
+			}
+			int read = Math.min(length, this.current.length - this.position);
+			System.arraycopy(this.current, this.position, buffer, offset, read);
+			this.position += read;
+			return read;
+		}
+
+		@Override
+		public synchronized int available() {
+			return (int) Math.min(Integer.MAX_VALUE,
+					this.queued + ((this.current != null) ? this.current.length - this.position : 0));
+		}
+
+		@Override
+		public void close() {
+			synchronized (this) {
+				if (this.closed) {
+					return;
+				}
+				this.closed = true;
+				this.chunks.clear();
+				this.current = null;
+				this.notifyAll();
+				if (this.ended || this.failure != null) {
+					return;
+				}
+			}
+			this.exchange.abort();
+		}
+	}
+
+	/**
+	 * Request body channel read ahead on a body reader thread, so that the
+	 * event loop never waits on it. It reads into one buffer while the event
+	 * loop sends the other.
+	 */
+	private final class BodyPump implements ReadableByteChannel {
+
+		private final ReadableByteChannel source;
+		private final Deque<ByteBuffer> filled = new ArrayDeque<ByteBuffer>();
+		private final Deque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+		private Runnable onReady = null;
+		private boolean filling = false;
+		private boolean ended = false;
+		private boolean closed = false;
+		private boolean sourceClosed = false;
+		private IOException failure = null;
+
+		private BodyPump(ReadableByteChannel source) {
+			this.source = source;
+			this.free.add(ByteBuffer.allocate(NioTransport.this.bufferSize));
+			this.free.add(ByteBuffer.allocate(NioTransport.this.bufferSize));
+		}
+
+		/**
+		 * Starts reading ahead
+		 *
+		 * @param onReady
+		 *            Called, on the body reader thread, each time more of the
+		 *            body is ready or it has failed
+		 */
+		private synchronized void start(Runnable onReady) {
+			this.onReady = onReady;
+			this.fill();
+		}
+
+		/**
+		 * Reads into a free buffer on a body reader thread, unless one is being
+		 * read into already
+		 */
+		private synchronized void fill() {
+			if (this.filling || this.ended || this.closed || this.failure != null || this.free.isEmpty()) {
+				return;
+			}
+			ByteBuffer buffer = this.free.poll();
+			this.filling = true;
+			try {
+				NioTransport.this.bodyReaders.execute(() -> this.read(buffer, this.onReady));
+			} catch (RejectedExecutionException e) {
+				this.filling = false;
+				this.failure = new IOException("The transport was closed.", e);
+			}
+		}
+
+		/**
+		 * Fills the buffer from the source, on a body reader thread
+		 */
+		private void read(ByteBuffer buffer, Runnable onReady) {
+			int read = 0;
+			IOException failure = null;
+			buffer.clear();
+			try {
+				while (buffer.hasRemaining() && (read = this.source.read(buffer)) > 0) {
+				}
+			} catch (IOException | RuntimeException e) {
+				failure = (e instanceof IOException) ? (IOException) e : new IOException(e);
+			}
+			buffer.flip();
+			synchronized (this) {
+				this.filling = false;
+				if (this.closed) {
+					this.closeSource();
+					return;
+				}
+				if (failure != null) {
+					this.failure = failure;
+				} else {
+					(buffer.hasRemaining() ? this.filled : this.free).add(buffer);
+					this.ended = read < 0;
+				}
+				if (this.ended || this.failure != null) {
+					this.closeSource();
+				}
+				this.fill();
+			}
+			onReady.run();
+		}
+
+		/**
+		 * Copies out what has been read ahead, without blocking
+		 *
+		 * @return Number of bytes copied, 0 if none are ready yet, or -1 at the
+		 *         end of the body
+		 */
+		@Override
+		public synchronized int read(ByteBuffer target) throws IOException {
+			if (this.closed) {
+				throw new ClosedChannelException();
+			}
+			ByteBuffer buffer = this.filled.peek();
+			if (buffer == null) {
+				if (this.failure != null) {
+					throw new IOException(this.failure.getMessage(), this.failure);
+				}
+				return this.ended ? -1 : 0;
+			}
+			int length = Math.min(buffer.remaining(), target.remaining());
+			ByteBuffer slice = buffer.duplicate();
+			slice.limit(slice.position() + length);
+			target.put(slice);
+			buffer.position(buffer.position() + length);
+			if (!buffer.hasRemaining()) {
+				this.free.add(this.filled.poll());
+				this.fill();
+			}
+			return length;
+		}
+
+		@Override
+		public synchronized boolean isOpen() {
+			return !this.closed;
+		}
+
+		/**
+		 * Closes the source, once it's no longer being read if it is
+		 */
+		@Override
+		public synchronized void close() {
+			this.closed = true;
+			this.filled.clear();
+			if (!this.filling) {
+				this.closeSource();
+			}
+		}
+
+		private void closeSource() {
+			if (this.sourceClosed) {
+				return;
+			}
+			this.sourceClosed = true;
+			try {
+				this.source.close();
+			} catch (IOException e) {
+				LOGGER.warn("The request body could not be closed.", e);
+			}
+		}
+	}
+
+	private static enum Phase {
+		CONNECTING, HANDSHAKING, WRITING, READING, IDLE, CLOSED
+	}
+
+	private static enum Framing {
+		HEAD, LENGTH, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILER, UNTIL_CLOSE
+	}
+
+	/**
+	 * Selector thread serving a share of the connections. Connection state is
+	 * only ever touched on its event loop's thread.
+	 */
+	private final class EventLoop implements Runnable {
+
+		private volatile Selector selector;
+		private final Thread thread;
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		private final Set<Connection> connections = new HashSet<Connection>();
+		private long sweptAt = System.nanoTime();
+		private int selectFailures = 0;
+
+		private EventLoop(Integer index) throws IOException {
+			this.selector = Selector.open();
+			this.thread = new Thread(this, "nio-transport-" + index);
+			this.thread.setDaemon(true);
+		}
+
+		private void execute(Runnable task) {
+			this.tasks.add(task);
+			this.selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while (!NioTransport.this.closed) {
+				try {
+					this.selector.select(SWEEP_MILLIS);
+					this.selectFailures = 0;
+				} catch (IOException e) {
+					this.selectFailed(e);
+					continue;
+				}
+				Runnable task;
+				while ((task = this.tasks.poll()) != null) {
+					task.run();
+				}
+				Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (key.isValid()) {
+						((Connection) key.attachment()).ready();
+					}
+				}
+				if (System.nanoTime() - this.sweptAt > SWEEP_MILLIS * 1000000L) {
+					this.sweep();
+				}
+			}
+			for (Connection connection : new ArrayList<Connection>(this.connections)) {
+				connection.fail(new IOException("The transport was closed."));
+			}
+			try {
+				this.selector.close();
+			} catch (IOException e) {
+				LOGGER.warn("The selector could not be closed.", e);
+			}
+		}
+
+		/**
+		 * Backs off after a failed select, so a broken selector doesn't spin
+		 * the thread, and replaces the selector once it has failed repeatedly,
+		 * failing the connections registered with it
+		 */
+		private void selectFailed(IOException failure) {
+			this.selectFailures++;
+			if (this.selectFailures < MAX_SELECT_FAILURES) {
+				LOGGER.warn("The selector failed, retrying.", failure);
+				this.pause(SELECT_BACKOFF_MILLIS << this.selectFailures);
+				return;
+			}
+			LOGGER.warn("The selector failed {} times in a row, replacing it.", this.selectFailures, failure);
+			for (Connection connection : new ArrayList<Connection>(this.connections)) {
+				connection.fail(new IOException("The transport's selector failed.", failure));
+			}
+			try {
+				this.selector.close();
+			} catch (IOException e) {
+				LOGGER.warn("The selector could not be closed.", e);
+			}
+			while (!NioTransport.this.closed) {
+				try {
+					this.selector = Selector.open();
+					this.selectFailures = 0;
+					return;
+				} catch (IOException e) {
+					LOGGER.warn("A new selector could not be opened, retrying.", e);
+					this.pause(SELECT_BACKOFF_MILLIS << MAX_SELECT_FAILURES);
+				}
+			}
+		}
+
+		private void pause(Long millis) {
+			try {
+				Thread.sleep(millis);
+			} catch (InterruptedException e) {
+				// The loop is stopped by closing the transport, an interrupt would
+				// only make every select return at once
+			}
+		}
+
+		/**
+		 * Closes connections which have been idle, or waiting on the host, for
+		 * too long
+		 */
+		private void sweep() {
+			long now = System.nanoTime();
+			this.sweptAt = now;
+			for (Connection connection : new ArrayList<Connection>(this.connections)) {
+				connection.expire(now);
+			}
+		}
+	}
+
+	/**
+	 * A single keep-alive connection, carrying one exchange at a time
+	 */
+	private final class Connection {
+
+		private final EventLoop loop;
+		private final String route;
+		private final SocketChannel channel;
+		private final SSLEngine engine;
+		private final AtomicBoolean idle = new AtomicBoolean(false);
+		private SelectionKey key = null;
+		private Phase phase = Phase.CONNECTING;
+		private ByteBuffer netIn = null;
+		private ByteBuffer netOut = null;
+		private ByteBuffer appIn = null;
+		private ByteBuffer request = null;
+		private ReadableByteChannel body = null;
+		private ByteBuffer bodyBuffer = null;
+		private long bodyRemaining = 0;
+		private Boolean chunked = false;
+		private NioExchange exchange = null;
+		private Boolean reused = false;
+		private Boolean responseStarted = false;
+		private Boolean paused = false;
+		private Boolean closedByPeer = false;
+		private long activeAt = System.nanoTime();
+
+		private Framing framing = Framing.HEAD;
+		private final ByteArrayOutputStream head = new ByteArrayOutputStream(512);
+		private final StringBuilder line = new StringBuilder();
+		private Boolean lineComplete = false;
+		private int headEndMatched = 0;
+		private long remaining = 0;
+		private Boolean keepAlive = true;
+
+		private Connection(EventLoop loop, String route, SSLEngine engine) throws IOException {
+			this.loop = loop;
+			this.route = route;
+			this.engine = engine;
+			this.channel = SocketChannel.open();
+		}
+
+		/**
+		 * Connects, then sends the exchange
+		 */
+		private void open(InetSocketAddress address, NioExchange exchange) {
+			try {
+				this.channel.configureBlocking(false);
+				this.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				this.key = this.channel.register(this.loop.selector, 0, this);
+				this.loop.connections.add(this);
+				NioTransport.this.open.incrementAndGet();
+				this.channel.connect(address);
+			} catch (IOException | RuntimeException e) {
+				this.exchange = exchange;
+				this.fail(e);
+				return;
+			}
+			this.start(exchange);
+		}
+
+		/**
+		 * Claims an idle connection for a new exchange
+		 *
+		 * @return Whether the connection was still idle
+		 */
+		private Boolean claim() {
+			return this.idle.compareAndSet(true, false);
+		}
+
+		private void start(NioExchange exchange) {
+			if (this.phase == Phase.CLOSED) {
+				// Closed by the host between being claimed and started
+				NioTransport.this.dispatch(exchange, false);
+				return;
+			}
+			this.exchange = exchange;
+			exchange.connection = this;
+			try {
+				this.body = exchange.openBody();
+			} catch (IOException e) {
+				this.fail(e);
+				return;
+			}
+			this.bodyRemaining = (this.body != null) ? exchange.streamedBody.getContentLength() : 0;
+			this.chunked = this.bodyRemaining < 0;
+			if (this.body instanceof BodyPump) {
+				ReadableByteChannel body = this.body;
+				((BodyPump) body).start(() -> this.loop.execute(() -> this.bodyReady(body)));
+			}
+			this.netOut = NioTransport.this.acquireBuffer();
+			this.appIn = NioTransport.this.acquireBuffer();
+			if (this.engine != null) {
+				this.netIn = NioTransport.this.acquireBuffer();
+			}
+			this.request = exchange.encode();
+			this.responseStarted = false;
+			this.paused = false;
+			this.framing = Framing.HEAD;
+			this.head.reset();
+			this.headEndMatched = 0;
+			this.activeAt = System.nanoTime();
+			if (this.phase == Phase.IDLE) {
+				this.phase = Phase.WRITING;
+				exchange.connectedTime = this.activeAt;
+				exchange.secureConnectedTime = null;
+			}
+			this.pump();
+		}
+
+		/**
+		 * The channel is ready for the operation the connection is waiting on
+		 */
+		private void ready() {
+			if (this.phase == Phase.IDLE) {
+				// An idle connection only becomes readable when the host closes it
+				if (this.claim()) {
+					this.close();
+				}
+				return;
+			}
+			this.pump();
+		}
+
+		/**
+		 * More of a body read on a body reader thread is ready to be sent
+		 */
+		private void bodyReady(ReadableByteChannel body) {
+			if (this.body == body && this.phase == Phase.WRITING) {
+				this.pump();
+			}
+		}
+
+		/**
+		 * Moves the exchange on as far as the channel allows without blocking
+		 */
+		private void pump() {
+			try {
+				if (this.phase == Phase.CONNECTING) {
+					if (!this.channel.finishConnect()) {
+						this.interest(SelectionKey.OP_CONNECT);
+						return;
+					}
+					this.activeAt = System.nanoTime();
+					if (this.engine != null) {
+						this.engine.beginHandshake();
+						this.phase = Phase.HANDSHAKING;
+					} else {
+						this.phase = Phase.WRITING;
+						this.exchange.connectedTime = this.activeAt;
+						this.exchange.secureConnectedTime = null;
+					}
+				}
+				if (this.phase == Phase.HANDSHAKING) {
+					if (!this.handshake()) {
+						return;
+					}
+					this.phase = Phase.WRITING;
+					this.exchange.connectedTime = System.nanoTime();
+					this.exchange.secureConnectedTime = this.exchange.connectedTime;
+				}
+				if (this.phase == Phase.WRITING) {
+					if (!this.write()) {
+						return;
+					}
+					this.phase = Phase.READING;
+					this.exchange.requestSentTime = this.activeAt;
+				}
+				if (this.phase == Phase.READING) {
+					this.read();
+				}
+			} catch (IOException | RuntimeException e) {
+				this.fail(e);
+			}
+		}
+
+		private void interest(Integer operations) {
+			if (this.key.interestOps() != operations) {
+				this.key.interestOps(operations);
+			}
+		}
+
+		/**
+		 * @return Whether the handshake has completed
+		 */
+		private Boolean handshake() throws IOException {
+			while (true) {
+				switch (this.engine.getHandshakeStatus()) {
+				case NEED_TASK:
+					this.runDelegatedTasks();
+					break;
+				case NEED_WRAP:
+					SSLEngineResult result = this.engine.wrap(EMPTY, this.netOut);
+					if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+						throw new EOFException("The host closed the connection during the TLS handshake.");
+					}
+					if (!this.flush()) {
+						this.interest(SelectionKey.OP_WRITE);
+						return false;
+					}
+					break;
+				case FINISHED:
+				case NOT_HANDSHAKING:
+					return true;
+				default:
+					this.netIn.flip();
+					try {
+						result = this.engine.unwrap(this.netIn, this.appIn);
+					} finally {
+						this.netIn.compact();
+					}
+					if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+						throw new EOFException("The host closed the connection during the TLS handshake.");
+					}
+					if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+						int read = this.channel.read(this.netIn);
+						if (read < 0) {
+							throw new EOFException("The host closed the connection during the TLS handshake.");
+						} else if (read == 0) {
+							this.interest(SelectionKey.OP_READ);
+							return false;
+						}
+						this.activeAt = System.nanoTime();
+					}
+					break;
+				}
+			}
+		}
+
+		/**
+		 * Runs the engine's certificate checks and key computations on the event
+		 * loop, they're short compared to a round trip
+		 */
+		private void runDelegatedTasks() {
+			Runnable task;
+			while ((task = this.engine.getDelegatedTask()) != null) {
+				task.run();
+			}
+		}
+
+		/**
+		 * Writes out whatever is waiting in the network buffer
+		 *
+		 * @return Whether everything was written
+		 */
+		private Boolean flush() throws IOException {
+			this.netOut.flip();
+			try {
+				while (this.netOut.hasRemaining()) {
+					if (this.channel.write(this.netOut) == 0) {
+						return false;
+					}
+				}
+				return true;
+			} finally {
+				this.netOut.compact();
+			}
+		}
+
+		/**
+		 * @return Whether the whole request has been written
+		 */
+		private Boolean write() throws IOException {
+			while (true) {
+				if (!this.flush()) {
+					this.interest(SelectionKey.OP_WRITE);
+					return false;
+				}
+				if (!this.request.hasRemaining()) {
+					if (this.bodyRemaining == 0) {
+						this.request = null;
+						this.closeBody();
+						this.activeAt = System.nanoTime();
+						return true;
+					}
+					if (this.engine == null && !this.chunked && this.body instanceof RequestBody.TransferableChannel) {
+						// Nothing is waiting in netOut once it's been flushed, so
+						// the body can go straight into the socket
+						Long transferred = ((RequestBody.TransferableChannel) this.body)
+								.transferTo(this.bodyRemaining, this.channel);
+						if (transferred < 0) {
+							throw new EOFException("The request body ended " + this.bodyRemaining + " bytes early.");
+						} else if (transferred == 0) {
+							this.interest(SelectionKey.OP_WRITE);
+							return false;
+						}
+						this.bodyRemaining -= transferred;
+						this.activeAt = System.nanoTime();
+						continue;
+					}
+					this.request = this.chunked ? this.readChunk() : this.readBody();
+					if (!this.request.hasRemaining()) {
+						// The body reader resumes the exchange once it has more
+						this.interest(0);
+						return false;
+					}
+				}
+				if (this.engine != null) {
+					if (this.engine.wrap(this.request, this.netOut).getStatus() == SSLEngineResult.Status.CLOSED) {
+						throw new EOFException("The host closed the connection.");
+					}
+				} else {
+					int length = Math.min(this.request.remaining(), this.netOut.remaining());
+					ByteBuffer slice = this.request.duplicate();
+					slice.limit(slice.position() + length);
+					this.netOut.put(slice);
+					this.request.position(this.request.position() + length);
+				}
+			}
+		}
+
+		/**
+		 * Reads the next part of the streamed body into the body buffer
+		 *
+		 * @return Body buffer, ready to be written
+		 */
+		private ByteBuffer readBody() throws IOException {
+			if (this.bodyBuffer == null) {
+				this.bodyBuffer = NioTransport.this.acquireBuffer();
+			}
+			this.bodyBuffer.clear();
+			if (this.bodyBuffer.remaining() > this.bodyRemaining) {
+				this.bodyBuffer.limit((int) this.bodyRemaining);
+			}
+			int read = this.body.read(this.bodyBuffer);
+			if (read < 0) {
+				throw new EOFException("The request body ended " + this.bodyRemaining + " bytes early.");
+			}
+			this.bodyRemaining -= read;
+			this.activeAt = System.nanoTime();
+			this.bodyBuffer.flip();
+			return this.bodyBuffer;
+		}
+
+		/**
+		 * Reads the next part of a body of unknown length into the body buffer,
+		 * framed as a chunk, or the last chunk at the end of the body
+		 *
+		 * @return Body buffer, ready to be written
+		 */
+		private ByteBuffer readChunk() throws IOException {
+			if (this.bodyBuffer == null) {
+				this.bodyBuffer = NioTransport.this.acquireBuffer();
+			}
+			// Room for the chunk size in front and the CRLF behind
+			this.bodyBuffer.clear();
+			this.bodyBuffer.position(CHUNK_HEAD_BYTES).limit(this.bodyBuffer.capacity() - 2);
+			int read = this.body.read(this.bodyBuffer);
+			this.activeAt = System.nanoTime();
+			if (read < 0) {
+				this.bodyRemaining = 0;
+				this.bodyBuffer.clear();
+				this.bodyBuffer.put(LAST_CHUNK).flip();
+				return this.bodyBuffer;
+			}
+			if (read == 0) {
+				this.bodyBuffer.limit(0);
+				return this.bodyBuffer;
+			}
+			this.bodyBuffer.limit(this.bodyBuffer.capacity());
+			this.bodyBuffer.put((byte) '\r').put((byte) '\n');
+			int end = this.bodyBuffer.position();
+			byte[] size = (Integer.toHexString(read) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+			this.bodyBuffer.position(CHUNK_HEAD_BYTES - size.length);
+			this.bodyBuffer.put(size);
+			this.bodyBuffer.position(CHUNK_HEAD_BYTES - size.length).limit(end);
+			return this.bodyBuffer;
+		}
+
+		/**
+		 * Closes the streamed body and hands back its buffer
+		 */
+		private void closeBody() {
+			if (this.body != null) {
+				try {
+					this.body.close();
+				} catch (IOException e) {
+					LOGGER.warn("The request body could not be closed.", e);
+				}
+				this.body = null;
+			}
+			NioTransport.this.buffers.releaseDirect(this.bodyBuffer);
+			this.bodyBuffer = null;
+			this.bodyRemaining = 0;
+			this.chunked = false;
+		}
+
+		private void read() throws IOException {
+			while (!this.paused) {
+				int read = this.channel.read((this.engine != null) ? this.netIn : this.appIn);
+				if (read > 0) {
+					this.responseStarted = true;
+					this.activeAt = System.nanoTime();
+				}
+				if ((this.engine != null) ? this.unwrap() : this.deliver()) {
+					this.complete();
+					return;
+				}
+				if (read < 0 || this.closedByPeer) {
+					this.endOfStream();
+					return;
+				} else if (read == 0) {
+					this.interest(SelectionKey.OP_READ);
+					return;
+				}
+			}
+			this.interest(0);
+		}
+
+		/**
+		 * Decrypts the records read so far and parses them
+		 *
+		 * @return Whether the response is complete
+		 */
+		private Boolean unwrap() throws IOException {
+			this.netIn.flip();
+			try {
+				while (this.netIn.hasRemaining()) {
+					SSLEngineResult result = this.engine.unwrap(this.netIn, this.appIn);
+					if (this.engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+						this.runDelegatedTasks();
+					}
+					if (this.engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+						// Post-handshake messages, such as a TLS 1.3 key update
+						this.engine.wrap(EMPTY, this.netOut);
+						this.flush();
+					}
+					if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+						break;
+					} else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+						this.closedByPeer = true;
+						break;
+					} else if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+						if (this.appIn.position() == 0) {
+							throw new IOException("A TLS record was larger than the transport's buffers.");
+						}
+						if (this.deliver()) {
+							return true;
+						}
+					}
+				}
+			} finally {
+				this.netIn.compact();
+			}
+			return this.deliver();
+		}
+
+		/**
+		 * Parses the decrypted bytes
+		 *
+		 * @return Whether the response is complete
+		 */
+		private Boolean deliver() throws IOException {
+			this.appIn.flip();
+			try {
+				return this.parse(this.appIn);
+			} finally {
+				this.appIn.compact();
+			}
+		}
+
+		/**
+		 * Incrementally parses the response, handing body bytes to the exchange
+		 *
+		 * @return Whether the response is complete
+		 */
+		private Boolean parse(ByteBuffer data) throws IOException {
+			while (data.hasRemaining()) {
+				switch (this.framing) {
+				case HEAD:
+					while (data.hasRemaining() && this.headEndMatched < HEAD_END.length) {
+						byte value = data.get();
+						this.head.write(value);
+						this.headEndMatched = (value == HEAD_END[this.headEndMatched]) ? this.headEndMatched + 1
+								: (value == '\r') ? 1 : 0;
+					}
+					if (this.headEndMatched < HEAD_END.length) {
+						if (this.head.size() > MAX_HEAD_BYTES) {
+							throw new IOException("The response headers are too large.");
+						}
+						return false;
+					}
+					if (this.parseHead()) {
+						return true;
+					}
+					break;
+				case LENGTH:
+					this.body(data, (int) Math.min(this.remaining, data.remaining()));
+					if (this.remaining == 0) {
+						return true;
+					}
+					break;
+				case CHUNK_SIZE:
+					if (this.readLine(data)) {
+						String size = this.line.toString();
+						int extension = size.indexOf(';');
+						try {
+							this.remaining = Long.parseLong(
+									((extension >= 0) ? size.substring(0, extension) : size).trim(), 16);
+						} catch (NumberFormatException e) {
+							throw new IOException("Invalid chunk size: " + size);
+						}
+						this.framing = (this.remaining == 0) ? Framing.TRAILER : Framing.CHUNK_DATA;
+					}
+					break;
+				case CHUNK_DATA:
+					this.body(data, (int) Math.min(this.remaining, data.remaining()));
+					if (this.remaining == 0) {
+						this.framing = Framing.CHUNK_END;
+					}
+					break;
+				case CHUNK_END:
+					if (this.readLine(data)) {
+						this.framing = Framing.CHUNK_SIZE;
+					}
+					break;
+				case TRAILER:
+					if (this.readLine(data) && this.line.length() == 0) {
+						return true;
+					}
+					break;
+				case UNTIL_CLOSE:
+					this.body(data, data.remaining());
+					break;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Reads a CRLF terminated line into line, without the line ending
+		 *
+		 * @return Whether the whole line has been read
+		 */
+		private Boolean readLine(ByteBuffer data) throws IOException {
+			if (this.lineComplete) {
+				this.line.setLength(0);
+				this.lineComplete = false;
+			}
+			while (data.hasRemaining()) {
+				char value = (char) (data.get() & 0xFF);
+				if (value == '\n') {
+					if (this.line.length() > 0 && this.line.charAt(this.line.length() - 1) == '\r') {
+						this.line.setLength(this.line.length() - 1);
+					}
+					this.lineComplete = true;
+					return true;
+				}
+				if (this.line.length() > MAX_HEAD_BYTES) {
+					throw new IOException("A chunk header is too large.");
+				}
+				this.line.append(value);
+			}
+			return false;
+		}
+
+		/**
+		 * Parses the status line and headers, and works out how the body is
+		 * framed
+		 *
+		 * @return Whether the response has no body and is complete
+		 */
+		private Boolean parseHead() throws IOException {
+			String[] lines = new String(this.head.toByteArray(), StandardCharsets.ISO_8859_1).split("\r\n");
+			this.head.reset();
+			this.headEndMatched = 0;
+			String[] status = lines[0].split(" ", 3);
+			Integer responseCode;
+			try {
+				responseCode = Integer.parseInt(status[1]);
+			} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+				throw new IOException("Invalid status line: " + lines[0]);
+			}
+			if (responseCode >= 100 && responseCode < 200) {
+				// Interim responses are followed by the actual response
+				return false;
+			}
+			Map<String, List<String>> headerFields = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+			for (int index = 1; index < lines.length; index++) {
+				int separator = lines[index].indexOf(':');
+				if (separator > 0) {
+					headerFields.computeIfAbsent(lines[index].substring(0, separator).trim(),
+							key -> new ArrayList<String>()).add(lines[index].substring(separator + 1).trim());
+				}
+			}
+
+			String connection = this.header(headerFields, "Connection");
+			this.keepAlive = status[0].equals("HTTP/1.1") ? !"close".equalsIgnoreCase(connection)
+					: "keep-alive".equalsIgnoreCase(connection);
+			String transferEncoding = this.header(headerFields, "Transfer-Encoding");
+			String contentLength = this.header(headerFields, "Content-Length");
+			Boolean noBody = this.exchange.requestMethod.equals("HEAD") || responseCode == 204 || responseCode == 304;
+			if (noBody) {
+				this.remaining = 0;
+			} else if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked")) {
+				this.framing = Framing.CHUNK_SIZE;
+				this.line.setLength(0);
+				this.lineComplete = false;
+			} else if (contentLength != null) {
+				try {
+					this.remaining = Long.parseLong(contentLength.trim());
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid Content-Length: " + contentLength);
+				}
+				this.framing = Framing.LENGTH;
+			} else {
+				this.framing = Framing.UNTIL_CLOSE;
+				this.keepAlive = false;
+			}
+
+			if (!this.exchange.redirect(responseCode, headerFields)) {
+				this.exchange.responseHeaders(responseCode, (status.length > 2) ? status[2] : "", headerFields);
+			}
+			return noBody || (this.framing == Framing.LENGTH && this.remaining == 0);
+		}
+
+		private String header(Map<String, List<String>> headerFields, String name) {
+			List<String> values = headerFields.get(name);
+			return (values != null && !values.isEmpty()) ? values.get(values.size() - 1) : null;
+		}
+
+		/**
+		 * Hands body bytes to the exchange, or skips them if it's following a
+		 * redirect
+		 */
+		private void body(ByteBuffer data, Integer length) {
+			if (this.framing != Framing.UNTIL_CLOSE) {
+				this.remaining -= length;
+			}
+			if (this.exchange.redirecting) {
+				data.position(data.position() + length);
+				return;
+			}
+			byte[] chunk = new byte[length];
+			data.get(chunk);
+			if (this.exchange.body.offer(chunk)) {
+				this.paused = true;
+			}
+		}
+
+		private void resume(NioExchange exchange) {
+			if (this.exchange == exchange && this.paused) {
+				this.paused = false;
+				this.activeAt = System.nanoTime();
+				this.pump();
+			}
+		}
+
+		private void abort(NioExchange exchange) {
+			if (this.exchange == exchange) {
+				this.close();
+			}
+		}
+
+		private void endOfStream() throws IOException {
+			if (this.framing == Framing.UNTIL_CLOSE) {
+				this.keepAlive = false;
+				this.complete();
+				return;
+			}
+			throw new EOFException("The host closed the connection before the response was complete.");
+		}
+
+		/**
+		 * Finishes the exchange, keeping the connection for reuse if the host
+		 * allows it
+		 */
+		private void complete() {
+			NioExchange exchange = this.exchange;
+			this.exchange = null;
+			exchange.connection = null;
+			Boolean reusable = this.keepAlive && !this.closedByPeer && this.appIn.position() == 0
+					&& (this.netIn == null || this.netIn.position() == 0);
+			if (reusable) {
+				this.release();
+				this.phase = Phase.IDLE;
+				this.reused = true;
+				this.activeAt = System.nanoTime();
+				this.interest(SelectionKey.OP_READ);
+				this.idle.set(true);
+				NioTransport.this.idleConnections(this.route).offerFirst(this);
+			} else {
+				this.close();
+			}
+			exchange.completed();
+		}
+
+		/**
+		 * Fails the exchange, or sends it again on a new connection if this
+		 * reused connection had been closed by the host before answering
+		 */
+		private void fail(Throwable failure) {
+			NioExchange exchange = this.exchange;
+			Boolean retry = this.reused && !this.responseStarted && exchange != null && exchange.isResendable();
+			this.close();
+			if (exchange == null) {
+				return;
+			}
+			exchange.connection = null;
+			if (retry) {
+				NioTransport.this.dispatch(exchange, false);
+			} else {
+				exchange.failed(failure);
+			}
+		}
+
+		/**
+		 * Fails an exchange which has waited on the host for too long, and
+		 * closes an idle connection after the idle timeout
+		 */
+		private void expire(long now) {
+			if (this.phase == Phase.IDLE) {
+				if (now - this.activeAt > NioTransport.this.idleTimeoutMillis * 1000000L && this.claim()) {
+					this.close();
+				}
+			} else if (!this.paused && this.exchange != null) {
+				Long timeout = (this.phase == Phase.CONNECTING || this.phase == Phase.HANDSHAKING)
+						? NioTransport.this.connectTimeoutMillis
+						: NioTransport.this.readTimeoutMillis;
+				if (now - this.activeAt > timeout * 1000000L) {
+					this.reused = false;
+					this.fail(new SocketTimeoutException(
+							"No response from " + this.route + " within " + timeout + "ms."));
+				}
+			}
+		}
+
+		private void release() {
+			this.closeBody();
+			NioTransport.this.buffers.releaseDirect(this.netIn);
+			NioTransport.this.buffers.releaseDirect(this.netOut);
+			NioTransport.this.buffers.releaseDirect(this.appIn);
+			this.netIn = null;
+			this.netOut = null;
+			this.appIn = null;
+		}
+
+		private void close() {
+			if (this.phase == Phase.CLOSED) {
+				return;
+			}
+			Boolean wasIdle = this.phase == Phase.IDLE;
+			this.phase = Phase.CLOSED;
+			this.exchange = null;
+			if (this.key != null) {
+				this.key.cancel();
+			}
+			try {
+				this.channel.close();
+			} catch (IOException e) {
+				LOGGER.debug("The connection could not be closed.", e);
+			}
+			if (this.engine != null) {
+				this.engine.closeOutbound();
+			}
+			if (!wasIdle) {
+				this.release();
+			}
+			if (this.loop.connections.remove(this)) {
+				NioTransport.this.open.decrementAndGet();
+			}
+			Deque<Connection> idleConnections = NioTransport.this.idle.get(this.route);
+			if (idleConnections != null) {
+				idleConnections.remove(this);
+			}
+		}
+	}
+
+	private final EventLoop[] loops;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+	private final ThreadPoolExecutor resolver;
+	private final ThreadPoolExecutor bodyReaders;
+	private final BufferPool buffers;
+	private final Integer bufferSize;
+	private final Map<String, Deque<Connection>> idle = new ConcurrentHashMap<String, Deque<Connection>>();
+	private final AtomicInteger open = new AtomicInteger();
+	private volatile Boolean closed = false;
+	private volatile Long connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+	private volatile Long readTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+	private volatile Long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+
+	/**
+	 * Creates a transport with one event loop per processor, up to 4
+	 *
+	 * @throws IOException
+	 *             Thrown if a selector can't be opened
+	 */
+	public NioTransport() throws IOException {
+		this(Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())), BufferPool.getDefault());
+	}
+
+	/**
+	 * @param eventLoops
+	 *            Number of selector threads
+	 * @param buffers
+	 *            Pool of the direct buffers, three per busy HTTPS connection and
+	 *            two per busy HTTP connection
+	 * @throws IOException
+	 *             Thrown if a selector can't be opened
+	 */
+	public NioTransport(Integer eventLoops, BufferPool buffers) throws IOException {
+		if (eventLoops == null || eventLoops < 1) {
+			throw new IllegalArgumentException("At least one event loop is needed.");
+		}
+		int bufferSize = 16 * 1024;
+		try {
+			SSLSession session = SSLContext.getDefault().createSSLEngine().getSession();
+			bufferSize = Math.max(session.getPacketBufferSize(), session.getApplicationBufferSize());
+		} catch (NoSuchAlgorithmException e) {
+			LOGGER.warn("The default SSLContext is unavailable, using {} byte buffers.", bufferSize);
+		}
+		this.buffers = buffers;
+		this.bufferSize = bufferSize;
+		this.loops = new EventLoop[eventLoops];
+		for (int index = 0; index < eventLoops; index++) {
+			this.loops[index] = new EventLoop(index);
+		}
+		this.resolver = NioTransport.newExecutor("nio-transport-resolver-", MAX_RESOLVER_THREADS);
+		this.bodyReaders = NioTransport.newExecutor("nio-transport-body-", MAX_BODY_READER_THREADS);
+		for (EventLoop loop : this.loops) {
+			loop.thread.start();
+		}
+	}
+
+	/**
+	 * Creates a pool of daemon threads, which only keeps them while there's
+	 * work
+	 */
+	private static ThreadPoolExecutor newExecutor(String prefix, Integer threads) {
+		AtomicInteger count = new AtomicInteger();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), runnable -> {
+					Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * @return Direct buffer large enough for a TLS record, sized exactly as
+	 *         rounding it up to a size class would nearly double it
+	 */
+	private ByteBuffer acquireBuffer() {
+		return this.buffers.acquireExactDirect(this.bufferSize);
+	}
+
+	/**
+	 * @param connectTimeoutMillis
+	 *            Time allowed to connect and complete the TLS handshake
+	 * @param readTimeoutMillis
+	 *            Time allowed without hearing from the host while waiting on a
+	 *            response
+	 */
+	public void setTimeouts(Long connectTimeoutMillis, Long readTimeoutMillis) {
+		this.connectTimeoutMillis = connectTimeoutMillis;
+		this.readTimeoutMillis = readTimeoutMillis;
+	}
+
+	/**
+	 * @param idleTimeoutMillis
+	 *            How long a keep-alive connection is kept without being used
+	 */
+	public void setIdleTimeout(Long idleTimeoutMillis) {
+		this.idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	/**
+	 * @return Connections currently open, busy or idle
+	 */
+	public Integer getOpenConnections() {
+		return this.open.get();
+	}
+
+	/**
+	 * @return Keep-alive connections waiting to be reused
+	 */
+	public Integer getIdleConnections() {
+		Integer idleConnections = 0;
+		for (Deque<Connection> connections : this.idle.values()) {
+			idleConnections += connections.size();
+		}
+		return idleConnections;
+	}
+
+	@Override
+	public NioExchange open(URL url, String requestMethod, RequestHeaders requestHeaders, RequestBody requestBody,
+			Keystore keystore) throws IOException {
+		if (this.closed) {
+			throw new IOException("The transport was closed.");
+		}
+		if (!url.getProtocol().equals("http") && !url.getProtocol().equals("https")) {
+			throw new IOException("Unsupported protocol: " + url.getProtocol());
+		}
+		SSLContext sslContext = null;
+		if (url.getProtocol().equals("https")) {
+			try {
+				sslContext = (keystore != null) ? keystore.getSSLContext() : SSLContext.getDefault();
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException("The default SSLContext is unavailable.", e);
+			}
+		}
+		byte[] body = null;
+		ReadableByteChannel bodyChannel = null;
+		if (requestBody != null) {
+			// Bodies which fit in a buffer are sent along with the head
+			if (requestBody.getContentLength() < 0 || requestBody.getContentLength() > this.bufferSize) {
+				bodyChannel = requestBody.openChannel();
+			}
+			if (bodyChannel == null) {
+				try (BufferPool.Output buffer = this.buffers.newOutput()) {
+					requestBody.writeTo(buffer);
+					body = buffer.toByteArray();
+				}
+			}
+		}
+		return new NioExchange(this, url, requestMethod, requestHeaders, body,
+				(bodyChannel != null) ? requestBody : null, bodyChannel, sslContext);
+	}
+
+	/**
+	 * Sends a request without blocking
+	 *
+	 * @param url
+	 * @param requestMethod
+	 *            Method name, for example GET
+	 * @param requestHeaders
+	 * @param requestBody
+	 *            Body, or null for none
+	 * @param keystore
+	 *            Keystore trusted for HTTPS, or null for the JDK's default
+	 * @return Future completed once the response headers have arrived
+	 */
+	public CompletableFuture<NioExchange> sendAsync(URL url, String requestMethod, RequestHeaders requestHeaders,
+			RequestBody requestBody, Keystore keystore) {
+		NioExchange exchange;
+		try {
+			exchange = this.open(url, requestMethod, requestHeaders, requestBody, keystore);
+		} catch (IOException e) {
+			CompletableFuture<NioExchange> failed = new CompletableFuture<NioExchange>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		exchange.send();
+		return exchange.getResponseHeaders();
+	}
+
+	private Deque<Connection> idleConnections(String route) {
+		return this.idle.computeIfAbsent(route, key -> new ConcurrentLinkedDeque<Connection>());
+	}
+
+	/**
+	 * Sends the exchange over an idle connection to its host, or a new one
+	 *
+	 * @param reuse
+	 *            Whether an idle connection may be used
+	 */
+	private void dispatch(NioExchange exchange, Boolean reuse) {
+		URL url = exchange.url;
+		Integer port = (url.getPort() != -1) ? url.getPort() : url.getDefaultPort();
+		SSLContext sslContext = url.getProtocol().equals("https") ? exchange.sslContext : null;
+		String route = url.getProtocol() + "://" + url.getHost() + ":" + port
+				+ ((sslContext != null) ? "#" + System.identityHashCode(sslContext) : "");
+
+		if (reuse) {
+			Deque<Connection> idleConnections = this.idle.get(route);
+			Connection connection;
+			while (idleConnections != null && (connection = idleConnections.pollFirst()) != null) {
+				if (connection.claim()) {
+					Connection claimed = connection;
+					claimed.loop.execute(() -> claimed.start(exchange));
+					return;
+				}
+			}
+		}
+
+		// Redirects and resends are dispatched from the event loops, which
+		// mustn't wait on a DNS lookup
+		try {
+			this.resolver.execute(() -> this.connect(exchange, route, port, sslContext));
+		} catch (RejectedExecutionException e) {
+			exchange.failed(new IOException("The transport was closed.", e));
+		}
+	}
+
+	/**
+	 * Resolves the host and hands a new connection to an event loop, on a
+	 * resolver thread
+	 */
+	private void connect(NioExchange exchange, String route, Integer port, SSLContext sslContext) {
+		URL url = exchange.url;
+		try {
+			InetSocketAddress address = new InetSocketAddress(url.getHost(), port);
+			if (address.isUnresolved()) {
+				throw new UnknownHostException(url.getHost());
+			}
+			SSLEngine engine = null;
+			if (sslContext != null) {
+				engine = sslContext.createSSLEngine(url.getHost(), port);
+				engine.setUseClientMode(true);
+				SSLParameters parameters = engine.getSSLParameters();
+				parameters.setEndpointIdentificationAlgorithm("HTTPS");
+				engine.setSSLParameters(parameters);
+			}
+			EventLoop loop = this.loops[Math.floorMod(this.nextLoop.getAndIncrement(), this.loops.length)];
+			Connection connection = new Connection(loop, route, engine);
+			loop.execute(() -> connection.open(address, exchange));
+		} catch (IOException | RuntimeException e) {
+			exchange.failed(e);
+		}
+	}
+
+	/**
+	 * Stops the event loops and closes every connection, failing the requests
+	 * still in flight
+	 */
+	@Override
+	public void close() {
+		this.closed = true;
+		this.resolver.shutdown();
+		this.bodyReaders.shutdown();
+		for (EventLoop loop : this.loops) {
+			loop.selector.wakeup();
+		}
+	}
+
+	/**
+	 * Connections are made and kept by the transport itself, without blocking
+	 * a thread, so they aren't limited by the Session's ConnectionPool
+	 */
+	@Override
+	public Boolean usesConnectionPool() {
+		return false;
+	}
+
+	@Override
+	public Boolean supportsAsync() {
+		return true;
+	}
+}
@@ -0,0 +1,181 @@
+package session.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import keystore.Keystore;
+import session.RequestBody;
+import session.RequestHeaders;
+
+/**
+ * Sends the HTTP requests a SessionConnection makes. The default transport,
+ * URLConnectionTransport, uses HttpURLConnection and runs on Java 8; others can
+ * be selected per Session, for example Transport.httpClient() for HTTP/2 on
+ * Java 11 and later, or NioTransport for very large numbers of concurrent
+ * requests.
+ *
+ * Implementations must be thread-safe, a single transport serves every
+ * request made by a Session.
+ */
+public interface Transport {
+
+	/**
+	 * Name of the HTTP/2 capable transport, only present on Java 11 and later
+	 */
+	public static final String HTTP_CLIENT_TRANSPORT = "session.transport.HttpClientTransport";
+
+	/**
+	 * A single request and its response. SessionConnection calls connect, send
+	 * and getResponseCode in that order, then reads the response.
+	 */
+	public static interface Exchange extends Closeable {
+
+		/**
+		 * Opens the connection to the host. Transports which only connect while
+		 * sending the request may do nothing.
+		 *
+		 * @throws IOException
+		 */
+		public void connect() throws IOException;
+
+		/**
+		 * Sends the request, including its body
+		 *
+		 * @throws IOException
+		 */
+		public void send() throws IOException;
+
+		/**
+		 * Waits for the response headers
+		 *
+		 * @return Response status code
+		 * @throws IOException
+		 */
+		public Integer getResponseCode() throws IOException;
+
+		/**
+		 * @return Reason phrase of the status line, empty if the protocol doesn't
+		 *         send one
+		 */
+		public String getResponseMessage() throws IOException;
+
+		/**
+		 * @return Response headers, without the status line
+		 */
+		public Map<String, List<String>> getHeaderFields();
+
+		/**
+		 * Retrieves the response body, whatever the status. The stream must be
+		 * read to the end and closed for the connection to be reused.
+		 *
+		 * @return InputStream, or null if the response has no body
+		 * @throws IOException
+		 */
+		public InputStream getResponseBody() throws IOException;
+
+		/**
+		 * @return System.nanoTime() when the connection was ready for the
+		 *         request, or null if the transport can't tell
+		 */
+		public default Long getConnectedTime() {
+			return null;
+		}
+
+		/**
+		 * @return System.nanoTime() when the TLS handshake completed, or null for
+		 *         plain and reused connections, or if the transport can't tell
+		 */
+		public default Long getSecureConnectedTime() {
+			return null;
+		}
+
+		/**
+		 * @return System.nanoTime() when the request had been written, or null
+		 *         if the transport can't tell
+		 */
+		public default Long getRequestSentTime() {
+			return null;
+		}
+
+		/**
+		 * Sends the request without blocking, for transports which support it.
+		 * The whole response is received before the future completes, so it
+		 * can then be read without blocking.
+		 *
+		 * @return Future completed once the response has arrived
+		 */
+		public default CompletableFuture<? extends Exchange> sendAsync() {
+			CompletableFuture<Exchange> unsupported = new CompletableFuture<Exchange>();
+			unsupported.completeExceptionally(
+					new UnsupportedOperationException("The transport can only send requests blocking."));
+			return unsupported;
+		}
+
+		/**
+		 * Abandons the exchange, for example after a failure, without waiting
+		 * for the rest of the response
+		 */
+		@Override
+		public void close();
+	}
+
+	/**
+	 * Prepares a request without sending anything
+	 *
+	 * @param url
+	 * @param requestMethod
+	 *            Method name, for example GET
+	 * @param requestHeaders
+	 * @param requestBody
+	 *            Body, or null for none
+	 * @param keystore
+	 *            Keystore trusted for HTTPS, or null for the JDK's default
+	 * @return Exchange
+	 * @throws IOException
+	 */
+	public Exchange open(URL url, String requestMethod, RequestHeaders requestHeaders, RequestBody requestBody,
+			Keystore keystore) throws IOException;
+
+	/**
+	 * Whether requests should be counted against the Session's ConnectionPool.
+	 * Transports which manage and multiplex their own connections return
+	 * false, the pool's per-route limit would otherwise cap their streams.
+	 *
+	 * @return true by default
+	 */
+	public default Boolean usesConnectionPool() {
+		return true;
+	}
+
+	/**
+	 * Whether exchanges can be sent with Exchange.sendAsync, completing without
+	 * a thread waiting on the host
+	 *
+	 * @return false by default
+	 */
+	public default Boolean supportsAsync() {
+		return false;
+	}
+
+	/**
+	 * Creates the transport based on the JDK's java.net.http.HttpClient, which
+	 * negotiates HTTP/2 with hosts that support it and multiplexes concurrent
+	 * requests over a single connection
+	 *
+	 * @return Transport
+	 * @throws UnsupportedOperationException
+	 *             Thrown on Java versions before 11
+	 */
+	public static Transport httpClient() {
+		try {
+			return (Transport) Class.forName(HTTP_CLIENT_TRANSPORT).getConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			throw new UnsupportedOperationException("The HttpClient transport requires Java 11 or later.", e);
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package session.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.net.ssl.HttpsURLConnection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import keystore.Keystore;
+import session.RequestBody;
+import session.RequestHeaders;
+
+/**
+ * Default transport, sending each request over an HttpURLConnection. Plain
+ * HTTP and HTTPS are both supported, one request at a time per socket with
+ * sockets kept alive by the JDK for reuse.
+ */
+public class URLConnectionTransport implements Transport {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(URLConnectionTransport.class);
+
+	private static class URLConnectionExchange implements Transport.Exchange {
+
+		private final HttpURLConnection connection;
+		private final RequestBody requestBody;
+		private Long connectedTime = null;
+		private Long requestSentTime = null;
+
+		private URLConnectionExchange(HttpURLConnection connection, RequestBody requestBody) {
+			this.connection = connection;
+			this.requestBody = requestBody;
+		}
+
+		@Override
+		public void connect() throws IOException {
+			this.connection.connect();
+			this.connectedTime = System.nanoTime();
+		}
+
+		/**
+		 * Writes the body, if there is one. Without a body the headers are only
+		 * written once the response is asked for.
+		 */
+		@Override
+		public void send() throws IOException {
+			if (this.requestBody != null) {
+				try (OutputStream output = this.connection.getOutputStream()) {
+					this.requestBody.writeTo(output);
+				}
+				this.requestSentTime = System.nanoTime();
+			}
+		}
+
+		@Override
+		public Integer getResponseCode() throws IOException {
+			return this.connection.getResponseCode();
+		}
+
+		@Override
+		public String getResponseMessage() throws IOException {
+			return this.connection.getResponseMessage();
+		}
+
+		@Override
+		public Map<String, List<String>> getHeaderFields() {
+			Map<String, List<String>> headerFields = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+			this.connection.getHeaderFields().forEach((field, values) -> {
+				// The status line is reported under a null field
+				if (field != null) {
+					headerFields.put(field, values);
+				}
+			});
+			return headerFields;
+		}
+
+		@Override
+		public InputStream getResponseBody() throws IOException {
+			try {
+				return this.connection.getInputStream();
+			} catch (IOException e) {
+				// Error statuses are only readable through the error stream
+				InputStream errorStream = this.connection.getErrorStream();
+				if (errorStream == null && this.connection.getResponseCode() < 400) {
+					throw e;
+				}
+				return errorStream;
+			}
+		}
+
+		@Override
+		public Long getConnectedTime() {
+			return this.connectedTime;
+		}
+
+		/**
+		 * HttpsURLConnection performs the handshake as the last step of
+		 * connecting, a reused keep-alive socket can't be told apart
+		 */
+		@Override
+		public Long getSecureConnectedTime() {
+			return (this.connection instanceof HttpsURLConnection) ? this.connectedTime : null;
+		}
+
+		@Override
+		public Long getRequestSentTime() {
+			return this.requestSentTime;
+		}
+
+		@Override
+		public void close() {
+			this.connection.disconnect();
+		}
+	}
+
+	@Override
+	public Transport.Exchange open(URL url, String requestMethod, RequestHeaders requestHeaders,
+			RequestBody requestBody, Keystore keystore) throws IOException {
+		URLConnection urlConnection = url.openConnection();
+		if (!(urlConnection instanceof HttpURLConnection)) {
+			throw new IOException("Unsupported protocol: " + url.getProtocol());
+		}
+		HttpURLConnection connection = (HttpURLConnection) urlConnection;
+
+		if (keystore != null && connection instanceof HttpsURLConnection) {
+			// The keystore shares one socket factory across connections so
+			// keep-alive sockets and TLS sessions can be reused
+			((HttpsURLConnection) connection).setSSLSocketFactory(keystore.getSSLSocketFactory());
+		}
+		connection.setInstanceFollowRedirects(true);
+		if (requestHeaders != null && !requestHeaders.isEmpty()) {
+			requestHeaders.forEach(connection::setRequestProperty);
+		}
+
+		try {
+			connection.setRequestMethod(requestMethod);
+		} catch (ProtocolException e) {
+			LOGGER.warn("Request method {} failed, falling back to GET", requestMethod, e);
+		}
+
+		// Bodies are streamed with a fixed length when it's known and chunked
+		// otherwise, so the connection doesn't buffer them a second time
+		if (requestBody != null) {
+			connection.setDoOutput(true);
+			if (requestBody.getContentLength() >= 0) {
+				connection.setFixedLengthStreamingMode(requestBody.getContentLength());
+			} else {
+				connection.setChunkedStreamingMode(RequestBody.CHUNK_SIZE);
+			}
+		}
+		return new URLConnectionExchange(connection, requestBody);
+	}
+}
@@ -0,0 +1,239 @@
+package session.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.net.ssl.SSLContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import keystore.Keystore;
+import session.BufferPool;
+import session.RequestBody;
+import session.RequestHeaders;
+
+/**
+ * Transport based on the JDK's java.net.http.HttpClient, for Java 11 and
+ * later. HTTP/2 is negotiated with hosts which support it, concurrent requests
+ * to such a host then share a single connection as separate streams; other
+ * hosts are called over HTTP/1.1 with the client's own keep-alive pool.
+ *
+ * A client is created per keystore, so each keystore's TLS sessions and
+ * connections are shared by every request which trusts it, and replaced when
+ * the keystore's certificates change. Bodies which can
+ * be read, such as files and streams, are read by the client while it sends
+ * them; small bodies and bodies which can only be written are buffered first,
+ * so their length is known up front.
+ */
+public class HttpClientTransport implements Transport {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(HttpClientTransport.class);
+
+	/**
+	 * Headers the client sets itself and refuses to have set
+	 */
+	private static final Set<String> RESTRICTED_HEADERS = Collections.unmodifiableSet(new HashSet<String>(
+			Arrays.asList("connection", "content-length", "expect", "host", "upgrade")));
+	/**
+	 * Bodies of known length up to this size are sent from memory
+	 */
+	private static final Long MAX_BUFFERED_BODY_BYTES = 64L * 1024;
+
+	private static class HttpClientExchange implements Transport.Exchange {
+
+		private final HttpClient client;
+		private final HttpRequest request;
+		private HttpResponse<InputStream> response = null;
+
+		private HttpClientExchange(HttpClient client, HttpRequest request) {
+			this.client = client;
+			this.request = request;
+		}
+
+		@Override
+		public void connect() {
+			// The client connects, or picks an existing connection, while sending
+		}
+
+		@Override
+		public void send() throws IOException {
+			try {
+				this.response = this.client.send(this.request, HttpResponse.BodyHandlers.ofInputStream());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for the response.");
+			}
+			LOGGER.debug("Received response over {}", this.response.version());
+		}
+
+		@Override
+		public Integer getResponseCode() {
+			return this.response.statusCode();
+		}
+
+		@Override
+		public String getResponseMessage() {
+			// HTTP/2 has no reason phrase, and the client drops HTTP/1.1's
+			return "";
+		}
+
+		@Override
+		public Map<String, List<String>> getHeaderFields() {
+			Map<String, List<String>> headerFields = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+			headerFields.putAll(this.response.headers().map());
+			return headerFields;
+		}
+
+		@Override
+		public InputStream getResponseBody() {
+			return this.response.body();
+		}
+
+		@Override
+		public void close() {
+			if (this.response != null) {
+				try {
+					// Closing an unread body cancels the stream rather than draining it
+					this.response.body().close();
+				} catch (IOException e) {
+					LOGGER.warn("The response stream could not be closed.", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Client trusting a keystore, with the keystore's context it was created for
+	 */
+	private static class KeystoreClient {
+
+		private final SSLContext sslContext;
+		private final HttpClient client;
+
+		private KeystoreClient(SSLContext sslContext, HttpClient client) {
+			this.sslContext = sslContext;
+			this.client = client;
+		}
+	}
+
+	private final Map<Keystore, KeystoreClient> clients = Collections
+			.synchronizedMap(new WeakHashMap<Keystore, KeystoreClient>());
+	private final HttpClient defaultClient;
+
+	public HttpClientTransport() {
+		this.defaultClient = this.newClient(null);
+	}
+
+	private HttpClient newClient(SSLContext sslContext) {
+		HttpClient.Builder builder = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2)
+				.followRedirects(HttpClient.Redirect.NORMAL);
+		if (sslContext != null) {
+			builder.sslContext(sslContext);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * @param keystore
+	 * @return Client trusting the keystore
+	 */
+	private HttpClient getClient(Keystore keystore) {
+		if (keystore == null) {
+			return this.defaultClient;
+		}
+		// The keystore's context is replaced when its certificates change, the
+		// client for the superseded context is dropped along with it
+		SSLContext sslContext = keystore.getSSLContext();
+		return this.clients.compute(keystore,
+				(key, current) -> (current != null && current.sslContext == sslContext) ? current
+						: new KeystoreClient(sslContext, this.newClient(sslContext))).client;
+	}
+
+	@Override
+	public Transport.Exchange open(URL url, String requestMethod, RequestHeaders requestHeaders,
+			RequestBody requestBody, Keystore keystore) throws IOException {
+		HttpRequest.Builder builder;
+		try {
+			builder = HttpRequest.newBuilder(url.toURI());
+		} catch (URISyntaxException e) {
+			throw new IOException("Invalid URL: " + url, e);
+		}
+		if (requestHeaders != null && !requestHeaders.isEmpty()) {
+			requestHeaders.forEach((name, value) -> {
+				if (!RESTRICTED_HEADERS.contains(name.toLowerCase())) {
+					builder.setHeader(name, value);
+				}
+			});
+		}
+
+		HttpRequest.BodyPublisher body = HttpRequest.BodyPublishers.noBody();
+		if (requestBody != null) {
+			body = HttpClientTransport.publish(requestBody);
+		}
+		builder.method(requestMethod, body);
+
+		return new HttpClientExchange(this.getClient(keystore), builder.build());
+	}
+
+	/**
+	 * Publishes a body, streamed from its channel if it's too large to buffer
+	 * and can be read
+	 *
+	 * @param requestBody
+	 * @return BodyPublisher
+	 * @throws IOException
+	 */
+	private static HttpRequest.BodyPublisher publish(RequestBody requestBody) throws IOException {
+		Long contentLength = requestBody.getContentLength();
+		ReadableByteChannel channel = (contentLength < 0 || contentLength > MAX_BUFFERED_BODY_BYTES)
+				? requestBody.openChannel()
+				: null;
+		if (channel != null) {
+			// The first subscription reads the channel opened here, any later
+			// one, for a redirect, opens the body again
+			AtomicReference<ReadableByteChannel> opened = new AtomicReference<ReadableByteChannel>(channel);
+			HttpRequest.BodyPublisher stream = HttpRequest.BodyPublishers.ofInputStream(() -> {
+				ReadableByteChannel next = opened.getAndSet(null);
+				try {
+					return Channels.newInputStream((next != null) ? next : requestBody.openChannel());
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+			return (contentLength < 0) ? stream : HttpRequest.BodyPublishers.fromPublisher(stream, contentLength);
+		}
+
+		try (BufferPool.Output buffer = BufferPool.getDefault().newOutput()) {
+			requestBody.writeTo(buffer);
+			return HttpRequest.BodyPublishers.ofByteArray(buffer.toByteArray());
+		}
+	}
+
+	/**
+	 * Requests to a host are multiplexed by the client, so they aren't limited
+	 * by the Session's ConnectionPool
+	 */
+	@Override
+	public Boolean usesConnectionPool() {
+		return false;
+	}
+}
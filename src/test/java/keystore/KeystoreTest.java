@@ -0,0 +1,76 @@
+package keystore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class KeystoreTest {
+
+	private static final String ALIAS = "localhost";
+
+	private static File directory;
+	private static File certificate;
+
+	@BeforeClass
+	public static void setUpClass() throws IOException, InterruptedException {
+		directory = Files.createTempDirectory("keystore").toFile();
+		directory.deleteOnExit();
+		File keypair = new File(directory, "keypair.jks");
+		certificate = new File(directory, "localhost.cer");
+		keytool("-genkeypair", "-alias", ALIAS, "-keyalg", "RSA", "-keysize", "2048", "-validity", "2", "-dname",
+				"CN=localhost", "-keystore", keypair.getAbsolutePath(), "-storetype", "JKS", "-storepass",
+				"password", "-keypass", "password");
+		keytool("-exportcert", "-alias", ALIAS, "-rfc", "-file", certificate.getAbsolutePath(), "-keystore",
+				keypair.getAbsolutePath(), "-storepass", "password");
+	}
+
+	private static void keytool(String... arguments) throws IOException, InterruptedException {
+		String[] command = new String[arguments.length + 1];
+		command[0] = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+		System.arraycopy(arguments, 0, command, 1, arguments.length);
+		Process process = new ProcessBuilder(command).redirectErrorStream(true)
+				.redirectOutput(new File(directory, "keytool.log")).start();
+		assertEquals(0, process.waitFor());
+	}
+
+	@Test
+	public void createsMissingFile() throws IOException, GeneralSecurityException {
+		File file = new File(directory, "missing/keystore.jks");
+		Keystore keystore = new Keystore(file);
+		assertTrue(file.exists());
+		assertFalse(keystore.hostHasCertificate(ALIAS));
+
+		keystore.addCertificate(certificate, ALIAS);
+		assertTrue(keystore.hostHasCertificate(ALIAS));
+	}
+
+	@Test
+	public void loadsEmptyFileAsBlankKeystore() throws IOException, GeneralSecurityException {
+		File file = File.createTempFile("empty", ".jks", directory);
+		assertEquals(0L, file.length());
+
+		Keystore keystore = new Keystore(file);
+		assertFalse(keystore.hostHasCertificate(ALIAS));
+		keystore.addCertificate(certificate, ALIAS);
+		assertTrue(keystore.hostHasCertificate(ALIAS));
+		assertTrue(file.length() > 0);
+	}
+
+	@Test
+	public void reloadsSavedCertificates() throws IOException, GeneralSecurityException {
+		File file = File.createTempFile("saved", ".jks", directory);
+		new Keystore(file).addCertificate(certificate, ALIAS);
+
+		Keystore keystore = new Keystore(file);
+		assertTrue(keystore.hostHasCertificate(ALIAS));
+		assertTrue(file.delete());
+	}
+}
@@ -0,0 +1,112 @@
+package session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import session.exception.NotAuthorized401Exception;
+import test.LocalHTTPSServer;
+
+public class AuthenticationProtocolTest {
+
+	private LocalHTTPSServer server;
+
+	@Before
+	public void setUp() throws IOException {
+		this.server = new LocalHTTPSServer();
+	}
+
+	@After
+	public void tearDown() {
+		this.server.close();
+	}
+
+	private BasicAuthenticationProtocol basic() throws IOException {
+		BasicAuthenticationProtocol protocol = new BasicAuthenticationProtocol(this.server.getURL("/login/basic"));
+		protocol.useKeystore(this.server.getKeystore());
+		return protocol;
+	}
+
+	@Test
+	public void logsInThroughProvidedKeystore() throws IOException {
+		BasicAuthenticationProtocol protocol = this.basic();
+		protocol.authorize("username", "password", false);
+		assertEquals(Long.valueOf(1L), this.server.getLoginCount());
+		assertEquals(Integer.valueOf(200), protocol.authorizationConnection.getServerResponseCode());
+	}
+
+	@Test
+	public void keepsProvidedKeystore() throws IOException {
+		BasicAuthenticationProtocol protocol = this.basic();
+		protocol.authorize("username", "password", false);
+		assertSame(this.server.getKeystore(), protocol.getKeystore());
+
+		protocol.authorize("username", "password", true);
+		assertSame(this.server.getKeystore(), protocol.getKeystore());
+		assertEquals(Long.valueOf(2L), this.server.getLoginCount());
+	}
+
+	@Test
+	public void authenticatesOnceLoginSucceeds() throws IOException {
+		BasicAuthenticationProtocol protocol = this.basic();
+		Session session = new Session();
+		assertFalse(session.authorize(protocol));
+
+		protocol.authorize("username", "password", false);
+		assertTrue(protocol.isAuthenticated());
+		assertTrue(session.isAuthenticated());
+	}
+
+	@Test
+	public void staysUnauthenticatedWhenLoginFails() throws IOException {
+		BasicAuthenticationProtocol protocol = this.basic();
+		try {
+			protocol.authorize("username", "wrong", false);
+			fail("The login should have been rejected");
+		} catch (NotAuthorized401Exception e) {
+			assertFalse(protocol.isAuthenticated());
+		}
+	}
+
+	@Test
+	public void sendsBackSessionCookieOnly() throws IOException {
+		AtomicReference<String> received = new AtomicReference<String>();
+		this.server.createContext("/cookie", exchange -> {
+			received.set(exchange.getRequestHeaders().getFirst("Cookie"));
+			exchange.sendResponseHeaders(200, -1);
+			exchange.close();
+		});
+		this.server.setAuthenticationRequired(true);
+		CookieAuthenticationProtocol protocol = new CookieAuthenticationProtocol(this.server.getURL("/login/cookie"));
+		protocol.useKeystore(this.server.getKeystore());
+		protocol.authorize("username", "password", false);
+
+		String cookie = protocol.getAuthenticationCache().getString("Cookie");
+		assertTrue(cookie, cookie.matches("SESSION=[^;]+"));
+		Session session = new Session();
+		session.authorize(protocol);
+		assertTrue(session.GET(this.server.getURL("/cookie")).toGetBooleanResponse());
+		assertEquals(cookie, received.get());
+	}
+
+	@Test
+	public void authorizeIsPublic() throws NoSuchMethodException {
+		// Protocols are created through Session's factories, so callers
+		// outside the package must be able to log in with them
+		for (Class<?> protocol : new Class<?>[] { BasicAuthenticationProtocol.class,
+				CookieAuthenticationProtocol.class }) {
+			assertTrue(Modifier.isPublic(
+					protocol.getMethod("authorize", String.class, String.class, Boolean.class).getModifiers()));
+		}
+	}
+}
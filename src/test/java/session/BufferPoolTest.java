@@ -0,0 +1,141 @@
+package session;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+	@Test
+	public void roundsUpToSizeClass() {
+		BufferPool pool = new BufferPool();
+		assertEquals(BufferPool.MIN_BUFFER_SIZE.intValue(), pool.acquireArray(1).length);
+		assertEquals(BufferPool.MIN_BUFFER_SIZE.intValue(), pool.acquireArray(BufferPool.MIN_BUFFER_SIZE).length);
+		assertEquals(2 * BufferPool.MIN_BUFFER_SIZE, pool.acquireArray(BufferPool.MIN_BUFFER_SIZE + 1).length);
+		assertEquals(BufferPool.MAX_BUFFER_SIZE.intValue(), pool.acquireArray(BufferPool.MAX_BUFFER_SIZE).length);
+		assertEquals(64 * 1024, pool.acquireDirect(40000).capacity());
+	}
+
+	@Test
+	public void allocatesLargerSizesExactly() {
+		BufferPool pool = new BufferPool();
+		byte[] array = pool.acquireArray(BufferPool.MAX_BUFFER_SIZE + 1);
+		assertEquals(BufferPool.MAX_BUFFER_SIZE + 1, array.length);
+		pool.releaseArray(array);
+		assertEquals(Long.valueOf(0), pool.getStatistics().getPooledHeapBytes());
+	}
+
+	@Test
+	public void reusesReleasedBuffers() {
+		BufferPool pool = new BufferPool();
+		byte[] array = pool.acquireArray(5000);
+		pool.releaseArray(array);
+		assertEquals(Long.valueOf(8 * 1024), pool.getStatistics().getPooledHeapBytes());
+		assertSame(array, pool.acquireArray(6000));
+		assertEquals(Long.valueOf(0), pool.getStatistics().getPooledHeapBytes());
+
+		ByteBuffer buffer = pool.acquireDirect(100);
+		buffer.put((byte) 1);
+		pool.releaseDirect(buffer);
+		ByteBuffer reused = pool.acquireDirect(100);
+		assertSame(buffer, reused);
+		assertEquals(0, reused.position());
+	}
+
+	@Test
+	public void ignoresBuffersNotOfPooledSize() {
+		BufferPool pool = new BufferPool();
+		pool.releaseArray(new byte[5000]);
+		pool.releaseDirect(ByteBuffer.allocate(BufferPool.MIN_BUFFER_SIZE));
+		pool.releaseArray(null);
+		BufferPool.Statistics statistics = pool.getStatistics();
+		assertEquals(Long.valueOf(0), statistics.getPooledHeapBytes());
+		assertEquals(Long.valueOf(0), statistics.getPooledDirectBytes());
+	}
+
+	@Test
+	public void keepsAtMostMaxPooledBytes() {
+		BufferPool pool = new BufferPool(2L * BufferPool.MIN_BUFFER_SIZE, 0L);
+		byte[] first = pool.acquireArray(1);
+		byte[] second = pool.acquireArray(1);
+		byte[] third = pool.acquireArray(1);
+		pool.releaseArray(first);
+		pool.releaseArray(second);
+		pool.releaseArray(third);
+		assertEquals(Long.valueOf(2L * BufferPool.MIN_BUFFER_SIZE), pool.getStatistics().getPooledHeapBytes());
+		assertSame(first, pool.acquireArray(1));
+		assertSame(second, pool.acquireArray(1));
+		assertNotSame(third, pool.acquireArray(1));
+
+		ByteBuffer buffer = pool.acquireDirect(1);
+		pool.releaseDirect(buffer);
+		assertEquals(Long.valueOf(0), pool.getStatistics().getPooledDirectBytes());
+		assertNotSame(buffer, pool.acquireDirect(1));
+	}
+
+	@Test
+	public void poolsExactSizesApart() {
+		BufferPool pool = new BufferPool();
+		ByteBuffer exact = pool.acquireExactDirect(16709);
+		assertEquals(16709, exact.capacity());
+		pool.releaseDirect(exact);
+		assertEquals(Long.valueOf(16709), pool.getStatistics().getPooledDirectBytes());
+		// A size class doesn't hand out the exact buffer, nor the other way round
+		assertEquals(32 * 1024, pool.acquireDirect(16709).capacity());
+		assertSame(exact, pool.acquireExactDirect(16709));
+
+		ByteBuffer classed = pool.acquireDirect(1);
+		pool.releaseDirect(classed);
+		assertNotSame(classed, pool.acquireExactDirect(BufferPool.MIN_BUFFER_SIZE + 1));
+	}
+
+	@Test
+	public void countsHitsAndMisses() {
+		BufferPool pool = new BufferPool();
+		assertEquals(Double.valueOf(0.0), pool.getStatistics().getHitRate());
+		byte[] array = pool.acquireArray(1);
+		pool.releaseArray(array);
+		pool.acquireArray(1);
+		pool.acquireArray(1);
+		pool.acquireArray(BufferPool.MAX_BUFFER_SIZE + 1);
+		BufferPool.Statistics statistics = pool.getStatistics();
+		assertEquals(Long.valueOf(1), statistics.getHits());
+		assertEquals(Long.valueOf(3), statistics.getMisses());
+		assertEquals(Double.valueOf(0.25), statistics.getHitRate());
+	}
+
+	@Test
+	public void collectsOutputAcrossChunks() throws Exception {
+		BufferPool pool = new BufferPool();
+		byte[] bytes = new byte[200000];
+		for (int index = 0; index < bytes.length; index++) {
+			bytes[index] = (byte) (index * 31);
+		}
+		BufferPool.Output output = pool.newOutput();
+		output.write(bytes[0]);
+		output.write(bytes, 1, 9999);
+		assertEquals(Long.valueOf(bytes.length - 10000),
+				output.readFrom(new ByteArrayInputStream(bytes, 10000, bytes.length - 10000)));
+		assertEquals(Integer.valueOf(bytes.length), output.size());
+		assertArrayEquals(bytes, output.toByteArray());
+
+		// 4, 8, 16, 32, 64, 64 and 64KB
+		output.close();
+		assertEquals(Long.valueOf(252L * 1024), pool.getStatistics().getPooledHeapBytes());
+		output.close();
+		assertEquals(Long.valueOf(252L * 1024), pool.getStatistics().getPooledHeapBytes());
+	}
+
+	@Test
+	public void copiesEmptyOutput() {
+		BufferPool.Output output = new BufferPool().newOutput();
+		assertArrayEquals(new byte[0], output.toByteArray());
+		output.close();
+	}
+}
@@ -0,0 +1,155 @@
+package session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import session.exception.CircuitOpenException;
+
+public class CircuitBreakerTest {
+
+	private static final String HOST = "example.com";
+	private static final Long FAST = 1000000L;
+
+	private CircuitBreaker breaker;
+
+	@Before
+	public void setUp() {
+		this.breaker = new CircuitBreaker();
+		this.breaker.setWindow(10, 4);
+		this.breaker.setFailureRateThreshold(50.0);
+		this.breaker.setOpenDuration(100L);
+		this.breaker.setHalfOpenCalls(2);
+	}
+
+	private void call(Long nanoseconds, Boolean failed) {
+		this.breaker.acquire(HOST);
+		this.breaker.record(HOST, nanoseconds, failed);
+	}
+
+	private Long assertRejected() {
+		try {
+			this.breaker.acquire(HOST);
+		} catch (CircuitOpenException e) {
+			assertEquals(HOST, e.getHost());
+			return e.getRetryAfterMillis();
+		}
+		fail("The call should have been rejected");
+		return null;
+	}
+
+	private void openCircuit() {
+		for (int call = 0; call < 4; call++) {
+			this.call(FAST, true);
+		}
+		assertEquals(CircuitBreaker.State.OPEN, this.breaker.getState(HOST));
+	}
+
+	private static void sleep(Long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Test
+	public void staysClosedBelowMinimumCalls() {
+		for (int call = 0; call < 3; call++) {
+			this.call(FAST, true);
+		}
+		assertEquals(CircuitBreaker.State.CLOSED, this.breaker.getState(HOST));
+	}
+
+	@Test
+	public void staysClosedBelowFailureRate() {
+		for (int call = 0; call < 10; call++) {
+			this.call(FAST, call % 3 == 2);
+		}
+		assertEquals(CircuitBreaker.State.CLOSED, this.breaker.getState(HOST));
+		assertEquals(Long.valueOf(0L), this.breaker.getOpenedCount());
+	}
+
+	@Test
+	public void opensAtFailureRate() {
+		this.call(FAST, false);
+		this.call(FAST, false);
+		this.call(FAST, true);
+		assertEquals(CircuitBreaker.State.CLOSED, this.breaker.getState(HOST));
+		this.call(FAST, true);
+		assertEquals(CircuitBreaker.State.OPEN, this.breaker.getState(HOST));
+		Long retryAfter = this.assertRejected();
+		assertTrue(retryAfter > 0 && retryAfter <= 100L);
+		assertEquals(Long.valueOf(1L), this.breaker.getOpenedCount());
+	}
+
+	@Test
+	public void opensAtSlowCallRate() {
+		this.breaker.setSlowCallThreshold(50.0, 10L);
+		for (int call = 0; call < 4; call++) {
+			this.call((call % 2 == 0) ? FAST : 20 * FAST, false);
+		}
+		assertEquals(CircuitBreaker.State.OPEN, this.breaker.getState(HOST));
+	}
+
+	@Test
+	public void forgetsCallsOutsideWindow() {
+		for (int call = 0; call < 4; call++) {
+			this.call(FAST, call == 0);
+		}
+		// Four failures in the last ten calls stay below half
+		for (int call = 0; call < 6; call++) {
+			this.call(FAST, false);
+		}
+		for (int call = 0; call < 4; call++) {
+			this.call(FAST, true);
+		}
+		assertEquals(CircuitBreaker.State.CLOSED, this.breaker.getState(HOST));
+		this.call(FAST, true);
+		assertEquals(CircuitBreaker.State.OPEN, this.breaker.getState(HOST));
+	}
+
+	@Test
+	public void closesAfterSuccessfulTrials() {
+		this.openCircuit();
+		sleep(150L);
+		this.breaker.acquire(HOST);
+		assertEquals(CircuitBreaker.State.HALF_OPEN, this.breaker.getState(HOST));
+		this.breaker.acquire(HOST);
+		// Only the configured number of trials are let through at once
+		assertEquals(Long.valueOf(0L), this.assertRejected());
+		this.breaker.record(HOST, FAST, false);
+		assertEquals(CircuitBreaker.State.HALF_OPEN, this.breaker.getState(HOST));
+		this.breaker.record(HOST, FAST, false);
+		assertEquals(CircuitBreaker.State.CLOSED, this.breaker.getState(HOST));
+
+		// The window starts over once closed
+		for (int call = 0; call < 3; call++) {
+			this.call(FAST, true);
+		}
+		assertEquals(CircuitBreaker.State.CLOSED, this.breaker.getState(HOST));
+	}
+
+	@Test
+	public void reopensAfterFailedTrial() {
+		this.openCircuit();
+		sleep(150L);
+		this.call(FAST, true);
+		assertEquals(CircuitBreaker.State.OPEN, this.breaker.getState(HOST));
+		assertEquals(Long.valueOf(2L), this.breaker.getOpenedCount());
+		this.assertRejected();
+	}
+
+	@Test
+	public void keepsHostsApart() {
+		this.openCircuit();
+		this.breaker.acquire("other.example.com");
+		assertEquals(CircuitBreaker.State.OPEN, this.breaker.getState("EXAMPLE.com"));
+		assertEquals(CircuitBreaker.State.CLOSED, this.breaker.getState("other.example.com"));
+		this.breaker.reset();
+		assertEquals(CircuitBreaker.State.CLOSED, this.breaker.getState(HOST));
+	}
+}
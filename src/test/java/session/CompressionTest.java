@@ -0,0 +1,221 @@
+package session;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import test.LocalHTTPSServer;
+
+/**
+ * Decoding of compressed responses and gzip compression of request bodies,
+ * against LocalHTTPSServer
+ */
+public class CompressionTest {
+
+	private static final byte[] PAYLOAD = CompressionTest.getPayload();
+
+	private LocalHTTPSServer server;
+	private Session session;
+
+	private static byte[] getPayload() {
+		JSONObject payload = new JSONObject();
+		for (int field = 0; field < 200; field++) {
+			payload.put("field" + field, "value" + field);
+		}
+		return payload.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		this.server = new LocalHTTPSServer();
+		BasicAuthenticationProtocol protocol = Session.BasicAuthenticationProtocol(this.server.getURL("/"));
+		protocol.useKeystore(this.server.getKeystore());
+		this.session = new Session();
+		this.session.authorize(protocol);
+	}
+
+	@After
+	public void tearDown() {
+		this.server.close();
+	}
+
+	private static byte[] gzip(byte[] bytes) throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		try (OutputStream output = new GZIPOutputStream(compressed)) {
+			output.write(bytes);
+		}
+		return compressed.toByteArray();
+	}
+
+	private static byte[] deflate(byte[] bytes, Boolean zlib) throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, !zlib);
+		try (OutputStream output = new DeflaterOutputStream(compressed, deflater)) {
+			output.write(bytes);
+		} finally {
+			deflater.end();
+		}
+		return compressed.toByteArray();
+	}
+
+	private static byte[] gunzip(byte[] bytes) throws IOException {
+		try (InputStream input = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = input.read(buffer)) != -1) {
+				output.write(buffer, 0, read);
+			}
+			return output.toByteArray();
+		}
+	}
+
+	/**
+	 * Serves the body as sent, labelled with the coding
+	 *
+	 * @return Connection to the served body
+	 */
+	private SessionConnection fetch(String coding, byte[] body) throws IOException {
+		this.server.createContext("/" + coding, exchange -> {
+			exchange.getResponseHeaders().set("Content-Type", "application/json");
+			exchange.getResponseHeaders().set("Content-Encoding", coding.replaceFirst("^(zlib|raw)-", ""));
+			exchange.sendResponseHeaders(200, (body.length > 0) ? body.length : -1);
+			try (OutputStream output = exchange.getResponseBody()) {
+				output.write(body);
+			}
+		});
+		return this.session.getConnection(this.server.getURL("/" + coding), (RequestBody) null,
+				SessionConnection.REQUEST_METHOD.GET);
+	}
+
+	private void assertDecoded(String coding, byte[] body) throws IOException {
+		SessionConnection connection = this.fetch(coding, body);
+		assertEquals(new String(PAYLOAD, StandardCharsets.UTF_8), connection.getResponse());
+		// The headers describe the body as the caller reads it
+		assertNull(connection.getHeaderField("Content-Encoding"));
+		assertNull(connection.getHeaderField("Content-Length"));
+
+		SessionMetrics.Snapshot metrics = this.session.getMetrics().getSnapshot();
+		assertEquals(Long.valueOf(body.length), metrics.getBytesIn());
+		assertEquals(Long.valueOf(PAYLOAD.length), metrics.getUncompressedBytesIn());
+	}
+
+	@Test
+	public void decodesGzip() throws IOException {
+		this.assertDecoded("gzip", CompressionTest.gzip(PAYLOAD));
+	}
+
+	@Test
+	public void decodesXGzip() throws IOException {
+		this.assertDecoded("x-gzip", CompressionTest.gzip(PAYLOAD));
+	}
+
+	@Test
+	public void decodesZlibDeflate() throws IOException {
+		this.assertDecoded("zlib-deflate", CompressionTest.deflate(PAYLOAD, true));
+	}
+
+	@Test
+	public void decodesRawDeflate() throws IOException {
+		this.assertDecoded("raw-deflate", CompressionTest.deflate(PAYLOAD, false));
+	}
+
+	@Test
+	public void readsEmptyBodyLabelledCompressed() throws IOException {
+		SessionConnection connection = this.fetch("gzip", new byte[0]);
+		assertEquals(Integer.valueOf(200), connection.getServerResponseCode());
+		assertEquals("", connection.getResponse());
+	}
+
+	@Test
+	public void leavesOtherCodingsAlone() throws IOException {
+		SessionConnection connection = this.fetch("br", PAYLOAD);
+		assertEquals(new String(PAYLOAD, StandardCharsets.UTF_8), connection.getResponse());
+		assertEquals("br", connection.getHeaderField("Content-Encoding"));
+	}
+
+	@Test
+	public void compressesBufferedRequestBody() throws IOException {
+		RequestBody body = RequestBody.gzip(RequestBody.of(PAYLOAD, "application/json"));
+		assertEquals("application/json", body.getContentType());
+		ByteArrayOutputStream written = new ByteArrayOutputStream();
+		body.writeTo(written);
+		assertEquals(Long.valueOf(written.size()), body.getContentLength());
+		assertTrue(written.size() < PAYLOAD.length);
+		assertArrayEquals(PAYLOAD, CompressionTest.gunzip(written.toByteArray()));
+	}
+
+	@Test
+	public void compressesStreamedRequestBody() throws IOException {
+		RequestBody body = RequestBody.gzip(RequestBody.of(new ByteArrayInputStream(PAYLOAD), "application/json", -1L));
+		assertEquals(Long.valueOf(-1L), body.getContentLength());
+		ByteArrayOutputStream written = new ByteArrayOutputStream();
+		body.writeTo(written);
+		assertArrayEquals(PAYLOAD, CompressionTest.gunzip(written.toByteArray()));
+	}
+
+	@Test
+	public void compressesRequestBodyChannel() throws IOException {
+		byte[] large = new byte[(int) (RequestBody.MAX_BUFFERED_COMPRESSION_BYTES + 1)];
+		for (int index = 0; index < large.length; index++) {
+			large[index] = PAYLOAD[index % PAYLOAD.length];
+		}
+		RequestBody body = RequestBody.gzip(RequestBody.of(large, "application/json"));
+		assertEquals(Long.valueOf(-1L), body.getContentLength());
+		ByteArrayOutputStream written = new ByteArrayOutputStream();
+		try (ReadableByteChannel channel = body.openChannel()) {
+			ByteBuffer buffer = ByteBuffer.allocate(1000);
+			while (channel.read(buffer) != -1) {
+				buffer.flip();
+				Channels.newChannel(written).write(buffer);
+				buffer.clear();
+			}
+		}
+		assertArrayEquals(large, CompressionTest.gunzip(written.toByteArray()));
+	}
+
+	@Test
+	public void sendsCompressedBodyOverThreshold() throws IOException {
+		this.session.setRequestCompressionThreshold(1024L);
+		String echo = this.session.getConnection(this.server.getURL("/echo"),
+				RequestBody.of(PAYLOAD, "application/json"), SessionConnection.REQUEST_METHOD.POST).getResponse();
+		CRC32 crc = new CRC32();
+		crc.update(PAYLOAD);
+		assertEquals("{\"received\":" + PAYLOAD.length + ",\"crc32\":" + crc.getValue() + "}", echo);
+
+		SessionMetrics.Snapshot metrics = this.session.getMetrics().getSnapshot();
+		assertEquals(Long.valueOf(PAYLOAD.length), metrics.getUncompressedBytesOut());
+		assertTrue(metrics.getBytesOut() < PAYLOAD.length);
+	}
+
+	@Test
+	public void sendsSmallBodyAsIs() throws IOException {
+		this.session.setRequestCompressionThreshold(PAYLOAD.length + 1L);
+		this.session.getConnection(this.server.getURL("/echo"), RequestBody.of(PAYLOAD, "application/json"),
+				SessionConnection.REQUEST_METHOD.POST);
+		SessionMetrics.Snapshot metrics = this.session.getMetrics().getSnapshot();
+		assertEquals(Long.valueOf(PAYLOAD.length), metrics.getUncompressedBytesOut());
+		assertEquals(Long.valueOf(PAYLOAD.length), metrics.getBytesOut());
+	}
+}
@@ -0,0 +1,155 @@
+package session;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class HTTPResponseCacheTest {
+
+	private URL url;
+	private HTTPResponseCache cache;
+	private List<RequestHeaders> loads;
+
+	@Before
+	public void setUp() throws IOException {
+		this.url = new URL("https://localhost/object");
+		this.cache = new HTTPResponseCache();
+		this.loads = new ArrayList<RequestHeaders>();
+	}
+
+	private static SessionConnection response(Integer code, String body, String... headers) {
+		Map<String, List<String>> responseHeaders = new HashMap<String, List<String>>();
+		for (int index = 0; index < headers.length; index += 2) {
+			responseHeaders.put(headers[index], Collections.singletonList(headers[index + 1]));
+		}
+		return new SessionConnection(code, "", body.getBytes(StandardCharsets.UTF_8), responseHeaders);
+	}
+
+	private SessionConnection get(RequestHeaders requestHeaders, SessionConnection response) throws IOException {
+		return this.cache.getConnection(this.url, requestHeaders, headers -> {
+			this.loads.add(headers);
+			return response;
+		});
+	}
+
+	private SessionConnection get(SessionConnection response) throws IOException {
+		return this.get(null, response);
+	}
+
+	private static String date(Long offsetSeconds) {
+		return ZonedDateTime.now(ZoneOffset.UTC).plusSeconds(offsetSeconds).format(DateTimeFormatter.RFC_1123_DATE_TIME);
+	}
+
+	@Test
+	public void servesFreshResponseWithoutLoading() throws IOException {
+		this.get(response(200, "first", "Cache-Control", "max-age=60"));
+		SessionConnection cached = this.get(response(200, "second"));
+		assertArrayEquals("first".getBytes(StandardCharsets.UTF_8), cached.getResponseBytes());
+		assertEquals(1, this.loads.size());
+		assertEquals(Long.valueOf(1L), this.cache.getHitCount());
+	}
+
+	@Test
+	public void ageShortensFreshness() throws IOException {
+		this.get(response(200, "first", "Cache-Control", "max-age=60", "Age", "90"));
+		this.get(response(200, "second"));
+		assertEquals(2, this.loads.size());
+	}
+
+	@Test
+	public void followsExpires() throws IOException {
+		this.get(response(200, "fresh", "Expires", date(60L)));
+		this.get(response(200, "other"));
+		assertEquals(1, this.loads.size());
+
+		this.cache.clear();
+		this.get(response(200, "stale", "Expires", date(-60L)));
+		this.get(response(200, "other"));
+		assertEquals(3, this.loads.size());
+	}
+
+	@Test
+	public void maxAgeOverridesExpires() throws IOException {
+		this.get(response(200, "first", "Cache-Control", "max-age=60", "Expires", date(-60L)));
+		this.get(response(200, "second"));
+		assertEquals(1, this.loads.size());
+	}
+
+	@Test
+	public void revalidatesStaleResponse() throws IOException {
+		this.get(response(200, "first", "Cache-Control", "no-cache", "ETag", "\"v1\"", "Last-Modified",
+				date(-3600L)));
+		SessionConnection revalidated = this.get(response(304, "", "Cache-Control", "max-age=60"));
+		assertEquals(Integer.valueOf(200), revalidated.getServerResponseCode());
+		assertArrayEquals("first".getBytes(StandardCharsets.UTF_8), revalidated.getResponseBytes());
+		assertEquals("\"v1\"", this.loads.get(1).get("If-None-Match"));
+		assertEquals(Long.valueOf(1L), this.cache.getRevalidationCount());
+
+		// The 304 refreshed the entry
+		this.get(response(200, "third"));
+		assertEquals(2, this.loads.size());
+	}
+
+	@Test
+	public void replacesEntryWhenChanged() throws IOException {
+		this.get(response(200, "first", "Cache-Control", "no-cache", "ETag", "\"v1\""));
+		this.get(response(200, "second", "Cache-Control", "max-age=60", "ETag", "\"v2\""));
+		SessionConnection cached = this.get(response(200, "third"));
+		assertArrayEquals("second".getBytes(StandardCharsets.UTF_8), cached.getResponseBytes());
+		assertEquals(2, this.loads.size());
+	}
+
+	@Test
+	public void doesNotStoreUncacheableResponses() throws IOException {
+		this.get(response(200, "first", "Cache-Control", "no-store, max-age=60"));
+		this.get(response(200, "second", "Cache-Control", "max-age=60", "Vary", "*"));
+		this.get(response(404, "missing", "Cache-Control", "max-age=60"));
+		this.get(response(200, "unvalidated"));
+		assertEquals(Integer.valueOf(0), this.cache.getEntryCount());
+	}
+
+	@Test
+	public void keepsResponsesApartByCredentials() throws IOException {
+		this.get(RequestHeaders.of("Authorization", "Basic YTpi"), response(200, "a", "Cache-Control", "max-age=60"));
+		SessionConnection other = this.get(RequestHeaders.of("Authorization", "Basic Yzpk"),
+				response(200, "c", "Cache-Control", "max-age=60"));
+		assertArrayEquals("c".getBytes(StandardCharsets.UTF_8), other.getResponseBytes());
+		assertEquals(2, this.loads.size());
+		assertNull(this.loads.get(1).get("If-None-Match"));
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsed() throws IOException {
+		this.cache = new HTTPResponseCache(2, HTTPResponseCache.DEFAULT_MAX_SIZE);
+		for (String path : new String[] { "/a", "/b", "/a", "/c" }) {
+			this.url = new URL("https://localhost" + path);
+			this.get(response(200, path, "Cache-Control", "max-age=60"));
+		}
+		assertEquals(Integer.valueOf(2), this.cache.getEntryCount());
+		// Reading /a kept it over /b, then storing /b again evicts /a
+		this.url = new URL("https://localhost/b");
+		this.get(response(200, "/b", "Cache-Control", "max-age=60"));
+		assertEquals(4, this.loads.size());
+		this.url = new URL("https://localhost/c");
+		this.get(response(200, "/c"));
+		assertEquals(4, this.loads.size());
+		this.url = new URL("https://localhost/a");
+		this.get(response(200, "/a"));
+		assertEquals(5, this.loads.size());
+	}
+}
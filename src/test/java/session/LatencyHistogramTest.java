@@ -0,0 +1,91 @@
+package session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	/**
+	 * @return Midpoint of the bucket the value was recorded in, unclamped by
+	 *         the minimum and maximum
+	 */
+	private static Long getBucketValue(long value) {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(0L);
+		histogram.record(value);
+		histogram.record(value);
+		histogram.record(Long.MAX_VALUE);
+		return histogram.getSnapshot().getPercentile(50.0);
+	}
+
+	@Test
+	public void keepsSmallValuesExact() {
+		for (long value = 1; value < 32; value++) {
+			assertEquals(Long.valueOf(value), getBucketValue(value));
+		}
+	}
+
+	@Test
+	public void bucketsWithinThreePercent() {
+		for (int bit = 5; bit < 63; bit++) {
+			long lowest = 1L << bit;
+			for (long value : new long[] { lowest, lowest + 1, lowest + (lowest >> 1), (lowest << 1) - 1 }) {
+				long bucketValue = getBucketValue(value);
+				assertTrue(value + " was reported as " + bucketValue,
+						Math.abs(bucketValue - value) <= Math.max(1L, value / 32));
+			}
+		}
+		long bucketValue = getBucketValue(Long.MAX_VALUE - 1);
+		assertTrue(bucketValue >= Long.MAX_VALUE - Long.MAX_VALUE / 32);
+	}
+
+	@Test
+	public void reportsPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		long[] values = new long[100000];
+		for (int index = 0; index < values.length; index++) {
+			values[index] = ThreadLocalRandom.current().nextLong(1000L, 1000000000L);
+			histogram.record(values[index]);
+		}
+		Arrays.sort(values);
+		LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+		assertEquals(Long.valueOf(values.length), snapshot.getCount());
+		assertEquals(Long.valueOf(values[0]), snapshot.getMin());
+		assertEquals(Long.valueOf(values[values.length - 1]), snapshot.getMax());
+		for (double percentile : new double[] { 1.0, 50.0, 90.0, 99.0, 99.9, 100.0 }) {
+			long exact = values[(int) Math.ceil(percentile / 100.0 * values.length) - 1];
+			long reported = snapshot.getPercentile(percentile);
+			assertTrue("p" + percentile + " was " + reported + " instead of " + exact,
+					Math.abs(reported - exact) <= exact / 32);
+		}
+	}
+
+	@Test
+	public void reportsMeanAndClampsNegativeValues() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(-5L);
+		histogram.record(10L);
+		histogram.record(20L);
+		LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+		assertEquals(Long.valueOf(0L), snapshot.getMin());
+		assertEquals(10.0, snapshot.getMean(), 0.0);
+	}
+
+	@Test
+	public void resetsAfterSnapshot() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(1000L);
+		assertEquals(Long.valueOf(1L), histogram.getSnapshotAndReset().getCount());
+		LatencyHistogram.Snapshot empty = histogram.getSnapshot();
+		assertEquals(Long.valueOf(0L), empty.getCount());
+		assertEquals(Long.valueOf(0L), empty.getPercentile(99.0));
+		assertEquals(Long.valueOf(0L), empty.getMax());
+		histogram.record(5L);
+		assertEquals(Long.valueOf(5L), histogram.getSnapshot().getMin());
+	}
+}
@@ -0,0 +1,99 @@
+package session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+public class MultipartBodyTest {
+
+	private static String write(RequestBody body) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		body.writeTo(output);
+		assertEquals(Long.valueOf(output.size()), body.getContentLength());
+		return new String(output.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static String read(RequestBody body) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		try (ReadableByteChannel channel = body.openChannel()) {
+			ByteBuffer buffer = ByteBuffer.allocate(7);
+			while (channel.read(buffer) != -1) {
+				buffer.flip();
+				output.write(buffer.array(), 0, buffer.limit());
+				buffer.clear();
+			}
+		}
+		return new String(output.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void writesFieldsAndFiles() throws IOException {
+		Path file = Files.createTempFile("upload", ".txt");
+		try {
+			Files.write(file, "file contents".getBytes(StandardCharsets.UTF_8));
+			MultipartBody body = new MultipartBody().with("title", "S\u00fcd").with("attachment", file)
+					.with("data", "report \"q1\".json", RequestBody.of("{}".getBytes(StandardCharsets.UTF_8),
+							"application/json"));
+			String boundary = body.getBoundary();
+			assertEquals("multipart/form-data; boundary=" + boundary, body.getContentType());
+
+			String expected = "--" + boundary + "\r\n"
+					+ "Content-Disposition: form-data; name=\"title\"\r\n"
+					+ "\r\n"
+					+ "S\u00fcd\r\n"
+					+ "--" + boundary + "\r\n"
+					+ "Content-Disposition: form-data; name=\"attachment\"; filename=\"" + file.getFileName() + "\"\r\n"
+					+ "Content-Type: text/plain\r\n"
+					+ "\r\n"
+					+ "file contents\r\n"
+					+ "--" + boundary + "\r\n"
+					+ "Content-Disposition: form-data; name=\"data\"; filename=\"report %22q1%22.json\"\r\n"
+					+ "Content-Type: application/json\r\n"
+					+ "\r\n"
+					+ "{}\r\n"
+					+ "--" + boundary + "--\r\n";
+			assertEquals(expected, MultipartBodyTest.write(body));
+			assertEquals(expected, MultipartBodyTest.read(body));
+			assertTrue(body.isRepeatable());
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void writesClosingDelimiterWithoutParts() throws IOException {
+		MultipartBody body = new MultipartBody();
+		assertEquals("--" + body.getBoundary() + "--\r\n", MultipartBodyTest.write(body));
+	}
+
+	@Test
+	public void quotesLineBreaksInNames() throws IOException {
+		MultipartBody body = new MultipartBody().with("a\r\nb", "");
+		assertTrue(MultipartBodyTest.write(body).contains("name=\"a%0D%0Ab\"\r\n\r\n\r\n"));
+	}
+
+	@Test
+	public void hasUnknownLengthWithStreamPart() throws IOException {
+		byte[] bytes = "streamed".getBytes(StandardCharsets.UTF_8);
+		MultipartBody body = new MultipartBody().with("field", "value").with("stream", "stream.bin",
+				RequestBody.of(new ByteArrayInputStream(bytes), null, -1L));
+		assertEquals(Long.valueOf(-1L), body.getContentLength());
+		String written = MultipartBodyTest.read(body);
+		assertTrue(written.contains("filename=\"stream.bin\"\r\n\r\nstreamed\r\n--" + body.getBoundary() + "--\r\n"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsNullValue() {
+		new MultipartBody().with("field", (String) null);
+	}
+}
@@ -0,0 +1,188 @@
+package session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import session.exception.RequestLimitException;
+
+public class RequestLimiterTest {
+
+	private static final String HOST = "example.com";
+	private static final Long ROUND_TRIP = 1000000L;
+
+	private RequestLimiter limiter;
+
+	@Before
+	public void setUp() {
+		this.limiter = new RequestLimiter();
+		this.limiter.setConcurrencyLimit(4, 2, 6);
+		this.limiter.setAdaptation(2.0, 0.5);
+		this.limiter.setQueue(0, 0L);
+	}
+
+	private void acquire(Integer requests) throws InterruptedException {
+		for (int request = 0; request < requests; request++) {
+			this.limiter.acquire(HOST);
+		}
+	}
+
+	private void assertRejected() throws InterruptedException {
+		try {
+			this.limiter.acquire(HOST);
+		} catch (RequestLimitException e) {
+			assertEquals(HOST, e.getHost());
+			return;
+		}
+		fail("The request should have been rejected");
+	}
+
+	@Test
+	public void rejectsRequestsOverTheLimit() throws InterruptedException {
+		this.acquire(4);
+		this.assertRejected();
+		assertEquals(Long.valueOf(1L), this.limiter.getRejectedCount());
+
+		this.limiter.release(HOST, null, false);
+		this.limiter.acquire(HOST);
+		assertEquals(Integer.valueOf(4), this.limiter.getConcurrencyLimit(HOST));
+	}
+
+	@Test
+	public void growsWhileSaturated() throws InterruptedException {
+		this.acquire(4);
+		// About one per limit's worth of requests
+		for (int request = 0; request < 5; request++) {
+			this.limiter.release(HOST, ROUND_TRIP, false);
+			this.limiter.acquire(HOST);
+		}
+		assertEquals(Integer.valueOf(5), this.limiter.getConcurrencyLimit(HOST));
+		this.limiter.acquire(HOST);
+		this.assertRejected();
+
+		for (int request = 0; request < 100; request++) {
+			this.limiter.release(HOST, ROUND_TRIP, false);
+			this.limiter.acquire(HOST);
+		}
+		assertEquals(Integer.valueOf(6), this.limiter.getConcurrencyLimit(HOST));
+	}
+
+	@Test
+	public void staysWhileUnsaturated() throws InterruptedException {
+		for (int request = 0; request < 100; request++) {
+			this.limiter.acquire(HOST);
+			this.limiter.release(HOST, ROUND_TRIP, false);
+		}
+		assertEquals(Integer.valueOf(4), this.limiter.getConcurrencyLimit(HOST));
+	}
+
+	@Test
+	public void backsOffWhenOverloaded() throws InterruptedException {
+		this.acquire(2);
+		this.limiter.release(HOST, ROUND_TRIP, true);
+		assertEquals(Integer.valueOf(2), this.limiter.getConcurrencyLimit(HOST));
+		this.limiter.acquire(HOST);
+		this.assertRejected();
+
+		// Not below the minimum
+		this.limiter.release(HOST, ROUND_TRIP, true);
+		assertEquals(Integer.valueOf(2), this.limiter.getConcurrencyLimit(HOST));
+	}
+
+	@Test
+	public void backsOffOncePerRoundTrip() throws InterruptedException {
+		this.limiter.setConcurrencyLimit(6, 1, 6);
+		this.acquire(2);
+		Long roundTrip = TimeUnit.SECONDS.toNanos(60);
+		this.limiter.release(HOST, roundTrip, true);
+		// Sent before the decrease, so it reports the same congestion
+		this.limiter.release(HOST, roundTrip, true);
+		assertEquals(Integer.valueOf(3), this.limiter.getConcurrencyLimit(HOST));
+	}
+
+	@Test
+	public void backsOffWhenRoundTripsRise() throws InterruptedException {
+		for (int request = 0; request < 50; request++) {
+			this.limiter.acquire(HOST);
+			this.limiter.release(HOST, ROUND_TRIP, false);
+		}
+		assertEquals(Integer.valueOf(4), this.limiter.getConcurrencyLimit(HOST));
+
+		// Within the tolerance of the longer term average
+		this.limiter.acquire(HOST);
+		this.limiter.release(HOST, 2 * ROUND_TRIP, false);
+		assertEquals(Integer.valueOf(4), this.limiter.getConcurrencyLimit(HOST));
+
+		for (int request = 0; request < 3; request++) {
+			this.limiter.acquire(HOST);
+			this.limiter.release(HOST, 10 * ROUND_TRIP, false);
+		}
+		assertEquals(Integer.valueOf(2), this.limiter.getConcurrencyLimit(HOST));
+	}
+
+	@Test
+	public void queuesUntilReleased() throws InterruptedException {
+		this.limiter.setQueue(1, 10000L);
+		this.acquire(4);
+
+		CountDownLatch started = new CountDownLatch(1);
+		Thread waiting = new Thread(() -> {
+			try {
+				this.limiter.acquire(HOST);
+				started.countDown();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		waiting.start();
+		assertTrue(!started.await(100, TimeUnit.MILLISECONDS));
+
+		this.limiter.release(HOST, ROUND_TRIP, false);
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		waiting.join();
+	}
+
+	@Test
+	public void rejectsAfterQueueTimeout() throws InterruptedException {
+		this.limiter.setQueue(1, 50L);
+		this.acquire(4);
+
+		long start = System.nanoTime();
+		this.assertRejected();
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+		assertEquals(Long.valueOf(1L), this.limiter.getRejectedCount());
+	}
+
+	@Test
+	public void limitsTheRate() throws InterruptedException {
+		this.limiter.setRateLimit(10.0, 2);
+		this.limiter.setQueue(1, 10000L);
+
+		long start = System.nanoTime();
+		this.acquire(3);
+		long elapsed = System.nanoTime() - start;
+		// The burst starts at once, the next waits for a token
+		assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(90));
+		assertTrue(elapsed < TimeUnit.SECONDS.toNanos(5));
+
+		this.limiter.setQueue(0, 0L);
+		this.assertRejected();
+	}
+
+	@Test
+	public void keepsHostsApart() throws InterruptedException {
+		this.acquire(4);
+		this.limiter.release(HOST, ROUND_TRIP, true);
+
+		this.limiter.acquire("other.example.com");
+		assertEquals(Integer.valueOf(2), this.limiter.getConcurrencyLimit("EXAMPLE.COM"));
+		assertEquals(Integer.valueOf(4), this.limiter.getConcurrencyLimit("other.example.com"));
+		assertEquals(2, this.limiter.getConcurrencyLimits().size());
+	}
+}
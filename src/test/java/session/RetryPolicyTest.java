@@ -0,0 +1,300 @@
+package session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLHandshakeException;
+
+import org.junit.Test;
+
+import session.exception.HTTPErrorResponseException;
+
+public class RetryPolicyTest {
+
+	private static SessionConnection ok() {
+		return new SessionConnection(200, "OK", new byte[0], Collections.emptyMap());
+	}
+
+	/**
+	 * @return Connection counting the latch down once closed
+	 */
+	private static SessionConnection ok(CountDownLatch closed) {
+		return new SessionConnection(200, "OK", new byte[0], Collections.emptyMap()) {
+			@Override
+			public void close() {
+				closed.countDown();
+				super.close();
+			}
+		};
+	}
+
+	private static HTTPErrorResponseException unavailable() {
+		return new HTTPErrorResponseException(503, "Service Unavailable", null, null);
+	}
+
+	private static void sleep(Long millis) throws IOException {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Runs a request which always fails with the given failure
+	 *
+	 * @return Attempts made
+	 */
+	private static Integer attempts(RetryPolicy policy, SessionConnection.REQUEST_METHOD requestMethod,
+			IOException failure) {
+		AtomicInteger attempts = new AtomicInteger();
+		try {
+			policy.execute(requestMethod, () -> {
+				attempts.incrementAndGet();
+				throw failure;
+			}, Runnable::run);
+			fail("The failure should have been thrown");
+		} catch (IOException e) {
+			assertSame(failure, e);
+		}
+		return attempts.get();
+	}
+
+	@Test
+	public void readsRetryAfterSeconds() {
+		RetryPolicy policy = new RetryPolicy();
+		assertEquals(Long.valueOf(2000L),
+				policy.getRetryAfter(new HTTPErrorResponseException(503, "Service Unavailable", "2", null)));
+		assertEquals(Long.valueOf(0L),
+				policy.getRetryAfter(new HTTPErrorResponseException(429, "Too Many Requests", "-5", null)));
+	}
+
+	@Test
+	public void readsRetryAfterDate() {
+		String date = ZonedDateTime.now(ZoneOffset.UTC).plusSeconds(30).format(DateTimeFormatter.RFC_1123_DATE_TIME);
+		Long retryAfter = new RetryPolicy()
+				.getRetryAfter(new HTTPErrorResponseException(429, "Too Many Requests", date, null));
+		assertTrue(retryAfter > 28000L && retryAfter <= 30000L);
+	}
+
+	@Test
+	public void ignoresRetryAfterOnOtherFailures() {
+		RetryPolicy policy = new RetryPolicy();
+		assertNull(policy.getRetryAfter(new HTTPErrorResponseException(502, "Bad Gateway", "2", null)));
+		assertNull(policy.getRetryAfter(new HTTPErrorResponseException(503, "Service Unavailable", "soon", null)));
+		assertNull(policy.getRetryAfter(new HTTPErrorResponseException(503, "Service Unavailable", null, null)));
+		assertNull(policy.getRetryAfter(new IOException("Connection reset")));
+	}
+
+	@Test
+	public void waitsAtLeastRetryAfter() throws IOException {
+		RetryPolicy policy = new RetryPolicy();
+		policy.setBackoff(0L, 5000L);
+		AtomicInteger attempts = new AtomicInteger();
+		long start = System.nanoTime();
+		SessionConnection connection = policy.execute(SessionConnection.REQUEST_METHOD.GET, () -> {
+			if (attempts.incrementAndGet() == 1) {
+				throw new HTTPErrorResponseException(503, "Service Unavailable", "1", null);
+			}
+			return RetryPolicyTest.ok();
+		}, Runnable::run);
+		assertEquals(Integer.valueOf(200), connection.getServerResponseCode());
+		assertEquals(2, attempts.get());
+		assertTrue((System.nanoTime() - start) / 1000000L >= 1000L);
+	}
+
+	@Test
+	public void doesNotRetryBeyondMaxBackoff() {
+		RetryPolicy policy = new RetryPolicy();
+		policy.setBackoff(0L, 1000L);
+		AtomicInteger attempts = new AtomicInteger();
+		try {
+			policy.execute(SessionConnection.REQUEST_METHOD.GET, () -> {
+				attempts.incrementAndGet();
+				throw new HTTPErrorResponseException(429, "Too Many Requests", "60", null);
+			}, Runnable::run);
+			fail("The 429 should have been thrown");
+		} catch (IOException e) {
+			assertEquals(1, attempts.get());
+			assertEquals(Long.valueOf(0L), policy.getRetryCount());
+		}
+	}
+
+	@Test
+	public void retriesUpToMaxAttempts() {
+		RetryPolicy policy = new RetryPolicy();
+		policy.setBackoff(0L, 0L);
+		assertEquals(RetryPolicy.DEFAULT_MAX_ATTEMPTS,
+				RetryPolicyTest.attempts(policy, SessionConnection.REQUEST_METHOD.GET, RetryPolicyTest.unavailable()));
+		assertEquals(Long.valueOf(RetryPolicy.DEFAULT_MAX_ATTEMPTS - 1), policy.getRetryCount());
+	}
+
+	@Test
+	public void stopsRetryingOnceBudgetIsSpent() {
+		RetryPolicy policy = new RetryPolicy();
+		policy.setBackoff(0L, 0L);
+		policy.setRetryBudget(0.0, 1);
+		assertEquals(Integer.valueOf(2),
+				RetryPolicyTest.attempts(policy, SessionConnection.REQUEST_METHOD.GET, RetryPolicyTest.unavailable()));
+		assertEquals(Long.valueOf(1L), policy.getBudgetExhaustedCount());
+
+		assertEquals(Integer.valueOf(1),
+				RetryPolicyTest.attempts(policy, SessionConnection.REQUEST_METHOD.GET, RetryPolicyTest.unavailable()));
+		assertEquals(Long.valueOf(2L), policy.getBudgetExhaustedCount());
+		assertEquals(Long.valueOf(1L), policy.getRetryCount());
+	}
+
+	@Test
+	public void earnsBudgetBackWithRequests() throws IOException {
+		RetryPolicy policy = new RetryPolicy();
+		policy.setBackoff(0L, 0L);
+		policy.setRetryBudget(0.5, 1);
+		RetryPolicyTest.attempts(policy, SessionConnection.REQUEST_METHOD.GET, RetryPolicyTest.unavailable());
+		// Two requests earn back a retry
+		policy.execute(SessionConnection.REQUEST_METHOD.GET, RetryPolicyTest::ok, Runnable::run);
+		assertEquals(Integer.valueOf(2),
+				RetryPolicyTest.attempts(policy, SessionConnection.REQUEST_METHOD.GET, RetryPolicyTest.unavailable()));
+	}
+
+	@Test
+	public void doesNotRetryNonIdempotentMethods() {
+		RetryPolicy policy = new RetryPolicy();
+		policy.setBackoff(0L, 0L);
+		assertEquals(Integer.valueOf(1),
+				RetryPolicyTest.attempts(policy, SessionConnection.REQUEST_METHOD.POST, RetryPolicyTest.unavailable()));
+		assertEquals(Integer.valueOf(1), RetryPolicyTest.attempts(policy, SessionConnection.REQUEST_METHOD.PATCH,
+				new IOException("Connection reset")));
+		assertEquals(Long.valueOf(0L), policy.getRetryCount());
+		assertEquals(Long.valueOf(0L), policy.getBudgetExhaustedCount());
+	}
+
+	@Test
+	public void doesNotRetryOtherResponseCodes() {
+		RetryPolicy policy = new RetryPolicy();
+		policy.setBackoff(0L, 0L);
+		for (Integer responseCode : new Integer[] { 400, 404, 500, 501 }) {
+			assertEquals(Integer.valueOf(1), RetryPolicyTest.attempts(policy, SessionConnection.REQUEST_METHOD.GET,
+					new HTTPErrorResponseException(responseCode, "Error", null, null)));
+		}
+		assertEquals(Integer.valueOf(1), RetryPolicyTest.attempts(policy, SessionConnection.REQUEST_METHOD.GET,
+				new SSLHandshakeException("Untrusted")));
+
+		policy.setRetryableResponseCodes(500);
+		assertEquals(Integer.valueOf(3), RetryPolicyTest.attempts(policy, SessionConnection.REQUEST_METHOD.GET,
+				new HTTPErrorResponseException(500, "Internal Server Error", null, null)));
+	}
+
+	@Test
+	public void growsBackoffCeilingUpToMax() {
+		RetryPolicy policy = new RetryPolicy();
+		policy.setBackoff(100L, 1000L);
+		Long[] ceilings = { 100L, 200L, 400L, 800L, 1000L, 1000L };
+		for (int retry = 1; retry <= ceilings.length; retry++) {
+			Long highest = 0L;
+			for (int sample = 0; sample < 500; sample++) {
+				Long backoff = policy.getBackoff(retry);
+				assertTrue(backoff >= 0 && backoff <= ceilings[retry - 1]);
+				highest = Math.max(highest, backoff);
+			}
+			// Full jitter reaches close to the ceiling over many samples
+			assertTrue("Retry " + retry + " reached " + highest, highest > ceilings[retry - 1] * 3 / 4);
+		}
+		// The doubling doesn't overflow
+		assertTrue(policy.getBackoff(64) <= 1000L);
+
+		policy.setBackoff(0L, 0L);
+		assertEquals(Long.valueOf(0L), policy.getBackoff(1));
+	}
+
+	@Test
+	public void usesHedgeWhichCompletesFirst() throws IOException, InterruptedException {
+		RetryPolicy policy = new RetryPolicy();
+		policy.setHedgeDelay(50L);
+		ExecutorService executor = Executors.newCachedThreadPool();
+		CountDownLatch primaryClosed = new CountDownLatch(1);
+		SessionConnection hedge = RetryPolicyTest.ok();
+		AtomicInteger attempts = new AtomicInteger();
+		try {
+			SessionConnection connection = policy.execute(SessionConnection.REQUEST_METHOD.GET, () -> {
+				if (attempts.incrementAndGet() == 1) {
+					RetryPolicyTest.sleep(500L);
+					return RetryPolicyTest.ok(primaryClosed);
+				}
+				return hedge;
+			}, executor);
+			assertSame(hedge, connection);
+			assertEquals(Long.valueOf(1L), policy.getHedgeCount());
+			assertEquals(Long.valueOf(1L), policy.getHedgeWinCount());
+			// The slower attempt's connection is closed once it completes
+			assertTrue(primaryClosed.await(5, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void keepsPrimaryWhenItCompletesFirst() throws IOException, InterruptedException {
+		RetryPolicy policy = new RetryPolicy();
+		policy.setHedgeDelay(50L);
+		ExecutorService executor = Executors.newCachedThreadPool();
+		CountDownLatch hedgeClosed = new CountDownLatch(1);
+		SessionConnection primary = RetryPolicyTest.ok();
+		AtomicInteger attempts = new AtomicInteger();
+		try {
+			SessionConnection connection = policy.execute(SessionConnection.REQUEST_METHOD.GET, () -> {
+				if (attempts.incrementAndGet() == 1) {
+					RetryPolicyTest.sleep(200L);
+					return primary;
+				}
+				RetryPolicyTest.sleep(2000L);
+				return RetryPolicyTest.ok(hedgeClosed);
+			}, executor);
+			assertSame(primary, connection);
+			assertEquals(Long.valueOf(1L), policy.getHedgeCount());
+			assertEquals(Long.valueOf(0L), policy.getHedgeWinCount());
+			assertTrue(hedgeClosed.await(5, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void throwsWhenBothHedgedAttemptsFail() throws InterruptedException {
+		RetryPolicy policy = new RetryPolicy();
+		policy.setHedgeDelay(50L);
+		policy.setMaxAttempts(1);
+		ExecutorService executor = Executors.newCachedThreadPool();
+		AtomicInteger attempts = new AtomicInteger();
+		try {
+			policy.execute(SessionConnection.REQUEST_METHOD.GET, () -> {
+				attempts.incrementAndGet();
+				RetryPolicyTest.sleep(200L);
+				throw RetryPolicyTest.unavailable();
+			}, executor);
+			fail("The failure should have been thrown");
+		} catch (IOException e) {
+			assertTrue(e instanceof HTTPErrorResponseException);
+			assertEquals(Integer.valueOf(503), ((HTTPErrorResponseException) e).getResponseCode());
+			assertEquals(2, attempts.get());
+			assertEquals(Long.valueOf(1L), policy.getHedgeCount());
+			assertEquals(Long.valueOf(0L), policy.getHedgeWinCount());
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
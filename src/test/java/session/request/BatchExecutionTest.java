@@ -0,0 +1,107 @@
+package session.request;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import session.CookieAuthenticationProtocol;
+import session.Session;
+import session.transport.NioTransport;
+import test.LocalHTTPSServer;
+
+/**
+ * Batches sent through NioTransport, which completes requests without taking
+ * a thread from the batch's executor
+ */
+public class BatchExecutionTest {
+
+	private static final Integer REQUESTS = 20;
+
+	private LocalHTTPSServer server;
+	private NioTransport transport;
+	private Session session;
+	private final AtomicInteger concurrent = new AtomicInteger();
+	private final AtomicInteger peak = new AtomicInteger();
+
+	@Before
+	public void setUp() throws IOException {
+		this.server = new LocalHTTPSServer();
+		this.server.createContext("/slow", exchange -> {
+			this.peak.accumulateAndGet(this.concurrent.incrementAndGet(), Math::max);
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				this.concurrent.decrementAndGet();
+			}
+			byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream output = exchange.getResponseBody()) {
+				output.write(body);
+			}
+		});
+		this.server.setAuthenticationRequired(true);
+		this.transport = new NioTransport();
+		this.session = new Session();
+		this.session.setTransport(this.transport);
+
+		CookieAuthenticationProtocol protocol = Session
+				.CookieAuthenticationProtocol(this.server.getURL("/login/cookie"));
+		protocol.useKeystore(this.server.getKeystore());
+		protocol.authorize("username", "password", false);
+		this.session.authorize(protocol);
+	}
+
+	@After
+	public void tearDown() {
+		this.transport.close();
+		this.server.close();
+	}
+
+	private List<ConnectionRequest> requests() throws IOException {
+		List<ConnectionRequest> requests = new ArrayList<ConnectionRequest>();
+		for (int request = 0; request < REQUESTS; request++) {
+			requests.add(this.session.GET(this.server.getURL("/slow")));
+		}
+		return requests;
+	}
+
+	private void assertSuccessful(BatchExecution batch) {
+		Integer results = 0;
+		while (batch.hasNext()) {
+			BatchExecution.Result result = batch.next();
+			assertTrue(String.valueOf(result.getException()), result.isSuccessful());
+			results++;
+		}
+		assertEquals(REQUESTS, results);
+		assertFalse(batch.hasNext());
+	}
+
+	@Test
+	public void staysWithinInFlightLimit() throws IOException {
+		this.assertSuccessful(this.session.executeAll(this.requests(), 4));
+		assertTrue("Peak of " + this.peak.get(), this.peak.get() <= 4);
+		assertTrue(this.peak.get() > 0);
+	}
+
+	@Test
+	public void reauthenticatesAfterBatchStarted() throws IOException {
+		this.server.expireSessions();
+		this.assertSuccessful(this.session.executeAll(this.requests(), 2));
+		assertTrue(this.peak.get() <= 2);
+		// Requests rejected with the same session cookie log in again once
+		assertEquals(Long.valueOf(2L), this.server.getLoginCount());
+	}
+}
@@ -0,0 +1,231 @@
+package session.request;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import session.BasicAuthenticationProtocol;
+import session.Session;
+import test.LocalHTTPSServer;
+
+/**
+ * Streamed, resumed and ranged downloads from LocalHTTPSServer's /download
+ * resource, whose ETag is "download-" followed by its length
+ */
+public class FileDownloadTest {
+
+	private static final Integer LENGTH = 4 * 1024 * 1024;
+
+	private LocalHTTPSServer server;
+	private Session session;
+	private Path directory;
+	private Path file;
+	private Path part;
+	private Path validator;
+	private final List<String> requests = new CopyOnWriteArrayList<String>();
+	private volatile Predicate<String> refusesRange = range -> false;
+	private volatile byte[] targetWhileResuming = null;
+
+	@Before
+	public void setUp() throws IOException {
+		this.server = new LocalHTTPSServer() {
+			@Override
+			protected void download(HttpExchange exchange) throws IOException {
+				String range = exchange.getRequestHeaders().getFirst("Range");
+				FileDownloadTest.this.requests.add(exchange.getRequestMethod() + " " + range);
+				if (range != null && exchange.getRequestMethod().equals("GET") && Files.exists(FileDownloadTest.this.file)) {
+					FileDownloadTest.this.targetWhileResuming = Files.readAllBytes(FileDownloadTest.this.file);
+				}
+				if (range != null && FileDownloadTest.this.refusesRange.test(range)) {
+					FileDownloadTest.sendWhole(exchange, LocalHTTPSServer.getIntegerParameter(exchange, "bytes", 0));
+				} else {
+					super.download(exchange);
+				}
+			}
+		};
+		BasicAuthenticationProtocol protocol = Session.BasicAuthenticationProtocol(this.server.getURL("/"));
+		protocol.useKeystore(this.server.getKeystore());
+		this.session = new Session();
+		this.session.authorize(protocol);
+
+		this.directory = Files.createTempDirectory("download");
+		this.file = this.directory.resolve("resource.bin");
+		this.part = this.directory.resolve("resource.bin.part");
+		this.validator = this.directory.resolve("resource.bin.part.validator");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		this.server.close();
+		for (Path path : new Path[] { this.file, this.part, this.validator, this.directory }) {
+			Files.deleteIfExists(path);
+		}
+	}
+
+	/**
+	 * Answers a range request with the whole resource, as a server ignoring
+	 * ranges does
+	 */
+	private static void sendWhole(HttpExchange exchange, Integer length) throws IOException {
+		exchange.getResponseHeaders().set("ETag", "\"download-" + length + "\"");
+		exchange.sendResponseHeaders(200, length);
+		try (OutputStream output = exchange.getResponseBody()) {
+			output.write(FileDownloadTest.expected(0, length));
+		}
+	}
+
+	private static byte[] expected(Integer from, Integer to) {
+		byte[] bytes = new byte[to - from];
+		for (int index = 0; index < bytes.length; index++) {
+			bytes[index] = LocalHTTPSServer.getDownloadByte(from + index);
+		}
+		return bytes;
+	}
+
+	private Long download(String query, Integer ranges) throws IOException {
+		ConnectionRequest request = this.session.GET(this.server.getURL("/download?" + query));
+		return new FileDownload(request, this.file, ranges, false).download(this.session.getRequestExecutor());
+	}
+
+	/**
+	 * Leaves a partial download of the given bytes, resumable with the
+	 * validator
+	 */
+	private void leavePart(byte[] bytes, String entityTag) throws IOException {
+		Files.write(this.part, bytes);
+		Files.write(this.validator, entityTag.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void assertCompleted(byte[] expected) throws IOException {
+		assertArrayEquals(expected, Files.readAllBytes(this.file));
+		assertFalse(Files.exists(this.part));
+		assertFalse(Files.exists(this.validator));
+	}
+
+	@Test
+	public void streamsWholeBody() throws IOException {
+		assertEquals(Long.valueOf(LENGTH), this.download("bytes=" + LENGTH, 1));
+		this.assertCompleted(FileDownloadTest.expected(0, LENGTH));
+		assertEquals(Arrays.asList("GET null"), this.requests);
+	}
+
+	@Test
+	public void resumesFromPartFile() throws IOException {
+		// Bytes the server wouldn't send, so the file shows which part was resumed
+		byte[] resumed = new byte[1000];
+		this.leavePart(resumed, "\"download-" + LENGTH + "\"");
+
+		assertEquals(Long.valueOf(LENGTH), this.download("bytes=" + LENGTH, 1));
+		byte[] expected = FileDownloadTest.expected(0, LENGTH);
+		System.arraycopy(resumed, 0, expected, 0, resumed.length);
+		this.assertCompleted(expected);
+		assertEquals(Arrays.asList("GET bytes=1000-"), this.requests);
+	}
+
+	@Test
+	public void restartsAfterRangeNotSatisfiable() throws IOException {
+		this.leavePart(new byte[LENGTH + 10], "\"download-" + LENGTH + "\"");
+
+		assertEquals(Long.valueOf(LENGTH), this.download("bytes=" + LENGTH, 1));
+		this.assertCompleted(FileDownloadTest.expected(0, LENGTH));
+		assertEquals(Arrays.asList("GET bytes=" + (LENGTH + 10) + "-", "GET null"), this.requests);
+	}
+
+	@Test
+	public void startsOverWhenResourceChanged() throws IOException {
+		this.leavePart(new byte[1000], "\"download-stale\"");
+
+		assertEquals(Long.valueOf(LENGTH), this.download("bytes=" + LENGTH, 1));
+		// If-Range didn't match, so the whole body replaced the partial file
+		this.assertCompleted(FileDownloadTest.expected(0, LENGTH));
+		assertEquals(Arrays.asList("GET bytes=1000-"), this.requests);
+	}
+
+	@Test
+	public void resumesInterruptedDownloadWithoutTouchingTarget() throws IOException {
+		byte[] previous = "previous version".getBytes(StandardCharsets.UTF_8);
+		Files.write(this.file, previous);
+
+		assertEquals(Long.valueOf(LENGTH), this.download("bytes=" + LENGTH + "&cutAt=300000", 1));
+		this.assertCompleted(FileDownloadTest.expected(0, LENGTH));
+		assertEquals(Arrays.asList("GET null", "GET bytes=300000-"), this.requests);
+		// The partial body was only ever in the partial file
+		assertArrayEquals(previous, this.targetWhileResuming);
+	}
+
+	@Test
+	public void keepsTargetWhenDownloadFails() throws IOException {
+		byte[] previous = "previous version".getBytes(StandardCharsets.UTF_8);
+		Files.write(this.file, previous);
+		this.server.createContext("/unresumable", exchange -> {
+			// No validator, so the download can't be resumed
+			exchange.sendResponseHeaders(200, LENGTH);
+			OutputStream output = exchange.getResponseBody();
+			output.write(FileDownloadTest.expected(0, 1000));
+			output.flush();
+			exchange.close();
+		});
+
+		ConnectionRequest request = this.session.GET(this.server.getURL("/unresumable"));
+		try {
+			new FileDownload(request, this.file, 1, false).download(this.session.getRequestExecutor());
+			fail("The truncated download should have failed");
+		} catch (IOException e) {
+			assertArrayEquals(previous, Files.readAllBytes(this.file));
+		}
+	}
+
+	@Test
+	public void downloadsRangesInParallel() throws IOException {
+		assertEquals(Long.valueOf(LENGTH), this.download("bytes=" + LENGTH, 4));
+		this.assertCompleted(FileDownloadTest.expected(0, LENGTH));
+
+		Integer quarter = LENGTH / 4;
+		assertEquals("HEAD null", this.requests.get(0));
+		assertEquals(5, this.requests.size());
+		for (int range = 0; range < 4; range++) {
+			assertTrue(this.requests.toString(), this.requests
+					.contains("GET bytes=" + (range * quarter) + "-" + ((range + 1) * quarter - 1)));
+		}
+	}
+
+	@Test
+	public void downloadsRangesMemoryMapped() throws IOException {
+		ConnectionRequest request = this.session.GET(this.server.getURL("/download?bytes=" + LENGTH));
+		assertEquals(Long.valueOf(LENGTH),
+				new FileDownload(request, this.file, 4, true).download(this.session.getRequestExecutor()));
+		this.assertCompleted(FileDownloadTest.expected(0, LENGTH));
+	}
+
+	@Test
+	public void streamsWhenRangeNotServed() throws IOException {
+		AtomicBoolean refused = new AtomicBoolean();
+		Integer quarter = LENGTH / 4;
+		String refusedRange = "bytes=" + (2 * quarter) + "-" + (3 * quarter - 1);
+		this.refusesRange = range -> range.equals(refusedRange) && refused.compareAndSet(false, true);
+
+		assertEquals(Long.valueOf(LENGTH), this.download("bytes=" + LENGTH, 4));
+		this.assertCompleted(FileDownloadTest.expected(0, LENGTH));
+		assertTrue(refused.get());
+		assertEquals("GET null", this.requests.get(this.requests.size() - 1));
+	}
+}
@@ -0,0 +1,144 @@
+package session.transport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import session.RequestBody;
+import session.RequestHeaders;
+import test.LocalHTTPSServer;
+
+/**
+ * Response parsing of NioTransport against LocalHTTPSServer, with the
+ * responses the HTTP server can't produce sent by serveRaw
+ */
+public class NioTransportTest {
+
+	private LocalHTTPSServer server;
+	private NioTransport transport;
+
+	@Before
+	public void setUp() throws IOException {
+		this.server = new LocalHTTPSServer();
+		this.transport = new NioTransport();
+	}
+
+	@After
+	public void tearDown() {
+		this.transport.close();
+		this.server.close();
+	}
+
+	/**
+	 * Sends the request and reads the whole response body
+	 */
+	private byte[] fetch(URL url, String requestMethod, RequestHeaders requestHeaders, RequestBody requestBody,
+			Integer expectedResponseCode) throws IOException {
+		try (Transport.Exchange exchange = this.transport.open(url, requestMethod, requestHeaders, requestBody,
+				this.server.getKeystore())) {
+			exchange.connect();
+			exchange.send();
+			assertEquals(expectedResponseCode, exchange.getResponseCode());
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			try (InputStream input = exchange.getResponseBody()) {
+				byte[] buffer = new byte[8192];
+				int read;
+				while ((read = input.read(buffer)) != -1) {
+					body.write(buffer, 0, read);
+				}
+			}
+			return body.toByteArray();
+		}
+	}
+
+	private String fetch(URL url) throws IOException {
+		return new String(this.fetch(url, "GET", null, null, 200), StandardCharsets.ISO_8859_1);
+	}
+
+	@Test
+	public void readsChunkedBody() throws IOException {
+		byte[] expected = new byte[1024 * 1024 + 123];
+		for (int index = 0; index < expected.length; index++) {
+			expected[index] = LocalHTTPSServer.getDownloadByte(index);
+		}
+		this.server.createContext("/chunked", exchange -> {
+			exchange.sendResponseHeaders(200, 0);
+			// Chunks of varying size, so chunk boundaries fall anywhere in
+			// the TLS records
+			try (OutputStream output = exchange.getResponseBody()) {
+				for (int offset = 0, size = 1; offset < expected.length; offset += size, size = size * 3 % 20011) {
+					output.write(expected, offset, Math.min(size, expected.length - offset));
+					output.flush();
+				}
+			}
+		});
+		assertArrayEquals(expected, this.fetch(this.server.getURL("/chunked"), "GET", null, null, 200));
+	}
+
+	@Test
+	public void readsChunkExtensionsAndTrailers() throws IOException {
+		URL url = this.server.serveRaw(
+				"HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+						+ "5;name=value\r\nHello\r\n6\r\n World\r\n0\r\nX-Checksum: 1234\r\nX-Other: 5\r\n\r\n",
+				"HTTP/1.1 200 OK\r\nContent-Length: 4\r\n\r\nNext",
+				// Unused, keeps the server from closing the connection before
+				// it's counted
+				"HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n");
+		assertEquals("Hello World", this.fetch(url));
+		// The trailers were read in full, so the next response on the
+		// connection starts at its status line
+		assertEquals("Next", this.fetch(url));
+		assertEquals(Integer.valueOf(1), this.transport.getOpenConnections());
+	}
+
+	@Test
+	public void skipsInterimResponses() throws IOException {
+		URL url = this.server.serveRaw("HTTP/1.1 100 Continue\r\n\r\n"
+				+ "HTTP/1.1 103 Early Hints\r\nLink: </style.css>; rel=preload\r\n\r\n"
+				+ "HTTP/1.1 200 OK\r\nContent-Length: 5\r\nX-Final: true\r\n\r\nFinal");
+		try (Transport.Exchange exchange = this.transport.open(url, "GET", null, null, this.server.getKeystore())) {
+			exchange.connect();
+			exchange.send();
+			assertEquals(Integer.valueOf(200), exchange.getResponseCode());
+			assertEquals("true", exchange.getHeaderFields().get("X-Final").get(0));
+			assertEquals(null, exchange.getHeaderFields().get("Link"));
+		}
+	}
+
+	@Test
+	public void continuesAfterExpectContinue() throws IOException {
+		// The HTTP server answers Expect: 100-continue with an interim 100
+		// before the response
+		byte[] body = new byte[100000];
+		String response = new String(this.fetch(this.server.getURL("/echo"), "POST",
+				RequestHeaders.of("Expect", "100-continue"), RequestBody.of(body, "application/octet-stream"), 200),
+				StandardCharsets.UTF_8);
+		assertEquals(true, response.startsWith("{\"received\":100000,"));
+	}
+
+	@Test
+	public void reusesKeepAliveConnection() throws IOException {
+		for (int request = 0; request < 5; request++) {
+			this.fetch(this.server.getURL("/object?fields=" + request));
+		}
+		this.fetch(this.server.getURL("/payload?bytes=100000"));
+		assertEquals(Integer.valueOf(1), this.transport.getOpenConnections());
+		assertEquals(Integer.valueOf(1), this.transport.getIdleConnections());
+	}
+
+	@Test
+	public void readsBodyUntilClose() throws IOException {
+		URL url = this.server.serveRaw("HTTP/1.1 200 OK\r\nConnection: close\r\n\r\nUntil the end");
+		assertEquals("Until the end", this.fetch(url));
+	}
+}
@@ -0,0 +1,214 @@
+package test;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import session.LatencyHistogram;
+import session.Session;
+import session.SessionConnection;
+import session.request.ConnectionRequest;
+
+/**
+ * Drives a Session with a fixed number of concurrent callers, each sending its
+ * next request as soon as the previous one completes, and reports the
+ * throughput, latency percentiles and errors observed from the caller's side.
+ *
+ * For example:
+ * new LoadGenerator(session, s -> s.GET(url)).run(16, 10000L)
+ */
+public class LoadGenerator {
+
+	/**
+	 * Outcome of a load test
+	 */
+	public static class Report {
+
+		private final Long requests;
+		private final Long elapsedNanoseconds;
+		private final LatencyHistogram.Snapshot latency;
+		private final Map<Integer, Long> responseCodes;
+		private final Map<String, Long> failures;
+
+		private Report(Long requests, Long elapsedNanoseconds, LatencyHistogram.Snapshot latency,
+				Map<Integer, Long> responseCodes, Map<String, Long> failures) {
+			this.requests = requests;
+			this.elapsedNanoseconds = elapsedNanoseconds;
+			this.latency = latency;
+			this.responseCodes = Collections.unmodifiableMap(responseCodes);
+			this.failures = Collections.unmodifiableMap(failures);
+		}
+
+		public Long getRequestCount() {
+			return this.requests;
+		}
+
+		/**
+		 * @return Completed requests per second, successful or not
+		 */
+		public Double getThroughput() {
+			return (this.elapsedNanoseconds > 0) ? this.requests * 1e9 / this.elapsedNanoseconds : 0.0;
+		}
+
+		/**
+		 * @return Latency of every request, including failures
+		 */
+		public LatencyHistogram.Snapshot getLatency() {
+			return this.latency;
+		}
+
+		/**
+		 * @return Number of responses by status code
+		 */
+		public Map<Integer, Long> getResponseCodes() {
+			return this.responseCodes;
+		}
+
+		/**
+		 * @return Number of requests which failed without a response, by
+		 *         exception
+		 */
+		public Map<String, Long> getFailures() {
+			return this.failures;
+		}
+
+		/**
+		 * @return Requests which failed or received a response code outside 2xx
+		 */
+		public Long getErrorCount() {
+			Long errors = 0L;
+			for (Map.Entry<Integer, Long> responseCode : this.responseCodes.entrySet()) {
+				if (responseCode.getKey() < 200 || responseCode.getKey() >= 300) {
+					errors += responseCode.getValue();
+				}
+			}
+			for (Long failures : this.failures.values()) {
+				errors += failures;
+			}
+			return errors;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("requests=%d, elapsed=%.1fs, throughput=%.1f/s, errors=%d, p50=%.2fms, "
+					+ "p90=%.2fms, p99=%.2fms, p999=%.2fms, max=%.2fms, responseCodes=%s, failures=%s",
+					this.requests, this.elapsedNanoseconds / 1e9, this.getThroughput(), this.getErrorCount(),
+					this.latency.getPercentile(50.0) / 1e6, this.latency.getPercentile(90.0) / 1e6,
+					this.latency.getPercentile(99.0) / 1e6, this.latency.getPercentile(99.9) / 1e6,
+					this.latency.getMax() / 1e6, this.responseCodes, this.failures);
+		}
+	}
+
+	private final Session session;
+	private final Function<Session, ConnectionRequest> workload;
+
+	/**
+	 * @param session
+	 *            Session under test
+	 * @param workload
+	 *            Creates each request, for example s -> s.GET(url)
+	 */
+	public LoadGenerator(Session session, Function<Session, ConnectionRequest> workload) {
+		this.session = session;
+		this.workload = workload;
+	}
+
+	/**
+	 * Runs the load test for a length of time
+	 *
+	 * @param concurrency
+	 *            Number of requests kept in flight
+	 * @param durationMilliseconds
+	 * @return Report
+	 * @throws InterruptedException
+	 */
+	public Report run(Integer concurrency, Long durationMilliseconds) throws InterruptedException {
+		return this.run(concurrency, durationMilliseconds, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Runs the load test until either the time is up or the number of
+	 * requests has been sent
+	 *
+	 * @param concurrency
+	 *            Number of requests kept in flight
+	 * @param durationMilliseconds
+	 * @param maxRequests
+	 * @return Report
+	 * @throws InterruptedException
+	 */
+	public Report run(Integer concurrency, Long durationMilliseconds, Long maxRequests)
+			throws InterruptedException {
+		if (concurrency == null || concurrency < 1) {
+			throw new IllegalArgumentException("The concurrency must be at least 1.");
+		}
+		LatencyHistogram latency = new LatencyHistogram();
+		Map<Integer, LongAdder> responseCodes = new ConcurrentHashMap<Integer, LongAdder>();
+		Map<String, LongAdder> failures = new ConcurrentHashMap<String, LongAdder>();
+		AtomicLong remaining = new AtomicLong(maxRequests);
+		CountDownLatch done = new CountDownLatch(concurrency);
+		Long start = System.nanoTime();
+		Long deadline = start + durationMilliseconds * 1000000L;
+
+		Thread[] callers = new Thread[concurrency];
+		for (int caller = 0; caller < concurrency; caller++) {
+			callers[caller] = new Thread(() -> {
+				try {
+					while (System.nanoTime() < deadline && remaining.getAndDecrement() > 0
+							&& !Thread.currentThread().isInterrupted()) {
+						this.send(latency, responseCodes, failures);
+					}
+				} finally {
+					done.countDown();
+				}
+			}, "load-generator-" + caller);
+			callers[caller].setDaemon(true);
+			callers[caller].start();
+		}
+
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			for (Thread caller : callers) {
+				caller.interrupt();
+			}
+			throw e;
+		}
+		Long elapsed = System.nanoTime() - start;
+
+		Map<Integer, Long> responseCodeCounts = new TreeMap<Integer, Long>();
+		responseCodes.forEach((responseCode, count) -> responseCodeCounts.put(responseCode, count.sum()));
+		Map<String, Long> failureCounts = new TreeMap<String, Long>();
+		failures.forEach((failure, count) -> failureCounts.put(failure, count.sum()));
+		LatencyHistogram.Snapshot snapshot = latency.getSnapshot();
+		return new Report(snapshot.getCount(), elapsed, snapshot, responseCodeCounts, failureCounts);
+	}
+
+	/**
+	 * Sends a single request on the calling thread and records its outcome
+	 */
+	private void send(LatencyHistogram latency, Map<Integer, LongAdder> responseCodes,
+			Map<String, LongAdder> failures) {
+		Long start = System.nanoTime();
+		try {
+			SessionConnection connection = this.workload.apply(this.session).toConnectionAsync(Runnable::run).join();
+			latency.record(System.nanoTime() - start);
+			if (connection == null) {
+				failures.computeIfAbsent("UnexpectedResponseCode", key -> new LongAdder()).increment();
+			} else {
+				responseCodes.computeIfAbsent(connection.getServerResponseCode(), key -> new LongAdder())
+						.increment();
+			}
+		} catch (RuntimeException e) {
+			latency.record(System.nanoTime() - start);
+			Throwable cause = (e instanceof CompletionException && e.getCause() != null) ? e.getCause() : e;
+			failures.computeIfAbsent(cause.getClass().getSimpleName(), key -> new LongAdder()).increment();
+		}
+	}
+}
@@ -0,0 +1,630 @@
+package test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import keystore.Keystore;
+
+/**
+ * In-process HTTPS server standing in for a remote service. A self-signed
+ * certificate for localhost is generated with keytool on start, and a
+ * temporary Keystore trusting it is provided for the client side.
+ *
+ * Endpoints:
+ * /object?fields=N returns a JSON object with N fields
+ * /array?elements=N returns a JSON array of N objects
+ * /payload?bytes=N returns a JSON object of about N bytes
+ * /echo returns the size of the request body
+ * /login/basic accepts the Basic Authorization header for the credentials
+ * /login/cookie accepts a JSON body with the username and password and sets a
+ * session cookie
+ *
+ * Responses the HTTP server can't produce, such as chunked bodies with
+ * trailers, are sent byte for byte from a socket of their own by serveRaw.
+ *
+ * Every endpoint can be slowed down with a random latency, and the data
+ * endpoints can be made to fail at a given rate or to require either login.
+ */
+public class LocalHTTPSServer implements AutoCloseable {
+
+	private static final String PASSWORD = "password";
+	private static final String ALIAS = "localhost";
+	private static final String SESSION_COOKIE = "SESSION";
+
+	private final File directory;
+	private final HttpsServer server;
+	private final SSLContext sslContext;
+	private final List<ServerSocket> rawServers = new CopyOnWriteArrayList<ServerSocket>();
+	private final ExecutorService executor;
+	private final Keystore keystore;
+	private final Set<String> sessions = ConcurrentHashMap.newKeySet();
+	private final AtomicLong logins = new AtomicLong();
+	private volatile String username = "username";
+	private volatile String password = "password";
+	private volatile Boolean authenticationRequired = false;
+	private volatile Long minLatency = 0L;
+	private volatile Long maxLatency = 0L;
+	private volatile Double errorRate = 0.0;
+	private volatile Integer errorCode = 503;
+
+	public LocalHTTPSServer() throws IOException {
+		this.directory = Files.createTempDirectory("session-https").toFile();
+		this.directory.deleteOnExit();
+		File serverKeystore = new File(this.directory, "server.jks");
+		File certificate = new File(this.directory, "localhost.cer");
+		LocalHTTPSServer.keytool("-genkeypair", "-alias", ALIAS, "-keyalg", "RSA", "-keysize", "2048", "-validity",
+				"2", "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-keystore",
+				serverKeystore.getAbsolutePath(), "-storetype", "JKS", "-storepass", PASSWORD, "-keypass", PASSWORD);
+		LocalHTTPSServer.keytool("-exportcert", "-alias", ALIAS, "-rfc", "-file", certificate.getAbsolutePath(),
+				"-keystore", serverKeystore.getAbsolutePath(), "-storepass", PASSWORD);
+
+		// Without TCP_NODELAY, delayed ACKs add about 40ms to each response
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+		this.server = HttpsServer.create(new InetSocketAddress("localhost", 0), 0);
+		this.sslContext = LocalHTTPSServer.getSSLContext(serverKeystore);
+		this.server.setHttpsConfigurator(new HttpsConfigurator(this.sslContext));
+		this.executor = Executors.newCachedThreadPool();
+		this.server.setExecutor(this.executor);
+		this.createContext("/object", exchange -> this.respond(exchange, 200,
+				LocalHTTPSServer.getJSONObject(LocalHTTPSServer.getIntegerParameter(exchange, "fields", 10))));
+		this.createContext("/array", exchange -> this.respond(exchange, 200,
+				LocalHTTPSServer.getJSONArray(LocalHTTPSServer.getIntegerParameter(exchange, "elements", 10))));
+		this.createContext("/payload", exchange -> this.respond(exchange, 200,
+				LocalHTTPSServer.getPayload(LocalHTTPSServer.getIntegerParameter(exchange, "bytes", 1024))));
+		this.createContext("/echo", exchange -> {
+			InputStream body = exchange.getRequestBody();
+			if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+				body = new GZIPInputStream(body);
+			}
+			CheckedInputStream checked = new CheckedInputStream(body, new CRC32());
+			Long received = LocalHTTPSServer.drain(checked);
+			this.respond(exchange, 200,
+					"{\"received\":" + received + ",\"crc32\":" + checked.getChecksum().getValue() + "}");
+		});
+		this.createContext("/download", this::download);
+		this.server.createContext("/login/basic", exchange -> {
+			this.logins.incrementAndGet();
+			this.delay();
+			if (this.isBasicAuthorized(exchange)) {
+				this.respond(exchange, 200, "{\"authenticated\":true}");
+			} else {
+				exchange.getResponseHeaders().set("WWW-Authenticate", "Basic realm=\"localhost\"");
+				this.respond(exchange, 401, "{\"authenticated\":false}");
+			}
+		});
+		this.server.createContext("/login/cookie", exchange -> {
+			this.logins.incrementAndGet();
+			this.delay();
+			if (this.isLoginValid(exchange)) {
+				String session = UUID.randomUUID().toString();
+				this.sessions.add(session);
+				exchange.getResponseHeaders().set("Set-Cookie",
+						SESSION_COOKIE + "=" + session + "; Path=/; Secure; HttpOnly");
+				this.respond(exchange, 200, "{\"authenticated\":true}");
+			} else {
+				this.respond(exchange, 401, "{\"authenticated\":false}");
+			}
+		});
+		this.server.start();
+
+		try {
+			this.keystore = new Keystore(new File(this.directory, "client.jks"));
+			this.keystore.addCertificate(certificate, ALIAS);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("The client keystore could not be created.", e);
+		}
+	}
+
+	/**
+	 * Runs keytool from the running JDK
+	 *
+	 * @param arguments
+	 * @throws IOException
+	 */
+	private static void keytool(String... arguments) throws IOException {
+		String[] command = new String[arguments.length + 1];
+		command[0] = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+		System.arraycopy(arguments, 0, command, 1, arguments.length);
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		try (InputStream output = process.getInputStream()) {
+			LocalHTTPSServer.drain(output);
+		}
+		try {
+			if (process.waitFor() != 0) {
+				throw new IOException("keytool " + arguments[0] + " failed.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while running keytool.", e);
+		}
+	}
+
+	private static SSLContext getSSLContext(File serverKeystore) throws IOException {
+		try (InputStream input = new FileInputStream(serverKeystore)) {
+			KeyStore keyStore = KeyStore.getInstance("JKS");
+			keyStore.load(input, PASSWORD.toCharArray());
+			KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			factory.init(keyStore, PASSWORD.toCharArray());
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(factory.getKeyManagers(), null, null);
+			return context;
+		} catch (GeneralSecurityException e) {
+			throw new IOException("The server SSLContext could not be created.", e);
+		}
+	}
+
+	/**
+	 * Reads the rest of the stream, leaving it open
+	 *
+	 * @param input
+	 * @return Number of bytes read
+	 * @throws IOException
+	 */
+	protected static Long drain(InputStream input) throws IOException {
+		byte[] buffer = new byte[8192];
+		Long total = 0L;
+		int read;
+		while ((read = input.read(buffer)) != -1) {
+			total += read;
+		}
+		return total;
+	}
+
+	protected static Map<String, String> getParameters(HttpExchange exchange) {
+		Map<String, String> parameters = new HashMap<String, String>();
+		String query = exchange.getRequestURI().getRawQuery();
+		if (query != null) {
+			for (String parameter : query.split("&")) {
+				String[] pair = parameter.split("=", 2);
+				parameters.put(pair[0], (pair.length > 1) ? pair[1] : "");
+			}
+		}
+		return parameters;
+	}
+
+	protected static Integer getIntegerParameter(HttpExchange exchange, String name, Integer defaultValue) {
+		String value = LocalHTTPSServer.getParameters(exchange).get(name);
+		return (value != null) ? Integer.valueOf(value) : defaultValue;
+	}
+
+	protected static String getJSONObject(Integer fields) {
+		StringBuilder builder = new StringBuilder("{");
+		for (int field = 0; field < fields; field++) {
+			if (field > 0) {
+				builder.append(',');
+			}
+			builder.append("\"field").append(field).append("\":\"value").append(field).append('"');
+		}
+		return builder.append('}').toString();
+	}
+
+	/**
+	 * @param bytes
+	 * @return JSON object padded to about the given number of bytes
+	 */
+	protected static String getPayload(Integer bytes) {
+		StringBuilder builder = new StringBuilder("{\"data\":\"");
+		while (builder.length() < bytes - 2) {
+			builder.append((char) ('a' + builder.length() % 26));
+		}
+		return builder.append("\"}").toString();
+	}
+
+	/**
+	 * @param position
+	 * @return Byte at the position of the /download resource
+	 */
+	public static byte getDownloadByte(long position) {
+		return (byte) (position * 31 + (position >> 13));
+	}
+
+	/**
+	 * Serves a binary resource of the given size with an ETag, honouring
+	 * single byte ranges guarded by If-Range. The connection is cut once the
+	 * response reaches the byte given by cutAt, unless the request started at
+	 * or after it, so downloads can be interrupted and then resumed.
+	 *
+	 * @param exchange
+	 * @throws IOException
+	 */
+	protected void download(HttpExchange exchange) throws IOException {
+		LocalHTTPSServer.drain(exchange.getRequestBody());
+		long length = LocalHTTPSServer.getIntegerParameter(exchange, "bytes", 1024 * 1024);
+		long cutAt = LocalHTTPSServer.getIntegerParameter(exchange, "cutAt", -1);
+		String entityTag = "\"download-" + length + "\"";
+		exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+		exchange.getResponseHeaders().set("ETag", entityTag);
+		exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+
+		long first = 0;
+		long last = length - 1;
+		String range = exchange.getRequestHeaders().getFirst("Range");
+		String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+		Boolean partial = range != null && range.startsWith("bytes=") && !range.contains(",")
+				&& (ifRange == null || ifRange.equals(entityTag));
+		if (partial) {
+			String[] bounds = range.substring("bytes=".length()).split("-", -1);
+			first = Long.parseLong(bounds[0].trim());
+			if (!bounds[1].trim().isEmpty()) {
+				last = Math.min(last, Long.parseLong(bounds[1].trim()));
+			}
+			if (first > last) {
+				exchange.getResponseHeaders().set("Content-Range", "bytes */" + length);
+				exchange.sendResponseHeaders(416, -1);
+				exchange.close();
+				return;
+			}
+			exchange.getResponseHeaders().set("Content-Range", "bytes " + first + "-" + last + "/" + length);
+		}
+		if (exchange.getRequestMethod().equals("HEAD")) {
+			exchange.getResponseHeaders().set("Content-Length", String.valueOf(last - first + 1));
+			exchange.sendResponseHeaders(partial ? 206 : 200, -1);
+			exchange.close();
+			return;
+		}
+		exchange.sendResponseHeaders(partial ? 206 : 200, last - first + 1);
+
+		OutputStream output = exchange.getResponseBody();
+		byte[] buffer = new byte[8192];
+		long position = first;
+		try {
+			while (position <= last) {
+				int count = (int) Math.min(buffer.length, last - position + 1);
+				if (cutAt > first && position + count > cutAt) {
+					count = (int) (cutAt - position);
+				}
+				for (int index = 0; index < count; index++) {
+					buffer[index] = LocalHTTPSServer.getDownloadByte(position + index);
+				}
+				output.write(buffer, 0, count);
+				position += count;
+				if (position == cutAt && cutAt > first) {
+					// Closing short of the length drops the connection
+					output.flush();
+					break;
+				}
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	protected static String getJSONArray(Integer elements) {
+		StringBuilder builder = new StringBuilder("[");
+		for (int element = 0; element < elements; element++) {
+			if (element > 0) {
+				builder.append(',');
+			}
+			builder.append("{\"id\":").append(element).append(",\"name\":\"element").append(element).append("\"}");
+		}
+		return builder.append(']').toString();
+	}
+
+	/**
+	 * Sends a JSON response and closes the exchange
+	 *
+	 * @param exchange
+	 * @param status
+	 * @param body
+	 * @throws IOException
+	 */
+	protected void respond(HttpExchange exchange, Integer status, String body) throws IOException {
+		LocalHTTPSServer.drain(exchange.getRequestBody());
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		String encoding = LocalHTTPSServer.getEncoding(exchange, bytes.length);
+		if (encoding == null) {
+			exchange.sendResponseHeaders(status, bytes.length);
+			try (OutputStream output = exchange.getResponseBody()) {
+				output.write(bytes);
+			}
+			return;
+		}
+		exchange.getResponseHeaders().set("Content-Encoding", encoding);
+		exchange.sendResponseHeaders(status, 0);
+		try (OutputStream output = encoding.equals("gzip") ? new GZIPOutputStream(exchange.getResponseBody())
+				: new DeflaterOutputStream(exchange.getResponseBody())) {
+			output.write(bytes);
+		}
+	}
+
+	/**
+	 * Picks the coding a response is compressed with, preferring gzip, from
+	 * those the client accepts. Small bodies are sent as they are.
+	 *
+	 * @param exchange
+	 * @param length
+	 *            Body length in bytes
+	 * @return gzip, deflate or null
+	 */
+	private static String getEncoding(HttpExchange exchange, Integer length) {
+		String accepted = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+		if (accepted == null || length < 256) {
+			return null;
+		}
+		accepted = accepted.toLowerCase();
+		return accepted.contains("gzip") ? "gzip" : accepted.contains("deflate") ? "deflate" : null;
+	}
+
+	/**
+	 * Sleeps for a random time within the configured latency
+	 */
+	private void delay() {
+		Long min = this.minLatency;
+		Long max = this.maxLatency;
+		if (max <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep((max > min) ? ThreadLocalRandom.current().nextLong(min, max + 1) : max);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private Boolean isBasicAuthorized(HttpExchange exchange) {
+		String expected = "Basic " + Base64.getEncoder()
+				.encodeToString((this.username + ":" + this.password).getBytes(StandardCharsets.UTF_8));
+		return expected.equals(exchange.getRequestHeaders().getFirst("Authorization"));
+	}
+
+	private Boolean isCookieAuthorized(HttpExchange exchange) {
+		String cookies = exchange.getRequestHeaders().getFirst("Cookie");
+		if (cookies != null) {
+			for (String cookie : cookies.split(";")) {
+				String[] pair = cookie.trim().split("=", 2);
+				if (pair.length == 2 && pair[0].equals(SESSION_COOKIE) && this.sessions.contains(pair[1])) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private Boolean isLoginValid(HttpExchange exchange) throws IOException {
+		try {
+			JSONObject login = new JSONObject(
+					new String(LocalHTTPSServer.readAll(exchange.getRequestBody()), StandardCharsets.UTF_8));
+			return this.username.equals(login.optString("username"))
+					&& this.password.equals(login.optString("password"));
+		} catch (JSONException e) {
+			return false;
+		}
+	}
+
+	private static byte[] readAll(InputStream input) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = input.read(buffer)) != -1) {
+			output.write(buffer, 0, read);
+		}
+		return output.toByteArray();
+	}
+
+	/**
+	 * Adds a data endpoint, subject to the configured latency, error rate and
+	 * authentication
+	 *
+	 * @param path
+	 * @param handler
+	 */
+	public void createContext(String path, HttpHandler handler) {
+		this.server.createContext(path, exchange -> {
+			this.delay();
+			if (this.authenticationRequired && !this.isBasicAuthorized(exchange) && !this.isCookieAuthorized(exchange)) {
+				this.respond(exchange, 401, "{\"error\":\"Unauthorized\"}");
+			} else if (this.errorRate > 0 && ThreadLocalRandom.current().nextDouble() < this.errorRate) {
+				this.respond(exchange, this.errorCode, "{\"error\":\"Injected failure\"}");
+			} else {
+				handler.handle(exchange);
+			}
+		});
+	}
+
+	/**
+	 * Sets the credentials accepted by the login endpoints, "username" and
+	 * "password" by default
+	 *
+	 * @param username
+	 * @param password
+	 */
+	public void setCredentials(String username, String password) {
+		this.username = username;
+		this.password = password;
+		this.sessions.clear();
+	}
+
+	/**
+	 * Invalidates every session cookie issued so far, as if they had expired
+	 */
+	public void expireSessions() {
+		this.sessions.clear();
+	}
+
+	/**
+	 * @return Number of requests made to either login endpoint
+	 */
+	public Long getLoginCount() {
+		return this.logins.get();
+	}
+
+	/**
+	 * Requires data endpoints to be called with the Basic Authorization header
+	 * or a session cookie from /login/cookie
+	 *
+	 * @param authenticationRequired
+	 */
+	public void setAuthenticationRequired(Boolean authenticationRequired) {
+		this.authenticationRequired = authenticationRequired;
+	}
+
+	/**
+	 * Delays every response by a random time between the bounds
+	 *
+	 * @param minLatency
+	 *            Milliseconds
+	 * @param maxLatency
+	 *            Milliseconds, 0 for no delay
+	 */
+	public void setLatency(Long minLatency, Long maxLatency) {
+		if (minLatency < 0 || maxLatency < minLatency) {
+			throw new IllegalArgumentException("The latency bounds must satisfy 0 <= min <= max.");
+		}
+		this.minLatency = minLatency;
+		this.maxLatency = maxLatency;
+	}
+
+	/**
+	 * Fails a fraction of data endpoint requests with the given status code
+	 *
+	 * @param errorRate
+	 *            Between 0 and 1
+	 * @param errorCode
+	 *            For example 500 or 503
+	 */
+	public void setErrorRate(Double errorRate, Integer errorCode) {
+		if (errorRate < 0 || errorRate > 1) {
+			throw new IllegalArgumentException("The error rate must be between 0 and 1.");
+		}
+		this.errorRate = errorRate;
+		this.errorCode = errorCode;
+	}
+
+	public Integer getPort() {
+		return this.server.getAddress().getPort();
+	}
+
+	/**
+	 * @param path
+	 *            Path and query, for example "/object?fields=10"
+	 * @return URL on this server
+	 * @throws MalformedURLException
+	 */
+	public URL getURL(String path) throws MalformedURLException {
+		return new URL("https://localhost:" + this.getPort() + path);
+	}
+
+	/**
+	 * Serves responses exactly as given, over TLS on a port of their own. Each
+	 * request on a connection is read up to the end of its head and answered
+	 * with the next response, and the connection is closed once every
+	 * response has been sent.
+	 *
+	 * @param responses
+	 *            Complete responses, from the status line to the end of the
+	 *            body
+	 * @return URL on the raw server
+	 * @throws IOException
+	 */
+	public URL serveRaw(String... responses) throws IOException {
+		ServerSocket server = this.sslContext.getServerSocketFactory().createServerSocket(0, 50,
+				InetAddress.getByName("localhost"));
+		this.rawServers.add(server);
+		this.executor.execute(() -> {
+			while (!server.isClosed()) {
+				try (Socket connection = server.accept()) {
+					InputStream input = connection.getInputStream();
+					OutputStream output = connection.getOutputStream();
+					for (String response : responses) {
+						if (!LocalHTTPSServer.readHead(input)) {
+							break;
+						}
+						output.write(response.getBytes(StandardCharsets.ISO_8859_1));
+						output.flush();
+					}
+				} catch (IOException e) {
+					// The connection was dropped by the client, or the server closed
+				}
+			}
+		});
+		return new URL("https://localhost:" + server.getLocalPort() + "/raw");
+	}
+
+	/**
+	 * Reads a request up to the blank line ending its head
+	 *
+	 * @param input
+	 * @return Whether a whole head was read before the stream ended
+	 * @throws IOException
+	 */
+	private static Boolean readHead(InputStream input) throws IOException {
+		int matched = 0;
+		int value;
+		while ((value = input.read()) != -1) {
+			matched = (value == ((matched % 2 == 0) ? '\r' : '\n')) ? matched + 1 : (value == '\r') ? 1 : 0;
+			if (matched == 4) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return Keystore trusting this server's certificate
+	 */
+	public Keystore getKeystore() {
+		return this.keystore;
+	}
+
+	@Override
+	public void close() {
+		this.server.stop(0);
+		for (ServerSocket server : this.rawServers) {
+			try {
+				server.close();
+			} catch (IOException e) {
+				// Already closed
+			}
+		}
+		this.executor.shutdownNow();
+		for (File file : this.directory.listFiles()) {
+			file.delete();
+		}
+		this.directory.delete();
+	}
+}